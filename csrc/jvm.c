@@ -32,29 +32,82 @@
 
 #include <stdlib.h>
 #include <stdio.h>
+#include <limits.h>
 #include <locale.h>
 #include <iconv.h>
+#include <langinfo.h>
+#include <errno.h>
 #include <pthread.h>
 #include "jvm.h"
 
 #define DEFAULT_HEAP_SIZE (1024*1024)
+#define TLAB_SIZE (16*1024)
+#define TLAB_WORDS (TLAB_SIZE/4)
+#define MARK_STACK_SIZE 1024
 
 pthread_key_t currentThread;
 
 pthread_mutex_t globalLock = PTHREAD_MUTEX_INITIALIZER;
 
+/* whether the locale uses UTF-8, which is converted without iconv */
+static int utf8Locale;
+
 int32_t *allocPtr;
 int32_t *allocEnd;
 
-_java_lang_NullPointerException_obj_t npExc = { &_java_lang_NullPointerException, 0, };
-_java_lang_ArrayIndexOutOfBoundsException_obj_t abExc = { &_java_lang_ArrayIndexOutOfBoundsException, 0, };
-_java_lang_ClassCastException_obj_t ccExc = { &_java_lang_ClassCastException, 0, };
-_java_lang_ArithmeticException_obj_t aeExc = { &_java_lang_ArithmeticException, 0, };
-_java_lang_InterruptedException_obj_t intrExc = { &_java_lang_InterruptedException, 0, };
-_java_lang_OutOfMemoryError_obj_t omErr = { &_java_lang_OutOfMemoryError, 0, };
-_java_lang_VirtualMachineError_obj_t vmErr = { &_java_lang_VirtualMachineError, 0, };
+/* the start of the heap, the memory between allocPtr and allocEnd
+   has never been allocated */
+static int32_t *heapStart;
+/* the free memory below allocPtr, as a list of runs of words */
+static int32_t *freeList;
+/* one bit for each word in the heap, set for marked objects */
+static uint32_t *markBits;
+
+#ifdef JVM_COMPACT_HEADERS
+/* the lock words of objects that have been locked, in a hash table
+   with chained entries; entries are only added under lockTableLock,
+   so lookups of existing entries need no lock, and only removed
+   while the other threads are stopped for garbage collection */
+typedef struct lock_entry {
+  struct lock_entry *next;
+  _java_lang_Object_obj_t *obj;
+  volatile lock_t lock;
+} lock_entry_t;
+
+#define LOCK_TABLE_SIZE 256
+
+static lock_entry_t * volatile *lockTable;
+static uint32_t lockTableMask;
+static uint32_t lockEntries;
+static pthread_mutex_t lockTableLock = PTHREAD_MUTEX_INITIALIZER;
+#endif
+
+__thread int32_t *jvm_tlab_ptr;
+__thread int32_t *jvm_tlab_end;
+
+__thread jvm_frame_t *jvm_frames;
+
+static __thread jvm_thread_t *currentThreadInfo;
+static jvm_thread_t mainThreadInfo;
+
+/* the registered threads and the number of threads that may access
+   the heap, protected by gcLock */
+static pthread_mutex_t gcLock = PTHREAD_MUTEX_INITIALIZER;
+static pthread_cond_t gcCond = PTHREAD_COND_INITIALIZER;
+static jvm_thread_t *threads;
+static int32_t runningThreads;
 
-_java_lang_Thread_obj_t mainThread = { &_java_lang_Thread, 0, };
+volatile int32_t jvm_gc_pending;
+
+_java_lang_NullPointerException_obj_t npExc = { &_java_lang_NullPointerException };
+_java_lang_ArrayIndexOutOfBoundsException_obj_t abExc = { &_java_lang_ArrayIndexOutOfBoundsException };
+_java_lang_ClassCastException_obj_t ccExc = { &_java_lang_ClassCastException };
+_java_lang_ArithmeticException_obj_t aeExc = { &_java_lang_ArithmeticException };
+_java_lang_InterruptedException_obj_t intrExc = { &_java_lang_InterruptedException };
+_java_lang_OutOfMemoryError_obj_t omErr = { &_java_lang_OutOfMemoryError };
+_java_lang_VirtualMachineError_obj_t vmErr = { &_java_lang_VirtualMachineError };
+
+_java_lang_Thread_obj_t mainThread = { &_java_lang_Thread };
 pthread_t main_pthread;
 
 void jvm_clinit(int32_t *exc) {
@@ -70,16 +123,29 @@ void jvm_clinit(int32_t *exc) {
   }
 
   allocPtr = malloc(heapSize);
-  if (!allocPtr) {
-    *exc = (int32_t)&omErr;
+  markBits = calloc((heapSize >> 7) + 1, sizeof(uint32_t));
+#ifdef JVM_COMPACT_HEADERS
+  lockTable = calloc(LOCK_TABLE_SIZE, sizeof(lock_entry_t *));
+  lockTableMask = LOCK_TABLE_SIZE - 1;
+  if (!lockTable) {
+    jvm_setexc(exc, (int32_t)&omErr);
+    return;
+  }
+#endif
+  if (!allocPtr || !markBits) {
+    jvm_setexc(exc, (int32_t)&omErr);
     return;
   }
+  heapStart = allocPtr;
   allocEnd = allocPtr+(heapSize >> 2);
 
   main_pthread = pthread_self();
   pthread_key_create(&currentThread, NULL);
+  jvm_thread_register(&mainThreadInfo, (int32_t)&mainThread);
+  jvm_thread_attach(&mainThreadInfo);
 
   setlocale(LC_ALL, "");
+  utf8Locale = strcmp(nl_langinfo(CODESET), "UTF-8") == 0;
 }
 
 void jvm_init(int32_t *retexc) {
@@ -106,9 +172,19 @@ void jvm_init(int32_t *retexc) {
 }
 
 int32_t jvm_args(int argc, char **argv, int32_t *exc) {
+  // the arrays must survive the allocation of the arguments
+  volatile int32_t roots[2] = { 0 };
+  jvm_frame_t frame = { jvm_frames, 2, roots };
+  jvm_frames = &frame;
+
   // create String array to hold arguments
   int32_t args = (int32_t)jvm_alloc(&_java_lang_String__, sizeof(_java_lang_String___obj_t)+(argc-1)*4, exc);
+  if (*exc != 0) {
+    jvm_frames = frame.prev;
+    return 0;
+  }
   jvm_setarrlength(_java_lang_String___obj_t, args, argc-1);
+  roots[0] = args;
 
   int i;
   for (i = 1; i < argc; i++) {
@@ -118,6 +194,10 @@ int32_t jvm_args(int argc, char **argv, int32_t *exc) {
     int32_t bytes = jvm_encode(argv[i], len, buf, len*sizeof(buf[0]));
     // store converted characters in Java array
     int32_t arr = (int32_t)jvm_alloc(&_char__, sizeof(_char___obj_t)+bytes, exc);
+    if (*exc != 0) {
+      break;
+    }
+    roots[1] = arr;
     int32_t arrlen = bytes/sizeof(buf[0]);
     jvm_setarrlength(_char___obj_t, arr, arrlen);
     for (int k = 0; k < arrlen; k++) {
@@ -125,87 +205,264 @@ int32_t jvm_args(int argc, char **argv, int32_t *exc) {
     }
     // create String from character array
     int32_t arg = (int32_t)jvm_alloc(&_java_lang_String, sizeof(_java_lang_String_obj_t), exc);
-    _java_lang_String__init___C_V(arg, arr, exc);
-    // store argument in array of arguments
+    if (*exc != 0) {
+      break;
+    }
+    // store argument in array of arguments before initializing it
     jvm_arrstore(_java_lang_String___obj_t, args, i-1, arg);
+    _java_lang_String__init___C_V(arg, arr, exc);
+    if (*exc != 0) {
+      break;
+    }
   }
 
+  jvm_frames = frame.prev;
   return args;
 }
 
-static int init_lock(_java_lang_Object_obj_t *obj) {
-  int retval = 0;
-  if (obj->lock == NULL) {
-    if (pthread_mutex_lock(&globalLock)) {
-      return -1;
-    }
-    if (obj->lock == NULL) {
-      obj->lock = malloc(sizeof(pthread_mutex_t));
-      if (obj->lock) {
-        retval = pthread_mutex_init(obj->lock, NULL);
-      } else {
-        retval = -1;
-      }
-    }
-    if (pthread_mutex_unlock(&globalLock)) {
-      return -1;
-    }
+/* the lock identifier of the current thread, assigned when the
+   thread is attached */
+__thread lock_t jvm_lock_id;
+static lock_t lockIds;
+
+/* a fat monitor, the mutex only protects the fields and is never
+   held while a thread waits for the monitor */
+typedef struct {
+  pthread_mutex_t mutex;
+  pthread_cond_t entry;
+  pthread_cond_t wait;
+  lock_t owner;
+  int32_t count;
+} monitor_t;
+
+#define LOCK_MONITOR(WORD) ((monitor_t *)((WORD) & ~(lock_t)JVM_LOCK_INFLATED))
+#define LOCK_OWNER(WORD) ((WORD) & ~(lock_t)JVM_LOCK_COUNT_MASK)
+
+/* replace a thin lock by a fat monitor held by the same thread;
+   the word may be changed concurrently by the owner, in which case
+   the lock is left for the caller to inspect again */
+static int inflate(volatile lock_t *lock, lock_t word) {
+  monitor_t *mon = malloc(sizeof(monitor_t));
+  if (!mon) {
+    return -1;
   }
-  return retval;
+  if (pthread_mutex_init(&mon->mutex, NULL)
+      || pthread_cond_init(&mon->entry, NULL)
+      || pthread_cond_init(&mon->wait, NULL)) {
+    free(mon);
+    return -1;
+  }
+  mon->owner = LOCK_OWNER(word);
+  mon->count = ((word & JVM_LOCK_COUNT_MASK) / JVM_LOCK_COUNT_ONE) + 1;
+  if (!__sync_bool_compare_and_swap(lock, word, (lock_t)mon | JVM_LOCK_INFLATED)) {
+    pthread_cond_destroy(&mon->wait);
+    pthread_cond_destroy(&mon->entry);
+    pthread_mutex_destroy(&mon->mutex);
+    free(mon);
+  }
+  return 0;
 }
 
-int jvm_lock(_java_lang_Object_obj_t *ref) {
-  if (init_lock(ref)) {
+static int monitor_enter(monitor_t *mon) {
+  if (pthread_mutex_lock(&mon->mutex)) {
     return -1;
   }
-  return pthread_mutex_lock(ref->lock);
+  if (mon->owner == jvm_lock_id) {
+    mon->count++;
+  } else if (mon->owner == 0) {
+    mon->owner = jvm_lock_id;
+    mon->count = 1;
+  } else {
+    /* the mutex must not be held while waiting for the garbage
+       collector in jvm_block() and jvm_unblock() */
+    pthread_mutex_unlock(&mon->mutex);
+    jvm_block();
+    pthread_mutex_lock(&mon->mutex);
+    while (mon->owner != 0) {
+      pthread_cond_wait(&mon->entry, &mon->mutex);
+    }
+    mon->owner = jvm_lock_id;
+    mon->count = 1;
+    pthread_mutex_unlock(&mon->mutex);
+    jvm_unblock();
+    return 0;
+  }
+  return pthread_mutex_unlock(&mon->mutex);
 }
 
-int jvm_unlock(_java_lang_Object_obj_t *ref) {
-  if (!ref->lock) {
+static int monitor_exit(monitor_t *mon) {
+  if (pthread_mutex_lock(&mon->mutex)) {
     return -1;
   }
-  return pthread_mutex_unlock(ref->lock);
+  if (mon->owner != jvm_lock_id) {
+    pthread_mutex_unlock(&mon->mutex);
+    return -1;
+  }
+  if (--mon->count == 0) {
+    mon->owner = 0;
+    pthread_cond_signal(&mon->entry);
+  }
+  return pthread_mutex_unlock(&mon->mutex);
 }
 
-static int init_wait(_java_lang_Object_obj_t *obj) {
-  int retval = 0;
-  if (obj->wait == NULL) {
-    if (pthread_mutex_lock(&globalLock)) {
-      return -1;
+static void free_monitor(lock_t word) {
+  if (word & JVM_LOCK_INFLATED) {
+    monitor_t *mon = LOCK_MONITOR(word);
+    pthread_cond_destroy(&mon->wait);
+    pthread_cond_destroy(&mon->entry);
+    pthread_mutex_destroy(&mon->mutex);
+    free(mon);
+  }
+}
+
+#ifdef JVM_COMPACT_HEADERS
+static uint32_t lock_hash(_java_lang_Object_obj_t *obj) {
+  uint32_t h = (uint32_t)(uintptr_t)obj * 2654435761U;
+  return h ^ (h >> 16);
+}
+
+volatile lock_t *jvm_lock_entry(_java_lang_Object_obj_t *obj) {
+  lock_entry_t * volatile *bucket = &lockTable[lock_hash(obj) & lockTableMask];
+  lock_entry_t *entry;
+  for (entry = *bucket; entry; entry = entry->next) {
+    if (entry->obj == obj) {
+      return &entry->lock;
     }
-    if (obj->wait == NULL) {
-      obj->wait = malloc(sizeof(pthread_cond_t));
-      if (obj->wait) {
-        retval = pthread_cond_init(obj->wait, NULL);
-      } else {
-        retval = -1;
+  }
+  pthread_mutex_lock(&lockTableLock);
+  for (entry = *bucket; entry; entry = entry->next) {
+    if (entry->obj == obj) {
+      break;
+    }
+  }
+  if (!entry) {
+    entry = malloc(sizeof(lock_entry_t));
+    if (entry) {
+      entry->obj = obj;
+      entry->lock = 0;
+      entry->next = *bucket;
+      __sync_synchronize();
+      *bucket = entry;
+      lockEntries++;
+    }
+  }
+  pthread_mutex_unlock(&lockTableLock);
+  return entry ? &entry->lock : 0;
+}
+#endif
+
+int jvm_lock_slow(volatile lock_t *lock) {
+  for (;;) {
+    lock_t word = *lock;
+    if (word == 0) {
+      if (__sync_bool_compare_and_swap(lock, 0, jvm_lock_id)) {
+        return 0;
+      }
+    } else if (word & JVM_LOCK_INFLATED) {
+      return monitor_enter(LOCK_MONITOR(word));
+    } else if (LOCK_OWNER(word) == jvm_lock_id
+               && (word & JVM_LOCK_COUNT_MASK) != JVM_LOCK_COUNT_MASK) {
+      if (__sync_bool_compare_and_swap(lock, word, word + JVM_LOCK_COUNT_ONE)) {
+        return 0;
       }
+    } else if (inflate(lock, word)) {
+      /* contention or overflow of the recursion count */
+      return -1;
+    }
+  }
+}
+
+int jvm_unlock_slow(volatile lock_t *lock) {
+  for (;;) {
+    lock_t word = *lock;
+    if (word & JVM_LOCK_INFLATED) {
+      return monitor_exit(LOCK_MONITOR(word));
     }
-    if (pthread_mutex_unlock(&globalLock)) {
+    if (word == 0 || LOCK_OWNER(word) != jvm_lock_id) {
       return -1;
     }
+    lock_t next = (word & JVM_LOCK_COUNT_MASK) ? word - JVM_LOCK_COUNT_ONE : 0;
+    if (__sync_bool_compare_and_swap(lock, word, next)) {
+      return 0;
+    }
   }
-  return retval;
 }
 
-int jvm_wait(_java_lang_Object_obj_t *ref) {
-  if (init_wait(ref)) {
-    return -1;
+/* get the monitor of an object locked by the current thread,
+   inflating the lock if necessary */
+static monitor_t *owned_monitor(_java_lang_Object_obj_t *obj) {
+  volatile lock_t *lock = jvm_lock_word(obj);
+  if (!lock) {
+    return 0;
+  }
+  for (;;) {
+    lock_t word = *lock;
+    if (word & JVM_LOCK_INFLATED) {
+      return LOCK_MONITOR(word);
+    }
+    if (word == 0 || LOCK_OWNER(word) != jvm_lock_id) {
+      return 0;
+    }
+    if (inflate(lock, word)) {
+      return 0;
+    }
   }
-  return pthread_cond_wait(ref->wait, ref->lock);
 }
-int jvm_notify(_java_lang_Object_obj_t *ref) {
-  if (init_wait(ref)) {
+
+int jvm_wait(_java_lang_Object_obj_t *obj) {
+  monitor_t *mon = owned_monitor(obj);
+  if (!mon) {
+    return -1;
+  }
+  jvm_block();
+  pthread_mutex_lock(&mon->mutex);
+  if (mon->owner != jvm_lock_id) {
+    pthread_mutex_unlock(&mon->mutex);
+    jvm_unblock();
     return -1;
   }
-  return pthread_cond_signal(ref->wait);
+  int32_t count = mon->count;
+  mon->owner = 0;
+  mon->count = 0;
+  pthread_cond_signal(&mon->entry);
+  int retval = pthread_cond_wait(&mon->wait, &mon->mutex);
+  while (mon->owner != 0) {
+    pthread_cond_wait(&mon->entry, &mon->mutex);
+  }
+  mon->owner = jvm_lock_id;
+  mon->count = count;
+  pthread_mutex_unlock(&mon->mutex);
+  jvm_unblock();
+  return retval;
 }
-int jvm_notify_all(_java_lang_Object_obj_t *ref) {
-  if (init_wait(ref)) {
+
+static int notify(_java_lang_Object_obj_t *obj, int all) {
+  volatile lock_t *lock = jvm_lock_word(obj);
+  if (!lock) {
     return -1;
   }
-  return pthread_cond_broadcast(ref->wait);
+  lock_t word = *lock;
+  if (!(word & JVM_LOCK_INFLATED)) {
+    /* no thread can wait for an object that is thin-locked */
+    return word != 0 && LOCK_OWNER(word) == jvm_lock_id ? 0 : -1;
+  }
+  monitor_t *mon = LOCK_MONITOR(word);
+  if (pthread_mutex_lock(&mon->mutex)) {
+    return -1;
+  }
+  int retval = -1;
+  if (mon->owner == jvm_lock_id) {
+    retval = all ? pthread_cond_broadcast(&mon->wait) : pthread_cond_signal(&mon->wait);
+  }
+  pthread_mutex_unlock(&mon->mutex);
+  return retval;
+}
+
+int jvm_notify(_java_lang_Object_obj_t *obj) {
+  return notify(obj, 0);
+}
+int jvm_notify_all(_java_lang_Object_obj_t *obj) {
+  return notify(obj, 1);
 }
 
 int32_t jvm_instanceof(const _java_lang_Object_class_t *ref,
@@ -213,44 +470,155 @@ int32_t jvm_instanceof(const _java_lang_Object_class_t *ref,
   if (ref == 0) {
     return 0;
   }
-  if (ref == type) {
+  /* the numbers of the subtypes of a class are a contiguous range */
+  if ((uint32_t)(ref->id - type->id) <= (uint32_t)(type->last - type->id)) {
     return 1;
   }
   if (ref->elemtype != 0 && type->elemtype != 0) {
     return jvm_instanceof(ref->elemtype, type->elemtype);
   }
-  return jvm_instanceof(ref->super, type);
+  return 0;
+}
+
+/* the converters of the current thread for other locales, opened on
+   first use and closed when the thread is detached */
+static __thread iconv_t encodeConv = (iconv_t)-1;
+static __thread iconv_t decodeConv = (iconv_t)-1;
+
+static int32_t convert(iconv_t conv, char *inbuf, int32_t inbytes, char *outbuf, int32_t outbytes) {
+  size_t inleft = inbytes;
+  size_t outleft = outbytes;
+  /* reset the shift state left over from a previous conversion */
+  iconv(conv, NULL, NULL, NULL, NULL);
+  if (iconv(conv, &inbuf, &inleft, &outbuf, &outleft) == (size_t)-1) {
+    return -1;
+  }
+  return outbytes - outleft;
+}
+
+static void close_converters(void) {
+  if (encodeConv != (iconv_t)-1) {
+    iconv_close(encodeConv);
+    encodeConv = (iconv_t)-1;
+  }
+  if (decodeConv != (iconv_t)-1) {
+    iconv_close(decodeConv);
+    decodeConv = (iconv_t)-1;
+  }
+}
+
+/* convert UTF-8 to UTF-16, invalid sequences are replaced by U+FFFD */
+static int32_t utf8_to_utf16(const uint8_t *in, int32_t inbytes, uint16_t *out, int32_t outbytes) {
+  const uint8_t *end = in + inbytes;
+  int32_t outlen = outbytes >> 1;
+  int32_t n = 0;
+  while (in < end) {
+    uint32_t c = *in++;
+    if (c >= 0x80) {
+      int32_t more = c >= 0xf8 ? 0 : c >= 0xf0 ? 3 : c >= 0xe0 ? 2 : c >= 0xc0 ? 1 : 0;
+      uint32_t min = more == 3 ? 0x10000 : more == 2 ? 0x800 : 0x80;
+      c &= 0x3f >> more;
+      if (more == 0 || end - in < more) {
+        c = 0xfffd;
+      } else {
+        int32_t k;
+        for (k = 0; k < more && (in[k] & 0xc0) == 0x80; k++) {
+          c = (c << 6) | (in[k] & 0x3f);
+        }
+        in += k;
+        if (k < more || c < min || c > 0x10ffff || (c >= 0xd800 && c < 0xe000)) {
+          c = 0xfffd;
+        }
+      }
+    }
+    if (c >= 0x10000) {
+      if (n + 2 > outlen) {
+        return -1;
+      }
+      c -= 0x10000;
+      out[n++] = 0xd800 | (c >> 10);
+      out[n++] = 0xdc00 | (c & 0x3ff);
+    } else {
+      if (n + 1 > outlen) {
+        return -1;
+      }
+      out[n++] = c;
+    }
+  }
+  return n << 1;
+}
+
+/* convert UTF-16 to UTF-8, unpaired surrogates are replaced by '?' */
+static int32_t utf16_to_utf8(const uint16_t *in, int32_t inbytes, uint8_t *out, int32_t outbytes) {
+  const uint16_t *end = in + (inbytes >> 1);
+  int32_t n = 0;
+  while (in < end) {
+    uint32_t c = *in++;
+    if (c < 0x80) {
+      if (n + 1 > outbytes) {
+        return -1;
+      }
+      out[n++] = c;
+    } else if (c < 0x800) {
+      if (n + 2 > outbytes) {
+        return -1;
+      }
+      out[n++] = 0xc0 | (c >> 6);
+      out[n++] = 0x80 | (c & 0x3f);
+    } else if (c < 0xd800 || c >= 0xe000) {
+      if (n + 3 > outbytes) {
+        return -1;
+      }
+      out[n++] = 0xe0 | (c >> 12);
+      out[n++] = 0x80 | ((c >> 6) & 0x3f);
+      out[n++] = 0x80 | (c & 0x3f);
+    } else if (c < 0xdc00 && in < end && *in >= 0xdc00 && *in < 0xe000) {
+      if (n + 4 > outbytes) {
+        return -1;
+      }
+      c = 0x10000 + ((c - 0xd800) << 10) + (*in++ - 0xdc00);
+      out[n++] = 0xf0 | (c >> 18);
+      out[n++] = 0x80 | ((c >> 12) & 0x3f);
+      out[n++] = 0x80 | ((c >> 6) & 0x3f);
+      out[n++] = 0x80 | (c & 0x3f);
+    } else {
+      if (n + 1 > outbytes) {
+        return -1;
+      }
+      out[n++] = '?';
+    }
+  }
+  return n;
 }
 
 int32_t jvm_encode(char *inbuf, int32_t inbytes, uint16_t *outbuf, int32_t outbytes) {
-  iconv_t conv = iconv_open("UTF-16LE//TRANSLIT", "//");
-  int32_t maxbytes = outbytes;
-  int32_t len = iconv(conv, &inbuf, (size_t *)&inbytes,
-                      (char **)&outbuf, (size_t *)&outbytes);
-  iconv_close(conv);
-  if (len < 0) {
-    return len;
-  } else {
-    return maxbytes-outbytes;
+  if (utf8Locale) {
+    return utf8_to_utf16((const uint8_t *)inbuf, inbytes, outbuf, outbytes);
+  }
+  if (encodeConv == (iconv_t)-1) {
+    encodeConv = iconv_open("UTF-16LE//TRANSLIT", "//");
+    if (encodeConv == (iconv_t)-1) {
+      return -1;
+    }
   }
+  return convert(encodeConv, inbuf, inbytes, (char *)outbuf, outbytes);
 }
 
 int32_t jvm_decode(uint16_t *inbuf, int32_t inbytes, char *outbuf, int32_t outbytes) {
-  iconv_t conv = iconv_open("//TRANSLIT", "UTF-16LE//");
-  int32_t maxbytes = outbytes;
-  int32_t len = iconv(conv, (char **)&inbuf, (size_t *)&inbytes,
-                      &outbuf, (size_t *)&outbytes);
-  iconv_close(conv);
-  if (len < 0) {
-    return len;
-  } else {
-    return maxbytes-outbytes;
+  if (utf8Locale) {
+    return utf16_to_utf8(inbuf, inbytes, (uint8_t *)outbuf, outbytes);
   }
+  if (decodeConv == (iconv_t)-1) {
+    decodeConv = iconv_open("//TRANSLIT", "UTF-16LE//");
+    if (decodeConv == (iconv_t)-1) {
+      return -1;
+    }
+  }
+  return convert(decodeConv, (char *)inbuf, inbytes, outbuf, outbytes);
 }
 
 void jvm_catch(int32_t exc) {
-  int i;
-
+  jvm_flush_output();
   fflush(0);
   fprintf(stderr, "Uncaught exception: ");
 
@@ -258,34 +626,479 @@ void jvm_catch(int32_t exc) {
   _java_lang_String_obj_t *name = (_java_lang_String_obj_t*)thr->type->name;
   _char___obj_t *chars = (_char___obj_t *)name->_0_value;
   int32_t chars_bytes = sizeof(chars->_1_data[0])*chars->_0_length;
-  char print_buf[chars_bytes]; // this size is just a guess
+  char print_buf[MB_LEN_MAX*chars->_0_length+1];
 
   int len = jvm_decode(chars->_1_data, chars_bytes, print_buf, sizeof(print_buf));
 
-  for (i = 0; i < len; i++) {
-    fputc(print_buf[i], stderr);
+  if (len > 0) {
+    fwrite(print_buf, 1, len, stderr);
   }
 
   fputc('\n', stderr);
   exit(EXIT_FAILURE);
 }
 
+#ifdef JVM_SJLJ_EXCEPTIONS
+__thread jvm_handler_t *jvm_handlers;
+__thread int32_t jvm_exception;
+
+void jvm_throw(int32_t exc) {
+  jvm_handler_t *handler = jvm_handlers;
+  if (!handler) {
+    jvm_catch(exc);
+  }
+  jvm_exception = exc;
+  jvm_frames = handler->frames;
+  longjmp(handler->buf, 1);
+}
+#endif
+
+/* free memory is marked by an odd first word that holds the number
+   of free words; the following words link runs in the free list,
+   smaller runs are not linked */
+#define FREE_WORDS(PTR) ((PTR)[0] >> 2)
+#define FREE_NEXT(PTR) (*(int32_t **)&(PTR)[1])
+#define FREE_LINK_WORDS (1 + (int32_t)(sizeof(int32_t *) >> 2))
+
+static void set_free(int32_t *ptr, int32_t words) {
+  ptr[0] = (words << 2) | 1;
+  if (words >= FREE_LINK_WORDS) {
+    FREE_NEXT(ptr) = 0;
+  }
+}
+
+/* make the rest of the allocation buffer of a thread parsable */
+static void retire_tlab(int32_t **tlab_ptr, int32_t **tlab_end) {
+  if (*tlab_ptr < *tlab_end) {
+    set_free(*tlab_ptr, *tlab_end - *tlab_ptr);
+  }
+  *tlab_ptr = 0;
+  *tlab_end = 0;
+}
+
+/* take between min and max words from the free list or the never
+   allocated memory, globalLock must be held */
+static int32_t *take_chunk(int32_t min, int32_t max, int32_t *words) {
+  int32_t **link = &freeList;
+  while (*link) {
+    int32_t *run = *link;
+    int32_t avail = FREE_WORDS(run);
+    if (avail >= min) {
+      /* keep the rest of the run if it can still be linked */
+      int32_t taken = avail - max >= FREE_LINK_WORDS ? max : avail;
+      if (taken < avail) {
+        int32_t *rest = run + taken;
+        set_free(rest, avail - taken);
+        FREE_NEXT(rest) = FREE_NEXT(run);
+        *link = rest;
+      } else {
+        *link = FREE_NEXT(run);
+      }
+      *words = taken;
+      return run;
+    }
+    link = &FREE_NEXT(run);
+  }
+
+  int32_t avail = allocEnd - allocPtr;
+  if (avail >= min) {
+    int32_t taken = avail < max ? avail : max;
+    int32_t *ptr = allocPtr;
+    allocPtr += taken;
+    *words = taken;
+    return ptr;
+  }
+  return 0;
+}
+
+static int32_t *collect(int32_t min, int32_t max, int32_t *chunk, int *collected);
+
 int32_t *jvm_alloc(void *type, int32_t size, int32_t *exc) {
   if (size < 0) {
-    *exc = (int32_t)&omErr;
+    jvm_setexc(exc, (int32_t)&omErr);
     return allocPtr;
   }
 
-  pthread_mutex_lock(&globalLock);
-  int32_t *ptr = allocPtr;
-  allocPtr += (size + 3) >> 2;
-  pthread_mutex_unlock(&globalLock);
-
-  if (allocPtr > allocEnd) {
-    *exc = (int32_t)&omErr;
+  int32_t words = (size + 3) >> 2;
+  if (words <= jvm_tlab_end - jvm_tlab_ptr) {
+    int32_t *ptr = jvm_tlab_ptr;
+    jvm_tlab_ptr += words;
+    ((_java_lang_Object_obj_t*)ptr)->type = type;
     return ptr;
   }
-  memset(ptr, 0, (size + 3) & ~0x3);
-  ((_java_lang_Object_obj_t*)ptr)->type = type;
+
+  /* objects are allocated in a fresh allocation buffer, which may be
+     smaller than usual if memory is scarce; the rest of the current
+     buffer is abandoned */
+  retire_tlab(&jvm_tlab_ptr, &jvm_tlab_end);
+  int32_t max = words > TLAB_WORDS/2 ? words : TLAB_WORDS;
+
+  for (;;) {
+    int32_t chunk;
+    pthread_mutex_lock(&globalLock);
+    int32_t *ptr = take_chunk(words, max, &chunk);
+    pthread_mutex_unlock(&globalLock);
+
+    if (!ptr) {
+      /* memory freed by a collection of another thread may be taken
+         by others before this thread runs again, so memory is only
+         exhausted if a collection of this thread does not help */
+      int collected = 0;
+      ptr = collect(words, max, &chunk, &collected);
+      if (!ptr && collected) {
+        jvm_setexc(exc, (int32_t)&omErr);
+        return allocPtr;
+      }
+    }
+
+    if (ptr) {
+      memset(ptr, 0, chunk << 2);
+      jvm_tlab_ptr = ptr + words;
+      jvm_tlab_end = ptr + chunk;
+      ((_java_lang_Object_obj_t*)ptr)->type = type;
+      return ptr;
+    }
+  }
+}
+
+void jvm_thread_register(jvm_thread_t *thread, int32_t ref) {
+  thread->ref = ref;
+  thread->frames = 0;
+  thread->tlab_ptr = 0;
+  thread->tlab_end = 0;
+  pthread_mutex_lock(&gcLock);
+  thread->next = threads;
+  threads = thread;
+  pthread_mutex_unlock(&gcLock);
+}
+
+void jvm_thread_unregister(jvm_thread_t *thread) {
+  pthread_mutex_lock(&gcLock);
+  jvm_thread_t **link = &threads;
+  while (*link != thread) {
+    link = &(*link)->next;
+  }
+  *link = thread->next;
+  pthread_mutex_unlock(&gcLock);
+}
+
+void jvm_thread_attach(jvm_thread_t *thread) {
+  currentThreadInfo = thread;
+  jvm_lock_id = __sync_add_and_fetch(&lockIds, 1) << JVM_LOCK_OWNER_SHIFT;
+  pthread_mutex_lock(&gcLock);
+  while (jvm_gc_pending) {
+    pthread_cond_wait(&gcCond, &gcLock);
+  }
+  thread->frames = &jvm_frames;
+  thread->tlab_ptr = &jvm_tlab_ptr;
+  thread->tlab_end = &jvm_tlab_end;
+  runningThreads++;
+  pthread_mutex_unlock(&gcLock);
+}
+
+void jvm_thread_detach(void) {
+  close_converters();
+  retire_tlab(&jvm_tlab_ptr, &jvm_tlab_end);
+  jvm_block();
+  jvm_thread_unregister(currentThreadInfo);
+  currentThreadInfo = 0;
+}
+
+/* threads that are not attached, e.g., while running exit
+   handlers, do not count as running */
+void jvm_block(void) {
+  if (!currentThreadInfo) {
+    return;
+  }
+  pthread_mutex_lock(&gcLock);
+  runningThreads--;
+  pthread_cond_broadcast(&gcCond);
+  pthread_mutex_unlock(&gcLock);
+}
+
+void jvm_unblock(void) {
+  if (!currentThreadInfo) {
+    return;
+  }
+  pthread_mutex_lock(&gcLock);
+  while (jvm_gc_pending) {
+    pthread_cond_wait(&gcCond, &gcLock);
+  }
+  runningThreads++;
+  pthread_mutex_unlock(&gcLock);
+}
+
+void jvm_safepoint(void) {
+  jvm_block();
+  jvm_unblock();
+}
+
+/* the objects that have been marked but whose fields have not been
+   scanned yet */
+static int32_t **markStack;
+static int32_t markStackSize;
+static int32_t markStackTop;
+
+static void mark(int32_t ref) {
+  int32_t *ptr = (int32_t *)ref;
+  /* objects outside of the heap are not collected */
+  if (ptr < heapStart || ptr >= allocPtr) {
+    return;
+  }
+  uint32_t idx = ptr - heapStart;
+  if (markBits[idx >> 5] & (1U << (idx & 31))) {
+    return;
+  }
+  markBits[idx >> 5] |= 1U << (idx & 31);
+
+  if (markStackTop == markStackSize) {
+    markStackSize = markStackSize ? 2*markStackSize : MARK_STACK_SIZE;
+    markStack = realloc(markStack, markStackSize * sizeof(int32_t *));
+    if (!markStack) {
+      fprintf(stderr, "Out of memory during garbage collection\n");
+      exit(EXIT_FAILURE);
+    }
+  }
+  markStack[markStackTop++] = ptr;
+}
+
+static void scan(_java_lang_Object_obj_t *obj) {
+  const _java_lang_Object_class_t *type = obj->type;
+  if (type->elemsize < 0) {
+    int32_t *data = (int32_t *)((char *)obj + type->refs[0]);
+    int32_t len = ((_char___obj_t *)obj)->_0_length;
+    int32_t i;
+    for (i = 0; i < len; i++) {
+      mark(data[i]);
+    }
+  } else {
+    const int32_t *off;
+    for (off = type->refs; *off != 0; off++) {
+      mark(*(int32_t *)((char *)obj + *off));
+    }
+  }
+}
+
+static int32_t object_words(_java_lang_Object_obj_t *obj) {
+  const _java_lang_Object_class_t *type = obj->type;
+  int32_t size = type->size;
+  if (type->elemsize != 0) {
+    int32_t len = ((_char___obj_t *)obj)->_0_length;
+    size += len * (type->elemsize < 0 ? -type->elemsize : type->elemsize);
+  }
+  return (size + 3) >> 2;
+}
+
+static void mark_roots(void) {
+  int32_t i;
+
+  for (i = 0; jvm_classes[i] != 0; i++) {
+    const _java_lang_Object_class_t *type = jvm_classes[i];
+    volatile int32_t * const *field;
+    for (field = type->statics; *field != 0; field++) {
+      mark(**field);
+    }
+  }
+
+  /* objects outside of the heap that may refer to objects in it */
+  for (i = 0; jvm_image[i] != 0; i++) {
+    scan((_java_lang_Object_obj_t *)jvm_image[i]);
+  }
+  scan((_java_lang_Object_obj_t *)&npExc);
+  scan((_java_lang_Object_obj_t *)&abExc);
+  scan((_java_lang_Object_obj_t *)&ccExc);
+  scan((_java_lang_Object_obj_t *)&aeExc);
+  scan((_java_lang_Object_obj_t *)&intrExc);
+  scan((_java_lang_Object_obj_t *)&omErr);
+  scan((_java_lang_Object_obj_t *)&vmErr);
+  scan((_java_lang_Object_obj_t *)&mainThread);
+
+  jvm_thread_t *thread;
+  for (thread = threads; thread != 0; thread = thread->next) {
+    mark(thread->ref);
+    if (!thread->frames) {
+      continue;
+    }
+    jvm_frame_t *frame;
+    for (frame = *thread->frames; frame != 0; frame = frame->prev) {
+      for (i = 0; i < frame->size; i++) {
+        int32_t *ptr = (int32_t *)frame->refs[i];
+        if (ptr >= heapStart && ptr < allocPtr) {
+          mark(frame->refs[i]);
+        } else if (ptr != 0 && (frame->refs[i] & 3) == 0) {
+          /* objects allocated on the stack refer to objects in the
+             heap, but not to other objects on the stack; objects
+             replaced by their fields are represented by an odd value */
+          scan((_java_lang_Object_obj_t *)ptr);
+        }
+      }
+    }
+  }
+}
+
+#ifdef JVM_COMPACT_HEADERS
+/* remove the lock words of dead objects from the lock table and
+   resize the table to the number of remaining entries; objects
+   outside the heap (on the stack or in the heap image) cannot be
+   told dead, so their entries are dropped whenever they are not
+   locked, which no stopped thread can be relying on */
+static void sweep_locks(void) {
+  uint32_t i;
+  for (i = 0; i <= lockTableMask; i++) {
+    lock_entry_t * volatile *link = &lockTable[i];
+    while (*link) {
+      lock_entry_t *entry = *link;
+      int32_t *ptr = (int32_t *)entry->obj;
+      uint32_t idx = ptr - heapStart;
+      int inHeap = ptr >= heapStart && ptr < allocPtr;
+      if ((inHeap && !(markBits[idx >> 5] & (1U << (idx & 31))))
+          || (!inHeap && entry->lock == 0)) {
+        *link = entry->next;
+        free_monitor(entry->lock);
+        free(entry);
+        lockEntries--;
+      } else {
+        link = &entry->next;
+      }
+    }
+  }
+
+  uint32_t size = LOCK_TABLE_SIZE;
+  while (size < lockEntries) {
+    size <<= 1;
+  }
+  if (size == lockTableMask + 1) {
+    return;
+  }
+  lock_entry_t * volatile *table = calloc(size, sizeof(lock_entry_t *));
+  if (!table) {
+    return;
+  }
+  for (i = 0; i <= lockTableMask; i++) {
+    while (lockTable[i]) {
+      lock_entry_t *entry = lockTable[i];
+      lockTable[i] = entry->next;
+      uint32_t k = lock_hash(entry->obj) & (size - 1);
+      entry->next = table[k];
+      table[k] = entry;
+    }
+  }
+  free((void *)lockTable);
+  lockTable = table;
+  lockTableMask = size - 1;
+}
+#endif
+
+/* free unmarked objects, merge adjacent free memory and rebuild the
+   free list in address order */
+static void sweep(void) {
+  int32_t **tail = &freeList;
+  int32_t *run = 0;
+  int32_t *ptr = heapStart;
+
+#ifdef JVM_COMPACT_HEADERS
+  sweep_locks();
+#endif
+
+  freeList = 0;
+  while (ptr < allocPtr) {
+    int32_t words;
+    uint32_t idx = ptr - heapStart;
+    if (ptr[0] == 0) {
+      words = 1;
+    } else if (ptr[0] & 1) {
+      words = FREE_WORDS(ptr);
+    } else if (markBits[idx >> 5] & (1U << (idx & 31))) {
+      words = object_words((_java_lang_Object_obj_t *)ptr);
+      if (run) {
+        set_free(run, ptr - run);
+        if (ptr - run >= FREE_LINK_WORDS) {
+          *tail = run;
+          tail = &FREE_NEXT(run);
+        }
+        run = 0;
+      }
+      ptr += words;
+      continue;
+    } else {
+      _java_lang_Object_obj_t *obj = (_java_lang_Object_obj_t *)ptr;
+      words = object_words(obj);
+#ifndef JVM_COMPACT_HEADERS
+      free_monitor(obj->lock);
+#endif
+    }
+    if (!run) {
+      run = ptr;
+    }
+    ptr += words;
+  }
+
+  /* free memory at the end is returned to the never allocated memory */
+  if (run) {
+    allocPtr = run;
+  }
+
+  memset(markBits, 0, (((allocEnd - heapStart) >> 5) + 1) * sizeof(uint32_t));
+}
+
+/* stop all other threads at safepoints, collect the garbage and take
+   memory for the allocation that triggered the collection, if any,
+   before the other threads continue */
+static int32_t *collect(int32_t min, int32_t max, int32_t *chunk, int *collected) {
+  pthread_mutex_lock(&gcLock);
+  if (jvm_gc_pending) {
+    /* another thread is already collecting */
+    runningThreads--;
+    pthread_cond_broadcast(&gcCond);
+    while (jvm_gc_pending) {
+      pthread_cond_wait(&gcCond, &gcLock);
+    }
+    runningThreads++;
+    pthread_mutex_unlock(&gcLock);
+    return 0;
+  }
+
+  jvm_gc_pending = 1;
+  runningThreads--;
+  while (runningThreads > 0) {
+    pthread_cond_wait(&gcCond, &gcLock);
+  }
+
+  jvm_thread_t *thread;
+  for (thread = threads; thread != 0; thread = thread->next) {
+    if (thread->tlab_ptr) {
+      retire_tlab(thread->tlab_ptr, thread->tlab_end);
+    }
+  }
+
+  mark_roots();
+  while (markStackTop > 0) {
+    scan((_java_lang_Object_obj_t *)markStack[--markStackTop]);
+  }
+  sweep();
+
+  int32_t *ptr = 0;
+  if (max > 0) {
+    pthread_mutex_lock(&globalLock);
+    ptr = take_chunk(min, max, chunk);
+    pthread_mutex_unlock(&globalLock);
+  }
+  *collected = 1;
+
+  jvm_gc_pending = 0;
+  runningThreads++;
+  pthread_cond_broadcast(&gcCond);
+  pthread_mutex_unlock(&gcLock);
+
   return ptr;
 }
+
+/* threads that are not attached do not take part in collections */
+void jvm_gc(void) {
+  if (!currentThreadInfo) {
+    return;
+  }
+  int32_t chunk;
+  int collected;
+  collect(0, 0, &chunk, &collected);
+}
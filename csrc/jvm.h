@@ -34,6 +34,7 @@
 #define _JVM_H
 
 #include <stdint.h>
+#include <string.h>
 #include <pthread.h>
 #include "defs.h"
 
@@ -60,9 +61,7 @@ int32_t jvm_args(int argc, char **argv, int32_t *exc);
 int32_t jvm_encode(char *inbuf, int32_t inbytes, uint16_t *outbuf, int32_t outbytes);
 int32_t jvm_decode(uint16_t *inbuf, int32_t inbytes, char *outbuf, int32_t outbytes);
 void jvm_catch(int32_t exc);
-
-int jvm_lock(_java_lang_Object_obj_t *obj);
-int jvm_unlock(_java_lang_Object_obj_t *obj);
+void jvm_flush_output(void);
 
 int jvm_wait(_java_lang_Object_obj_t *obj);
 int jvm_notify(_java_lang_Object_obj_t *obj);
@@ -118,6 +117,89 @@ int32_t jvm_instanceof(const _java_lang_Object_class_t *ref,
 #define jvm_putstatic_long(NAME, VAL)           \
   NAME = VAL
 
+/* loads and stores outside the heap, at addresses that need not be
+   aligned; the accesses compile to single instructions */
+#define JVM_MEMORY_ACCESS(NAME, TYPE)                           \
+  static inline TYPE jvm_load_ ## NAME(int64_t addr) {          \
+    TYPE val;                                                   \
+    memcpy(&val, (const void *)(uintptr_t)addr, sizeof(val));   \
+    return val;                                                 \
+  }                                                             \
+  static inline void jvm_store_ ## NAME(int64_t addr, TYPE val) { \
+    memcpy((void *)(uintptr_t)addr, &val, sizeof(val));         \
+  }
+JVM_MEMORY_ACCESS(byte, int8_t)
+JVM_MEMORY_ACCESS(char, uint16_t)
+JVM_MEMORY_ACCESS(short, int16_t)
+JVM_MEMORY_ACCESS(int, int32_t)
+JVM_MEMORY_ACCESS(long, int64_t)
+JVM_MEMORY_ACCESS(float, float)
+JVM_MEMORY_ACCESS(double, double)
+
+/* the byte order of the target, and the reversal of byte orders */
+#define JVM_BIG_ENDIAN                          \
+  (__BYTE_ORDER__ == __ORDER_BIG_ENDIAN__)
+#define jvm_bswap16(VAL)                        \
+  __builtin_bswap16(VAL)
+#define jvm_bswap32(VAL)                        \
+  __builtin_bswap32(VAL)
+#define jvm_bswap64(VAL)                        \
+  __builtin_bswap64(VAL)
+
+#define jvm_mklong(LO, HI)                      \
+  (((int64_t)(HI) << 32) | (uint32_t)(LO))
+
+#define jvm_float2bits(VAL)                     \
+  (((union { float f; int32_t i; }){ .f = (VAL) }).i)
+#define jvm_bits2float(VAL)                     \
+  (((union { int32_t i; float f; }){ .i = (VAL) }).f)
+#define jvm_double2bits(VAL)                    \
+  (((union { double d; int64_t l; }){ .d = (VAL) }).l)
+#define jvm_bits2double(VAL)                    \
+  (((union { int64_t l; double d; }){ .l = (VAL) }).d)
+
+/* parameters and return values of type long, float and double,
+   depending on the calling convention of the generated code */
+#ifdef JVM_TYPED_CALLS
+typedef float jvm_float_t;
+typedef double jvm_double_t;
+#define JVM_PARAM_LONG(NAME)                    \
+  int64_t NAME
+#define JVM_PARAM_FLOAT(NAME)                   \
+  float NAME
+#define JVM_PARAM_DOUBLE(NAME)                  \
+  double NAME
+#define jvm_param_long(NAME)                    \
+  (NAME)
+#define jvm_param_float(NAME)                   \
+  (NAME)
+#define jvm_param_double(NAME)                  \
+  (NAME)
+#define jvm_return_float(VAL)                   \
+  (VAL)
+#define jvm_return_double(VAL)                  \
+  (VAL)
+#else
+typedef int32_t jvm_float_t;
+typedef int64_t jvm_double_t;
+#define JVM_PARAM_LONG(NAME)                    \
+  int32_t NAME ## _lo, int32_t NAME ## _hi
+#define JVM_PARAM_FLOAT(NAME)                   \
+  int32_t NAME
+#define JVM_PARAM_DOUBLE(NAME)                  \
+  int32_t NAME ## _lo, int32_t NAME ## _hi
+#define jvm_param_long(NAME)                    \
+  jvm_mklong(NAME ## _lo, NAME ## _hi)
+#define jvm_param_float(NAME)                   \
+  jvm_bits2float(NAME)
+#define jvm_param_double(NAME)                  \
+  jvm_bits2double(jvm_mklong(NAME ## _lo, NAME ## _hi))
+#define jvm_return_float(VAL)                   \
+  jvm_float2bits(VAL)
+#define jvm_return_double(VAL)                  \
+  jvm_double2bits(VAL)
+#endif
+
 #if defined(__gcc__)
 #define ALLOC_ATTRIBS __attribute__((returns_nonnull,malloc))
 #elif defined(__clang__)
@@ -128,6 +210,134 @@ int32_t jvm_instanceof(const _java_lang_Object_class_t *ref,
 
 int32_t *jvm_alloc(void *type, int32_t size, int32_t *exc) ALLOC_ATTRIBS;
 
+/* the references held by a method that must survive a garbage
+   collection, spilled by the generated code at safepoints */
+typedef struct jvm_frame {
+  struct jvm_frame *prev;
+  int32_t size;
+  volatile int32_t *refs;
+} jvm_frame_t;
+
+extern __thread jvm_frame_t *jvm_frames;
+
+/* a thread whose references are roots for garbage collection */
+typedef struct jvm_thread {
+  struct jvm_thread *next;
+  int32_t ref;
+  jvm_frame_t **frames;
+  int32_t **tlab_ptr;
+  int32_t **tlab_end;
+} jvm_thread_t;
+
+void jvm_thread_register(jvm_thread_t *thread, int32_t ref);
+void jvm_thread_unregister(jvm_thread_t *thread);
+void jvm_thread_attach(jvm_thread_t *thread);
+void jvm_thread_detach(void);
+
+/* set while a thread waits for the other threads to stop for a
+   garbage collection; threads that see it call jvm_safepoint(),
+   threads about to block call jvm_block() and jvm_unblock() */
+extern volatile int32_t jvm_gc_pending;
+void jvm_safepoint(void);
+void jvm_block(void);
+void jvm_unblock(void);
+
+/* collect garbage on request, as for an allocation that fails */
+void jvm_gc(void);
+
+/* the classes and the objects of the heap image, generated along
+   with the main function */
+extern const void * const jvm_classes[];
+extern const void * const jvm_image[];
+
+/* the allocation buffer of the current thread, the memory between
+   the two pointers is zeroed */
+extern __thread int32_t *jvm_tlab_ptr;
+extern __thread int32_t *jvm_tlab_end;
+
+/* allocate from the allocation buffer of the current thread, fall
+   back to jvm_alloc() if the buffer is exhausted or the size is
+   invalid; the type is stored with memcpy() because the object is
+   accessed through the type of its class afterwards */
+static inline int32_t *jvm_alloc_inline(void *type, int32_t size, int32_t *exc) {
+  uint32_t words = ((uint32_t)size + 3) >> 2;
+  if (words <= (uint32_t)(jvm_tlab_end - jvm_tlab_ptr)) {
+    int32_t *ptr = jvm_tlab_ptr;
+    jvm_tlab_ptr += words;
+    memcpy(ptr, &type, sizeof(type));
+    return ptr;
+  }
+  return jvm_alloc(type, size, exc);
+}
+
+/* the lock word of an object is 0 if the object is unlocked, the
+   lock identifier of the owning thread plus the recursion count if
+   it is thin-locked, or the address of a fat monitor with the lowest
+   bit set if the lock has been inflated; with compact headers, the
+   lock words are kept in a table keyed by object address */
+#define JVM_LOCK_INFLATED   1
+#define JVM_LOCK_COUNT_ONE  2
+#define JVM_LOCK_COUNT_MASK 0xfe
+#define JVM_LOCK_OWNER_SHIFT 8
+
+extern __thread lock_t jvm_lock_id;
+
+#ifdef JVM_COMPACT_HEADERS
+volatile lock_t *jvm_lock_entry(_java_lang_Object_obj_t *obj);
+#define jvm_lock_word(OBJ) jvm_lock_entry(OBJ)
+#else
+#define jvm_lock_word(OBJ) (&(OBJ)->lock)
+#endif
+
+int jvm_lock_slow(volatile lock_t *word);
+int jvm_unlock_slow(volatile lock_t *word);
+
+/* lock and unlock an object with a single compare-and-swap if it is
+   neither locked by another thread nor held recursively */
+static inline int jvm_lock(_java_lang_Object_obj_t *obj) {
+  volatile lock_t *word = jvm_lock_word(obj);
+#ifdef JVM_COMPACT_HEADERS
+  if (!word) {
+    return -1;
+  }
+#endif
+  if (__sync_bool_compare_and_swap(word, 0, jvm_lock_id)) {
+    return 0;
+  }
+  return jvm_lock_slow(word);
+}
+static inline int jvm_unlock(_java_lang_Object_obj_t *obj) {
+  volatile lock_t *word = jvm_lock_word(obj);
+#ifdef JVM_COMPACT_HEADERS
+  if (!word) {
+    return -1;
+  }
+#endif
+  if (__sync_bool_compare_and_swap(word, jvm_lock_id, 0)) {
+    return 0;
+  }
+  return jvm_unlock_slow(word);
+}
+
+/* raising exceptions, depending on the exception model of the
+   generated code */
+#ifdef JVM_SJLJ_EXCEPTIONS
+#include <setjmp.h>
+typedef struct jvm_handler {
+  jmp_buf buf;
+  struct jvm_handler *next;
+  jvm_frame_t *frames;
+} jvm_handler_t;
+extern __thread jvm_handler_t *jvm_handlers;
+extern __thread int32_t jvm_exception;
+void jvm_throw(int32_t exc) __attribute__((noreturn));
+#define jvm_setexc(EXC, VAL)                    \
+  jvm_throw(VAL)
+#else
+#define jvm_setexc(EXC, VAL)                    \
+  (*(EXC) = (VAL))
+#endif
+
 #if defined(__gcc__) || defined(__clang__)
 #define unlikely(cond) __builtin_expect(cond, 0)
 #else
@@ -31,15 +31,21 @@
 */
 
 #define _POSIX_C_SOURCE 200809L
+#define _FILE_OFFSET_BITS 64
 
 #include "defs.h"
 #include "jvm.h"
 #include <stdlib.h>
+#include <limits.h>
 #include <sys/time.h>
 #include <time.h>
 #include <pthread.h>
 #include <sched.h>
 #include <errno.h>
+#include <unistd.h>
+#include <fcntl.h>
+#include <sys/stat.h>
+#include <sys/mman.h>
 
 int32_t _java_lang_Object_getClass__Ljava_lang_Class_(int32_t ref, int32_t *exc) {
   return (int32_t)((_java_lang_Object_obj_t *)ref)->type;
@@ -51,19 +57,19 @@ int32_t _java_lang_Object_hashCode__I(int32_t ref, int32_t *exc) {
 void _java_lang_Object_wait__V(int32_t ref, int32_t *exc) {
   _java_lang_Object_obj_t *obj = (_java_lang_Object_obj_t *)ref;
   if (jvm_wait(obj)) {
-    *exc = (int32_t)&vmErr;
+    jvm_setexc(exc, (int32_t)&vmErr);
   }
 }
 void _java_lang_Object_notify__V(int32_t ref, int32_t *exc) {
   _java_lang_Object_obj_t *obj = (_java_lang_Object_obj_t *)ref;
   if (jvm_notify(obj)) {
-    *exc = (int32_t)&vmErr;
+    jvm_setexc(exc, (int32_t)&vmErr);
   }
 }
 void _java_lang_Object_notifyAll__V(int32_t ref, int32_t *exc) {
   _java_lang_Object_obj_t *obj = (_java_lang_Object_obj_t *)ref;
   if (jvm_notify_all(obj)) {
-    *exc = (int32_t)&vmErr;
+    jvm_setexc(exc, (int32_t)&vmErr);
   }
 }
 
@@ -81,15 +87,34 @@ void _java_lang_System_exit_I_V(int32_t status, int32_t *exc) {
   exit(status);
 }
 
+void _java_lang_System_gc__V(int32_t *exc) {
+  jvm_gc();
+}
+
 struct thread_args_t {
   int32_t ref;
-  int32_t *exc;
+  jvm_thread_t thread;
 };
 static void *thread_wrapper(void *arg_ptr) {
   struct thread_args_t *args = (struct thread_args_t *)arg_ptr;
   _java_lang_Thread_obj_t *thread = (_java_lang_Thread_obj_t *)args->ref;
+  int32_t exc = 0;
   pthread_setspecific(currentThread, thread);
-  thread->type->run__V(args->ref, args->exc);
+  jvm_thread_attach(&args->thread);
+#ifdef JVM_SJLJ_EXCEPTIONS
+  /* an uncaught exception terminates only the thread */
+  jvm_handler_t base;
+  base.next = 0;
+  base.frames = jvm_frames;
+  jvm_handlers = &base;
+  if (setjmp(base.buf) == 0) {
+    thread->type->run__V(args->ref, &exc);
+  }
+  jvm_handlers = 0;
+#else
+  thread->type->run__V(args->ref, &exc);
+#endif
+  jvm_thread_detach();
   free(args);
   return NULL;
 }
@@ -97,7 +122,7 @@ static void *thread_wrapper(void *arg_ptr) {
 void _java_lang_Thread_start__V(int32_t ref, int32_t *exc) {
   pthread_t *pthread = malloc(sizeof(pthread_t));
   if (!pthread) {
-    *exc = (int32_t)&vmErr;
+    jvm_setexc(exc, (int32_t)&vmErr);
     return;
   }
 
@@ -105,15 +130,18 @@ void _java_lang_Thread_start__V(int32_t ref, int32_t *exc) {
 
   struct thread_args_t *args = malloc(sizeof(struct thread_args_t));
   if (!args) {
-    *exc = (int32_t)&vmErr;
+    jvm_setexc(exc, (int32_t)&vmErr);
     return;
   }
 
   args->ref = ref;
-  args->exc = exc;
+  /* the thread is a root for garbage collection before it runs */
+  jvm_thread_register(&args->thread, ref);
 
   if (pthread_create(pthread, NULL, thread_wrapper, args)) {
-    *exc = (int32_t)&vmErr;
+    jvm_thread_unregister(&args->thread);
+    free(args);
+    jvm_setexc(exc, (int32_t)&vmErr);
     return;
   }
 }
@@ -121,8 +149,11 @@ void _java_lang_Thread_start__V(int32_t ref, int32_t *exc) {
 void _java_lang_Thread_join__V(int32_t ref, int32_t *exc) {
   pthread_t *thread =
     (pthread_t *)jvm_getfield(_java_lang_Thread_obj_t, ref, 0, _pthread);
-  if (pthread_join(*thread, NULL)) {
-    *exc = (int32_t)&vmErr;
+  jvm_block();
+  int retval = pthread_join(*thread, NULL);
+  jvm_unblock();
+  if (retval) {
+    jvm_setexc(exc, (int32_t)&vmErr);
   }
 }
 
@@ -130,12 +161,14 @@ void _java_lang_Thread_yield__V(int32_t *exc) {
   sched_yield();
 }
 
-void _java_lang_Thread_sleep_J_V(int32_t lo, int32_t hi, int32_t *exc) {
-  int64_t v = ((int64_t)hi << 32) | (uint32_t)lo;
+void _java_lang_Thread_sleep_J_V(JVM_PARAM_LONG(millis), int32_t *exc) {
+  int64_t v = jvm_param_long(millis);
   const struct timespec time = { v/1000, (v % 1000)*1000000 };
+  jvm_block();
   int retval = nanosleep(&time, NULL);
+  jvm_unblock();
   if (retval && errno == EINTR) {
-    *exc = (int32_t)&intrExc;
+    jvm_setexc(exc, (int32_t)&intrExc);
     return;
   }
 }
@@ -144,44 +177,443 @@ int32_t _java_lang_Thread_currentThread__Ljava_lang_Thread_(int32_t *exc) {
   return (int32_t)pthread_getspecific(currentThread);
 }
 
-void _ferdl_io_NativeOutputStream_write_I_V(int32_t ref, int32_t b, int32_t *exc) {
-  int32_t i;
-  uint16_t inbuf[1] = { (uint16_t)b };
-  char outbuf[6];
-  int32_t len = jvm_decode(inbuf, sizeof(inbuf), outbuf, sizeof(outbuf));
+/* the buffered output to stdout and stderr, the buffer is written
+   with write() according to the flush policy of the stream */
+#define FLUSH_LINE 0
+#define FLUSH_SIZE 1
+#define FLUSH_EXPLICIT 2
+#define OUTPUT_BUFFER_SIZE 8192
+#define OUTPUT_CHUNK 512
+
+typedef struct {
+  pthread_mutex_t lock;
+  int fd;
+  int32_t policy;
+  int32_t size;
+  int32_t count;
+  char *buf;
+} output_t;
+
+static output_t outputs[2] = {
+  { PTHREAD_MUTEX_INITIALIZER, STDOUT_FILENO, -1, 0, 0, 0 },
+  { PTHREAD_MUTEX_INITIALIZER, STDERR_FILENO, -1, 0, 0, 0 }
+};
+static pthread_once_t outputsOnce = PTHREAD_ONCE_INIT;
+
+/* threads are blocked for garbage collection while they wait for
+   the lock of a stream or for a write to complete */
+static void write_fully(int fd, const char *data, int32_t len) {
+  jvm_block();
+  while (len > 0) {
+    ssize_t n = write(fd, data, len);
+    if (n < 0) {
+      if (errno == EINTR) {
+        continue;
+      }
+      break;
+    }
+    data += n;
+    len -= n;
+  }
+  jvm_unblock();
+}
+
+static void output_flush(output_t *out) {
+  write_fully(out->fd, out->buf, out->count);
+  out->count = 0;
+}
+
+static void output_policy(output_t *out, int32_t policy, int32_t size) {
+  if (size <= 0) {
+    size = OUTPUT_BUFFER_SIZE;
+  }
+  char *buf = realloc(out->buf, size);
+  if (!buf) {
+    return;
+  }
+  out->buf = buf;
+  out->policy = policy;
+  out->size = size;
+}
+
+void jvm_flush_output(void) {
+  int i;
+  for (i = 0; i < 2; i++) {
+    jvm_block();
+    pthread_mutex_lock(&outputs[i].lock);
+    jvm_unblock();
+    output_flush(&outputs[i]);
+    pthread_mutex_unlock(&outputs[i].lock);
+  }
+}
+
+/* like the streams of the C library, stdout is line-buffered for
+   terminals and stderr is written at the end of each line */
+static void init_outputs(void) {
+  output_policy(&outputs[0], isatty(STDOUT_FILENO) ? FLUSH_LINE : FLUSH_SIZE, 0);
+  output_policy(&outputs[1], FLUSH_LINE, 0);
+  atexit(jvm_flush_output);
+}
+
+static output_t *output_lock(int32_t fd) {
+  output_t *out = &outputs[fd == STDERR_FILENO];
+  pthread_once(&outputsOnce, init_outputs);
+  jvm_block();
+  pthread_mutex_lock(&out->lock);
+  jvm_unblock();
+  return out;
+}
+
+static void output_unlock(output_t *out, int newline) {
+  if (out->policy == FLUSH_LINE && newline) {
+    output_flush(out);
+  }
+  pthread_mutex_unlock(&out->lock);
+}
+
+static void output_append(output_t *out, const char *data, int32_t len) {
+  if (out->count + len > out->size) {
+    if (out->policy == FLUSH_EXPLICIT) {
+      /* grow the buffer, written out only if memory runs short */
+      int32_t size = out->size;
+      while (size < out->count + len && size <= INT32_MAX/2) {
+        size <<= 1;
+      }
+      char *buf = size >= out->count + len ? realloc(out->buf, size) : 0;
+      if (buf) {
+        out->buf = buf;
+        out->size = size;
+      }
+    }
+    if (out->count + len > out->size) {
+      output_flush(out);
+    }
+    if (len > out->size) {
+      write_fully(out->fd, data, len);
+      return;
+    }
+  }
+  memcpy(out->buf + out->count, data, len);
+  out->count += len;
+  if (out->policy == FLUSH_SIZE && out->count == out->size) {
+    output_flush(out);
+  }
+}
 
-  for (i = 0; i < len; i++) {
-    fputc(outbuf[i], stdout);
+/* convert characters in chunks, keeping surrogate pairs together */
+static int output_chars(output_t *out, const uint16_t *chars, int32_t len) {
+  char buf[OUTPUT_CHUNK*MB_LEN_MAX];
+  int newline = 0;
+  while (len > 0) {
+    int32_t n = len < OUTPUT_CHUNK ? len : OUTPUT_CHUNK;
+    if (n < len && chars[n-1] >= 0xd800 && chars[n-1] < 0xdc00) {
+      n--;
+    }
+    int32_t k;
+    for (k = 0; k < n && !newline; k++) {
+      newline = chars[k] == '\n';
+    }
+    int32_t bytes = jvm_decode((uint16_t *)chars, n*sizeof(chars[0]), buf, sizeof(buf));
+    if (bytes > 0) {
+      output_append(out, buf, bytes);
+    }
+    chars += n;
+    len -= n;
+  }
+  return newline;
+}
+
+void _ferdl_io_NativeOutputStream_writeChar_II_V(int32_t fd, int32_t c, int32_t *exc) {
+  uint16_t ch = (uint16_t)c;
+  output_t *out = output_lock(fd);
+  output_unlock(out, output_chars(out, &ch, 1));
+}
+
+/* the arrays must survive garbage collections while the thread is
+   blocked */
+void _ferdl_io_NativeOutputStream_writeBytes_I_BII_V(int32_t fd, int32_t ref, int32_t off, int32_t len, int32_t *exc) {
+  volatile int32_t roots[1] = { ref };
+  jvm_frame_t frame = { jvm_frames, 1, roots };
+  const char *data = (const char *)&((_byte___obj_t *)ref)->_1_data[off];
+  jvm_frames = &frame;
+  output_t *out = output_lock(fd);
+  output_append(out, data, len);
+  output_unlock(out, memchr(data, '\n', len) != 0);
+  jvm_frames = frame.prev;
+}
+
+void _ferdl_io_NativeOutputStream_writeChars_I_CII_V(int32_t fd, int32_t ref, int32_t off, int32_t len, int32_t *exc) {
+  volatile int32_t roots[1] = { ref };
+  jvm_frame_t frame = { jvm_frames, 1, roots };
+  _char___obj_t *chars = (_char___obj_t *)ref;
+  jvm_frames = &frame;
+  output_t *out = output_lock(fd);
+  output_unlock(out, output_chars(out, &chars->_1_data[off], len));
+  jvm_frames = frame.prev;
+}
+
+void _ferdl_io_NativeOutputStream_writeString_ILjava_lang_String__V(int32_t fd, int32_t ref, int32_t *exc) {
+  volatile int32_t roots[1] = { ref };
+  jvm_frame_t frame = { jvm_frames, 1, roots };
+  _java_lang_String_obj_t *str = (_java_lang_String_obj_t *)ref;
+  _char___obj_t *chars = (_char___obj_t *)str->_0_value;
+  jvm_frames = &frame;
+  output_t *out = output_lock(fd);
+  output_unlock(out, output_chars(out, chars->_1_data, chars->_0_length));
+  jvm_frames = frame.prev;
+}
+
+void _ferdl_io_NativeOutputStream_flush_I_V(int32_t fd, int32_t *exc) {
+  output_t *out = output_lock(fd);
+  output_flush(out);
+  output_unlock(out, 0);
+}
+
+void _ferdl_io_NativeOutputStream_setPolicy_III_V(int32_t fd, int32_t policy, int32_t size, int32_t *exc) {
+  output_t *out = output_lock(fd);
+  output_flush(out);
+  output_policy(out, policy, size);
+  output_unlock(out, 0);
+}
+
+/* the input from stdin, buffered for single bytes; threads are
+   blocked for garbage collection while they wait for the lock or
+   for input */
+#define INPUT_BUFFER_SIZE 4096
+
+static struct {
+  pthread_mutex_t lock;
+  int32_t pos;
+  int32_t count;
+  char buf[INPUT_BUFFER_SIZE];
+} input = { PTHREAD_MUTEX_INITIALIZER, 0, 0 };
+
+static int32_t read_input(char *buf, int32_t len) {
+  ssize_t n;
+  do {
+    n = read(STDIN_FILENO, buf, len);
+  } while (n < 0 && errno == EINTR);
+  return n > 0 ? n : -1;
+}
+
+/* show prompts before waiting for input */
+static void flush_prompt(void) {
+  if (outputs[0].policy == FLUSH_LINE) {
+    output_t *out = output_lock(STDOUT_FILENO);
+    output_flush(out);
+    output_unlock(out, 0);
   }
 }
 
 int32_t _ferdl_io_NativeInputStream_read__I(int32_t ref, int32_t *exc) {
-  return getchar();
+  int32_t c = -1;
+  flush_prompt();
+  jvm_block();
+  pthread_mutex_lock(&input.lock);
+  if (input.pos < input.count) {
+    c = (uint8_t)input.buf[input.pos++];
+  } else {
+    int32_t n = read_input(input.buf, INPUT_BUFFER_SIZE);
+    if (n > 0) {
+      input.pos = 1;
+      input.count = n;
+      c = (uint8_t)input.buf[0];
+    }
+  }
+  pthread_mutex_unlock(&input.lock);
+  jvm_unblock();
+  return c;
 }
 
-int32_t _java_lang_Float_floatToIntBits_F_I(int32_t val, int32_t *exc) {
-  return val;
+int32_t _ferdl_io_NativeInputStream_readBytes__BII_I(int32_t ref, int32_t off, int32_t len, int32_t *exc) {
+  /* the array must survive garbage collections while the thread
+     is blocked */
+  volatile int32_t roots[1] = { ref };
+  jvm_frame_t frame = { jvm_frames, 1, roots };
+  char *data = (char *)&((_byte___obj_t *)ref)->_1_data[off];
+  int32_t n;
+
+  flush_prompt();
+  jvm_frames = &frame;
+  jvm_block();
+  pthread_mutex_lock(&input.lock);
+  if (input.pos < input.count) {
+    n = input.count - input.pos < len ? input.count - input.pos : len;
+    memcpy(data, input.buf + input.pos, n);
+    input.pos += n;
+  } else {
+    n = read_input(data, len);
+  }
+  pthread_mutex_unlock(&input.lock);
+  jvm_unblock();
+  jvm_frames = frame.prev;
+  return n;
 }
-int32_t _java_lang_Float_intBitsToFloat_I_F(int32_t val, int32_t *exc) {
-  return val;
+
+/* the modes of ferdl.io.NativeFile.open() */
+#define FILE_READ 0
+#define FILE_WRITE 1
+#define FILE_APPEND 2
+#define FILE_READ_WRITE 3
+
+int32_t _ferdl_io_NativeFile_open_Ljava_lang_String_I_I(int32_t name, int32_t mode, int32_t *exc) {
+  _char___obj_t *chars = (_char___obj_t *)((_java_lang_String_obj_t *)name)->_0_value;
+  char path[MB_LEN_MAX*chars->_0_length+1];
+  int32_t len = jvm_decode(chars->_1_data, chars->_0_length*sizeof(chars->_1_data[0]), path, sizeof(path)-1);
+  if (len < 0) {
+    return -EINVAL;
+  }
+  path[len] = '\0';
+
+  int flags = O_CLOEXEC;
+  switch (mode) {
+  case FILE_READ: flags |= O_RDONLY; break;
+  case FILE_WRITE: flags |= O_WRONLY | O_CREAT | O_TRUNC; break;
+  case FILE_APPEND: flags |= O_WRONLY | O_CREAT | O_APPEND; break;
+  case FILE_READ_WRITE: flags |= O_RDWR | O_CREAT; break;
+  default: return -EINVAL;
+  }
+
+  jvm_block();
+  int fd = open(path, flags, 0666);
+  int err = errno;
+  jvm_unblock();
+  return fd >= 0 ? fd : -err;
+}
+
+int32_t _ferdl_io_NativeFile_close_I_I(int32_t fd, int32_t *exc) {
+  return close(fd) == 0 ? 0 : -errno;
+}
+
+/* read into or write from the payload of a byte array without
+   copying, at the given position unless it is negative; the array
+   is registered in a frame of roots while the thread is blocked for
+   garbage collection */
+static int32_t transfer(int32_t fd, int32_t ref, int32_t off, int32_t len, int64_t pos, int writing) {
+  volatile int32_t roots[1] = { ref };
+  jvm_frame_t frame = { jvm_frames, 1, roots };
+  char *data = (char *)&((_byte___obj_t *)ref)->_1_data[off];
+  int32_t done = 0;
+  int32_t retval = 0;
+
+  jvm_frames = &frame;
+  jvm_block();
+  do {
+    ssize_t n;
+    do {
+      if (writing) {
+        n = pos < 0 ? write(fd, data+done, len-done) : pwrite(fd, data+done, len-done, pos+done);
+      } else {
+        n = pos < 0 ? read(fd, data, len) : pread(fd, data, len, pos);
+      }
+    } while (n < 0 && errno == EINTR);
+    if (n < 0) {
+      retval = -errno;
+      break;
+    }
+    done += n;
+    retval = done;
+  } while (writing && done < len);
+  jvm_unblock();
+  jvm_frames = frame.prev;
+  return retval;
+}
+
+int32_t _ferdl_io_NativeFile_read_I_BII_I(int32_t fd, int32_t ref, int32_t off, int32_t len, int32_t *exc) {
+  return transfer(fd, ref, off, len, -1, 0);
+}
+
+int32_t _ferdl_io_NativeFile_write_I_BII_I(int32_t fd, int32_t ref, int32_t off, int32_t len, int32_t *exc) {
+  return transfer(fd, ref, off, len, -1, 1);
 }
 
-int64_t _java_lang_Double_doubleToLongBits_D_J(int32_t lo, int32_t hi, int32_t *exc) {
-  return ((int64_t) hi << 32) | (uint32_t)lo;
+int32_t _ferdl_io_NativeFile_pread_I_BIIJ_I(int32_t fd, int32_t ref, int32_t off, int32_t len, JVM_PARAM_LONG(pos), int32_t *exc) {
+  return transfer(fd, ref, off, len, jvm_param_long(pos), 0);
 }
-int64_t _java_lang_Double_longBitsToDouble_J_D(int32_t lo, int32_t hi, int32_t *exc) {
-  return ((int64_t) hi << 32) | (uint32_t)lo;
+
+int32_t _ferdl_io_NativeFile_pwrite_I_BIIJ_I(int32_t fd, int32_t ref, int32_t off, int32_t len, JVM_PARAM_LONG(pos), int32_t *exc) {
+  return transfer(fd, ref, off, len, jvm_param_long(pos), 1);
+}
+
+int64_t _ferdl_io_NativeFile_length_I_J(int32_t fd, int32_t *exc) {
+  struct stat st;
+  return fstat(fd, &st) == 0 ? (int64_t)st.st_size : -errno;
+}
+
+int32_t _ferdl_io_NativeFile_setLength_IJ_I(int32_t fd, JVM_PARAM_LONG(len), int32_t *exc) {
+  return ftruncate(fd, jvm_param_long(len)) == 0 ? 0 : -errno;
+}
+
+int64_t _ferdl_unsafe_OffHeap_malloc_J_J(JVM_PARAM_LONG(size), int32_t *exc) {
+  uint64_t len = jvm_param_long(size);
+  return len <= SIZE_MAX ? (int64_t)(uintptr_t)malloc(len) : 0;
+}
+
+int64_t _ferdl_unsafe_OffHeap_realloc_JJ_J(JVM_PARAM_LONG(address), JVM_PARAM_LONG(size), int32_t *exc) {
+  uint64_t len = jvm_param_long(size);
+  return len <= SIZE_MAX ? (int64_t)(uintptr_t)realloc((void *)(uintptr_t)jvm_param_long(address), len) : 0;
+}
+
+void _ferdl_unsafe_OffHeap_free_J_V(JVM_PARAM_LONG(address), int32_t *exc) {
+  free((void *)(uintptr_t)jvm_param_long(address));
 }
 
-#define _DMATHFUN1(JFUN, CFUN, ARGTY, RETTY)                             \
-  int64_t _java_lang_Math_##JFUN##_##ARGTY##_##RETTY(int32_t lo, int32_t hi, int32_t *exc) { \
-    int64_t v = ((int64_t) hi << 32) | (uint32_t)lo;                    \
-    double *d = (double *)&v;                                           \
-    *d = CFUN(*d);                                                      \
-    return v;                                                           \
+/* the page holding an address, for mappings that start at
+   arbitrary file positions */
+static uintptr_t page_base(uintptr_t addr) {
+  return addr & ~((uintptr_t)sysconf(_SC_PAGESIZE) - 1);
+}
+
+int64_t _ferdl_io_MappedBuffer_mmap_IJJZ_J(int32_t fd, JVM_PARAM_LONG(position), JVM_PARAM_LONG(size), int32_t writable, int32_t *exc) {
+  int64_t pos = jvm_param_long(position);
+  int64_t len = jvm_param_long(size);
+  int64_t offset = pos - (int64_t)page_base(pos);
+  if ((uint64_t)len > SIZE_MAX - offset) {
+    return -ENOMEM;
+  }
+  void *addr = mmap(NULL, len + offset, writable ? PROT_READ | PROT_WRITE : PROT_READ,
+                    MAP_SHARED, fd, pos - offset);
+  if (addr == MAP_FAILED) {
+    return -errno;
+  }
+  return (int64_t)((uintptr_t)addr + offset);
+}
+
+int32_t _ferdl_io_MappedBuffer_msync_JJ_I(JVM_PARAM_LONG(address), JVM_PARAM_LONG(size), int32_t *exc) {
+  uintptr_t addr = jvm_param_long(address);
+  uintptr_t base = page_base(addr);
+  jvm_block();
+  int r = msync((void *)base, jvm_param_long(size) + (addr - base), MS_SYNC);
+  int err = errno;
+  jvm_unblock();
+  return r == 0 ? 0 : -err;
+}
+
+int32_t _ferdl_io_MappedBuffer_munmap_JJ_I(JVM_PARAM_LONG(address), JVM_PARAM_LONG(size), int32_t *exc) {
+  uintptr_t addr = jvm_param_long(address);
+  uintptr_t base = page_base(addr);
+  return munmap((void *)base, jvm_param_long(size) + (addr - base)) == 0 ? 0 : -errno;
+}
+
+int32_t _java_lang_Float_floatToIntBits_F_I(JVM_PARAM_FLOAT(val), int32_t *exc) {
+  return jvm_float2bits(jvm_param_float(val));
+}
+jvm_float_t _java_lang_Float_intBitsToFloat_I_F(int32_t val, int32_t *exc) {
+  return jvm_return_float(jvm_bits2float(val));
+}
+
+int64_t _java_lang_Double_doubleToLongBits_D_J(JVM_PARAM_DOUBLE(val), int32_t *exc) {
+  return jvm_double2bits(jvm_param_double(val));
+}
+jvm_double_t _java_lang_Double_longBitsToDouble_J_D(JVM_PARAM_LONG(val), int32_t *exc) {
+  return jvm_return_double(jvm_bits2double(jvm_param_long(val)));
+}
+
+#define DMATHFUN1(FUN)                                                  \
+  jvm_double_t _java_lang_Math_##FUN##_D_D(JVM_PARAM_DOUBLE(v), int32_t *exc) { \
+    return jvm_return_double(FUN(jvm_param_double(v)));                 \
   }
 
-#define DMATHFUN1(FUN) _DMATHFUN1(FUN,FUN,D,D)
 DMATHFUN1(asin)
 DMATHFUN1(acos)
 DMATHFUN1(atan)
@@ -201,30 +633,37 @@ DMATHFUN1(log1p)
 DMATHFUN1(ceil)
 DMATHFUN1(floor)
 
-_DMATHFUN1(round, llround, D, J)
+int64_t _java_lang_Math_round_D_J(JVM_PARAM_DOUBLE(v), int32_t *exc) {
+  /* the subtraction is exact, unlike adding 0.5 before floor() */
+  double x = jvm_param_double(v);
+  double d = floor(x);
+  if (x - d >= 0.5) {
+    d += 1;
+  }
+  if (d != d) {
+    return 0;
+  } else if (d >= (double)INT64_MAX) {
+    return INT64_MAX;
+  } else if (d <= (double)INT64_MIN) {
+    return INT64_MIN;
+  }
+  return (int64_t)d;
+}
 
-#define DMATHFUN2(FUN)                                                   \
-  int64_t _java_lang_Math_##FUN##_DD_D(int32_t lo1, int32_t hi1, int32_t lo2, int32_t hi2, int32_t *exc) { \
-    int64_t v1 = ((int64_t) hi1 << 32) | (uint32_t)lo1;                 \
-    double *d1 = (double *)&v1;                                         \
-    int64_t v2 = ((int64_t) hi2 << 32) | (uint32_t)lo2;                 \
-    double *d2 = (double *)&v2;                                         \
-    *d1 = FUN(*d1, *d2);                                               \
-    return v1;                                                          \
+#define DMATHFUN2(FUN)                                                  \
+  jvm_double_t _java_lang_Math_##FUN##_DD_D(JVM_PARAM_DOUBLE(v1), JVM_PARAM_DOUBLE(v2), int32_t *exc) { \
+    return jvm_return_double(FUN(jvm_param_double(v1), jvm_param_double(v2))); \
   }
 
 DMATHFUN2(atan2)
 DMATHFUN2(pow)
 DMATHFUN2(hypot)
 
-#define _FMATHFUN1(JFUN, CFUN, ARGTY, RETTY)                            \
-  int32_t _java_lang_Math_##JFUN##_##ARGTY##_##RETTY(int32_t v, int32_t *exc) { \
-    float *f = (float *)&v;                                             \
-    *f = CFUN(*f);                                                      \
-    return v;                                                           \
+#define FMATHFUN1(FUN)                                                  \
+  jvm_float_t _java_lang_Math_##FUN##_F_F(JVM_PARAM_FLOAT(v), int32_t *exc) { \
+    return jvm_return_float(FUN##f(jvm_param_float(v)));                \
   }
 
-#define FMATHFUN1(FUN) _FMATHFUN1(FUN,FUN##f,F,F)
 FMATHFUN1(asin)
 FMATHFUN1(acos)
 FMATHFUN1(atan)
@@ -244,14 +683,25 @@ FMATHFUN1(log1p)
 FMATHFUN1(ceil)
 FMATHFUN1(floor)
 
-_FMATHFUN1(round, lroundf, F, I)
+int32_t _java_lang_Math_round_F_I(JVM_PARAM_FLOAT(v), int32_t *exc) {
+  float x = jvm_param_float(v);
+  float f = floorf(x);
+  if (x - f >= 0.5f) {
+    f += 1;
+  }
+  if (f != f) {
+    return 0;
+  } else if (f >= (float)INT32_MAX) {
+    return INT32_MAX;
+  } else if (f <= (float)INT32_MIN) {
+    return INT32_MIN;
+  }
+  return (int32_t)f;
+}
 
 #define FMATHFUN2(FUN)                                                  \
-  int32_t _java_lang_Math_##FUN##_FF_F(int32_t v1, int32_t v2, int32_t *exc) { \
-    float *d1 = (float *)&v1;                                           \
-    float *d2 = (float *)&v2;                                           \
-    *d1 = FUN##f(*d1, *d2);                                             \
-    return v1;                                                          \
+  jvm_float_t _java_lang_Math_##FUN##_FF_F(JVM_PARAM_FLOAT(v1), JVM_PARAM_FLOAT(v2), int32_t *exc) { \
+    return jvm_return_float(FUN##f(jvm_param_float(v1), jvm_param_float(v2))); \
   }
 
 FMATHFUN2(atan2)
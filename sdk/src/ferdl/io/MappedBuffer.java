@@ -0,0 +1,203 @@
+/*
+   Copyright 2015 Technical University of Denmark, DTU Compute.
+   All rights reserved.
+
+   This file is part of the ahead-of-time bytecode compiler Fernando.
+
+   Redistribution and use in source and binary forms, with or without
+   modification, are permitted provided that the following conditions are met:
+
+      1. Redistributions of source code must retain the above copyright notice,
+         this list of conditions and the following disclaimer.
+
+      2. Redistributions in binary form must reproduce the above copyright
+         notice, this list of conditions and the following disclaimer in the
+         documentation and/or other materials provided with the distribution.
+
+   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER ``AS IS'' AND ANY EXPRESS
+   OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+   OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+   NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+   DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+   (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+   LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+   (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+   THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+   The views and conclusions contained in the software and documentation are
+   those of the authors and should not be interpreted as representing official
+   policies, either expressed or implied, of the copyright holder.
+*/
+
+package ferdl.io;
+
+import ferdl.unsafe.OffHeap;
+
+import java.io.IOException;
+
+/* a file mapped into memory; values are accessed in the native byte
+   order at byte offsets from the start of the mapping, through the
+   direct memory accesses of OffHeap */
+public final class MappedBuffer {
+    public static final int READ_ONLY = 0;
+    public static final int READ_WRITE = 1;
+
+    private final long address;
+    private long capacity;
+    private final boolean writable;
+
+    private MappedBuffer(long address, long capacity, boolean writable) {
+        this.address = address;
+        this.capacity = capacity;
+        this.writable = writable;
+    }
+
+    public static MappedBuffer map(String name, int mode) throws IOException {
+        return map(name, mode, 0, -1);
+    }
+
+    /* map size bytes from position on, or the rest of the file if
+       size is negative; writable mappings extend the file if needed */
+    public static MappedBuffer map(String name, int mode, long position, long size) throws IOException {
+        if (mode != READ_ONLY && mode != READ_WRITE) {
+            throw new IllegalArgumentException("Illegal mode");
+        }
+        if (position < 0) {
+            throw new IllegalArgumentException("Negative position");
+        }
+        boolean writable = mode == READ_WRITE;
+        int fd = NativeFile.open(name, writable ? NativeFile.READ_WRITE : NativeFile.READ);
+        if (fd < 0) {
+            throw NativeFile.error(name, fd);
+        }
+        long address = NativeFile.length(fd);
+        if (address >= 0) {
+            if (size < 0) {
+                size = address > position ? address - position : 0;
+            }
+            if (writable && address < position + size) {
+                address = NativeFile.setLength(fd, position + size);
+            }
+            if (address >= 0) {
+                address = size > 0 ? mmap(fd, position, size, writable) : 0;
+            }
+        }
+        NativeFile.close(fd);
+        if (address < 0) {
+            throw NativeFile.error(name, address);
+        }
+        return new MappedBuffer(address, size, writable);
+    }
+
+    public long capacity() {
+        return capacity;
+    }
+
+    public boolean isReadOnly() {
+        return !writable;
+    }
+
+    private void checkIndex(long index, int size) {
+        if (index < 0 || index > capacity - size) {
+            throw new IndexOutOfBoundsException();
+        }
+    }
+
+    private void checkWrite(long index, int size) {
+        if (!writable) {
+            throw new UnsupportedOperationException();
+        }
+        checkIndex(index, size);
+    }
+
+    public byte get(long index) {
+        checkIndex(index, 1);
+        return OffHeap.getByte(address + index);
+    }
+    public char getChar(long index) {
+        checkIndex(index, 2);
+        return OffHeap.getChar(address + index);
+    }
+    public short getShort(long index) {
+        checkIndex(index, 2);
+        return OffHeap.getShort(address + index);
+    }
+    public int getInt(long index) {
+        checkIndex(index, 4);
+        return OffHeap.getInt(address + index);
+    }
+    public long getLong(long index) {
+        checkIndex(index, 8);
+        return OffHeap.getLong(address + index);
+    }
+    public float getFloat(long index) {
+        checkIndex(index, 4);
+        return OffHeap.getFloat(address + index);
+    }
+    public double getDouble(long index) {
+        checkIndex(index, 8);
+        return OffHeap.getDouble(address + index);
+    }
+
+    public void put(long index, byte value) {
+        checkWrite(index, 1);
+        OffHeap.putByte(address + index, value);
+    }
+    public void putChar(long index, char value) {
+        checkWrite(index, 2);
+        OffHeap.putChar(address + index, value);
+    }
+    public void putShort(long index, short value) {
+        checkWrite(index, 2);
+        OffHeap.putShort(address + index, value);
+    }
+    public void putInt(long index, int value) {
+        checkWrite(index, 4);
+        OffHeap.putInt(address + index, value);
+    }
+    public void putLong(long index, long value) {
+        checkWrite(index, 8);
+        OffHeap.putLong(address + index, value);
+    }
+    public void putFloat(long index, float value) {
+        checkWrite(index, 4);
+        OffHeap.putFloat(address + index, value);
+    }
+    public void putDouble(long index, double value) {
+        checkWrite(index, 8);
+        OffHeap.putDouble(address + index, value);
+    }
+
+    public void get(long index, byte [] dst, int off, int len) {
+        checkIndex(index, len);
+        OffHeap.copyToArray(address + index, dst, off, len);
+    }
+    public void put(long index, byte [] src, int off, int len) {
+        checkWrite(index, len);
+        OffHeap.copyFromArray(src, off, address + index, len);
+    }
+
+    /* write changes back to the file */
+    public void force() throws IOException {
+        if (writable && capacity > 0) {
+            int r = msync(address, capacity);
+            if (r < 0) {
+                throw NativeFile.error("msync", r);
+            }
+        }
+    }
+
+    /* release the mapping; any further access is out of bounds */
+    public void unmap() {
+        if (capacity > 0) {
+            munmap(address, capacity);
+            capacity = 0;
+        }
+    }
+
+    /* return the address of the mapping, or a negated error number */
+    private static native long mmap(int fd, long position, long size, boolean writable);
+    private static native int msync(long address, long size);
+    private static native int munmap(long address, long size);
+}
@@ -0,0 +1,67 @@
+/*
+   Copyright 2015 Technical University of Denmark, DTU Compute.
+   All rights reserved.
+
+   This file is part of the ahead-of-time bytecode compiler Fernando.
+
+   Redistribution and use in source and binary forms, with or without
+   modification, are permitted provided that the following conditions are met:
+
+      1. Redistributions of source code must retain the above copyright notice,
+         this list of conditions and the following disclaimer.
+
+      2. Redistributions in binary form must reproduce the above copyright
+         notice, this list of conditions and the following disclaimer in the
+         documentation and/or other materials provided with the distribution.
+
+   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER ``AS IS'' AND ANY EXPRESS
+   OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+   OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+   NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+   DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+   (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+   LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+   (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+   THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+   The views and conclusions contained in the software and documentation are
+   those of the authors and should not be interpreted as representing official
+   policies, either expressed or implied, of the copyright holder.
+*/
+
+package ferdl.io;
+
+import java.io.IOException;
+
+/* system calls on file descriptors, which transfer data directly
+   from and to the payload of arrays; negative results are error
+   numbers */
+public class NativeFile {
+    public static final int READ = 0;
+    public static final int WRITE = 1;
+    public static final int APPEND = 2;
+    public static final int READ_WRITE = 3;
+
+    public static native int open(String name, int mode);
+    public static native int close(int fd);
+
+    /* return the number of bytes transferred, 0 at the end of the file */
+    public static native int read(int fd, byte [] b, int off, int len);
+    public static native int write(int fd, byte [] b, int off, int len);
+    public static native int pread(int fd, byte [] b, int off, int len, long pos);
+    public static native int pwrite(int fd, byte [] b, int off, int len, long pos);
+
+    public static native long length(int fd);
+    public static native int setLength(int fd, long len);
+
+    public static void checkBounds(byte [] b, int off, int len) {
+        if (off < 0 || len < 0 || off > b.length - len) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+    }
+
+    public static IOException error(String name, long err) {
+        return new IOException(name+": error "+(-err));
+    }
+}
@@ -36,4 +36,16 @@ import java.io.InputStream;
 
 public class NativeInputStream extends InputStream {
     public native int read();
-}
\ No newline at end of file
+
+    public int read(byte [] b, int off, int len) {
+        if (off < 0 || len < 0 || off > b.length - len) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        return readBytes(b, off, len);
+    }
+
+    private static native int readBytes(byte [] b, int off, int len);
+}
@@ -30,10 +30,68 @@
    policies, either expressed or implied, of the copyright holder.
 */
 
+
 package ferdl.io;
 
 import java.io.OutputStream;
 
 public class NativeOutputStream extends OutputStream {
-    public native void write(int b);
-}
\ No newline at end of file
+
+    public static final int STDOUT = 1;
+    public static final int STDERR = 2;
+
+    /* write buffered output at the end of each line */
+    public static final int FLUSH_LINE = 0;
+    /* write buffered output when a number of bytes are buffered */
+    public static final int FLUSH_SIZE = 1;
+    /* write buffered output only on flush() and at exit */
+    public static final int FLUSH_EXPLICIT = 2;
+
+    private final int fd;
+
+    public NativeOutputStream() {
+        this(STDOUT);
+    }
+
+    public NativeOutputStream(int fd) {
+        this.fd = fd;
+    }
+
+    public NativeOutputStream(int fd, int policy, int size) {
+        this(fd);
+        setPolicy(fd, policy, size);
+    }
+
+    public void write(int b) {
+        writeChar(fd, b);
+    }
+
+    public void write(byte [] b, int off, int len) {
+        if (off < 0 || len < 0 || off > b.length - len) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+        writeBytes(fd, b, off, len);
+    }
+
+    public void write(char [] c, int off, int len) {
+        if (off < 0 || len < 0 || off > c.length - len) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+        writeChars(fd, c, off, len);
+    }
+
+    public void write(String s) {
+        writeString(fd, s != null ? s : "null");
+    }
+
+    public void flush() {
+        flush(fd);
+    }
+
+    private static native void writeChar(int fd, int c);
+    private static native void writeBytes(int fd, byte [] b, int off, int len);
+    private static native void writeChars(int fd, char [] c, int off, int len);
+    private static native void writeString(int fd, String s);
+    private static native void flush(int fd);
+    private static native void setPolicy(int fd, int policy, int size);
+}
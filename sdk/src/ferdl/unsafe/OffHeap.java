@@ -0,0 +1,136 @@
+/*
+   Copyright 2015 Technical University of Denmark, DTU Compute.
+   All rights reserved.
+
+   This file is part of the ahead-of-time bytecode compiler Fernando.
+
+   Redistribution and use in source and binary forms, with or without
+   modification, are permitted provided that the following conditions are met:
+
+      1. Redistributions of source code must retain the above copyright notice,
+         this list of conditions and the following disclaimer.
+
+      2. Redistributions in binary form must reproduce the above copyright
+         notice, this list of conditions and the following disclaimer in the
+         documentation and/or other materials provided with the distribution.
+
+   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER ``AS IS'' AND ANY EXPRESS
+   OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+   OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+   NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+   DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+   (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+   LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+   (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+   THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+   The views and conclusions contained in the software and documentation are
+   those of the authors and should not be interpreted as representing official
+   policies, either expressed or implied, of the copyright holder.
+*/
+
+package ferdl.unsafe;
+
+/* memory outside the Java heap, which must be freed explicitly; the
+   accessors are compiled to direct memory accesses and do not check
+   addresses, values are accessed in the native byte order */
+public final class OffHeap {
+
+    public static long allocate(long size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Negative size");
+        }
+        long address = malloc(size);
+        if (address == 0 && size > 0) {
+            throw new OutOfMemoryError();
+        }
+        return address;
+    }
+
+    public static long reallocate(long address, long size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Negative size");
+        }
+        long r = realloc(address, size);
+        if (r == 0 && size > 0) {
+            throw new OutOfMemoryError();
+        }
+        return r;
+    }
+
+    public static native void free(long address);
+
+    private static native long malloc(long size);
+    private static native long realloc(long address, long size);
+
+    public static native byte getByte(long address);
+    public static native char getChar(long address);
+    public static native short getShort(long address);
+    public static native int getInt(long address);
+    public static native long getLong(long address);
+    public static native float getFloat(long address);
+    public static native double getDouble(long address);
+
+    public static native void putByte(long address, byte value);
+    public static native void putChar(long address, char value);
+    public static native void putShort(long address, short value);
+    public static native void putInt(long address, int value);
+    public static native void putLong(long address, long value);
+    public static native void putFloat(long address, float value);
+    public static native void putDouble(long address, double value);
+
+    /* copy len bytes, the areas may overlap */
+    public static native void copy(long src, long dst, long len);
+    public static native void fill(long address, long len, byte value);
+
+    /* copy len array elements from and to memory */
+    public static void copyToArray(long address, byte [] dst, int off, int len) {
+        checkBounds(dst.length, off, len);
+        load(address, dst, off, len);
+    }
+    public static void copyToArray(long address, int [] dst, int off, int len) {
+        checkBounds(dst.length, off, len);
+        load(address, dst, off, len);
+    }
+    public static void copyToArray(long address, long [] dst, int off, int len) {
+        checkBounds(dst.length, off, len);
+        load(address, dst, off, len);
+    }
+    public static void copyToArray(long address, double [] dst, int off, int len) {
+        checkBounds(dst.length, off, len);
+        load(address, dst, off, len);
+    }
+
+    public static void copyFromArray(byte [] src, int off, long address, int len) {
+        checkBounds(src.length, off, len);
+        store(src, off, address, len);
+    }
+    public static void copyFromArray(int [] src, int off, long address, int len) {
+        checkBounds(src.length, off, len);
+        store(src, off, address, len);
+    }
+    public static void copyFromArray(long [] src, int off, long address, int len) {
+        checkBounds(src.length, off, len);
+        store(src, off, address, len);
+    }
+    public static void copyFromArray(double [] src, int off, long address, int len) {
+        checkBounds(src.length, off, len);
+        store(src, off, address, len);
+    }
+
+    private static void checkBounds(int length, int off, int len) {
+        if (off < 0 || len < 0 || off > length - len) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+    }
+
+    private static native void load(long address, byte [] dst, int off, int len);
+    private static native void load(long address, int [] dst, int off, int len);
+    private static native void load(long address, long [] dst, int off, int len);
+    private static native void load(long address, double [] dst, int off, int len);
+    private static native void store(byte [] src, int off, long address, int len);
+    private static native void store(int [] src, int off, long address, int len);
+    private static native void store(long [] src, int off, long address, int len);
+    private static native void store(double [] src, int off, long address, int len);
+}
@@ -0,0 +1,136 @@
+/*
+   Copyright 2015 Technical University of Denmark, DTU Compute.
+   All rights reserved.
+
+   This file is part of the ahead-of-time bytecode compiler Fernando.
+
+   Redistribution and use in source and binary forms, with or without
+   modification, are permitted provided that the following conditions are met:
+
+      1. Redistributions of source code must retain the above copyright notice,
+         this list of conditions and the following disclaimer.
+
+      2. Redistributions in binary form must reproduce the above copyright
+         notice, this list of conditions and the following disclaimer in the
+         documentation and/or other materials provided with the distribution.
+
+   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER ``AS IS'' AND ANY EXPRESS
+   OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+   OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+   NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+   DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+   (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+   LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+   (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+   THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+   The views and conclusions contained in the software and documentation are
+   those of the authors and should not be interpreted as representing official
+   policies, either expressed or implied, of the copyright holder.
+*/
+
+package java.io;
+
+public class BufferedReader extends Reader {
+    private static final int DEFAULT_SIZE = 8192;
+
+    private final Reader in;
+    private final char [] buf;
+    private int pos;
+    private int count;
+    /* whether a line feed is part of the preceding carriage return */
+    private boolean skipLF;
+
+    public BufferedReader(Reader in) {
+        this(in, DEFAULT_SIZE);
+    }
+
+    public BufferedReader(Reader in, int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.in = in;
+        this.buf = new char[size];
+    }
+
+    private boolean fill() throws IOException {
+        int n = in.read(buf, 0, buf.length);
+        if (n <= 0) {
+            return false;
+        }
+        pos = 0;
+        count = n;
+        return true;
+    }
+
+    /* make sure that characters are buffered, skipping a line feed
+       that ends a line together with a carriage return */
+    private boolean ensure() throws IOException {
+        if (pos >= count && !fill()) {
+            return false;
+        }
+        if (skipLF) {
+            skipLF = false;
+            if (buf[pos] == '\n') {
+                pos++;
+                return ensure();
+            }
+        }
+        return true;
+    }
+
+    public int read() throws IOException {
+        if (!ensure()) {
+            return -1;
+        }
+        return buf[pos++];
+    }
+
+    public int read(char [] cbuf, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!ensure()) {
+            return -1;
+        }
+        int n = count - pos < len ? count - pos : len;
+        for (int i = 0; i < n; i++) {
+            cbuf[off+i] = buf[pos+i];
+        }
+        pos += n;
+        return n;
+    }
+
+    public String readLine() throws IOException {
+        StringBuilder sb = null;
+        while (ensure()) {
+            int start = pos;
+            while (pos < count) {
+                char c = buf[pos];
+                if (c == '\n' || c == '\r') {
+                    String line;
+                    if (sb == null) {
+                        line = new String(buf, start, pos-start);
+                    } else {
+                        line = sb.append(buf, start, pos-start).toString();
+                    }
+                    pos++;
+                    skipLF = c == '\r';
+                    return line;
+                }
+                pos++;
+            }
+            /* the line continues beyond the buffer */
+            if (sb == null) {
+                sb = new StringBuilder();
+            }
+            sb.append(buf, start, pos-start);
+        }
+        return sb != null ? sb.toString() : null;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+}
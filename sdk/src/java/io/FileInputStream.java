@@ -0,0 +1,82 @@
+/*
+   Copyright 2015 Technical University of Denmark, DTU Compute.
+   All rights reserved.
+
+   This file is part of the ahead-of-time bytecode compiler Fernando.
+
+   Redistribution and use in source and binary forms, with or without
+   modification, are permitted provided that the following conditions are met:
+
+      1. Redistributions of source code must retain the above copyright notice,
+         this list of conditions and the following disclaimer.
+
+      2. Redistributions in binary form must reproduce the above copyright
+         notice, this list of conditions and the following disclaimer in the
+         documentation and/or other materials provided with the distribution.
+
+   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER ``AS IS'' AND ANY EXPRESS
+   OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+   OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+   NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+   DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+   (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+   LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+   (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+   THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+   The views and conclusions contained in the software and documentation are
+   those of the authors and should not be interpreted as representing official
+   policies, either expressed or implied, of the copyright holder.
+*/
+
+package java.io;
+
+import ferdl.io.NativeFile;
+
+public class FileInputStream extends InputStream {
+    private final String name;
+    private int fd;
+    private final byte [] single = new byte[1];
+
+    public FileInputStream(String name) throws FileNotFoundException {
+        if (name == null) {
+            throw new NullPointerException();
+        }
+        this.name = name;
+        fd = NativeFile.open(name, NativeFile.READ);
+        if (fd < 0) {
+            throw new FileNotFoundException(name);
+        }
+    }
+
+    public int read() throws IOException {
+        return read(single, 0, 1) > 0 ? single[0] & 0xff : -1;
+    }
+
+    public int read(byte [] b, int off, int len) throws IOException {
+        NativeFile.checkBounds(b, off, len);
+        if (len == 0) {
+            return 0;
+        }
+        int r = NativeFile.read(fd, b, off, len);
+        if (r < 0) {
+            throw NativeFile.error(name, r);
+        }
+        return r > 0 ? r : -1;
+    }
+
+    public int available() throws IOException {
+        return 0;
+    }
+
+    public void close() throws IOException {
+        if (fd >= 0) {
+            int r = NativeFile.close(fd);
+            fd = -1;
+            if (r < 0) {
+                throw NativeFile.error(name, r);
+            }
+        }
+    }
+}
@@ -34,23 +34,27 @@ package java.io;
 
 public abstract class InputStream {
 
-    public abstract int read();
+    public abstract int read() throws IOException;
 
-    public int read(byte [] b) {
+    public int read(byte [] b) throws IOException {
         return read(b, 0, b.length);
     }
 
-    public int read(byte [] b, int off, int len) {
+    public int read(byte [] b, int off, int len) throws IOException {
         for (int i = 0; i < len; i++) {
-            b[off+i] = (byte)read();
+            int c = read();
+            if (c < 0) {
+                return i > 0 ? i : -1;
+            }
+            b[off+i] = (byte)c;
         }
         return len;
     }
 
-    public int available() {
+    public int available() throws IOException {
         return 0;
     }
 
-    public void close() {
+    public void close() throws IOException {
     }
 }
\ No newline at end of file
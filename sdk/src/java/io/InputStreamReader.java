@@ -0,0 +1,126 @@
+/*
+   Copyright 2015 Technical University of Denmark, DTU Compute.
+   All rights reserved.
+
+   This file is part of the ahead-of-time bytecode compiler Fernando.
+
+   Redistribution and use in source and binary forms, with or without
+   modification, are permitted provided that the following conditions are met:
+
+      1. Redistributions of source code must retain the above copyright notice,
+         this list of conditions and the following disclaimer.
+
+      2. Redistributions in binary form must reproduce the above copyright
+         notice, this list of conditions and the following disclaimer in the
+         documentation and/or other materials provided with the distribution.
+
+   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER ``AS IS'' AND ANY EXPRESS
+   OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+   OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+   NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+   DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+   (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+   LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+   (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+   THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+   The views and conclusions contained in the software and documentation are
+   those of the authors and should not be interpreted as representing official
+   policies, either expressed or implied, of the copyright holder.
+*/
+
+package java.io;
+
+/* decodes UTF-8, malformed input is replaced by U+FFFD */
+public class InputStreamReader extends Reader {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final InputStream in;
+    private final byte [] bytes = new byte[BUFFER_SIZE];
+    private int pos;
+    private int count;
+    private boolean eof;
+    /* the second half of a surrogate pair that did not fit */
+    private int pending = -1;
+
+    public InputStreamReader(InputStream in) {
+        this.in = in;
+    }
+
+    /* make sure that at least n bytes are buffered, unless the end of
+       the input is reached */
+    private boolean fill(int n) throws IOException {
+        if (count - pos >= n) {
+            return true;
+        }
+        if (pos > 0) {
+            for (int i = pos; i < count; i++) {
+                bytes[i-pos] = bytes[i];
+            }
+            count -= pos;
+            pos = 0;
+        }
+        while (count < n && !eof) {
+            int r = in.read(bytes, count, bytes.length - count);
+            if (r < 0) {
+                eof = true;
+            } else {
+                count += r;
+            }
+        }
+        return count >= n;
+    }
+
+    public int read(char [] cbuf, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int n = 0;
+        if (pending >= 0) {
+            cbuf[off+n++] = (char)pending;
+            pending = -1;
+        }
+        /* block for the first character only */
+        while (n < len && (pos < count || (n == 0 && fill(1)))) {
+            int c = bytes[pos] & 0xff;
+            if (c < 0x80) {
+                pos++;
+                cbuf[off+n++] = (char)c;
+                continue;
+            }
+            int more = c >= 0xf8 ? 0 : c >= 0xf0 ? 3 : c >= 0xe0 ? 2 : c >= 0xc0 ? 1 : 0;
+            int avail = more;
+            if (count - pos <= more && !fill(more+1)) {
+                avail = count - pos - 1;
+            }
+            int min = more == 3 ? 0x10000 : more == 2 ? 0x800 : 0x80;
+            c &= 0x3f >> more;
+            int k = 1;
+            while (k <= avail && (bytes[pos+k] & 0xc0) == 0x80) {
+                c = (c << 6) | (bytes[pos+k] & 0x3f);
+                k++;
+            }
+            pos += k;
+            if (more == 0 || k <= more || c < min || c > 0x10ffff || (c >= 0xd800 && c < 0xe000)) {
+                c = 0xfffd;
+            }
+            if (c >= 0x10000) {
+                c -= 0x10000;
+                cbuf[off+n++] = (char)(0xd800 | (c >> 10));
+                if (n < len) {
+                    cbuf[off+n++] = (char)(0xdc00 | (c & 0x3ff));
+                } else {
+                    pending = 0xdc00 | (c & 0x3ff);
+                }
+            } else {
+                cbuf[off+n++] = (char)c;
+            }
+        }
+        return n > 0 ? n : -1;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+}
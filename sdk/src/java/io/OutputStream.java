@@ -34,21 +34,21 @@ package java.io;
 
 public abstract class OutputStream {
 
-    public abstract void write(int b);
+    public abstract void write(int b) throws IOException;
 
-    public void write(byte [] b) {
+    public void write(byte [] b) throws IOException {
         write(b, 0, b.length);
     }
 
-    public void write(byte [] b, int off, int len) {
+    public void write(byte [] b, int off, int len) throws IOException {
         for (int i = 0; i < len; i++) {
             write(b[off+i]);
         }
     }
 
-    public void flush() {
+    public void flush() throws IOException {
     }
 
-    public void close() {
+    public void close() throws IOException {
     }
 }
\ No newline at end of file
@@ -32,14 +32,56 @@
 
 package java.io;
 
+import ferdl.io.NativeOutputStream;
+
 public class PrintStream extends OutputStream {
     private OutputStream out;
+    /* the same stream as out if characters can be passed on in bulk */
+    private NativeOutputStream nativeOut;
+    /* whether writing to out has failed */
+    private boolean trouble;
     public PrintStream(OutputStream out) {
         this.out = out;
+        if (out instanceof NativeOutputStream) {
+            nativeOut = (NativeOutputStream)out;
+        }
     }
 
     public void write(int b) {
-        out.write(b);
+        try {
+            out.write(b);
+        } catch (IOException exc) {
+            trouble = true;
+        }
+    }
+
+    public void write(byte [] b, int off, int len) {
+        try {
+            out.write(b, off, len);
+        } catch (IOException exc) {
+            trouble = true;
+        }
+    }
+
+    public void flush() {
+        try {
+            out.flush();
+        } catch (IOException exc) {
+            trouble = true;
+        }
+    }
+
+    public void close() {
+        try {
+            out.close();
+        } catch (IOException exc) {
+            trouble = true;
+        }
+    }
+
+    public boolean checkError() {
+        flush();
+        return trouble;
     }
 
     public void print(char c) {
@@ -47,12 +89,23 @@ public class PrintStream extends OutputStream {
     }
 
     public void print(char [] s) {
+        if (nativeOut != null) {
+            nativeOut.write(s, 0, s.length);
+            return;
+        }
         for (int i = 0; i < s.length; i++) {
             print(s[i]);
         }
     }
 
     public void print(String s) {
+        if (s == null) {
+            s = "null";
+        }
+        if (nativeOut != null) {
+            nativeOut.write(s);
+            return;
+        }
         for (int i = 0; i < s.length(); i++) {
             print(s.charAt(i));
         }
@@ -0,0 +1,156 @@
+/*
+   Copyright 2015 Technical University of Denmark, DTU Compute.
+   All rights reserved.
+
+   This file is part of the ahead-of-time bytecode compiler Fernando.
+
+   Redistribution and use in source and binary forms, with or without
+   modification, are permitted provided that the following conditions are met:
+
+      1. Redistributions of source code must retain the above copyright notice,
+         this list of conditions and the following disclaimer.
+
+      2. Redistributions in binary form must reproduce the above copyright
+         notice, this list of conditions and the following disclaimer in the
+         documentation and/or other materials provided with the distribution.
+
+   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER ``AS IS'' AND ANY EXPRESS
+   OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+   OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+   NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+   DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+   (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+   LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+   (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+   THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+   The views and conclusions contained in the software and documentation are
+   those of the authors and should not be interpreted as representing official
+   policies, either expressed or implied, of the copyright holder.
+*/
+
+package java.io;
+
+import ferdl.io.NativeFile;
+
+/* reads and writes at the file pointer with pread/pwrite, so seeking
+   needs no system call */
+public class RandomAccessFile {
+    private final String name;
+    private int fd;
+    private long pointer;
+    private final byte [] single = new byte[1];
+
+    public RandomAccessFile(String name, String mode) throws FileNotFoundException {
+        int m;
+        if ("r".equals(mode)) {
+            m = NativeFile.READ;
+        } else if ("rw".equals(mode) || "rws".equals(mode) || "rwd".equals(mode)) {
+            m = NativeFile.READ_WRITE;
+        } else {
+            throw new IllegalArgumentException(mode);
+        }
+        if (name == null) {
+            throw new NullPointerException();
+        }
+        this.name = name;
+        fd = NativeFile.open(name, m);
+        if (fd < 0) {
+            throw new FileNotFoundException(name);
+        }
+    }
+
+    public int read() throws IOException {
+        return read(single, 0, 1) > 0 ? single[0] & 0xff : -1;
+    }
+
+    public int read(byte [] b) throws IOException {
+        return read(b, 0, b.length);
+    }
+
+    public int read(byte [] b, int off, int len) throws IOException {
+        NativeFile.checkBounds(b, off, len);
+        if (len == 0) {
+            return 0;
+        }
+        int r = NativeFile.pread(fd, b, off, len, pointer);
+        if (r < 0) {
+            throw NativeFile.error(name, r);
+        }
+        pointer += r;
+        return r > 0 ? r : -1;
+    }
+
+    public void readFully(byte [] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    public void readFully(byte [] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int r = read(b, off, len);
+            if (r < 0) {
+                throw new IOException(name+": end of file");
+            }
+            off += r;
+            len -= r;
+        }
+    }
+
+    public void write(int b) throws IOException {
+        single[0] = (byte)b;
+        write(single, 0, 1);
+    }
+
+    public void write(byte [] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    public void write(byte [] b, int off, int len) throws IOException {
+        NativeFile.checkBounds(b, off, len);
+        int r = NativeFile.pwrite(fd, b, off, len, pointer);
+        if (r < 0) {
+            throw NativeFile.error(name, r);
+        }
+        pointer += len;
+    }
+
+    public long getFilePointer() {
+        return pointer;
+    }
+
+    public void seek(long pos) throws IOException {
+        if (pos < 0) {
+            throw new IOException(name+": negative seek offset");
+        }
+        pointer = pos;
+    }
+
+    public long length() throws IOException {
+        long r = NativeFile.length(fd);
+        if (r < 0) {
+            throw NativeFile.error(name, r);
+        }
+        return r;
+    }
+
+    public void setLength(long newLength) throws IOException {
+        int r = NativeFile.setLength(fd, newLength);
+        if (r < 0) {
+            throw NativeFile.error(name, r);
+        }
+        if (pointer > newLength) {
+            pointer = newLength;
+        }
+    }
+
+    public void close() throws IOException {
+        if (fd >= 0) {
+            int r = NativeFile.close(fd);
+            fd = -1;
+            if (r < 0) {
+                throw NativeFile.error(name, r);
+            }
+        }
+    }
+}
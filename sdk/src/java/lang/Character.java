@@ -33,4 +33,5 @@
 package java.lang;
 
 public class Character {
+    public static native char reverseBytes(char c);
 }
\ No newline at end of file
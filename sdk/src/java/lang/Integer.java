@@ -95,4 +95,6 @@ public class Integer {
         }
         return new String(buf, pos, buf.length-pos);
     }
+
+    public static native int reverseBytes(int i);
 }
\ No newline at end of file
@@ -95,4 +95,6 @@ public class Long {
         }
         return new String(buf, pos, buf.length-pos);
     }
+
+    public static native long reverseBytes(long l);
 }
\ No newline at end of file
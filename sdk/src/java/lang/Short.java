@@ -33,4 +33,5 @@
 package java.lang;
 
 public class Short {
+    public static native short reverseBytes(short s);
 }
\ No newline at end of file
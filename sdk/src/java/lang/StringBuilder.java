@@ -77,6 +77,14 @@ public class StringBuilder {
         return this;
     }
 
+    public StringBuilder append(char [] str, int offset, int len) {
+        ensureCapacity(length+len);
+        for (int i = 0; i < len; i++) {
+            buffer[length++] = str[offset+i];
+        }
+        return this;
+    }
+
     public StringBuilder append(Object obj) {
         append(obj.toString());
         return this;
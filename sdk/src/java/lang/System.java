@@ -40,12 +40,12 @@ import ferdl.io.NativeInputStream;
 public class System {
 
     public static PrintStream out = new PrintStream(new NativeOutputStream());
-    public static PrintStream err = new PrintStream(new NativeOutputStream());
+    public static PrintStream err = new PrintStream(new NativeOutputStream(NativeOutputStream.STDERR));
     public static InputStream in = new NativeInputStream();
 
     public static native long currentTimeMillis();
 
     public static native void exit(int status);
 
-    public static void gc() { /* ignore */ }
+    public static native void gc();
 }
\ No newline at end of file
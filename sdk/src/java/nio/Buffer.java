@@ -0,0 +1,161 @@
+/*
+   Copyright 2015 Technical University of Denmark, DTU Compute.
+   All rights reserved.
+
+   This file is part of the ahead-of-time bytecode compiler Fernando.
+
+   Redistribution and use in source and binary forms, with or without
+   modification, are permitted provided that the following conditions are met:
+
+      1. Redistributions of source code must retain the above copyright notice,
+         this list of conditions and the following disclaimer.
+
+      2. Redistributions in binary form must reproduce the above copyright
+         notice, this list of conditions and the following disclaimer in the
+         documentation and/or other materials provided with the distribution.
+
+   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER ``AS IS'' AND ANY EXPRESS
+   OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+   OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+   NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+   DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+   (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+   LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+   (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+   THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+   The views and conclusions contained in the software and documentation are
+   those of the authors and should not be interpreted as representing official
+   policies, either expressed or implied, of the copyright holder.
+*/
+
+package java.nio;
+
+public abstract class Buffer {
+    int mark = -1;
+    int position;
+    int limit;
+    final int capacity;
+
+    Buffer(int mark, int position, int limit, int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Negative capacity");
+        }
+        this.capacity = capacity;
+        limit(limit);
+        position(position);
+        if (mark >= 0) {
+            this.mark = mark;
+        }
+    }
+
+    public final int capacity() {
+        return capacity;
+    }
+
+    public final int position() {
+        return position;
+    }
+
+    public final Buffer position(int newPosition) {
+        if (newPosition < 0 || newPosition > limit) {
+            throw new IllegalArgumentException();
+        }
+        if (mark > newPosition) {
+            mark = -1;
+        }
+        position = newPosition;
+        return this;
+    }
+
+    public final int limit() {
+        return limit;
+    }
+
+    public final Buffer limit(int newLimit) {
+        if (newLimit < 0 || newLimit > capacity) {
+            throw new IllegalArgumentException();
+        }
+        if (position > newLimit) {
+            position = newLimit;
+        }
+        if (mark > newLimit) {
+            mark = -1;
+        }
+        limit = newLimit;
+        return this;
+    }
+
+    public final Buffer mark() {
+        mark = position;
+        return this;
+    }
+
+    public final Buffer reset() {
+        if (mark < 0) {
+            throw new InvalidMarkException();
+        }
+        position = mark;
+        return this;
+    }
+
+    public final Buffer clear() {
+        position = 0;
+        limit = capacity;
+        mark = -1;
+        return this;
+    }
+
+    public final Buffer flip() {
+        limit = position;
+        position = 0;
+        mark = -1;
+        return this;
+    }
+
+    public final Buffer rewind() {
+        position = 0;
+        mark = -1;
+        return this;
+    }
+
+    public final int remaining() {
+        return limit - position;
+    }
+
+    public final boolean hasRemaining() {
+        return position < limit;
+    }
+
+    public abstract boolean isReadOnly();
+    public abstract boolean hasArray();
+    public abstract boolean isDirect();
+
+    /* advance the position for a relative access of nb bytes */
+    final int nextGetIndex(int nb) {
+        if (limit - position < nb) {
+            throw new BufferUnderflowException();
+        }
+        int p = position;
+        position += nb;
+        return p;
+    }
+
+    final int nextPutIndex(int nb) {
+        if (limit - position < nb) {
+            throw new BufferOverflowException();
+        }
+        int p = position;
+        position += nb;
+        return p;
+    }
+
+    /* check the index of an absolute access of nb bytes */
+    final int checkIndex(int i, int nb) {
+        if (i < 0 || nb > limit - i) {
+            throw new IndexOutOfBoundsException();
+        }
+        return i;
+    }
+}
@@ -0,0 +1,386 @@
+/*
+   Copyright 2015 Technical University of Denmark, DTU Compute.
+   All rights reserved.
+
+   This file is part of the ahead-of-time bytecode compiler Fernando.
+
+   Redistribution and use in source and binary forms, with or without
+   modification, are permitted provided that the following conditions are met:
+
+      1. Redistributions of source code must retain the above copyright notice,
+         this list of conditions and the following disclaimer.
+
+      2. Redistributions in binary form must reproduce the above copyright
+         notice, this list of conditions and the following disclaimer in the
+         documentation and/or other materials provided with the distribution.
+
+   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER ``AS IS'' AND ANY EXPRESS
+   OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+   OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+   NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+   DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+   (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+   LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+   (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+   THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+   The views and conclusions contained in the software and documentation are
+   those of the authors and should not be interpreted as representing official
+   policies, either expressed or implied, of the copyright holder.
+*/
+
+package java.nio;
+
+import ferdl.unsafe.OffHeap;
+
+/* heap buffers keep their contents in an array, direct buffers in
+   memory outside the heap, which is never freed; the typed accessors
+   are compiled to loads and stores in the native byte order, and the
+   bytes are swapped if the buffer has the other byte order */
+public class ByteBuffer extends Buffer {
+    private final byte [] hb;
+    private final int offset;
+    private final long address;
+    private boolean bigEndian = true;
+    private boolean swap = ByteOrder.nativeOrder() != ByteOrder.BIG_ENDIAN;
+
+    private ByteBuffer(byte [] hb, int offset, long address,
+                       int mark, int position, int limit, int capacity) {
+        super(mark, position, limit, capacity);
+        this.hb = hb;
+        this.offset = offset;
+        this.address = address;
+    }
+
+    public static ByteBuffer allocate(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Negative capacity");
+        }
+        return new ByteBuffer(new byte[capacity], 0, 0, -1, 0, capacity, capacity);
+    }
+
+    public static ByteBuffer allocateDirect(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Negative capacity");
+        }
+        long address = OffHeap.allocate(capacity);
+        OffHeap.fill(address, capacity, (byte)0);
+        return new ByteBuffer(null, 0, address, -1, 0, capacity, capacity);
+    }
+
+    public static ByteBuffer wrap(byte [] array, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > array.length - length) {
+            throw new IndexOutOfBoundsException();
+        }
+        return new ByteBuffer(array, 0, 0, -1, offset, offset + length, array.length);
+    }
+
+    public static ByteBuffer wrap(byte [] array) {
+        return wrap(array, 0, array.length);
+    }
+
+    public ByteBuffer slice() {
+        int rem = remaining();
+        return new ByteBuffer(hb, offset + position, address + position, -1, 0, rem, rem);
+    }
+
+    public ByteBuffer duplicate() {
+        return new ByteBuffer(hb, offset, address, mark, position, limit, capacity);
+    }
+
+    public ByteBuffer compact() {
+        int rem = remaining();
+        if (hb != null) {
+            copy(hb, offset + position, hb, offset, rem);
+        } else {
+            OffHeap.copy(address + position, address, rem);
+        }
+        position = rem;
+        limit = capacity;
+        mark = -1;
+        return this;
+    }
+
+    public boolean isReadOnly() {
+        return false;
+    }
+
+    public boolean hasArray() {
+        return hb != null;
+    }
+
+    public boolean isDirect() {
+        return hb == null;
+    }
+
+    public final byte [] array() {
+        if (hb == null) {
+            throw new UnsupportedOperationException();
+        }
+        return hb;
+    }
+
+    public final int arrayOffset() {
+        if (hb == null) {
+            throw new UnsupportedOperationException();
+        }
+        return offset;
+    }
+
+    public final ByteOrder order() {
+        return bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+    }
+
+    public final ByteBuffer order(ByteOrder bo) {
+        bigEndian = bo == ByteOrder.BIG_ENDIAN;
+        swap = bo != ByteOrder.nativeOrder();
+        return this;
+    }
+
+    public byte get() {
+        return readByte(nextGetIndex(1));
+    }
+    public byte get(int index) {
+        return readByte(checkIndex(index, 1));
+    }
+    public ByteBuffer put(byte b) {
+        writeByte(nextPutIndex(1), b);
+        return this;
+    }
+    public ByteBuffer put(int index, byte b) {
+        writeByte(checkIndex(index, 1), b);
+        return this;
+    }
+
+    public ByteBuffer get(byte [] dst, int off, int len) {
+        if (off < 0 || len < 0 || off > dst.length - len) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len > remaining()) {
+            throw new BufferUnderflowException();
+        }
+        if (hb != null) {
+            copy(hb, offset + position, dst, off, len);
+        } else {
+            OffHeap.copyToArray(address + position, dst, off, len);
+        }
+        position += len;
+        return this;
+    }
+    public ByteBuffer get(byte [] dst) {
+        return get(dst, 0, dst.length);
+    }
+
+    public ByteBuffer put(byte [] src, int off, int len) {
+        if (off < 0 || len < 0 || off > src.length - len) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len > remaining()) {
+            throw new BufferOverflowException();
+        }
+        if (hb != null) {
+            copy(src, off, hb, offset + position, len);
+        } else {
+            OffHeap.copyFromArray(src, off, address + position, len);
+        }
+        position += len;
+        return this;
+    }
+    public final ByteBuffer put(byte [] src) {
+        return put(src, 0, src.length);
+    }
+
+    public ByteBuffer put(ByteBuffer src) {
+        if (src == this) {
+            throw new IllegalArgumentException();
+        }
+        int len = src.remaining();
+        if (len > remaining()) {
+            throw new BufferOverflowException();
+        }
+        if (src.hb != null) {
+            put(src.hb, src.offset + src.position, len);
+        } else if (hb != null) {
+            OffHeap.copyToArray(src.address + src.position, hb, offset + position, len);
+            position += len;
+        } else {
+            OffHeap.copy(src.address + src.position, address + position, len);
+            position += len;
+        }
+        src.position += len;
+        return this;
+    }
+
+    public char getChar() {
+        return readChar(nextGetIndex(2));
+    }
+    public char getChar(int index) {
+        return readChar(checkIndex(index, 2));
+    }
+    public ByteBuffer putChar(char value) {
+        writeChar(nextPutIndex(2), value);
+        return this;
+    }
+    public ByteBuffer putChar(int index, char value) {
+        writeChar(checkIndex(index, 2), value);
+        return this;
+    }
+
+    public short getShort() {
+        return readShort(nextGetIndex(2));
+    }
+    public short getShort(int index) {
+        return readShort(checkIndex(index, 2));
+    }
+    public ByteBuffer putShort(short value) {
+        writeShort(nextPutIndex(2), value);
+        return this;
+    }
+    public ByteBuffer putShort(int index, short value) {
+        writeShort(checkIndex(index, 2), value);
+        return this;
+    }
+
+    public int getInt() {
+        return readInt(nextGetIndex(4));
+    }
+    public int getInt(int index) {
+        return readInt(checkIndex(index, 4));
+    }
+    public ByteBuffer putInt(int value) {
+        writeInt(nextPutIndex(4), value);
+        return this;
+    }
+    public ByteBuffer putInt(int index, int value) {
+        writeInt(checkIndex(index, 4), value);
+        return this;
+    }
+
+    public long getLong() {
+        return readLong(nextGetIndex(8));
+    }
+    public long getLong(int index) {
+        return readLong(checkIndex(index, 8));
+    }
+    public ByteBuffer putLong(long value) {
+        writeLong(nextPutIndex(8), value);
+        return this;
+    }
+    public ByteBuffer putLong(int index, long value) {
+        writeLong(checkIndex(index, 8), value);
+        return this;
+    }
+
+    public float getFloat() {
+        return Float.intBitsToFloat(readInt(nextGetIndex(4)));
+    }
+    public float getFloat(int index) {
+        return Float.intBitsToFloat(readInt(checkIndex(index, 4)));
+    }
+    public ByteBuffer putFloat(float value) {
+        writeInt(nextPutIndex(4), Float.floatToIntBits(value));
+        return this;
+    }
+    public ByteBuffer putFloat(int index, float value) {
+        writeInt(checkIndex(index, 4), Float.floatToIntBits(value));
+        return this;
+    }
+
+    public double getDouble() {
+        return Double.longBitsToDouble(readLong(nextGetIndex(8)));
+    }
+    public double getDouble(int index) {
+        return Double.longBitsToDouble(readLong(checkIndex(index, 8)));
+    }
+    public ByteBuffer putDouble(double value) {
+        writeLong(nextPutIndex(8), Double.doubleToLongBits(value));
+        return this;
+    }
+    public ByteBuffer putDouble(int index, double value) {
+        writeLong(checkIndex(index, 8), Double.doubleToLongBits(value));
+        return this;
+    }
+
+    private byte readByte(int i) {
+        return hb != null ? hb[offset + i] : OffHeap.getByte(address + i);
+    }
+    private void writeByte(int i, byte v) {
+        if (hb != null) {
+            hb[offset + i] = v;
+        } else {
+            OffHeap.putByte(address + i, v);
+        }
+    }
+
+    private char readChar(int i) {
+        char v = hb != null ? loadChar(hb, offset + i) : OffHeap.getChar(address + i);
+        return swap ? Character.reverseBytes(v) : v;
+    }
+    private void writeChar(int i, char v) {
+        if (swap) {
+            v = Character.reverseBytes(v);
+        }
+        if (hb != null) {
+            storeChar(hb, offset + i, v);
+        } else {
+            OffHeap.putChar(address + i, v);
+        }
+    }
+
+    private short readShort(int i) {
+        short v = hb != null ? loadShort(hb, offset + i) : OffHeap.getShort(address + i);
+        return swap ? Short.reverseBytes(v) : v;
+    }
+    private void writeShort(int i, short v) {
+        if (swap) {
+            v = Short.reverseBytes(v);
+        }
+        if (hb != null) {
+            storeShort(hb, offset + i, v);
+        } else {
+            OffHeap.putShort(address + i, v);
+        }
+    }
+
+    private int readInt(int i) {
+        int v = hb != null ? loadInt(hb, offset + i) : OffHeap.getInt(address + i);
+        return swap ? Integer.reverseBytes(v) : v;
+    }
+    private void writeInt(int i, int v) {
+        if (swap) {
+            v = Integer.reverseBytes(v);
+        }
+        if (hb != null) {
+            storeInt(hb, offset + i, v);
+        } else {
+            OffHeap.putInt(address + i, v);
+        }
+    }
+
+    private long readLong(int i) {
+        long v = hb != null ? loadLong(hb, offset + i) : OffHeap.getLong(address + i);
+        return swap ? Long.reverseBytes(v) : v;
+    }
+    private void writeLong(int i, long v) {
+        if (swap) {
+            v = Long.reverseBytes(v);
+        }
+        if (hb != null) {
+            storeLong(hb, offset + i, v);
+        } else {
+            OffHeap.putLong(address + i, v);
+        }
+    }
+
+    /* compiled as intrinsics, accessing the payload of the array */
+    private static native char loadChar(byte [] hb, int i);
+    private static native short loadShort(byte [] hb, int i);
+    private static native int loadInt(byte [] hb, int i);
+    private static native long loadLong(byte [] hb, int i);
+    private static native void storeChar(byte [] hb, int i, char v);
+    private static native void storeShort(byte [] hb, int i, short v);
+    private static native void storeInt(byte [] hb, int i, int v);
+    private static native void storeLong(byte [] hb, int i, long v);
+    private static native void copy(byte [] src, int srcPos, byte [] dst, int dstPos, int len);
+}
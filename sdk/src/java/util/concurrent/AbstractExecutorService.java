@@ -0,0 +1,80 @@
+/*
+   Copyright 2015 Technical University of Denmark, DTU Compute.
+   All rights reserved.
+
+   This file is part of the ahead-of-time bytecode compiler Fernando.
+
+   Redistribution and use in source and binary forms, with or without
+   modification, are permitted provided that the following conditions are met:
+
+      1. Redistributions of source code must retain the above copyright notice,
+         this list of conditions and the following disclaimer.
+
+      2. Redistributions in binary form must reproduce the above copyright
+         notice, this list of conditions and the following disclaimer in the
+         documentation and/or other materials provided with the distribution.
+
+   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER ``AS IS'' AND ANY EXPRESS
+   OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+   OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+   NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+   DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+   (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+   LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+   (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+   THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+   The views and conclusions contained in the software and documentation are
+   those of the authors and should not be interpreted as representing official
+   policies, either expressed or implied, of the copyright holder.
+*/
+
+package java.util.concurrent;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+public abstract class AbstractExecutorService implements ExecutorService {
+
+    public <T> Future<T> submit(Callable<T> task) {
+        RunnableFuture<T> f = new FutureTask<T>(task);
+        execute(f);
+        return f;
+    }
+
+    public <T> Future<T> submit(Runnable task, T result) {
+        RunnableFuture<T> f = new FutureTask<T>(task, result);
+        execute(f);
+        return f;
+    }
+
+    public Future<?> submit(Runnable task) {
+        return submit(task, null);
+    }
+
+    public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks) throws InterruptedException {
+        List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+        Iterator<? extends Callable<T>> it = tasks.iterator();
+        while (it.hasNext()) {
+            futures.add(new FutureTask<T>(it.next()));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            execute((RunnableFuture<T>)futures.get(i));
+        }
+        /* wait for all tasks, whether they fail or not */
+        for (int i = 0; i < futures.size(); i++) {
+            Future<T> f = futures.get(i);
+            if (!f.isDone()) {
+                try {
+                    f.get();
+                } catch (CancellationException e) {
+                } catch (ExecutionException e) {
+                }
+            }
+        }
+        return futures;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+   Copyright 2015 Technical University of Denmark, DTU Compute.
+   All rights reserved.
+
+   This file is part of the ahead-of-time bytecode compiler Fernando.
+
+   Redistribution and use in source and binary forms, with or without
+   modification, are permitted provided that the following conditions are met:
+
+      1. Redistributions of source code must retain the above copyright notice,
+         this list of conditions and the following disclaimer.
+
+      2. Redistributions in binary form must reproduce the above copyright
+         notice, this list of conditions and the following disclaimer in the
+         documentation and/or other materials provided with the distribution.
+
+   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER ``AS IS'' AND ANY EXPRESS
+   OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+   OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+   NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+   DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+   (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+   LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+   (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+   THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+   The views and conclusions contained in the software and documentation are
+   those of the authors and should not be interpreted as representing official
+   policies, either expressed or implied, of the copyright holder.
+*/
+
+package java.util.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/* a fixed number of worker threads, which are started on demand and
+   take tasks from a queue until the pool is shut down */
+class FixedThreadPool extends AbstractExecutorService {
+    private final int size;
+    private int started;
+    private int live;
+    private boolean shutdown;
+
+    private Node head;
+    private Node tail;
+
+    private static class Node {
+        final Runnable task;
+        Node next;
+        Node(Runnable task) {
+            this.task = task;
+        }
+    }
+
+    private class Worker implements Runnable {
+        public void run() {
+            Runnable task;
+            while ((task = take()) != null) {
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    FixedThreadPool(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.size = size;
+    }
+
+    public void execute(Runnable command) {
+        if (command == null) {
+            throw new NullPointerException();
+        }
+        synchronized (this) {
+            if (shutdown) {
+                throw new RejectedExecutionException();
+            }
+            Node n = new Node(command);
+            if (tail == null) {
+                head = n;
+            } else {
+                tail.next = n;
+            }
+            tail = n;
+            if (started < size) {
+                new Thread(new Worker(), "pool-thread-"+started).start();
+                started++;
+                live++;
+            } else {
+                notify();
+            }
+        }
+    }
+
+    /* return the next task, or null when the worker should exit */
+    private synchronized Runnable take() {
+        while (head == null && !shutdown) {
+            wait();
+        }
+        if (head == null) {
+            live--;
+            return null;
+        }
+        Node n = head;
+        head = n.next;
+        if (head == null) {
+            tail = null;
+        }
+        return n.task;
+    }
+
+    public synchronized void shutdown() {
+        shutdown = true;
+        notifyAll();
+    }
+
+    public synchronized List<Runnable> shutdownNow() {
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for (Node n = head; n != null; n = n.next) {
+            tasks.add(n.task);
+        }
+        head = null;
+        tail = null;
+        shutdown();
+        return tasks;
+    }
+
+    public synchronized boolean isShutdown() {
+        return shutdown;
+    }
+
+    public synchronized boolean isTerminated() {
+        return shutdown && live == 0;
+    }
+}
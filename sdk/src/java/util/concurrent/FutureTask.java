@@ -0,0 +1,113 @@
+/*
+   Copyright 2015 Technical University of Denmark, DTU Compute.
+   All rights reserved.
+
+   This file is part of the ahead-of-time bytecode compiler Fernando.
+
+   Redistribution and use in source and binary forms, with or without
+   modification, are permitted provided that the following conditions are met:
+
+      1. Redistributions of source code must retain the above copyright notice,
+         this list of conditions and the following disclaimer.
+
+      2. Redistributions in binary form must reproduce the above copyright
+         notice, this list of conditions and the following disclaimer in the
+         documentation and/or other materials provided with the distribution.
+
+   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER ``AS IS'' AND ANY EXPRESS
+   OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+   OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+   NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+   DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+   (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+   LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+   (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+   THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+   The views and conclusions contained in the software and documentation are
+   those of the authors and should not be interpreted as representing official
+   policies, either expressed or implied, of the copyright holder.
+*/
+
+package java.util.concurrent;
+
+public class FutureTask<V> implements RunnableFuture<V> {
+    private static final int NEW = 0;
+    private static final int RUNNING = 1;
+    private static final int DONE = 2;
+    private static final int FAILED = 3;
+    private static final int CANCELLED = 4;
+
+    private Callable<V> callable;
+    private int state;
+    private V result;
+    private Throwable exception;
+
+    public FutureTask(Callable<V> callable) {
+        if (callable == null) {
+            throw new NullPointerException();
+        }
+        this.callable = callable;
+    }
+
+    public FutureTask(Runnable runnable, V result) {
+        this(Executors.callable(runnable, result));
+    }
+
+    public void run() {
+        synchronized (this) {
+            if (state != NEW) {
+                return;
+            }
+            state = RUNNING;
+        }
+        V v = null;
+        Throwable t = null;
+        try {
+            v = callable.call();
+        } catch (Throwable e) {
+            t = e;
+        }
+        synchronized (this) {
+            /* the task may have been cancelled while running */
+            if (state == RUNNING) {
+                result = v;
+                exception = t;
+                state = t == null ? DONE : FAILED;
+            }
+            callable = null;
+            notifyAll();
+        }
+    }
+
+    public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+        if (state > RUNNING) {
+            return false;
+        }
+        state = CANCELLED;
+        notifyAll();
+        return true;
+    }
+
+    public synchronized boolean isCancelled() {
+        return state == CANCELLED;
+    }
+
+    public synchronized boolean isDone() {
+        return state > RUNNING;
+    }
+
+    public synchronized V get() throws InterruptedException, ExecutionException {
+        while (state <= RUNNING) {
+            wait();
+        }
+        if (state == CANCELLED) {
+            throw new CancellationException();
+        }
+        if (state == FAILED) {
+            throw new ExecutionException(exception);
+        }
+        return result;
+    }
+}
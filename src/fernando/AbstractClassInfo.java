@@ -38,7 +38,6 @@ import org.apache.bcel.generic.*;
 import java.io.PrintWriter;
 
 import java.util.AbstractMap;
-import java.util.Arrays;
 import java.util.Deque;
 import java.util.List;
 import java.util.LinkedHashSet;
@@ -132,11 +131,17 @@ public abstract class AbstractClassInfo {
     }
 
     /**
-     * Get the fields declared by this class.
-     * @return The list of fields declared by this class
+     * Get the live fields declared by this class.
+     * @return The list of live fields declared by this class
      */
     public List<Field> getFields() {
-        return Arrays.asList(clazz.getFields());
+        List<Field> fields = new LinkedList<Field>();
+        for (Field f : clazz.getFields()) {
+            if (app.isLive(this, f)) {
+                fields.add(f);
+            }
+        }
+        return fields;
     }
 
     /**
@@ -156,6 +161,20 @@ public abstract class AbstractClassInfo {
         return fields;
     }
 
+    /**
+     * Find a field declared by this class.
+     * @param name The name of the field
+     * @return The field, null if the class does not declare it
+     */
+    public Field findField(String name) {
+        for (Field f : getFields()) {
+            if (f.getName().equals(name)) {
+                return f;
+            }
+        }
+        return null;
+    }
+
     /**
      * Check whether this class declares a field.
      * @param name The name of the field
@@ -214,11 +233,33 @@ public abstract class AbstractClassInfo {
     }
 
     /**
-     * Get the methods of this class.
-     * @return The list of methods
+     * Get the live methods of this class.
+     * @return The list of live methods
      */
     public List<Method> getMethods() {
-        return Arrays.asList(clazz.getMethods());
+        List<Method> methods = new LinkedList<Method>();
+        for (Method m : clazz.getMethods()) {
+            if (app.isLive(this, m)) {
+                methods.add(m);
+            }
+        }
+        return methods;
+    }
+
+    /**
+     * Find a method declared by this class.
+     * @param name The name of the method
+     * @param signature The signature of the method
+     * @return The method, null if the class does not declare it
+     */
+    public Method findMethod(String name, String signature) {
+        for (Method m : getMethods()) {
+            if (m.getName().equals(name)
+                && m.getSignature().equals(signature)) {
+                return m;
+            }
+        }
+        return null;
     }
 
     /**
@@ -256,6 +297,24 @@ public abstract class AbstractClassInfo {
         return b;
     }
 
+    /**
+     * Find the class whose implementation of a method is invoked for
+     * objects of this class.
+     * @param name The name of the method
+     * @param signature The signature of the method
+     * @return The class that implements the method, null if the
+     * method is abstract or not implemented
+     */
+    public AbstractClassInfo findMethodImplementor(String name, String signature) {
+        for (AbstractClassInfo b = this; b != null; b = b.getSuperClass()) {
+            Method m = b.findMethod(name, signature);
+            if (m != null) {
+                return m.isAbstract() ? null : b;
+            }
+        }
+        return null;
+    }
+
     /**
      * Find the class initializer method.
      * @return The method for the class initializer
@@ -336,27 +395,16 @@ public abstract class AbstractClassInfo {
             a.getSignature().equals(b.getSignature());
     }
 
-    private boolean implementsMethodsOf(AbstractClassInfo ci) {
-        for (Method m : ci.getMethods()) {
-            for (Map.Entry<Method, AbstractClassInfo> e : getInstanceMethods()) {
-                if (methodsEqual(m, e.getKey())) {
-                    return true;
-                }
-            }
-        }
-        return false;
-    }
-
     /**
-     * Compute whether the class requires an interface table.
-     * @return true if the current class requires an interface table, false otherwise
+     * Compute whether the class requires interface tables.
+     * @return true if the current class requires interface tables, false otherwise
      */
     public boolean needsInterfaceTable() throws ClassNotFoundException {
-        if (clazz.isInterface() || clazz.isAbstract() || getInterfaces().isEmpty()) {
+        if (clazz.isInterface() || clazz.isAbstract()) {
             return false;
         }
-        for (AbstractClassInfo i : app.getInterfaceList()) {
-            if (clazz.implementationOf(i.clazz) && implementsMethodsOf(i)) {
+        for (AbstractClassInfo i : getInterfaces()) {
+            if (app.getItableIndex(i) >= 0) {
                 return true;
             }
         }
@@ -442,7 +490,7 @@ public abstract class AbstractClassInfo {
     public abstract void dumpMethodBodies(PrintWriter out, Map<String, Integer> stringPool);
 
     /**
-     * Generate the C definition of the interface method table for this class.
+     * Generate the C definitions of the interface tables for this class.
      * @param out The file to write to
      */
     public abstract void dumpIfaceMethTab(PrintWriter out) throws ClassNotFoundException;
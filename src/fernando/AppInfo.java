@@ -54,20 +54,78 @@ public class AppInfo {
     /** The name of the class that contains the main method. */
     private String entryClass;
     
+    /** The default maximum size of inlined code per method, in bytes. */
+    public static final int DEFAULT_INLINE_BUDGET = 256;
+
+    /** The classes that are used by the JVM. */
+    private static final String [] RUNTIME_CLASSES = {
+        "[Z", "[B", "[C", "[S", "[I", "[J", "[F", "[D",
+        "[Ljava.lang.String;",
+        "java.lang.Class",
+        "java.lang.Thread",
+        "java.lang.NullPointerException",
+        "java.lang.ArrayIndexOutOfBoundsException",
+        "java.lang.ClassCastException",
+        "java.lang.ArithmeticException",
+        "java.lang.OutOfMemoryError",
+        "java.lang.InterruptedException",
+        "java.lang.VirtualMachineError"
+    };
+
     /** A map between class names and classes. */
     private Map<String, AbstractClassInfo> classInfoMap = new LinkedHashMap<String, AbstractClassInfo>();
 
     /** The list of interfaces in the application. */
     private List<AbstractClassInfo> interfaceList = new LinkedList<AbstractClassInfo>();
 
+    /** The live classes, methods and fields of the application. */
+    private Reachability reachability;
+
+    /** The instantiated subtypes of classes, as computed on demand. */
+    private final Map<AbstractClassInfo, List<AbstractClassInfo>> receiverTypes = new LinkedHashMap<AbstractClassInfo, List<AbstractClassInfo>>();
+
+    /** The classes initialized at build time and their objects. */
+    private HeapImage heapImage;
+
+    /** The indices of the interface tables in the class structures. */
+    private Map<AbstractClassInfo, Integer> itableIndices;
+
+    /** The number of interface table slots in the class structures. */
+    private int itableCount;
+
+    /** The numbers of the classes, in preorder of the subtype tree. */
+    private Map<AbstractClassInfo, Integer> classIds;
+
+    /** The largest number in the subtype tree of each class. */
+    private Map<AbstractClassInfo, Integer> lastClassIds;
+
     /** A helper structure to compute which methods are truly virtual. */
     private Set<String> virtualMethods;
 
+    /** The escape summaries of the methods, computed on demand. */
+    private Map<String, Escapes.Summary> escapeMap;
+
+    /** The methods during which the garbage collector may run, computed on demand. */
+    private Set<String> collectingMethods;
+
+    /** Whether methods pass values with their native C types. */
+    private boolean typedCalls;
+
+    /** Whether exceptions are propagated with setjmp/longjmp. */
+    private boolean sjljExceptions;
+
+    /** Whether lock words are kept in a table instead of object headers. */
+    private boolean compactHeaders;
+
+    /** The maximum size of inlined code per method, in bytes. */
+    private int inlineBudget = DEFAULT_INLINE_BUDGET;
+
     /**
      * Constructor
      */
     public AppInfo(String entry) throws ClassNotFoundException {
         loadHull(entry);
+        removeDeadCode();
     }
 
     /**
@@ -87,6 +145,178 @@ public class AppInfo {
         return interfaceList;
     }
 
+    /**
+     * Get the heap image built from the class initializers.
+     * @return The heap image
+     */
+    public HeapImage getHeapImage() {
+        return heapImage;
+    }
+
+    /**
+     * Get the index of the table of an interface in the class
+     * structures. Interfaces that are implemented by a common class
+     * get different indices, while other interfaces share indices.
+     * @param iface The interface
+     * @return The index of the interface table, -1 if the interface
+     * has no methods and therefore no table
+     */
+    public int getItableIndex(AbstractClassInfo iface) {
+        computeItableIndices();
+        Integer idx = itableIndices.get(iface);
+        return idx != null ? idx : -1;
+    }
+
+    /**
+     * Get the number of interface table slots in the class structures.
+     * @return The number of interface table slots
+     */
+    public int getItableCount() {
+        computeItableIndices();
+        return itableCount;
+    }
+
+    /**
+     * Assign indices to the interface tables, by greedily coloring
+     * the graph of interfaces that are implemented by a common class.
+     */
+    private void computeItableIndices() {
+        if (itableIndices != null) {
+            return;
+        }
+        itableIndices = new LinkedHashMap<AbstractClassInfo, Integer>();
+        itableCount = 0;
+        for (AbstractClassInfo i : interfaceList) {
+            if (Filter.instances(i.getMethods()).isEmpty()
+                || getUniqueImplementor(i) != null) {
+                continue;
+            }
+            Set<Integer> used = new LinkedHashSet<Integer>();
+            for (AbstractClassInfo ci : classInfoMap.values()) {
+                if (!ci.clazz.isInterface() && !ci.clazz.isAbstract()
+                    && ci.getInterfaces().contains(i)) {
+                    for (AbstractClassInfo j : ci.getInterfaces()) {
+                        Integer idx = itableIndices.get(j);
+                        if (idx != null) {
+                            used.add(idx);
+                        }
+                    }
+                }
+            }
+            int idx = 0;
+            while (used.contains(idx)) {
+                idx++;
+            }
+            itableIndices.put(i, idx);
+            itableCount = Math.max(itableCount, idx+1);
+        }
+    }
+
+    /**
+     * Get the number of a class. The numbers of the subtypes of a
+     * class form a contiguous range, such that subtype checks only
+     * need to compare the number of a class against that range.
+     * @param ci The class
+     * @return The number of the class
+     */
+    public int getClassId(AbstractClassInfo ci) {
+        computeClassIds();
+        return classIds.get(ci);
+    }
+
+    /**
+     * Get the largest number of the subtypes of a class.
+     * @param ci The class
+     * @return The largest number of the subtypes of the class
+     */
+    public int getLastClassId(AbstractClassInfo ci) {
+        computeClassIds();
+        return lastClassIds.get(ci);
+    }
+
+    /**
+     * Check whether the subtypes of a class are exactly the classes
+     * in its range of class numbers. This is not the case for
+     * interfaces and arrays of interfaces.
+     * @param ci The class
+     * @return true if subtype checks can use the range of class numbers
+     */
+    public boolean hasClassRange(AbstractClassInfo ci) {
+        String name = ci.getName();
+        while (name.endsWith("[]")) {
+            name = name.substring(0, name.length()-2);
+        }
+        AbstractClassInfo elem = getClassInfo(name);
+        return elem != null && !elem.clazz.isInterface();
+    }
+
+    /**
+     * Get the parent of a class in the subtype tree. This is the
+     * super class for classes. Arrays of classes are placed below
+     * the arrays of the closest super class, arrays of primitive
+     * types below {@link java.lang.Object}.
+     * @param ci The class
+     * @return The parent of the class, null for {@link java.lang.Object}
+     */
+    private AbstractClassInfo getTreeParent(AbstractClassInfo ci) {
+        AbstractClassInfo objci = getClassInfo("java.lang.Object");
+        String name = ci.getName();
+        if (ci == objci) {
+            return null;
+        }
+        if (!name.endsWith("[]")) {
+            AbstractClassInfo superClass = ci.getSuperClass();
+            return superClass != null ? superClass : objci;
+        }
+        String elemName = name.substring(0, name.length()-2);
+        AbstractClassInfo elem = getClassInfo(elemName);
+        if (elem == null || Type.getType(Utility.getSignature(elemName)) instanceof BasicType) {
+            return objci;
+        }
+        for (AbstractClassInfo p = getTreeParent(elem); p != null; p = getTreeParent(p)) {
+            AbstractClassInfo arr = getClassInfo(p.getName()+"[]");
+            if (arr != null) {
+                return arr;
+            }
+        }
+        return objci;
+    }
+
+    /**
+     * Number the classes in preorder of the subtype tree.
+     */
+    private void computeClassIds() {
+        if (classIds != null) {
+            return;
+        }
+        Map<AbstractClassInfo, List<AbstractClassInfo>> children = new LinkedHashMap<AbstractClassInfo, List<AbstractClassInfo>>();
+        for (AbstractClassInfo ci : classInfoMap.values()) {
+            children.put(ci, new LinkedList<AbstractClassInfo>());
+        }
+        for (AbstractClassInfo ci : classInfoMap.values()) {
+            AbstractClassInfo parent = getTreeParent(ci);
+            if (parent != null) {
+                children.get(parent).add(ci);
+            }
+        }
+        classIds = new LinkedHashMap<AbstractClassInfo, Integer>();
+        lastClassIds = new LinkedHashMap<AbstractClassInfo, Integer>();
+        numberClass(getClassInfo("java.lang.Object"), children);
+    }
+
+    /**
+     * Number a class and its subtypes.
+     * @param ci The class
+     * @param children The children of each class in the subtype tree
+     */
+    private void numberClass(AbstractClassInfo ci, Map<AbstractClassInfo, List<AbstractClassInfo>> children) {
+        classIds.put(ci, classIds.size());
+        for (AbstractClassInfo c : children.get(ci)) {
+            numberClass(c, children);
+        }
+        lastClassIds.put(ci, classIds.size()-1);
+    }
+
     /**
      * Add a method to the set of truly virtual methods.
      * @param oldClass The class of the original definition
@@ -111,10 +341,311 @@ public class AppInfo {
             for (AbstractClassInfo ci : classInfoMap.values()) {
                 ci.computeInstanceMethods();
             }
+            // a method is also virtual in the classes that inherit it,
+            // such as abstract classes that do not implement an interface method
+            for (AbstractClassInfo ci : classInfoMap.values()) {
+                for (Map.Entry<Method, AbstractClassInfo> e : ci.getInstanceMethods()) {
+                    String methName = e.getKey().getName()+e.getKey().getSignature();
+                    if (virtualMethods.contains(e.getValue().getName()+"."+methName)) {
+                        virtualMethods.add(ci.getName()+"."+methName);
+                    }
+                }
+            }
         }
         return virtualMethods;
     }
 
+    /**
+     * Get the escape summary of a method.
+     * @param fqName The fully qualified name of the method, including its signature
+     * @return Which parameters of the method escape, null if the
+     * method has no code or cannot be found
+     */
+    public Escapes.Summary getEscapes(String fqName) {
+        if (escapeMap == null) {
+            computeEscapes();
+        }
+        return escapeMap.get(fqName);
+    }
+
+    /**
+     * Get the combined escape summary of all implementations of a
+     * virtual method that may be invoked on an instance of a class.
+     * @param base The static type of the receiver
+     * @param methName The name of the method
+     * @param signature The signature of the method
+     * @return Which parameters escape in any of the implementations,
+     * null if some implementation has no code or cannot be found
+     */
+    public Escapes.Summary getVirtualEscapes(AbstractClassInfo base, String methName, String signature) {
+        AbstractClassInfo declarator = base.findMethodDeclarator(base, methName, signature);
+        if (declarator == null) {
+            return null;
+        }
+        Escapes.Summary summary = getImplEscapes(declarator, methName, signature);
+        for (AbstractClassInfo ci : classInfoMap.values()) {
+            if (summary == null) {
+                break;
+            }
+            if (ci != base && ci.findMethod(methName, signature) != null && isSubclass(ci, base)) {
+                Escapes.Summary impl = getImplEscapes(ci, methName, signature);
+                summary = impl != null ? summary.merge(impl) : null;
+            }
+        }
+        return summary;
+    }
+
+    /**
+     * Get the escape summary of a method implementation.
+     * @param ci The class declaring the method
+     * @param methName The name of the method
+     * @param signature The signature of the method
+     * @return Which parameters escape, an empty summary for abstract
+     * methods, null if the method has no code
+     */
+    private Escapes.Summary getImplEscapes(AbstractClassInfo ci, String methName, String signature) {
+        Method m = ci.findMethod(methName, signature);
+        if (m != null && m.isAbstract()) {
+            return new Escapes.Summary();
+        }
+        return getEscapes(ci.getName()+"."+methName+signature);
+    }
+
+    /**
+     * Check whether a class is a subclass of another class.
+     * @param ci The class to check
+     * @param base The potential super class
+     * @return true if ci extends base, directly or indirectly
+     */
+    private boolean isSubclass(AbstractClassInfo ci, AbstractClassInfo base) {
+        for (AbstractClassInfo c = ci.getSuperClass(); c != null; c = c.getSuperClass()) {
+            if (c == base) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compute the escape summaries for all methods. The computation
+     * starts by assuming that no parameters escape and iterates until
+     * no summary changes any more.
+     */
+    private void computeEscapes() {
+        escapeMap = new LinkedHashMap<String, Escapes.Summary>();
+        for (AbstractClassInfo ci : classInfoMap.values()) {
+            for (Method m : ci.getMethods()) {
+                if (m.getCode() != null) {
+                    escapeMap.put(ci.getName()+"."+m.getName()+m.getSignature(), new Escapes.Summary());
+                }
+            }
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (AbstractClassInfo ci : classInfoMap.values()) {
+                for (Method m : ci.getMethods()) {
+                    Code code = m.getCode();
+                    if (code != null) {
+                        Escapes e = new Escapes(this, new InstructionList(code.getCode()),
+                                                ci.getConstPool(), m, code.getExceptionTable());
+                        Escapes.Summary summary = e.getSummary();
+                        String fqName = ci.getName()+"."+m.getName()+m.getSignature();
+                        if (!summary.equals(escapeMap.get(fqName))) {
+                            escapeMap.put(fqName, summary);
+                            changed = true;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Check whether the garbage collector may run during the
+     * invocation of a method. This is the case if the method or any
+     * method it invokes allocates memory, acquires a lock, contains a
+     * loop or is native.
+     * @param cpg The constant pool of the invoking class
+     * @param ii The invoke instruction
+     * @return true if the garbage collector may run during the invocation
+     */
+    public boolean mayCollect(ConstantPoolGen cpg, InvokeInstruction ii) {
+        if (collectingMethods == null) {
+            computeCollecting();
+        }
+        return invokesCollecting(cpg, ii);
+    }
+
+    /**
+     * Check whether an invoked method is known to collect garbage.
+     * @param cpg The constant pool of the invoking class
+     * @param ii The invoke instruction
+     * @return true if some method that may be invoked collects garbage
+     * or if the invoked methods are not known
+     */
+    private boolean invokesCollecting(ConstantPoolGen cpg, InvokeInstruction ii) {
+        String methName = ii.getMethodName(cpg);
+        String signature = ii.getSignature(cpg);
+        AbstractClassInfo ci = getClassInfo(ii.getReferenceType(cpg).toString());
+        if (ci == null) {
+            return true;
+        }
+        if (ii instanceof INVOKEINTERFACE
+            || (ii instanceof INVOKEVIRTUAL
+                && getVirtualMethods().contains(ci.getName()+"."+methName+signature))) {
+            List<AbstractClassInfo> types = getReceiverTypes(ci);
+            if (types == null) {
+                return true;
+            }
+            for (AbstractClassInfo r : types) {
+                AbstractClassInfo impl = r.findMethodImplementor(methName, signature);
+                if (impl != null && collectingMethods.contains(impl.getName()+"."+methName+signature)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        ci = ci.findMethodDeclarator(ci, methName, signature);
+        return ci == null || collectingMethods.contains(ci.getName()+"."+methName+signature);
+    }
+
+    /**
+     * Compute the methods during which the garbage collector may run.
+     * The computation starts with the methods that reach a safepoint
+     * themselves and iterates until no more methods are added.
+     */
+    private void computeCollecting() {
+        collectingMethods = new LinkedHashSet<String>();
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (AbstractClassInfo ci : classInfoMap.values()) {
+                for (Method m : ci.getMethods()) {
+                    String fqName = ci.getName()+"."+m.getName()+m.getSignature();
+                    if (!collectingMethods.contains(fqName) && isCollecting(ci, m)) {
+                        collectingMethods.add(fqName);
+                        changed = true;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Check whether the garbage collector may run during a method,
+     * according to the current state of the computation.
+     * @param ci The class declaring the method
+     * @param m The method
+     * @return true if the method may collect garbage
+     */
+    private boolean isCollecting(AbstractClassInfo ci, Method m) {
+        if (m.isNative()) {
+            return Intrinsics.get(ci.getName()+"."+m.getName()+m.getSignature()) == null;
+        }
+        if (m.isSynchronized()) {
+            return true;
+        }
+        Code code = m.getCode();
+        if (code == null) {
+            return false;
+        }
+        for (InstructionHandle ih : new InstructionList(code.getCode()).getInstructionHandles()) {
+            Instruction i = ih.getInstruction();
+            if (i instanceof AllocationInstruction
+                || i instanceof MONITORENTER) {
+                return true;
+            }
+            if (i instanceof InvokeInstruction
+                && invokesCollecting(ci.getConstPool(), (InvokeInstruction)i)) {
+                return true;
+            }
+            if (i instanceof BranchInstruction && ((BranchInstruction)i).getIndex() <= 0) {
+                return true;
+            }
+            if (i instanceof Select) {
+                for (int idx : ((Select)i).getIndices()) {
+                    if (idx <= 0) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Select the calling convention for generated methods.
+     * @param typedCalls true to pass values with their native C
+     * types, false to pass them as 32-bit words
+     */
+    public void setTypedCalls(boolean typedCalls) {
+        this.typedCalls = typedCalls;
+    }
+
+    /**
+     * Check whether generated methods pass values with their native C types.
+     * @return true if values are passed with their native C types,
+     * false if they are passed as 32-bit words
+     */
+    public boolean hasTypedCalls() {
+        return typedCalls;
+    }
+
+    /**
+     * Select the exception model for generated methods.
+     * @param sjljExceptions true to propagate exceptions with
+     * setjmp/longjmp, false to check for exceptions after each call
+     */
+    public void setSjljExceptions(boolean sjljExceptions) {
+        this.sjljExceptions = sjljExceptions;
+    }
+
+    /**
+     * Check whether generated methods propagate exceptions with setjmp/longjmp.
+     * @return true if exceptions are propagated with setjmp/longjmp,
+     * false if they are checked for after each call
+     */
+    public boolean hasSjljExceptions() {
+        return sjljExceptions;
+    }
+
+    /**
+     * Select the layout of object headers.
+     * @param compactHeaders true to keep lock words in a table keyed
+     * by object address, false to keep them in the object headers
+     */
+    public void setCompactHeaders(boolean compactHeaders) {
+        this.compactHeaders = compactHeaders;
+    }
+
+    /**
+     * Check whether object headers consist of the type only.
+     * @return true if lock words are kept in a table keyed by object
+     * address, false if they are part of the object headers
+     */
+    public boolean hasCompactHeaders() {
+        return compactHeaders;
+    }
+
+    /**
+     * Set the maximum size of inlined code per method.
+     * @param inlineBudget The maximum size in bytes, 0 to disable inlining
+     */
+    public void setInlineBudget(int inlineBudget) {
+        this.inlineBudget = inlineBudget;
+    }
+
+    /**
+     * Get the maximum size of inlined code per method.
+     * @return The maximum size in bytes, 0 if inlining is disabled
+     */
+    public int getInlineBudget() {
+        return inlineBudget;
+    }
+
     /**
      * Load the transitive hull of the application, including classes
      * that are used by the JVM such as {@link java.lang.NullPointerException}.
@@ -123,24 +654,9 @@ public class AppInfo {
      */
     private void loadHull(String entry) throws ClassNotFoundException {
         Hull hull = new Hull();
-        hull.add("[Z");
-        hull.add("[B");
-        hull.add("[C");
-        hull.add("[S");
-        hull.add("[I");
-        hull.add("[J");
-        hull.add("[F");
-        hull.add("[D");
-        hull.add("[Ljava.lang.String;");
-        hull.add("java.lang.Class");
-        hull.add("java.lang.Thread");
-        hull.add("java.lang.NullPointerException");
-        hull.add("java.lang.ArrayIndexOutOfBoundsException");
-        hull.add("java.lang.ClassCastException");
-        hull.add("java.lang.ArithmeticException");
-        hull.add("java.lang.OutOfMemoryError");
-        hull.add("java.lang.InterruptedException");
-        hull.add("java.lang.VirtualMachineError");
+        for (String name : RUNTIME_CLASSES) {
+            hull.add(name);
+        }
 
         hull.add(entry);
         Map<String, JavaClass> classes = hull.resolve();
@@ -154,6 +670,138 @@ public class AppInfo {
         entryClass = entry.replace('/', '.');
     }
 
+    /**
+     * Remove the classes that are not used by the application and
+     * record which methods and fields are live. The roots of the
+     * analysis are the entry method and the classes, methods and
+     * fields that are used by the JVM.
+     */
+    private void removeDeadCode() {
+        Reachability r = new Reachability(classInfoMap);
+        for (String name : RUNTIME_CLASSES) {
+            String className = Hull.arrayName(name);
+            r.addInstance(className);
+            r.addMethod(className, "<init>", "()V");
+        }
+        r.addInstance("java.lang.String");
+        r.addMethod("java.lang.String", "<init>", "([C)V");
+        r.addField("java.lang.String", "value");
+        r.addField("java.lang.Thread", "_pthread");
+        r.addVirtualCall("java.lang.Thread", "run", "()V");
+        r.addMethod(entryClass, "main", "([Ljava/lang/String;)V");
+        r.resolve();
+
+        Map<String, AbstractClassInfo> liveMap = new LinkedHashMap<String, AbstractClassInfo>();
+        for (Map.Entry<String, AbstractClassInfo> e : classInfoMap.entrySet()) {
+            if (r.isLive(e.getValue())) {
+                liveMap.put(e.getKey(), e.getValue());
+            }
+        }
+        List<AbstractClassInfo> liveInterfaces = new LinkedList<AbstractClassInfo>();
+        for (AbstractClassInfo i : interfaceList) {
+            if (r.isLive(i)) {
+                liveInterfaces.add(i);
+            }
+        }
+        classInfoMap = liveMap;
+        interfaceList = liveInterfaces;
+        reachability = r;
+    }
+
+    /**
+     * Check whether a method is live.
+     * @param ci The class declaring the method
+     * @param m The method
+     * @return true if the method may be invoked, or if dead code has not been removed yet
+     */
+    public boolean isLive(AbstractClassInfo ci, Method m) {
+        return reachability == null || reachability.isLive(ci, m);
+    }
+
+    /**
+     * Check whether a field is live.
+     * @param ci The class declaring the field
+     * @param f The field
+     * @return true if the field may be read, or if dead code has not been removed yet
+     */
+    public boolean isLive(AbstractClassInfo ci, Field f) {
+        return reachability == null || reachability.isLive(ci, f);
+    }
+
+    /**
+     * Check whether a field that is accessed by an instruction is live.
+     * @param base The class referenced by the instruction
+     * @param name The name of the field
+     * @return true if the field may be read, or if dead code has not been removed yet
+     */
+    public boolean isFieldLive(AbstractClassInfo base, String name) {
+        return reachability == null || reachability.isFieldLive(base, name);
+    }
+
+    /**
+     * Get the instantiated classes that are subtypes of a class.
+     * @param ci The class
+     * @return The classes whose objects may be referenced through
+     * the class, null if dead code has not been removed yet
+     */
+    public List<AbstractClassInfo> getReceiverTypes(AbstractClassInfo ci) {
+        if (reachability == null) {
+            return null;
+        }
+        List<AbstractClassInfo> types = receiverTypes.get(ci);
+        if (types != null) {
+            return types;
+        }
+        if (ci.clazz.isInterface()) {
+            types = new LinkedList<AbstractClassInfo>();
+            for (AbstractClassInfo c : classInfoMap.values()) {
+                if (!c.clazz.isInterface()
+                    && reachability.isInstantiated(c)
+                    && c.getInterfaces().contains(ci)) {
+                    types.add(c);
+                }
+            }
+        } else if (hasClassRange(ci)) {
+            int id = getClassId(ci);
+            int last = getLastClassId(ci);
+            types = new LinkedList<AbstractClassInfo>();
+            for (AbstractClassInfo c : classInfoMap.values()) {
+                if (!c.clazz.isInterface()
+                    && reachability.isInstantiated(c)
+                    && getClassId(c) >= id
+                    && getClassId(c) <= last) {
+                    types.add(c);
+                }
+            }
+        } else {
+            return null;
+        }
+        receiverTypes.put(ci, types);
+        return types;
+    }
+
+    /**
+     * Get the only instantiated class that implements an interface.
+     * Invocations of the methods of such an interface are always
+     * direct calls, and the interface does not need an interface table.
+     * @param iface The interface
+     * @return The class that implements all methods of the interface,
+     * null if there is no such class or more than one
+     */
+    public AbstractClassInfo getUniqueImplementor(AbstractClassInfo iface) {
+        List<AbstractClassInfo> types = getReceiverTypes(iface);
+        if (types == null || types.size() != 1) {
+            return null;
+        }
+        AbstractClassInfo impl = types.get(0);
+        for (Method m : Filter.instances(iface.getMethods())) {
+            if (impl.findMethodImplementor(m.getName(), m.getSignature()) == null) {
+                return null;
+            }
+        }
+        return impl;
+    }
+
     /**
      * Create a writable file.
      * @param dir The directory in which to create the file
@@ -172,6 +820,10 @@ public class AppInfo {
      */
     public void dumpAll(String outDir) throws IOException {
         Map<String, Integer> stringPool = new LinkedHashMap<String, Integer>();
+
+        heapImage = new HeapImage(this, stringPool);
+        heapImage.initialize(new ClassInitOrder(classInfoMap).findOrder());
+        heapImage.findMutable(classInfoMap.values());
      
         PrintWriter defsOut = getFile(outDir, "defs.h");
         dumpStartDefs(defsOut);
@@ -196,6 +848,9 @@ public class AppInfo {
         PrintWriter mainOut = getFile(outDir, "main.c");
         mainOut.println("#include \"jvm.h\"");
         dumpStringPool(mainOut, stringPool);
+        heapImage.dumpObjects(mainOut);
+        dumpClassTable(mainOut);
+        heapImage.dumpObjectTable(mainOut);
         dumpMain(mainOut);
         mainOut.flush();
     }
@@ -208,36 +863,51 @@ public class AppInfo {
         out.println("#ifndef _DEFS_H_");
         out.println("#define _DEFS_H_");
         out.println();
+        if (typedCalls) {
+            out.println("#define JVM_TYPED_CALLS");
+            out.println();
+        }
+        if (sjljExceptions) {
+            out.println("#define JVM_SJLJ_EXCEPTIONS");
+            out.println();
+        }
+        if (compactHeaders) {
+            out.println("#define JVM_COMPACT_HEADERS");
+            out.println();
+        }
         out.println("#include <stdio.h>");
         out.println("#include <stdint.h>");
+        out.println("#include <stddef.h>");
         out.println("#include <string.h>");
         out.println("#include <math.h>");
         out.println("#include <pthread.h>");
         out.println();
-        out.println("typedef pthread_mutex_t lock_t;");
-        out.println("typedef pthread_cond_t wait_t;");
+        out.println("typedef uintptr_t lock_t;");
         out.println();
 
         dumpIfaceMethTabDef(out);
     }
 
-   /**
-     * Generate the C declaration of the interface method table.
+    /**
+     * Generate the C declarations of the interface tables. Each
+     * interface with methods has its own table type, which holds
+     * the implementations of its methods.
      * @param out The file to write to
      */
     public void dumpIfaceMethTabDef(PrintWriter out) {
-        if (!interfaceList.isEmpty()) {
+        for (AbstractClassInfo i : interfaceList) {
+            if (getItableIndex(i) < 0) {
+                continue;
+            }
             out.println("typedef struct {");
-            for (AbstractClassInfo i : interfaceList) {
-                out.println("\t/* interface "+i.getName()+" */");
-                for (Method m : i.getMethods()) {
-                    out.print("\t"+Lang.getType(m.getReturnType())+
-                              " (* const "+Lang.getName(i)+"_"+Lang.getMethod(m)+")");
-                    i.dumpArgList(out, m);
-                    out.println(";");
-                }
+            out.println("\t/* interface "+i.getName()+" */");
+            for (Method m : Filter.instances(i.getMethods())) {
+                out.print("\t"+Lang.getCallType(m.getReturnType(), typedCalls)+
+                          " (* const "+Lang.getMethod(m)+")");
+                i.dumpArgList(out, m);
+                out.println(";");
             }
-            out.println("} imtab_t;");
+            out.println("} "+Lang.getName(i)+"_itab_t;");
             out.println();
         }
     }
@@ -247,6 +917,7 @@ public class AppInfo {
      * @param out The file to write to
      */
     public void dumpEndDefs(PrintWriter out) {
+        heapImage.dumpDefs(out);
         out.println("#endif /* _DEFS_H_ */");
     }
 
@@ -263,16 +934,18 @@ public class AppInfo {
 
             out.println("const struct { ");
             out.println("\t"+Lang.getClassType(arrci)+" *type;");
-            out.println("\tlock_t *lock;");
-            out.println("\twait_t *wait;");
+            if (!compactHeaders) {
+                out.println("\tlock_t lock;");
+            }
             out.println("\t"+Lang.getType(Type.INT)+" _0_length;");
             if (str.length() > 0) {
                 out.println("\t"+Lang.getType(Type.CHAR)+" _1_data["+str.length()+"];");
             }
             out.println("} string_"+index+"_val = {");
             out.println("\t&"+Lang.getName(arrci)+", /* type */");
-            out.println("\t0, /* lock */");
-            out.println("\t0, /* wait */");
+            if (!compactHeaders) {
+                out.println("\t0, /* lock */");
+            }
             out.println("\t"+str.length()+", /* length */");
             if (str.length() > 0) {
                 String safeStr = str.replace("*/", "*\\/").replace("/*", "/\\*")
@@ -292,14 +965,29 @@ public class AppInfo {
         out.println(Lang.getObjType(strci)+" stringPool["+stringPool.size()+"] = {");
         for (int i = 0; i < stringPool.size(); i++) {
             out.println("{\t&"+Lang.getName(strci)+", /* type */");
-            out.println("\t0, /* lock */");
-            out.println("\t0, /* wait */");
+            if (!compactHeaders) {
+                out.println("\t0, /* lock */");
+            }
             out.println("\t(int32_t)&string_"+i+"_val /* value */");
             out.println("},");
         }
         out.println("};");
     }
 
+    /**
+     * Generate the C code for the table of all classes, which the
+     * garbage collector uses to find static fields.
+     * @param out The file to write to
+     */
+    public void dumpClassTable(PrintWriter out) {
+        out.println("const void * const jvm_classes[] = {");
+        for (AbstractClassInfo ci : classInfoMap.values()) {
+            out.println("\t&"+Lang.getName(ci)+",");
+        }
+        out.println("\t0");
+        out.println("};");
+    }
+
     /**
      * Generate the code to check for an exception and call jvm_catch().
      * @param out The file to write to
@@ -322,6 +1010,9 @@ public class AppInfo {
 
         ClassInitOrder cio = new ClassInitOrder(classInfoMap);
         for (AbstractClassInfo ci : cio.findOrder()) {
+            if (heapImage.isInitialized(ci)) {
+                continue;
+            }
             String className = Lang.getName(ci);
             String methName = Lang.getMethod(ci.findClinit());
             out.println("\t"+className+"_"+methName+"(&exc);");
@@ -337,6 +1028,7 @@ public class AppInfo {
         out.println("\t"+Lang.getName(entry)+"_main__Ljava_lang_String__V(args, &exc);");
         dumpCatch(out);
 
+        out.println("\tjvm_thread_detach();");
         out.println("\tpthread_exit(NULL);");
         out.println("}");
     }
@@ -0,0 +1,758 @@
+/*
+   Copyright 2015 Technical University of Denmark, DTU Compute.
+   All rights reserved.
+
+   This file is part of the ahead-of-time bytecode compiler Fernando.
+
+   Redistribution and use in source and binary forms, with or without
+   modification, are permitted provided that the following conditions are met:
+
+      1. Redistributions of source code must retain the above copyright notice,
+         this list of conditions and the following disclaimer.
+
+      2. Redistributions in binary form must reproduce the above copyright
+         notice, this list of conditions and the following disclaimer in the
+         documentation and/or other materials provided with the distribution.
+
+   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER ``AS IS'' AND ANY EXPRESS
+   OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+   OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+   NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+   DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+   (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+   LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+   (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+   THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+   The views and conclusions contained in the software and documentation are
+   those of the authors and should not be interpreted as representing official
+   policies, either expressed or implied, of the copyright holder.
+*/
+
+
+package fernando;
+
+import org.apache.bcel.classfile.CodeException;
+import org.apache.bcel.classfile.Field;
+import org.apache.bcel.generic.*;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * An analysis to find array bounds checks that can be removed or
+ * hoisted out of counted loops. The analysis recognizes loops of the
+ * form generated by javac for <code>for (i = init; i &lt; bound; i += c) { ... }</code>
+ * (the condition at the top, closed by a backward GOTO),
+ * where <code>bound</code> is a constant, a local variable, or the
+ * length of an array, and neither the bound nor the arrays accessed
+ * with index <code>i</code> change within the loop.
+ *
+ * Bounds checks for accesses that are provably safe are removed. For
+ * the other accesses, a single test whether the whole range of the
+ * loop is within the bounds of the arrays is generated before the
+ * loop; the accesses within the loop only need to be checked if that
+ * test fails. As arrays held in fields may be replaced by other
+ * threads, accesses to such arrays also check that the array is the
+ * one that was tested before the loop.
+ */
+public class ArrayBounds {
+
+    /** Stack entry for values that are not tracked by the analysis. */
+    private static final Object UNKNOWN = new Object();
+
+    /**
+     * A reference to an array that is held in a local variable, in a
+     * field of an object referenced by a local variable, or in a
+     * static field.
+     */
+    public static class ArrayRef {
+        /** The local variable that holds the array or the object, -1 for static fields. */
+        private final int local;
+        /** The instruction to load the array from a field, null for local variables. */
+        private final FieldInstruction field;
+
+        ArrayRef(int local, FieldInstruction field) {
+            this.local = local;
+            this.field = field;
+        }
+
+        /**
+         * Get the local variable that holds the array or the object containing the array.
+         * @return The index of the local variable, -1 for static fields
+         */
+        public int getLocal() {
+            return local;
+        }
+
+        /**
+         * Get the instruction to load the array from a field.
+         * @return The GETFIELD or GETSTATIC instruction, null if the
+         * array is held in a local variable
+         */
+        public FieldInstruction getField() {
+            return field;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ArrayRef)) {
+                return false;
+            }
+            ArrayRef r = (ArrayRef)o;
+            return local == r.local
+                && (field == null
+                    ? r.field == null
+                    : r.field != null && field.getIndex() == r.field.getIndex());
+        }
+
+        @Override
+        public int hashCode() {
+            return local * 31 + (field == null ? 0 : field.getIndex());
+        }
+    }
+
+    /**
+     * A counted loop with accesses whose bounds checks are hoisted.
+     */
+    public static class Loop {
+        /** The position where the loop is entered, i.e., the loop condition. */
+        private final int entry;
+        /** The position of the first instruction of the loop. */
+        private final int start;
+        /** The position of the first instruction of the loop body after the condition. */
+        private final int body;
+        /** The position of the GOTO that closes the loop. */
+        private final int end;
+        /** The local variable that holds the loop index. */
+        private final int index;
+        /** Whether the loop runs while the index is less than or equal to the bound. */
+        private final boolean inclusive;
+        /** The largest total increment of the index in one iteration of the loop. */
+        private int step;
+        /** The constant bound of the loop, if any. */
+        private Integer boundConst;
+        /** The local variable that holds the bound of the loop, -1 if none. */
+        private int boundLocal = -1;
+        /** The array whose length is the bound of the loop, if any. */
+        private ArrayRef boundArray;
+        /** Whether the index is known to be non-negative when entering the loop. */
+        private boolean safeStart;
+        /** The arrays accessed with hoisted bounds checks, with one access instruction each. */
+        private final Map<ArrayRef, Instruction> arrays = new LinkedHashMap<ArrayRef, Instruction>();
+
+        Loop(int entry, int start, int body, int end, int index, boolean inclusive) {
+            this.entry = entry;
+            this.start = start;
+            this.body = body;
+            this.end = end;
+            this.index = index;
+            this.inclusive = inclusive;
+        }
+
+        /** @return The position of the first instruction of the loop */
+        public int getStart() {
+            return start;
+        }
+        /** @return The local variable that holds the loop index */
+        public int getIndex() {
+            return index;
+        }
+        /** @return true if the loop runs while the index is less than or equal to the bound */
+        public boolean isInclusive() {
+            return inclusive;
+        }
+        /** @return The largest total increment of the index in one iteration of the loop */
+        public int getStep() {
+            return step;
+        }
+        /** @return The constant bound of the loop, null if the bound is not constant */
+        public Integer getBoundConst() {
+            return boundConst;
+        }
+        /** @return The local variable that holds the bound, -1 if the bound is not held in a local variable */
+        public int getBoundLocal() {
+            return boundLocal;
+        }
+        /** @return The array whose length is the bound, null if the bound is not an array length */
+        public ArrayRef getBoundArray() {
+            return boundArray;
+        }
+        /** @return true if the index is known to be non-negative when entering the loop */
+        public boolean hasSafeStart() {
+            return safeStart;
+        }
+        /** @return The arrays accessed with hoisted bounds checks, with one access instruction each */
+        public Map<ArrayRef, Instruction> getArrays() {
+            return arrays;
+        }
+    }
+
+    /** The application being compiled. */
+    private final AppInfo app;
+
+    /** The constant pool for the instructions. */
+    private final ConstantPoolGen constPool;
+
+    /** A map between code positions and symbolic stack states. */
+    private final Map<Integer, LinkedList<Object>> stackMap = new HashMap<Integer, LinkedList<Object>>();
+
+    /** A map between the entry positions of loops and loops. */
+    private final Map<Integer, Loop> loopMap = new LinkedHashMap<Integer, Loop>();
+
+    /** A map between positions of array accesses and the loops that cover them. */
+    private final Map<Integer, Loop> accessMap = new HashMap<Integer, Loop>();
+
+    /** A map between positions of array accesses and the accessed arrays. */
+    private final Map<Integer, ArrayRef> accessRefs = new HashMap<Integer, ArrayRef>();
+
+    /** The positions of array accesses that are always within bounds. */
+    private final Set<Integer> safeAccesses = new LinkedHashSet<Integer>();
+
+    /**
+     * Create and run the analysis.
+     * @param app The application being compiled
+     * @param il The list of instructions to be analyzed
+     * @param constPool The constant pool for the instructions
+     * @param excTab The exception table of the analyzed method
+     */
+    public ArrayBounds(AppInfo app, InstructionList il, ConstantPoolGen constPool, CodeException [] excTab) {
+        this.app = app;
+        this.constPool = constPool;
+
+        analyzeStack(il, excTab);
+
+        List<Loop> loops = new LinkedList<Loop>();
+        for (InstructionHandle ih : il.getInstructionHandles()) {
+            Loop loop = findLoop(il, ih, excTab);
+            if (loop != null) {
+                loops.add(loop);
+            }
+        }
+
+        for (InstructionHandle ih : il.getInstructionHandles()) {
+            if (ih.getInstruction() instanceof ArrayInstruction) {
+                assignAccess(il, ih, loops);
+            }
+        }
+
+        for (Loop loop : loops) {
+            if (!loop.arrays.isEmpty()) {
+                loopMap.put(loop.entry, loop);
+            }
+        }
+    }
+
+    /**
+     * Compute which local variables and fields the values on the stack
+     * are loaded from.
+     * @param il The list of instructions to be analyzed
+     * @param excTab The exception table of the analyzed method
+     */
+    private void analyzeStack(InstructionList il, CodeException [] excTab) {
+        Queue<Integer> queue = new LinkedList<Integer>();
+
+        int pos = il.getStart().getPosition();
+        stackMap.put(pos, new LinkedList<Object>());
+        queue.add(pos);
+        if (excTab != null) {
+            for (CodeException exc : excTab) {
+                LinkedList<Object> stack = new LinkedList<Object>();
+                stack.push(UNKNOWN);
+                update(queue, exc.getHandlerPC(), stack);
+            }
+        }
+
+        while (!queue.isEmpty()) {
+            pos = queue.remove();
+            Instruction i = il.findHandle(pos).getInstruction();
+            LinkedList<Object> stack = new LinkedList<Object>(stackMap.get(pos));
+
+            updateStack(stack, i);
+
+            if (i instanceof Select) {
+                Select s = (Select)i;
+                for (int idx : s.getIndices()) {
+                    update(queue, pos + idx, stack);
+                }
+            }
+            if (i instanceof BranchInstruction) {
+                BranchInstruction bi = (BranchInstruction)i;
+                update(queue, pos + bi.getIndex(), stack);
+            }
+            if (!(i instanceof ReturnInstruction ||
+                  i instanceof Select ||
+                  i instanceof UnconditionalBranch ||
+                  i instanceof RET)) {
+                update(queue, pos + i.getLength(), stack);
+            }
+        }
+    }
+
+    /**
+     * Update the symbolic stack state according to the semantics of an instruction.
+     * @param stack The current stack state (before analyzing the instruction)
+     * @param i The current instruction
+     */
+    private void updateStack(LinkedList<Object> stack, Instruction i) {
+        if (i instanceof ILOAD || i instanceof ALOAD) {
+            stack.push(((LocalVariableInstruction)i).getIndex());
+        } else if (i instanceof GETFIELD && isArrayField((GETFIELD)i)) {
+            Object ref = stack.pop();
+            stack.push(ref instanceof Integer
+                       ? new ArrayRef((Integer)ref, (GETFIELD)i)
+                       : UNKNOWN);
+        } else if (i instanceof GETSTATIC && isArrayField((GETSTATIC)i)) {
+            stack.push(new ArrayRef(-1, (GETSTATIC)i));
+        } else if (i instanceof CHECKCAST) {
+            // the value remains unchanged
+        } else if (!StackTypes.shuffle(stack, i)) {
+            for (int k = 0; k < i.consumeStack(constPool); k++) {
+                stack.pop();
+            }
+            for (int k = 0; k < i.produceStack(constPool); k++) {
+                stack.push(UNKNOWN);
+            }
+        }
+
+        int store = getStoredLocal(i);
+        if (store >= 0) {
+            for (int k = 0; k < stack.size(); k++) {
+                Object entry = stack.get(k);
+                if (entry.equals(store)
+                    || (i instanceof LSTORE || i instanceof DSTORE) && entry.equals(store+1)
+                    || entry instanceof ArrayRef && ((ArrayRef)entry).local == store) {
+                    stack.set(k, UNKNOWN);
+                }
+            }
+        }
+    }
+
+    /**
+     * Merge a stack state into the stack state at a position, and
+     * queue the position for analysis if its state changed.
+     * @param queue The queue of positions to be analyzed
+     * @param target The position to be updated
+     * @param stack The stack state to be merged
+     */
+    private void update(Queue<Integer> queue, int target, LinkedList<Object> stack) {
+        LinkedList<Object> old = stackMap.get(target);
+        if (old == null) {
+            stackMap.put(target, new LinkedList<Object>(stack));
+            queue.add(target);
+            return;
+        }
+        boolean changed = false;
+        for (int k = 0; k < old.size() && k < stack.size(); k++) {
+            if (old.get(k) != UNKNOWN && !old.get(k).equals(stack.get(k))) {
+                old.set(k, UNKNOWN);
+                changed = true;
+            }
+        }
+        if (changed && !queue.contains(target)) {
+            queue.add(target);
+        }
+    }
+
+    /**
+     * Check whether a field holds an array and is not volatile.
+     * @param fi The instruction accessing the field
+     * @return true if the field holds an array and is not volatile, false otherwise
+     */
+    private boolean isArrayField(FieldInstruction fi) {
+        if (!(fi.getFieldType(constPool) instanceof ArrayType)) {
+            return false;
+        }
+        AbstractClassInfo ci = app.getClassInfo(fi.getReferenceType(constPool).toString());
+        if (ci == null) {
+            return false;
+        }
+        String fieldName = fi.getFieldName(constPool);
+        ci = ci.findFieldDeclarator(ci, fieldName);
+        Field f = ci != null ? ci.findField(fieldName) : null;
+        return f != null && !f.isVolatile();
+    }
+
+    /**
+     * Get the local variable an instruction writes to.
+     * @param i The instruction
+     * @return The index of the local variable, -1 if the instruction
+     * does not write to a local variable
+     */
+    private static int getStoredLocal(Instruction i) {
+        if (i instanceof StoreInstruction) {
+            return ((StoreInstruction)i).getIndex();
+        } else if (i instanceof IINC) {
+            return ((IINC)i).getIndex();
+        }
+        return -1;
+    }
+
+    /**
+     * Check whether an instruction writes to a local variable.
+     * @param i The instruction
+     * @param index The index of the local variable
+     * @return true if the instruction writes to the local variable, false otherwise
+     */
+    private static boolean writesLocal(Instruction i, int index) {
+        int store = getStoredLocal(i);
+        return store == index
+            || ((i instanceof LSTORE || i instanceof DSTORE) && store+1 == index);
+    }
+
+    /**
+     * Recognize a counted loop that is closed by a particular instruction.
+     * @param il The list of instructions
+     * @param ih The instruction that may close a loop
+     * @param excTab The exception table of the analyzed method
+     * @return The loop, null if the instruction does not close a suitable loop
+     */
+    private Loop findLoop(InstructionList il, InstructionHandle ih, CodeException [] excTab) {
+        if (!(ih.getInstruction() instanceof GotoInstruction)) {
+            return null;
+        }
+        InstructionHandle cond = ((GotoInstruction)ih.getInstruction()).getTarget();
+        InstructionHandle entry = cond.getPrev();
+        int start = cond.getPosition();
+        int end = ih.getPosition();
+        if (start >= end || entry == null
+            || entry.getInstruction() instanceof UnconditionalBranch
+            || entry.getInstruction() instanceof ReturnInstruction
+            || entry.getInstruction() instanceof Select) {
+            return null;
+        }
+
+        // the condition must compare the index with a loop-invariant bound
+        InstructionHandle exit = cond;
+        List<InstructionHandle> condCode = new LinkedList<InstructionHandle>();
+        while (exit != ih && !(exit.getInstruction() instanceof BranchInstruction)) {
+            condCode.add(exit);
+            exit = exit.getNext();
+        }
+        Instruction i = exit.getInstruction();
+        if (!(i instanceof IF_ICMPGE || i instanceof IF_ICMPGT)
+            || ((BranchInstruction)i).getTarget() != ih.getNext()
+            || condCode.isEmpty() || !(cond.getInstruction() instanceof ILOAD)) {
+            return null;
+        }
+        Loop loop = new Loop(start, start, exit.getNext().getPosition(), end,
+                             ((ILOAD)cond.getInstruction()).getIndex(),
+                             i instanceof IF_ICMPGT);
+        if (!matchBound(loop, condCode.subList(1, condCode.size()))) {
+            return null;
+        }
+
+        // the loop must only be entered by falling through to the condition
+        for (InstructionHandle h : il.getInstructionHandles()) {
+            int pos = h.getPosition();
+            if (pos < start || pos > end) {
+                for (InstructionHandle t : getTargets(h)) {
+                    if (t.getPosition() >= start && t.getPosition() <= end) {
+                        return null;
+                    }
+                }
+            }
+        }
+        if (excTab != null) {
+            for (CodeException exc : excTab) {
+                int handler = exc.getHandlerPC();
+                if (handler >= start && handler <= end
+                    && (exc.getStartPC() < start || exc.getEndPC() > end+ih.getInstruction().getLength())) {
+                    return null;
+                }
+            }
+        }
+
+        // the index may only be incremented within the loop; the step is
+        // the sum of the increments, each of which may run at most once
+        // per iteration
+        List<Integer> incs = new LinkedList<Integer>();
+        for (InstructionHandle h = cond; h != ih.getNext(); h = h.getNext()) {
+            Instruction bi = h.getInstruction();
+            if (bi instanceof IINC && ((IINC)bi).getIndex() == loop.index) {
+                int inc = ((IINC)bi).getIncrement();
+                if (inc <= 0 || loop.step > Integer.MAX_VALUE - inc) {
+                    return null;
+                }
+                loop.step += inc;
+                incs.add(h.getPosition());
+            } else if (writesLocal(bi, loop.index)) {
+                return null;
+            }
+        }
+        if (loop.step == 0) {
+            return null;
+        }
+        for (InstructionHandle h = cond; h != ih; h = h.getNext()) {
+            for (InstructionHandle t : getTargets(h)) {
+                for (int inc : incs) {
+                    if (t.getPosition() <= inc && inc <= h.getPosition()) {
+                        return null;
+                    }
+                }
+            }
+        }
+        if (loop.boundLocal >= 0 && !isInvariant(il, loop, loop.boundLocal)) {
+            return null;
+        }
+        if (loop.boundArray != null && !isInvariant(il, loop, loop.boundArray)) {
+            return null;
+        }
+
+        // a non-negative constant assigned right before entering the loop
+        InstructionHandle value = entry.getPrev();
+        if (value != null && !entry.hasTargeters()
+            && entry.getInstruction() instanceof ISTORE
+            && ((ISTORE)entry.getInstruction()).getIndex() == loop.index
+            && value.getInstruction() instanceof ConstantPushInstruction
+            && ((ConstantPushInstruction)value.getInstruction()).getValue().intValue() >= 0) {
+            loop.safeStart = true;
+        }
+
+        return loop;
+    }
+
+    /**
+     * Match the bound of a loop condition.
+     * @param loop The loop
+     * @param code The instructions that push the bound onto the stack
+     * @return true if the bound could be matched, false otherwise
+     */
+    private boolean matchBound(Loop loop, List<InstructionHandle> code) {
+        for (InstructionHandle h : code) {
+            if (h.hasTargeters()) {
+                return false;
+            }
+        }
+        if (code.size() == 1) {
+            Instruction i = code.get(0).getInstruction();
+            if (i instanceof ConstantPushInstruction) {
+                loop.boundConst = ((ConstantPushInstruction)i).getValue().intValue();
+                return true;
+            } else if (i instanceof LDC && ((LDC)i).getValue(constPool) instanceof Integer) {
+                loop.boundConst = (Integer)((LDC)i).getValue(constPool);
+                return true;
+            } else if (i instanceof ILOAD) {
+                loop.boundLocal = ((ILOAD)i).getIndex();
+                return true;
+            }
+        } else if (code.get(code.size()-1).getInstruction() instanceof ARRAYLENGTH) {
+            LinkedList<Object> stack = new LinkedList<Object>();
+            for (InstructionHandle h : code.subList(0, code.size()-1)) {
+                updateStack(stack, h.getInstruction());
+            }
+            // arrays in fields may be replaced concurrently, so only local arrays are accepted
+            Object ref = stack.size() == 1 ? stack.peek() : UNKNOWN;
+            if (ref instanceof Integer) {
+                loop.boundArray = new ArrayRef((Integer)ref, null);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the targets of a branch instruction.
+     * @param ih The instruction
+     * @return The targets of the instruction, an empty array if it is not a branch
+     */
+    private static InstructionHandle [] getTargets(InstructionHandle ih) {
+        Instruction i = ih.getInstruction();
+        if (i instanceof Select) {
+            InstructionHandle [] targets = ((Select)i).getTargets();
+            InstructionHandle [] all = new InstructionHandle[targets.length+1];
+            System.arraycopy(targets, 0, all, 0, targets.length);
+            all[targets.length] = ((Select)i).getTarget();
+            return all;
+        } else if (i instanceof BranchInstruction) {
+            return new InstructionHandle [] { ((BranchInstruction)i).getTarget() };
+        }
+        return new InstructionHandle[0];
+    }
+
+    /**
+     * Check whether a local variable is not changed within a loop.
+     * @param il The list of instructions
+     * @param loop The loop
+     * @param index The index of the local variable
+     * @return true if the local variable is not written within the loop
+     */
+    private boolean isInvariant(InstructionList il, Loop loop, int index) {
+        for (InstructionHandle h : il.getInstructionHandles()) {
+            if (h.getPosition() >= loop.start && h.getPosition() <= loop.end
+                && writesLocal(h.getInstruction(), index)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check whether a reference to an array is not changed within a loop.
+     * @param il The list of instructions
+     * @param loop The loop
+     * @param ref The reference to the array
+     * @return true if the reference is not changed within the loop
+     */
+    private boolean isInvariant(InstructionList il, Loop loop, ArrayRef ref) {
+        if (ref.local >= 0 && !isInvariant(il, loop, ref.local)) {
+            return false;
+        }
+        if (ref.field == null) {
+            return true;
+        }
+        String fieldName = ref.field.getFieldName(constPool);
+        for (InstructionHandle h : il.getInstructionHandles()) {
+            if (h.getPosition() < loop.start || h.getPosition() > loop.end) {
+                continue;
+            }
+            Instruction i = h.getInstruction();
+            // invoked methods and other threads may change fields
+            if (i instanceof InvokeInstruction
+                || i instanceof MONITORENTER || i instanceof MONITOREXIT) {
+                return false;
+            }
+            if ((i instanceof PUTFIELD || i instanceof PUTSTATIC)
+                && ((FieldInstruction)i).getFieldName(constPool).equals(fieldName)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Find the loop that covers an array access, if any.
+     * @param il The list of instructions
+     * @param ih The array access
+     * @param loops The loops of the method
+     */
+    private void assignAccess(InstructionList il, InstructionHandle ih, List<Loop> loops) {
+        ArrayInstruction ai = (ArrayInstruction)ih.getInstruction();
+        int pos = ih.getPosition();
+        LinkedList<Object> stack = stackMap.get(pos);
+        if (stack == null) {
+            return;
+        }
+        int idx = ai instanceof StackProducer ? 0 : ai.getType(constPool).getSize();
+        Object index = stack.get(idx);
+        Object array = stack.get(idx+1);
+        ArrayRef ref;
+        if (array instanceof Integer) {
+            ref = new ArrayRef((Integer)array, null);
+        } else if (array instanceof ArrayRef) {
+            ref = (ArrayRef)array;
+        } else {
+            return;
+        }
+
+        Loop inner = null;
+        for (Loop loop : loops) {
+            if (index.equals(loop.index)
+                && pos >= loop.body && pos < loop.end
+                && (inner == null || loop.start > inner.start)
+                && isIndexUnchanged(il, loop, pos)
+                && isInvariant(il, loop, ref)) {
+                inner = loop;
+            }
+        }
+        if (inner == null) {
+            return;
+        }
+
+        if (inner.safeStart && !inner.inclusive && inner.step == 1
+            && ref.field == null && ref.equals(inner.boundArray)) {
+            safeAccesses.add(pos);
+        } else {
+            accessMap.put(pos, inner);
+            accessRefs.put(pos, ref);
+            if (!inner.arrays.containsKey(ref)) {
+                inner.arrays.put(ref, ai);
+            }
+        }
+    }
+
+    /**
+     * Check that the index of a loop is not incremented on any path
+     * from the start of the loop body to an array access.
+     * @param il The list of instructions
+     * @param loop The loop
+     * @param pos The position of the array access
+     * @return true if the index is not incremented before the access
+     */
+    private boolean isIndexUnchanged(InstructionList il, Loop loop, int pos) {
+        int firstInc = loop.end;
+        for (InstructionHandle h : il.getInstructionHandles()) {
+            if (h.getPosition() >= loop.body && h.getPosition() < loop.end
+                && h.getInstruction() instanceof IINC
+                && ((IINC)h.getInstruction()).getIndex() == loop.index) {
+                firstInc = Math.min(firstInc, h.getPosition());
+            }
+        }
+        if (firstInc < pos) {
+            return false;
+        }
+        // no backward branch within the body may lead from an increment to the access
+        for (InstructionHandle h : il.getInstructionHandles()) {
+            if (h.getPosition() >= firstInc && h.getPosition() < loop.end) {
+                for (InstructionHandle t : getTargets(h)) {
+                    if (t.getPosition() <= pos) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the loop whose bounds check is generated at a position.
+     * @param pos The position in the code
+     * @return The loop that is entered at the position, null if no
+     * loop with hoisted bounds checks is entered at the position
+     */
+    public Loop getLoopEntry(int pos) {
+        return loopMap.get(pos);
+    }
+
+    /**
+     * Get the loops with hoisted bounds checks.
+     * @return The loops with hoisted bounds checks
+     */
+    public Iterable<Loop> getLoops() {
+        return loopMap.values();
+    }
+
+    /**
+     * Get the loop whose hoisted bounds check covers an array access.
+     * @param pos The position of the array access
+     * @return The loop covering the access, null if the access is not covered
+     */
+    public Loop getLoop(int pos) {
+        return accessMap.get(pos);
+    }
+
+    /**
+     * Get the array that is accessed at a position covered by a loop.
+     * @param pos The position of the array access
+     * @return The reference to the accessed array, null if the access is not covered
+     */
+    public ArrayRef getArrayRef(int pos) {
+        return accessRefs.get(pos);
+    }
+
+    /**
+     * Check whether an array access is always within bounds.
+     * @param pos The position of the array access
+     * @return true if the access is always within bounds, false otherwise
+     */
+    public boolean isSafe(int pos) {
+        return safeAccesses.contains(pos);
+    }
+}
@@ -38,8 +38,13 @@ import org.apache.bcel.generic.*;
 
 import java.io.PrintWriter;
 
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Deque;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
@@ -50,6 +55,30 @@ import java.util.logging.Logger;
  */
 public class ClassInfo extends AbstractClassInfo {
 
+    /** The maximum number of receiver types for guarded direct calls. */
+    private static final int MAX_GUARDED_TARGETS = 3;
+
+    /** The non-null references of the method the code is generated for. */
+    private NonNullValues nonNullMap;
+
+    /** The array bounds checks to be removed or hoisted for the method the code is generated for. */
+    private ArrayBounds boundsMap;
+
+    /** The objects of the method the code is generated for that do not escape. */
+    private Escapes escapes;
+
+    /** Whether the method the code is generated for sets up a landing pad for exceptions. */
+    private boolean landingPad;
+
+    /** The qualifier for local variables that must keep their values across a longjmp(). */
+    private String localQualifier = "";
+
+    /** The variables that may hold references at safepoints, mapped to their slots in the frame of the method. */
+    private Map<String, Integer> rootSlots;
+
+    /** The variables to be spilled to the frame at safepoints; the entry of a synchronized method is at position -1. */
+    private Map<Integer, List<String>> spillMap;
+
     /**
      * Constructor, only to be used internally.
      */
@@ -107,10 +136,33 @@ public class ClassInfo extends AbstractClassInfo {
      * @param m The method the code is generated for
      */
     public void dumpArgList(PrintWriter out, Method m) {
-        int argCount = getArgCount(m.getArgumentTypes(), m.isStatic());
+        dumpArgList(out, m, "");
+    }
+
+    /**
+     * Generate the list of arguments for a method, with a qualifier
+     * for the parameters.
+     * @param out The file to write to
+     * @param m The method the code is generated for
+     * @param qualifier The qualifier for the parameters, e.g., "volatile "
+     */
+    public void dumpArgList(PrintWriter out, Method m, String qualifier) {
         out.print("(");
-        for (int i = 0; i < argCount; i++) {
-            out.print("int32_t "+v(i)+", ");
+        if (app.hasTypedCalls()) {
+            int index = 0;
+            if (!m.isStatic()) {
+                out.print(qualifier+"int32_t "+v(index++)+", ");
+            }
+            for (Type t : m.getArgumentTypes()) {
+                Type type = StackTypes.normalize(t);
+                out.print(qualifier+Lang.getType(type)+" "+v(index, type)+", ");
+                index += type.getSize();
+            }
+        } else {
+            int argCount = getArgCount(m.getArgumentTypes(), m.isStatic());
+            for (int i = 0; i < argCount; i++) {
+                out.print(qualifier+"int32_t "+v(i)+", ");
+            }
         }
         out.print("int32_t *restrict retexc)");
     }
@@ -123,15 +175,25 @@ public class ClassInfo extends AbstractClassInfo {
         out.println("typedef struct {");
         out.println("\t/* header */");
         out.println("\tvoid * const type;");
-        out.println("\tlock_t * lock;");
-        out.println("\twait_t * wait;");
+        if (!app.hasCompactHeaders()) {
+            out.println("\tvolatile lock_t lock;");
+        }
         out.println("\t/* class type fields */");
         out.println("\tvoid * const super;");
         out.println("\tvoid * const elemtype;");
         out.println("\tvoid * const name;");
+        out.println("\tconst int32_t id;");
+        out.println("\tconst int32_t last;");
+        out.println("\t/* memory layout of instances */");
+        out.println("\tconst int32_t size;");
+        out.println("\tconst int32_t elemsize;");
+        out.println("\tconst int32_t * const refs;");
+        out.println("\tvolatile int32_t * const * const statics;");
         if (!app.getInterfaceList().isEmpty()) {
             out.println("\tconst int32_t itab ["+((app.getInterfaceList().size()+31)/32)+"];");
-            out.println("\tconst imtab_t * const imtab;");
+        }
+        if (app.getItableCount() > 0) {
+            out.println("\tconst void * const itables ["+app.getItableCount()+"];");
         }
 
         dumpMethodPointerDefs(out);
@@ -156,7 +218,7 @@ public class ClassInfo extends AbstractClassInfo {
             if (app.getVirtualMethods().contains(fqName)
                 && !("<init>".equals(m.getName())
                      && "()V".equals(m.getSignature()))) {
-                out.print("\t"+Lang.getType(m.getReturnType())+
+                out.print("\t"+Lang.getCallType(m.getReturnType(), app.hasTypedCalls())+
                           " (* const "+Lang.getMethod(m)+")");
                 dumpArgList(out, m);
                 out.println(";");
@@ -195,7 +257,7 @@ public class ClassInfo extends AbstractClassInfo {
             if (m.isPrivate() && !m.isNative()) {
                 out.print("static ");
             }
-            out.print(Lang.getType(m.getReturnType())+
+            out.print(Lang.getCallType(m.getReturnType(), app.hasTypedCalls())+
                       " "+Lang.getName(this)+"_"+Lang.getMethod(m));
             dumpArgList(out, m);
             out.println(";");
@@ -211,8 +273,9 @@ public class ClassInfo extends AbstractClassInfo {
         out.println("typedef struct {");
         out.println("\t/* header */");
         out.println("\tconst "+Lang.getClassType(this)+" *type;");
-        out.println("\tlock_t *lock;");
-        out.println("\twait_t *wait;");
+        if (!app.hasCompactHeaders()) {
+            out.println("\tvolatile lock_t lock;");
+        }
         out.println("\t/* instance fields */");
         int fieldIdx = 0;
         for (Field f : getInstanceFields()) {
@@ -239,12 +302,14 @@ public class ClassInfo extends AbstractClassInfo {
                 if (m.isPrivate() && !m.isNative()) {
                     out.print("static ");
                 }
-                out.print(Lang.getType(m.getReturnType())+
+                Method im = code != null ? new Inliner(app, this).inline(m) : m;
+                setLandingPad(im);
+                out.print(Lang.getCallType(m.getReturnType(), app.hasTypedCalls())+
                           " "+Lang.getName(this)+"_"+Lang.getMethod(m));
-                dumpArgList(out, m);
+                dumpArgList(out, m, localQualifier);
                 if (code != null) {
                     out.println(" {");
-                    dumpCode(out, stringPool, m, code);
+                    dumpCode(out, stringPool, im, im.getCode());
                     out.println("}");
                 } else {
                     out.println(";");
@@ -255,30 +320,47 @@ public class ClassInfo extends AbstractClassInfo {
     }
 
     /**
-     * Generate the C definition of the interface method table for this class.
+     * Decide whether a method needs a landing pad for exceptions. A
+     * landing pad is needed if exceptions are propagated with
+     * setjmp/longjmp and the method catches exceptions or must
+     * release a lock when an exception passes through it.
+     * @param method The method the code is generated for
+     */
+    private void setLandingPad(Method method) {
+        Code code = method.getCode();
+        boolean hasHandlers = code != null && code.getExceptionTable().length > 0;
+        landingPad = app.hasSjljExceptions() && code != null
+            && (hasHandlers || method.isSynchronized());
+        // local variables that are modified after setjmp() are
+        // indeterminate after a longjmp() unless they are volatile
+        localQualifier = landingPad && hasHandlers ? "volatile " : "";
+    }
+
+    /**
+     * Generate the C definitions of the interface tables for this class.
      * @param out The file to write to
      */
     public void dumpIfaceMethTab(PrintWriter out) throws ClassNotFoundException {
-        out.println("imtab_t "+Lang.getName(this)+"_imtab = {");
-        for (AbstractClassInfo i : app.getInterfaceList()) {
-            out.println("\t/* interface "+i.getName()+" */");
-            for (Method m : i.getMethods()) {
+        for (AbstractClassInfo i : getInterfaces()) {
+            if (app.getItableIndex(i) < 0) {
+                continue;
+            }
+            out.println("const "+Lang.getName(i)+"_itab_t "+Lang.getName(this)+Lang.getName(i)+"_itab = {");
+            for (Method m : Filter.instances(i.getMethods())) {
                 boolean found = false;
-                if (clazz.implementationOf(i.clazz)) {
-                    for (Map.Entry<Method, AbstractClassInfo> e : getInstanceMethods()) {
-                        if (methodsEqual(m, e.getKey())) {
-                            out.println("\t"+Lang.getName(e.getValue())+"_"+Lang.getMethod(m)+", ");
-                            found = true;
-                            break;
-                        }
+                for (Map.Entry<Method, AbstractClassInfo> e : getInstanceMethods()) {
+                    if (methodsEqual(m, e.getKey()) && !e.getValue().clazz.isInterface()) {
+                        out.println("\t"+Lang.getName(e.getValue())+"_"+Lang.getMethod(m)+", ");
+                        found = true;
+                        break;
                     }
                 }
                 if (!found) {
                     out.println("\t0, /*"+m.getName()+m.getSignature()+" */");
                 }
             }
+            out.println("};");
         }
-        out.println("};");
     }
 
     /**
@@ -304,14 +386,23 @@ public class ClassInfo extends AbstractClassInfo {
         }
         String namePtr = "&stringPool["+stringPool.get(getName())+"]";
 
+        dumpRefTables(out);
+
         out.println(Lang.getClassType(this)+" "+Lang.getName(this)+" = {");
         out.println("\t/* header */");
         out.println("\t"+classClassPtr+", /* type */");
-        out.println("\t0, /* lock */");
-        out.println("\t0, /* wait */");
+        if (!app.hasCompactHeaders()) {
+            out.println("\t0, /* lock */");
+        }
         out.println("\t"+superClassPtr+", /* super */");
         out.println("\t"+elemType+", /* elemtype */");
         out.println("\t"+namePtr+", /* name */");
+        out.println("\t"+app.getClassId(this)+", /* id */");
+        out.println("\t"+app.getLastClassId(this)+", /* last */");
+        out.println("\tsizeof("+Lang.getObjType(this)+"), /* size */");
+        out.println("\t"+getElementSize()+", /* elemsize */");
+        out.println("\t"+Lang.getName(this)+"_refs, /* refs */");
+        out.println("\t"+Lang.getName(this)+"_statics, /* statics */");
         if (!app.getInterfaceList().isEmpty()) {
             out.println("\t/* interface table */");
             out.print("\t{ ");
@@ -330,13 +421,24 @@ public class ClassInfo extends AbstractClassInfo {
                 out.print(String.format("0x%08x", buffer)+", ");
             }
             out.println("},");
-
-            out.println("\t/* interface method table */");
+        }
+        if (app.getItableCount() > 0) {
+            String [] itables = new String[app.getItableCount()];
+            Arrays.fill(itables, "0");
             if (needsInterfaceTable()) {
-                out.println("\t&"+Lang.getName(this)+"_imtab,");
-            } else {
-                out.println("\t0,");
+                for (AbstractClassInfo i : getInterfaces()) {
+                    int idx = app.getItableIndex(i);
+                    if (idx >= 0) {
+                        itables[idx] = "&"+Lang.getName(this)+Lang.getName(i)+"_itab";
+                    }
+                }
             }
+            out.println("\t/* interface tables */");
+            out.print("\t{ ");
+            for (String itable : itables) {
+                out.print(itable+", ");
+            }
+            out.println("},");
         }
 
         dumpMethodPointers(out);
@@ -345,6 +447,54 @@ public class ClassInfo extends AbstractClassInfo {
         out.println();
     }
 
+    /**
+     * Get the size of the elements of an array class, which is
+     * negative if the elements are references.
+     * @return The size of the elements, 0 if the class is not an array class
+     */
+    private int getElementSize() {
+        if (!getName().endsWith("[]")) {
+            return 0;
+        }
+        String typeName = getName().substring(0, getName().length()-2);
+        Type elemType = Type.getType(Utility.getSignature(typeName));
+        int size = Escapes.getElementSize(new ArrayType(elemType, 1));
+        return elemType instanceof ReferenceType ? -size : size;
+    }
+
+    /**
+     * Generate the C definitions of the tables that tell the garbage
+     * collector where instances and the class keep references. The
+     * tables are terminated by 0; for arrays of references, the table
+     * holds the offset of the first element.
+     * @param out The file to write to
+     */
+    public void dumpRefTables(PrintWriter out) {
+        String objType = Lang.getObjType(this);
+        out.print("static const int32_t "+Lang.getName(this)+"_refs[] = { ");
+        int fieldIdx = 0;
+        for (Field f : getInstanceFields()) {
+            if (f.getType() instanceof ReferenceType) {
+                String name = "_"+fieldIdx+"_"+Lang.getField(f.getName());
+                if (name.endsWith("[]")) {
+                    name = name.substring(0, name.length()-2);
+                }
+                out.print("offsetof("+objType+", "+name+"), ");
+            }
+            fieldIdx += f.getType().getSize();
+        }
+        out.println("0 };");
+
+        out.print("static volatile int32_t * const "+Lang.getName(this)+"_statics[] = { ");
+        for (Field f : Filter.statics(getFields())) {
+            if (f.getType() instanceof ReferenceType) {
+                out.print("&"+Lang.getName(this)+"_"+Lang.getField(f.getName())+", ");
+            }
+        }
+        out.println("0 };");
+        out.println();
+    }
+
     /**
      * Generate the C definitions of the method pointers.
      * @param out The file to write to
@@ -393,7 +543,9 @@ public class ClassInfo extends AbstractClassInfo {
                       " "+Lang.getName(this)+"_"+Lang.getField(f.getName())+" = ");
             ConstantValue cv = f.getConstantValue();
             out.print("("+Lang.getType(f.getType())+")");
-            if (cv != null) {
+            if (app.getHeapImage().isInitialized(this)) {
+                out.println(app.getHeapImage().getStaticValue(this, f)+";");
+            } else if (cv != null) {
                 Constant c = cv.getConstantPool().getConstant(cv.getConstantValueIndex());
                 switch (c.getTag()) {
                 case Constants.CONSTANT_Integer:
@@ -403,10 +555,10 @@ public class ClassInfo extends AbstractClassInfo {
                     out.println(((ConstantLong) c).getBytes()+"ULL;");
                     break;
                 case Constants.CONSTANT_Float:
-                    out.println(Float.floatToIntBits(((ConstantFloat) c).getBytes())+"UL;");
+                    out.println(Lang.getFloatConst(((ConstantFloat) c).getBytes())+";");
                     break;
                 case Constants.CONSTANT_Double:
-                    out.println(Double.doubleToLongBits(((ConstantDouble) c).getBytes())+"ULL;");
+                    out.println(Lang.getDoubleConst(((ConstantDouble) c).getBytes())+";");
                     break;
                 case Constants.CONSTANT_String:
                     int i = ((ConstantString)c).getStringIndex();
@@ -443,6 +595,119 @@ public class ClassInfo extends AbstractClassInfo {
         return "v_"+index;
     }
 
+    /**
+     * Get the prefix for a variable that holds a value of a
+     * particular type.
+     * @param prefix The prefix for variables that hold ints or references
+     * @param type The type of the value
+     * @return The prefix for the variable name
+     */
+    private static String varPrefix(String prefix, Type type) {
+        switch (type.getType()) {
+        case Constants.T_LONG:
+            return prefix+"l";
+        case Constants.T_FLOAT:
+            return prefix+"f";
+        case Constants.T_DOUBLE:
+            return prefix+"d";
+        default:
+            return prefix;
+        }
+    }
+
+    /**
+     * Create the name for a variable that represents a stack slot
+     * holding a value of a particular type.
+     * @param depth The depth of the (lower) stack slot
+     * @param type The type of the value
+     */
+    private static String s(int depth, Type type) {
+        return varPrefix("s", type)+"_"+depth;
+    }
+
+    /**
+     * Create the name for a variable that represents a local
+     * variable holding a value of a particular type.
+     * @param index The index of the (lower) local variable
+     * @param type The type of the value
+     */
+    private static String v(int index, Type type) {
+        return varPrefix("v", type)+"_"+index;
+    }
+
+    /**
+     * Check whether values of a type are held in variables of
+     * their own, rather than in the plain 32-bit variables.
+     * @param type The type of the value
+     * @return true if the type is long, float or double
+     */
+    private static boolean isTypedVar(Type type) {
+        return type == Type.LONG || type == Type.FLOAT || type == Type.DOUBLE;
+    }
+
+    /**
+     * Get the C expression to pass a value on the stack to a method.
+     * @param type The type of the value
+     * @param depth The depth of the (lower) stack slot
+     * @return The C expression(s) for the argument(s)
+     */
+    private String getCallArg(Type type, int depth) {
+        if (app.hasTypedCalls()) {
+            return s(depth, type);
+        }
+        switch (type.getType()) {
+        case Constants.T_LONG:
+            return "(int32_t)"+s(depth, type)+", (int32_t)("+s(depth, type)+" >> 32)";
+        case Constants.T_FLOAT:
+            return "jvm_float2bits("+s(depth, type)+")";
+        case Constants.T_DOUBLE:
+            return "(int32_t)jvm_double2bits("+s(depth, type)+"), (int32_t)(jvm_double2bits("+s(depth, type)+") >> 32)";
+        default:
+            return s(depth);
+        }
+    }
+
+    /**
+     * Get the C expression to return a value on the stack from a method.
+     * @param type The type of the value
+     * @param depth The depth of the (lower) stack slot
+     * @return The C expression for the return value
+     */
+    private String getCallReturn(Type type, int depth) {
+        if (app.hasTypedCalls()) {
+            return s(depth, type);
+        }
+        switch (type.getType()) {
+        case Constants.T_FLOAT:
+            return "jvm_float2bits("+s(depth, type)+")";
+        case Constants.T_DOUBLE:
+            return "jvm_double2bits("+s(depth, type)+")";
+        default:
+            return s(depth, type);
+        }
+    }
+
+    /**
+     * Get the C expression to convert the return value of a method
+     * to the value on the stack.
+     * @param type The type of the value
+     * @param value The C expression for the return value
+     * @return The C expression for the value on the stack
+     */
+    private String getCallResult(Type type, String value) {
+        if (app.hasTypedCalls()) {
+            return value;
+        }
+        switch (type.getType()) {
+        case Constants.T_FLOAT:
+            return "jvm_bits2float("+value+")";
+        case Constants.T_DOUBLE:
+            return "jvm_bits2double("+value+")";
+        default:
+            return value;
+        }
+    }
+
     /**
      * Generate the C code for a method.
      * @param out The file to write to
@@ -453,36 +718,472 @@ public class ClassInfo extends AbstractClassInfo {
     public void dumpCode(PrintWriter out, Map<String, Integer> stringPool, Method method, Code code) {
         InstructionList il = new InstructionList(code.getCode());
 
+        StackDepths depthMap = new StackDepths(il, constPool);
+        StackReferences refMap = new StackReferences(il, constPool);
+        StackTypes typeMap = new StackTypes(il, constPool);
+        nonNullMap = new NonNullValues(il, constPool, method.isStatic(), code.getExceptionTable());
+        boundsMap = new ArrayBounds(app, il, constPool, code.getExceptionTable());
+        escapes = new Escapes(app, il, constPool, method, code.getExceptionTable());
+        computeRoots(method, code, il, depthMap, refMap);
+
         int inputVarCount = getArgCount(method.getArgumentTypes(), method.isStatic());
+        Set<String> localVars = dumpTypedParams(out, method);
         for (int i = inputVarCount; i < code.getMaxLocals(); i++) {
-            out.println("\tint32_t "+v(i)+";");
+            out.println("\t"+localQualifier+"int32_t "+v(i)+";");
+            localVars.add(v(i));
         }
+        dumpTypedLocals(out, il, localVars);
         for (int i = 0; i < code.getMaxStack() || i < 1; i++) {
             out.println("\tint32_t "+s(i)+";");
         }
+        dumpTypedStackSlots(out, il, typeMap);
+        for (ArrayBounds.Loop loop : boundsMap.getLoops()) {
+            out.println("\t"+localQualifier+"int32_t "+getBoundsVar(loop)+" = 0;");
+            for (ArrayBounds.ArrayRef ref : loop.getArrays().keySet()) {
+                if (ref.getField() != null) {
+                    out.println("\t"+localQualifier+"int32_t "+getBoundsVar(loop, ref)+" = 0;");
+                }
+            }
+        }
+        dumpStackObjects(out, il);
+        if (!rootSlots.isEmpty()) {
+            out.println("\tvolatile int32_t roots["+rootSlots.size()+"] = { 0 };");
+            out.println("\tjvm_frame_t frame = { jvm_frames, "+rootSlots.size()+", roots };");
+        }
         out.println("\tint32_t exc = 0;");
+        boolean hasHandlers = code.getExceptionTable().length > 0;
+        if (landingPad) {
+            out.println("\tjvm_handler_t pad;");
+            if (hasHandlers) {
+                out.println("\tvolatile int32_t ep = -1;");
+            }
+        }
 
         Set<Integer> excHandlers = new LinkedHashSet<Integer>();
         for (CodeException exc : code.getExceptionTable()) {
             excHandlers.add(exc.getHandlerPC());
         }
 
-        StackDepths depthMap = new StackDepths(il, constPool);
-        StackReferences refMap = new StackReferences(il, constPool);
-
+        if (!rootSlots.isEmpty()) {
+            out.println("\tjvm_frames = &frame;");
+        }
         dumpSyncEnter(out, method);
+        if (landingPad) {
+            out.println("\tpad.next = jvm_handlers;");
+            out.println("\tpad.frames = jvm_frames;");
+            out.println("\tjvm_handlers = &pad;");
+            out.println("\tif (setjmp(pad.buf) != 0) { "+s(0)+" = jvm_exception; goto Lpad; }");
+        }
+
+        Set<Integer> throwPoints = new LinkedHashSet<Integer>();
 
         for (InstructionHandle ih : il.getInstructionHandles()) {
             Instruction i = ih.getInstruction();
             int pos = ih.getPosition();
             int depth = depthMap.get(pos);
             Deque<Boolean> refs = refMap.get(pos);
+            Type [] types = typeMap.getSlots(pos);
+
+            // the loop is entered by falling through to its first instruction
+            ArrayBounds.Loop loop = boundsMap.getLoopEntry(pos);
+            if (loop != null) {
+                dumpBoundsGuard(out, loop);
+            }
 
             if (ih.hasTargeters() || excHandlers.contains(pos)) {
                 out.print("L"+pos+":");
             }
 
-            dumpInstruction(out, stringPool, method, code, pos, i, depth, refs);
+            // record where an exception from a callee would come from
+            if (landingPad && hasHandlers && mayUnwind(i) && !escapes.isStackAllocated(pos)) {
+                if (isCovered(code, pos)) {
+                    out.println("\tep = "+pos+";");
+                    throwPoints.add(pos);
+                } else {
+                    out.println("\tep = -1;");
+                }
+            }
+
+            if (spillMap.containsKey(pos)) {
+                if (isSafepoint(i, pos)) {
+                    dumpSpills(out, pos);
+                } else {
+                    out.println("\tif (unlikely(jvm_gc_pending)) {");
+                    dumpSpills(out, pos);
+                    out.println("\tjvm_safepoint(); }");
+                }
+            }
+
+            dumpInstruction(out, stringPool, method, code, pos, i, depth, refs, types);
+        }
+
+        if (landingPad) {
+            dumpLandingPad(out, method, code, throwPoints);
+        }
+    }
+
+    /**
+     * Determine which variables must be spilled to the frame of the
+     * method at safepoints, such that the garbage collector finds all
+     * references. Safepoints are calls, allocations on the heap and
+     * acquiring locks; backward branches poll whether a garbage
+     * collection is pending.
+     * @param method The method the code is generated for
+     * @param code The code of the method
+     * @param il The instructions of the method
+     * @param depthMap The stack depths of the method
+     * @param refMap The stack states of the method
+     */
+    private void computeRoots(Method method, Code code, InstructionList il, StackDepths depthMap, StackReferences refMap) {
+        rootSlots = new LinkedHashMap<String, Integer>();
+        spillMap = new LinkedHashMap<Integer, List<String>>();
+
+        // variables that are not covered by the liveness of locals
+        List<String> fixed = new LinkedList<String>();
+        if (method.isSynchronized() && !method.isStatic()) {
+            fixed.add(v(0));
+        }
+        for (int pos : escapes.getStackAllocations()) {
+            Instruction i = il.findHandle(pos).getInstruction();
+            if (i instanceof NEW && escapes.isScalarReplaced(pos)) {
+                AbstractClassInfo ci = app.getClassInfo(((NEW)i).getType(constPool).toString());
+                if (ci == null) {
+                    continue;
+                }
+                int fieldIdx = 0;
+                for (Field f : ci.getInstanceFields()) {
+                    if (f.getType() instanceof ReferenceType) {
+                        fixed.add(getScalarVar(pos, fieldIdx));
+                    }
+                    fieldIdx += f.getType().getSize();
+                }
+            }
+        }
+        for (ArrayBounds.Loop loop : boundsMap.getLoops()) {
+            for (ArrayBounds.ArrayRef ref : loop.getArrays().keySet()) {
+                if (ref.getField() != null) {
+                    fixed.add(getBoundsVar(loop, ref));
+                }
+            }
+        }
+
+        LiveLocals liveMap = new LiveLocals(il, code.getExceptionTable(), true);
+        InstructionHandle [] handles = il.getInstructionHandles();
+        for (InstructionHandle ih : handles) {
+            Instruction i = ih.getInstruction();
+            int pos = ih.getPosition();
+            if (!isSafepoint(i, pos) && !isBackwardBranch(i, pos)) {
+                continue;
+            }
+            int depth = depthMap.get(pos);
+            Boolean [] refs = refMap.get(pos).toArray(new Boolean[0]);
+            List<String> spills = new LinkedList<String>(fixed);
+            // the slots that survive the instruction
+            int consumed = isSafepoint(i, pos) ? getConsumedSlots(i) : 0;
+            for (int k = 0; k <= depth-consumed; k++) {
+                if (depth-k < refs.length && refs[depth-k]) {
+                    spills.add(s(k));
+                }
+            }
+            BitSet live = liveMap.get(pos);
+            for (int k = live.nextSetBit(0); k >= 0; k = live.nextSetBit(k+1)) {
+                spills.add(v(k));
+            }
+            if (i instanceof MULTIANEWARRAY && ((MULTIANEWARRAY)i).getDimensions() > 1) {
+                // the outermost array holds the arrays allocated later
+                rootSlots.put(s(depth-((MULTIANEWARRAY)i).getDimensions()+1), null);
+            }
+            spillMap.put(pos, spills);
+        }
+        if (method.isSynchronized() && handles.length > 0) {
+            List<String> spills = new LinkedList<String>(fixed);
+            BitSet live = liveMap.get(handles[0].getPosition());
+            for (int k = live.nextSetBit(0); k >= 0; k = live.nextSetBit(k+1)) {
+                spills.add(v(k));
+            }
+            spillMap.put(-1, spills);
+        }
+
+        for (List<String> spills : spillMap.values()) {
+            for (String var : spills) {
+                rootSlots.put(var, null);
+            }
+        }
+        int slot = 0;
+        for (Map.Entry<String, Integer> e : rootSlots.entrySet()) {
+            e.setValue(slot++);
+        }
+    }
+
+    /**
+     * Check whether the garbage collector may run during an instruction.
+     * @param i The instruction
+     * @param pos The position of the instruction
+     * @return true if the instruction calls a method that may collect
+     * garbage, allocates memory on the heap or acquires a lock
+     */
+    private boolean isSafepoint(Instruction i, int pos) {
+        switch (i.getOpcode()) {
+        case Constants.NEW:
+        case Constants.NEWARRAY: case Constants.ANEWARRAY:
+        case Constants.MULTIANEWARRAY:
+            return !escapes.isStackAllocated(pos);
+        case Constants.MONITORENTER:
+            return true;
+        default:
+            return i instanceof InvokeInstruction
+                && app.mayCollect(constPool, (InvokeInstruction)i);
+        }
+    }
+
+    /**
+     * Check whether an instruction may branch backwards.
+     * @param i The instruction
+     * @param pos The position of the instruction
+     * @return true if the instruction has a target at or before its position
+     */
+    private boolean isBackwardBranch(Instruction i, int pos) {
+        if (i instanceof Select) {
+            for (int idx : ((Select)i).getIndices()) {
+                if (idx <= 0) {
+                    return true;
+                }
+            }
+        }
+        return i instanceof BranchInstruction && ((BranchInstruction)i).getIndex() <= 0;
+    }
+
+    /**
+     * Get the number of stack slots that a safepoint consumes before
+     * the garbage collector may run.
+     * @param i The instruction
+     * @return The number of consumed stack slots
+     */
+    private int getConsumedSlots(Instruction i) {
+        switch (i.getOpcode()) {
+        case Constants.NEWARRAY: case Constants.ANEWARRAY:
+            return 1;
+        case Constants.MULTIANEWARRAY:
+            return ((MULTIANEWARRAY)i).getDimensions();
+        case Constants.MONITORENTER:
+            return 0;
+        default:
+            return i.consumeStack(constPool);
+        }
+    }
+
+    /**
+     * Generate the C code to spill references to the frame of the method.
+     * @param out The file to write to
+     * @param pos The position of the safepoint
+     */
+    private void dumpSpills(PrintWriter out, int pos) {
+        List<String> spills = spillMap.get(pos);
+        if (spills == null || spills.isEmpty()) {
+            return;
+        }
+        out.print("	");
+        for (String var : spills) {
+            out.print(" roots["+rootSlots.get(var)+"] = "+var+";");
+        }
+        out.println();
+    }
+
+    /**
+     * Check whether an instruction may raise an exception with
+     * longjmp() rather than through the generated code of the method.
+     * @param i The instruction
+     * @return true if the instruction calls a method or allocates memory
+     */
+    private boolean mayUnwind(Instruction i) {
+        switch (i.getOpcode()) {
+        case Constants.NEW:
+        case Constants.NEWARRAY: case Constants.ANEWARRAY:
+        case Constants.MULTIANEWARRAY:
+            return true;
+        default:
+            return i instanceof InvokeInstruction;
+        }
+    }
+
+    /**
+     * Check whether a position is covered by an exception handler.
+     * @param code The code of the method
+     * @param pos The position in the code
+     * @return true if some exception handler covers the position
+     */
+    private boolean isCovered(Code code, int pos) {
+        for (CodeException exc : code.getExceptionTable()) {
+            if (exc.getStartPC() <= pos && pos < exc.getEndPC()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Generate the C code for the landing pad of a method, which
+     * dispatches exceptions that arrive via longjmp().
+     * @param out The file to write to
+     * @param method The method the code is generated for
+     * @param code The code of the method
+     * @param throwPoints The positions where exceptions may arrive from
+     */
+    public void dumpLandingPad(PrintWriter out, Method method, Code code, Set<Integer> throwPoints) {
+        out.print("Lpad:");
+        if (!throwPoints.isEmpty()) {
+            out.print("\tswitch (ep) {");
+            for (int pos : throwPoints) {
+                out.println();
+                out.print("\tcase "+pos+":");
+                if (!dumpCatch(out, method, code, pos)) {
+                    out.println();
+                    out.print("\t\tbreak;");
+                }
+            }
+            out.println();
+            out.println("\tdefault:");
+            out.println("\t\tbreak;");
+            out.print("\t}");
+        }
+        dumpUncaught(out, method);
+        out.println();
+    }
+
+    /**
+     * Generate the C declarations for the storage of objects that are
+     * allocated on the stack, or the variables that replace their fields.
+     * @param out The file to write to
+     * @param il The instructions of the method
+     */
+    public void dumpStackObjects(PrintWriter out, InstructionList il) {
+        for (int pos : escapes.getStackAllocations()) {
+            Instruction i = il.findHandle(pos).getInstruction();
+            if (i instanceof NEW) {
+                AbstractClassInfo ci = app.getClassInfo(((NEW)i).getType(constPool).toString());
+                if (ci == null) {
+                    continue;
+                }
+                if (escapes.isScalarReplaced(pos)) {
+                    int fieldIdx = 0;
+                    for (Field f : ci.getInstanceFields()) {
+                        // references must be valid when they are spilled
+                        String init = f.getType() instanceof ReferenceType ? " = 0" : "";
+                        out.println("\t"+localQualifier+Lang.getType(f.getType())+" "+getScalarVar(pos, fieldIdx)+init+";");
+                        fieldIdx += f.getType().getSize();
+                    }
+                } else {
+                    out.println("\t"+Lang.getObjType(ci)+" "+getStackObject(pos)+";");
+                }
+            } else {
+                Type type = getNewArrayType(i);
+                AbstractClassInfo ci = app.getClassInfo(type.toString());
+                if (ci == null) {
+                    continue;
+                }
+                int size = escapes.getArrayLength(pos) * Escapes.getElementSize(type);
+                out.println("\tint64_t "+getStackObject(pos)+"[(sizeof("+Lang.getObjType(ci)+")+"+size+"+7)/8];");
+            }
+        }
+    }
+
+    /**
+     * Get the name of the storage for an object allocated on the stack.
+     * @param pos The position of the allocation site
+     * @return The name of the C variable
+     */
+    private String getStackObject(int pos) {
+        return "o_"+pos;
+    }
+
+    /**
+     * Get the name of the variable that replaces a field of an object.
+     * @param pos The position of the allocation site
+     * @param fieldIdx The index of the field
+     * @return The name of the C variable
+     */
+    private String getScalarVar(int pos, int fieldIdx) {
+        return "f_"+pos+"_"+fieldIdx;
+    }
+
+    /**
+     * Generate the C declarations for the typed local variables that
+     * hold long, float and double arguments of a method. This is only
+     * necessary if arguments are passed as 32-bit words.
+     * @param out The file to write to
+     * @param method The method the code is generated for
+     * @return The names of the variables that hold arguments
+     */
+    public Set<String> dumpTypedParams(PrintWriter out, Method method) {
+        Set<String> params = new LinkedHashSet<String>();
+        int index = 0;
+        if (!method.isStatic()) {
+            params.add(v(index++));
+        }
+        for (Type t : method.getArgumentTypes()) {
+            Type type = StackTypes.normalize(t);
+            if (!app.hasTypedCalls()) {
+                for (int k = 0; k < type.getSize(); k++) {
+                    params.add(v(index+k));
+                }
+                switch (type.getType()) {
+                case Constants.T_LONG:
+                    out.println("\t"+localQualifier+Lang.getType(type)+" "+v(index, type)+" = jvm_mklong("+v(index)+", "+v(index+1)+");");
+                    break;
+                case Constants.T_FLOAT:
+                    out.println("\t"+localQualifier+Lang.getType(type)+" "+v(index, type)+" = jvm_bits2float("+v(index)+");");
+                    break;
+                case Constants.T_DOUBLE:
+                    out.println("\t"+localQualifier+Lang.getType(type)+" "+v(index, type)+" = jvm_bits2double(jvm_mklong("+v(index)+", "+v(index+1)+"));");
+                    break;
+                default:
+                    break;
+                }
+            }
+            params.add(v(index, type));
+            index += type.getSize();
+        }
+        return params;
+    }
+
+    /**
+     * Generate the C declarations for the local variables that are
+     * not declared otherwise, in particular typed local variables
+     * that hold long, float and double values.
+     * @param out The file to write to
+     * @param il The instructions of the method
+     * @param localVars The names of the variables that are already declared
+     */
+    public void dumpTypedLocals(PrintWriter out, InstructionList il, Set<String> localVars) {
+        for (Instruction i : il.getInstructions()) {
+            if (i instanceof LocalVariableInstruction) {
+                LocalVariableInstruction lvi = (LocalVariableInstruction)i;
+                Type type = StackTypes.normalize(lvi.getType(constPool));
+                String name = v(lvi.getIndex(), type);
+                if (localVars.add(name)) {
+                    out.println("\t"+localQualifier+Lang.getType(type)+" "+name+";");
+                }
+            }
+        }
+    }
+
+    /**
+     * Generate the C declarations for the typed variables that hold
+     * long, float and double values on the stack.
+     * @param out The file to write to
+     * @param il The instructions of the method
+     * @param typeMap The types of the stack slots
+     */
+    public void dumpTypedStackSlots(PrintWriter out, InstructionList il, StackTypes typeMap) {
+        Set<String> slots = new LinkedHashSet<String>();
+        for (int pos : il.getInstructionPositions()) {
+            Type [] types = typeMap.getSlots(pos);
+            for (int k = 0; k < types.length; k++) {
+                String name = s(k, types[k]);
+                if (isTypedVar(types[k]) && slots.add(name)) {
+                    out.println("\t"+Lang.getType(types[k])+" "+name+";");
+                }
+            }
         }
     }
 
@@ -496,13 +1197,15 @@ public class ClassInfo extends AbstractClassInfo {
      * @param i The bytecode
      * @param depth The current stack depth
      * @param refs The current stack state (references/primitive values)
+     * @param types The current types of the stack slots
      */
-    public void dumpInstruction(PrintWriter out, Map<String, Integer> stringPool, Method method, Code code, int pos, Instruction i, int depth, Deque<Boolean> refs) {
+    public void dumpInstruction(PrintWriter out, Map<String, Integer> stringPool, Method method, Code code, int pos, Instruction i, int depth, Deque<Boolean> refs, Type [] types) {
 
         // variables shared by different branches of the switch
         ConstantPushInstruction cpi;
         LoadInstruction li;
         StoreInstruction si;
+        Type type;
 
         switch (i.getOpcode()) {
 
@@ -518,17 +1221,15 @@ public class ClassInfo extends AbstractClassInfo {
             break;
         case Constants.FCONST_0: case Constants.FCONST_1: case Constants.FCONST_2:
             cpi = (ConstantPushInstruction)i;
-            out.print("\t"+s(depth+1)+" = "+Float.floatToIntBits(cpi.getValue().floatValue())+";");
+            out.print("\t"+s(depth+1, Type.FLOAT)+" = "+Lang.getFloatConst(cpi.getValue().floatValue())+";");
             break;
         case Constants.LCONST_0: case Constants.LCONST_1:
             cpi = (ConstantPushInstruction)i;
-            out.print("\t"+s(depth+1)+" = "+(int)cpi.getValue().longValue()+";"+
-                      " "+s(depth+2)+" = "+(int)(cpi.getValue().longValue() >> 32)+";");
+            out.print("\t"+s(depth+1, Type.LONG)+" = "+Lang.getLongConst(cpi.getValue().longValue())+";");
             break;
         case Constants.DCONST_0: case Constants.DCONST_1:
             cpi = (ConstantPushInstruction)i;
-            out.print("\t"+s(depth+1)+" = "+(int)Double.doubleToLongBits(cpi.getValue().doubleValue())+";"+
-                      " "+s(depth+2)+" = "+(int)(Double.doubleToLongBits(cpi.getValue().doubleValue()) >> 32)+";");
+            out.print("\t"+s(depth+1, Type.DOUBLE)+" = "+Lang.getDoubleConst(cpi.getValue().doubleValue())+";");
             break;
 
         case Constants.LDC: case Constants.LDC_W:
@@ -545,16 +1246,13 @@ public class ClassInfo extends AbstractClassInfo {
         case Constants.ILOAD_3: case Constants.ILOAD:
         case Constants.FLOAD_0: case Constants.FLOAD_1: case Constants.FLOAD_2:
         case Constants.FLOAD_3: case Constants.FLOAD:
-            li = (LoadInstruction)i;
-            out.print("\t"+s(depth+1)+" = "+v(li.getIndex())+";");
-            break;
         case Constants.LLOAD_0: case Constants.LLOAD_1: case Constants.LLOAD_2:
         case Constants.LLOAD_3: case Constants.LLOAD:
         case Constants.DLOAD_0: case Constants.DLOAD_1: case Constants.DLOAD_2:
         case Constants.DLOAD_3: case Constants.DLOAD:
             li = (LoadInstruction)i;
-            out.print("\t"+s(depth+1)+" = "+v(li.getIndex())+";"+
-                      " "+s(depth+2)+" = "+v(li.getIndex()+1)+";");
+            type = StackTypes.normalize(li.getType(constPool));
+            out.print("\t"+s(depth+1, type)+" = "+v(li.getIndex(), type)+";");
             break;
 
         case Constants.ASTORE_0: case Constants.ASTORE_1: case Constants.ASTORE_2:
@@ -563,50 +1261,35 @@ public class ClassInfo extends AbstractClassInfo {
         case Constants.ISTORE_3: case Constants.ISTORE:
         case Constants.FSTORE_0: case Constants.FSTORE_1: case Constants.FSTORE_2:
         case Constants.FSTORE_3: case Constants.FSTORE:
-            si = (StoreInstruction)i;
-            out.print("\t"+v(si.getIndex())+" = "+s(depth)+";");
-            break;
         case Constants.LSTORE_0: case Constants.LSTORE_1: case Constants.LSTORE_2:
         case Constants.LSTORE_3: case Constants.LSTORE:
         case Constants.DSTORE_0: case Constants.DSTORE_1: case Constants.DSTORE_2:
         case Constants.DSTORE_3: case Constants.DSTORE:
             si = (StoreInstruction)i;
-            out.print("\t"+v(si.getIndex())+" = "+s(depth-1)+";"+
-                      " "+v(si.getIndex()+1)+" = "+s(depth)+";");
+            type = StackTypes.normalize(si.getType(constPool));
+            out.print("\t"+v(si.getIndex(), type)+" = "+s(depth-type.getSize()+1, type)+";");
             break;
 
         case Constants.DUP:
-            out.print("\t"+s(depth+1)+" = "+s(depth)+";");
+            dumpDup(out, types, depth, 1, 0);
             break;
         case Constants.DUP_X1:
-            out.print("\t"+s(depth+1)+" = "+s(depth+0)+";"+
-                      " "+s(depth+0)+" = "+s(depth-1)+";"+
-                      " "+s(depth-1)+" = "+s(depth+1)+";");
+            dumpDup(out, types, depth, 1, 1);
             break;
         case Constants.DUP_X2:
-            out.print("\t"+s(depth+1)+" = "+s(depth+0)+";"+
-                      " "+s(depth+0)+" = "+s(depth-1)+";"+
-                      " "+s(depth-1)+" = "+s(depth-2)+";"+
-                      " "+s(depth-2)+" = "+s(depth+1)+";");
+            dumpDup(out, types, depth, 1, 2);
             break;
         case Constants.DUP2:
-            out.print("\t"+s(depth+1)+" = "+s(depth-1)+";"+
-                      " "+s(depth+2)+" = "+s(depth+0)+";");
+            dumpDup(out, types, depth, 2, 0);
             break;
         case Constants.DUP2_X1:
-            out.print("\t"+s(depth+1)+" = "+s(depth-1)+";"+
-                      " "+s(depth+2)+" = "+s(depth+0)+";"+
-                      " "+s(depth+0)+" = "+s(depth-2)+";"+
-                      " "+s(depth-2)+" = "+s(depth+1)+";"+
-                      " "+s(depth-1)+" = "+s(depth+2)+";");
+            dumpDup(out, types, depth, 2, 1);
             break;
         case Constants.DUP2_X2:
-            out.print("\t"+s(depth+1)+" = "+s(depth-1)+";"+
-                      " "+s(depth+2)+" = "+s(depth+0)+";"+
-                      " "+s(depth+0)+" = "+s(depth-2)+";"+
-                      " "+s(depth-1)+" = "+s(depth-3)+";"+
-                      " "+s(depth-3)+" = "+s(depth+1)+";"+
-                      " "+s(depth-2)+" = "+s(depth+2)+";");
+            dumpDup(out, types, depth, 2, 2);
+            break;
+        case Constants.NOP:
+            out.print("\t/* nop */;");
             break;
         case Constants.POP:
             out.print("\t/* pop */;");
@@ -615,9 +1298,9 @@ public class ClassInfo extends AbstractClassInfo {
             out.print("\t/* pop2 */;");
             break;
         case Constants.SWAP:
-            out.print("\t{ int32_t a = "+s(depth)+";"+
-                      " "+s(depth)+" = "+s(depth-1)+";"+
-                      " "+s(depth-1)+" = a; }");
+            out.print("\t{ "+Lang.getType(types[depth])+" a = "+s(depth, types[depth])+";"+
+                      " "+s(depth, types[depth-1])+" = "+s(depth-1, types[depth-1])+";"+
+                      " "+s(depth-1, types[depth])+" = a; }");
             break;
 
         case Constants.IINC:
@@ -655,179 +1338,127 @@ public class ClassInfo extends AbstractClassInfo {
             out.print("\t"+s(depth)+" = (int8_t)"+s(depth)+";");
             break;
         case Constants.I2L:
-            out.print("\t"+s(depth+1)+" = "+s(depth)+" >> 31;");
+            out.print("\t"+s(depth, Type.LONG)+" = "+s(depth)+";");
             break;
         case Constants.I2F:
-            out.print("\t{ float *a = (float *)&"+s(depth)+"; *a = "+s(depth)+"; }");
+            out.print("\t"+s(depth, Type.FLOAT)+" = "+s(depth)+";");
             break;
         case Constants.I2D:
-            out.print("\t{ int64_t a; double *b = (double *)&a; *b = "+s(depth)+";"+
-                      " "+s(depth)+" = (int32_t)a;"+
-                      " "+s(depth+1)+" = (int32_t)(a >> 32); }");
+            out.print("\t"+s(depth, Type.DOUBLE)+" = "+s(depth)+";");
             break;
 
         case Constants.L2I:
-            out.print("\t/* l2i */;");
+            out.print("\t"+s(depth-1)+" = (int32_t)"+s(depth-1, Type.LONG)+";");
             break;
         case Constants.L2F:
-            out.print("\t{ int64_t a = ((int64_t)"+s(depth)+" << 32) | (uint32_t)"+s(depth-1)+";"+
-                      " float *b = (float *)&"+s(depth-1)+"; *b = a; }");
+            out.print("\t"+s(depth-1, Type.FLOAT)+" = "+s(depth-1, Type.LONG)+";");
             break;
         case Constants.L2D:
-            out.print("\t{ int64_t a = ((int64_t)"+s(depth)+" << 32) | (uint32_t)"+s(depth-1)+";"+
-                      " double *b = (double *)&a; *b = a;"+
-                      " "+s(depth-1)+" = (int32_t)a;"+
-                      " "+s(depth)+" = (int32_t)(a >> 32); }");
+            out.print("\t"+s(depth-1, Type.DOUBLE)+" = "+s(depth-1, Type.LONG)+";");
             break;
 
         case Constants.F2I:
-            out.print("\t{ float *a = (float *)&"+s(depth)+";"+
-                      " if (*a != *a) { "+s(depth)+" = 0; }"+
-                      " else if (*a >= (int32_t)0x7fffffff) { "+s(depth)+" = 0x7fffffff; }"+
-                      " else if (*a <= (int32_t)0x80000000) { "+s(depth)+" = 0x80000000; }"+
-                      " else { "+s(depth)+" = *a; } }");
+            out.print("\t{ float a = "+s(depth, Type.FLOAT)+";"+
+                      " if (a != a) { "+s(depth)+" = 0; }"+
+                      " else if (a >= (int32_t)0x7fffffff) { "+s(depth)+" = 0x7fffffff; }"+
+                      " else if (a <= (int32_t)0x80000000) { "+s(depth)+" = 0x80000000; }"+
+                      " else { "+s(depth)+" = a; } }");
             break;
         case Constants.F2L:
-            out.print("\t{ float *a = (float *)&"+s(depth)+"; int64_t b = *a;"+
-                      " if (*a != *a) { b = 0; }"+
-                      " else if (*a >= (int64_t)0x7fffffffffffffffLL) { b = 0x7fffffffffffffffLL; }"+
-                      " else if (*a <= (int64_t)0x8000000000000000LL) { b = 0x8000000000000000LL; }"+
-                      " "+s(depth)+" = (int32_t)b;"+
-                      " "+s(depth+1)+" = (int32_t)(b >> 32); }");
+            out.print("\t{ float a = "+s(depth, Type.FLOAT)+";"+
+                      " if (a != a) { "+s(depth, Type.LONG)+" = 0; }"+
+                      " else if (a >= (int64_t)0x7fffffffffffffffLL) { "+s(depth, Type.LONG)+" = 0x7fffffffffffffffLL; }"+
+                      " else if (a <= (int64_t)0x8000000000000000LL) { "+s(depth, Type.LONG)+" = 0x8000000000000000LL; }"+
+                      " else { "+s(depth, Type.LONG)+" = a; } }");
             break;
         case Constants.F2D:
-            out.print("\t{ float *a = (float *)&"+s(depth)+";"+
-                      " int64_t b; double *c = (double *)&b; *c = *a;"+
-                      " "+s(depth)+" = (int32_t)b;"+
-                      " "+s(depth+1)+" = (int32_t)(b >> 32); }");
+            out.print("\t"+s(depth, Type.DOUBLE)+" = "+s(depth, Type.FLOAT)+";");
             break;
 
         case Constants.D2I:
-            out.print("\t{ int64_t a = ((int64_t)"+s(depth)+" << 32) | (uint32_t)"+s(depth-1)+";"+
-                      " double *b = (double *)&a;"+
-                      " if (*b != *b) { "+s(depth-1)+" = 0; }"+
-                      " else if (*b >= (int32_t)0x7fffffff) { "+s(depth-1)+" = 0x7fffffff; }"+
-                      " else if (*b <= (int32_t)0x80000000) { "+s(depth-1)+" = 0x80000000; }"+
-                      " else { "+s(depth-1)+" = *b; } }");
+            out.print("\t{ double a = "+s(depth-1, Type.DOUBLE)+";"+
+                      " if (a != a) { "+s(depth-1)+" = 0; }"+
+                      " else if (a >= (int32_t)0x7fffffff) { "+s(depth-1)+" = 0x7fffffff; }"+
+                      " else if (a <= (int32_t)0x80000000) { "+s(depth-1)+" = 0x80000000; }"+
+                      " else { "+s(depth-1)+" = a; } }");
             break;
         case Constants.D2L:
-            out.print("\t{ int64_t a = ((int64_t)"+s(depth)+" << 32) | (uint32_t)"+s(depth-1)+";"+
-                      " double *b = (double *)&a;"+
-                      " if (*b != *b) { a = 0; }"+
-                      " else if (*b >= (int64_t)0x7fffffffffffffffLL) { a = 0x7fffffffffffffffLL; }"+
-                      " else if (*b <= (int64_t)0x8000000000000000LL) { a = 0x8000000000000000LL; }"+
-                      " else { a = *b; }"+
-                      " "+s(depth-1)+" = (int32_t)a;"+
-                      " "+s(depth)+" = (int32_t)(a >> 32); }");
+            out.print("\t{ double a = "+s(depth-1, Type.DOUBLE)+";"+
+                      " if (a != a) { "+s(depth-1, Type.LONG)+" = 0; }"+
+                      " else if (a >= (int64_t)0x7fffffffffffffffLL) { "+s(depth-1, Type.LONG)+" = 0x7fffffffffffffffLL; }"+
+                      " else if (a <= (int64_t)0x8000000000000000LL) { "+s(depth-1, Type.LONG)+" = 0x8000000000000000LL; }"+
+                      " else { "+s(depth-1, Type.LONG)+" = a; } }");
             break;
         case Constants.D2F:
-            out.print("\t{ int64_t a = ((int64_t)"+s(depth)+" << 32) | (uint32_t)"+s(depth-1)+";"+
-                      " double *b = (double *)&a; float *c = (float *)&"+s(depth-1)+"; *c = *b; }");
+            out.print("\t"+s(depth-1, Type.FLOAT)+" = "+s(depth-1, Type.DOUBLE)+";");
             break;
 
         case Constants.LADD: case Constants.LSUB: case Constants.LMUL:
         case Constants.LOR: case Constants.LAND: case Constants.LXOR:
-            out.print("\t{ int64_t a = ((int64_t)"+s(depth-2)+" << 32) | (uint32_t)"+s(depth-3)+";"+
-                      " int64_t b = ((int64_t)"+s(depth)+" << 32) | (uint32_t)"+s(depth-1)+";"+
-                      " a "+Lang.getArithOp(i)+"= b;"+
-                      " "+s(depth-3)+" = (int32_t)a;"+
-                      " "+s(depth-2)+" = (int32_t)(a >> 32); }");
+            out.print("\t"+s(depth-3, Type.LONG)+" "+Lang.getArithOp(i)+"= "+s(depth-1, Type.LONG)+";");
             break;
 
         case Constants.LDIV: case Constants.LREM:
-            out.println("\t{ int64_t a = ((int64_t)"+s(depth-2)+" << 32) | (uint32_t)"+s(depth-3)+";"+
-                        " int64_t b = ((int64_t)"+s(depth)+" << 32) | (uint32_t)"+s(depth-1)+";");
-            out.print("\tif (unlikely(b == 0)) { "+s(0)+" = (int32_t)&aeExc;");
+            out.print("\tif (unlikely("+s(depth-1, Type.LONG)+" == 0)) { "+s(0)+" = (int32_t)&aeExc;");
             dumpThrow(out, method, code, pos);
             out.print(" }"+
-                      " a "+Lang.getArithOp(i)+"= b;"+
-                      " "+s(depth-3)+" = (int32_t)a;"+
-                      " "+s(depth-2)+" = (int32_t)(a >> 32); }");
+                      " "+s(depth-3, Type.LONG)+" "+Lang.getArithOp(i)+"= "+s(depth-1, Type.LONG)+";");
             break;
         case Constants.LSHL: case Constants.LSHR:
-            out.print("\t{ int64_t a = ((int64_t)"+s(depth-1)+" << 32) | (uint32_t)"+s(depth-2)+";"+
-                      " a "+Lang.getArithOp(i)+"= "+s(depth)+" & 0x3f;"+
-                      " "+s(depth-2)+" = (int32_t)a;"+
-                      " "+s(depth-1)+" = (int32_t)(a >> 32); }");
+            out.print("\t"+s(depth-2, Type.LONG)+" "+Lang.getArithOp(i)+"= "+s(depth)+" & 0x3f;");
             break;
         case Constants.LUSHR:
-            out.print("\t{ int64_t a = ((int64_t)"+s(depth-1)+" << 32) | (uint32_t)"+s(depth-2)+";"+
-                      " a = (uint64_t)a "+Lang.getArithOp(i)+" ("+s(depth)+" & 0x3f);"+
-                      " "+s(depth-2)+" = (int32_t)a;"+
-                      " "+s(depth-1)+" = (int32_t)(a >> 32); }");
+            out.print("\t"+s(depth-2, Type.LONG)+" = (uint64_t)"+s(depth-2, Type.LONG)+" "+Lang.getArithOp(i)+" ("+s(depth)+" & 0x3f);");
             break;
         case Constants.LNEG:
-            out.print("\t{ int64_t a = ((int64_t)"+s(depth)+" << 32) | (uint32_t)"+s(depth-1)+";"+
-                      " a = -a;"+
-                      " "+s(depth-1)+" = (int32_t)a;"+
-                      " "+s(depth)+" = (int32_t)(a >> 32); }");
+            out.print("\t"+s(depth-1, Type.LONG)+" = -"+s(depth-1, Type.LONG)+";");
             break;
 
         case Constants.LCMP:
-            out.print("\t{ int64_t a = ((int64_t)"+s(depth-2)+" << 32) | (uint32_t)"+s(depth-3)+";"+
-                      " int64_t b = ((int64_t)"+s(depth)+" << 32) | (uint32_t)"+s(depth-1)+";"+
+            out.print("\t{ int64_t a = "+s(depth-3, Type.LONG)+"; int64_t b = "+s(depth-1, Type.LONG)+";"+
                       " "+s(depth-3)+" = a > b ? 1 : (a == b ? 0 : -1); }");
             break;
 
         case Constants.FADD: case Constants.FSUB:
         case Constants.FMUL: case Constants.FDIV:
-            out.print("\t{ float *a = (float *)&"+s(depth-1)+"; float *b = (float *)&"+s(depth)+";"+
-                      " *a "+Lang.getArithOp(i)+"= *b; }");
+            out.print("\t"+s(depth-1, Type.FLOAT)+" "+Lang.getArithOp(i)+"= "+s(depth, Type.FLOAT)+";");
             break;
         case Constants.FREM:
-            out.print("\t{ float *a = (float *)&"+s(depth-1)+"; float *b = (float *)&"+s(depth)+";"+
-                      " *a = remainderf(*a, *b); }");
+            out.print("\t"+s(depth-1, Type.FLOAT)+" = remainderf("+s(depth-1, Type.FLOAT)+", "+s(depth, Type.FLOAT)+");");
             break;
         case Constants.FNEG:
-            out.print("\t{ float *a = (float *)&"+s(depth)+"; *a = -*a; }");
+            out.print("\t"+s(depth, Type.FLOAT)+" = -"+s(depth, Type.FLOAT)+";");
             break;
         case Constants.FCMPL:
-            out.print("\t{ float *a = (float *)&"+s(depth-1)+"; float *b = (float *)&"+s(depth)+";"+
-                      " if (*a != *a || *b != *b) { "+s(depth-1)+" = -1; }"+
-                      " else { "+s(depth-1)+" = *a > *b ? 1 : (*a == *b ? 0 : -1); } }");
+            out.print("\t{ float a = "+s(depth-1, Type.FLOAT)+"; float b = "+s(depth, Type.FLOAT)+";"+
+                      " if (a != a || b != b) { "+s(depth-1)+" = -1; }"+
+                      " else { "+s(depth-1)+" = a > b ? 1 : (a == b ? 0 : -1); } }");
             break;
         case Constants.FCMPG:
-            out.print("\t{ float *a = (float *)&"+s(depth-1)+"; float *b = (float *)&"+s(depth)+";"+
-                      " if (*a != *a || *b != *b) { "+s(depth-1)+" = 1; }"+
-                      " else { "+s(depth-1)+" = *a > *b ? 1 : (*a == *b ? 0 : -1); } }");
+            out.print("\t{ float a = "+s(depth-1, Type.FLOAT)+"; float b = "+s(depth, Type.FLOAT)+";"+
+                      " if (a != a || b != b) { "+s(depth-1)+" = 1; }"+
+                      " else { "+s(depth-1)+" = a > b ? 1 : (a == b ? 0 : -1); } }");
             break;
 
         case Constants.DADD: case Constants.DSUB:
         case Constants.DMUL: case Constants.DDIV:
-            out.print("\t{ int64_t a = ((int64_t)"+s(depth-2)+" << 32) | (uint32_t)"+s(depth-3)+";"+
-                      " int64_t b = ((int64_t)"+s(depth)+" << 32) | (uint32_t)"+s(depth-1)+";"+
-                      " double *c = (double *)&a; double *d = (double *)&b;"+
-                      " *c "+Lang.getArithOp(i)+"= *d;"+
-                      " "+s(depth-3)+" = (int32_t)a;"+
-                      " "+s(depth-2)+" = (int32_t)(a >> 32); }");
+            out.print("\t"+s(depth-3, Type.DOUBLE)+" "+Lang.getArithOp(i)+"= "+s(depth-1, Type.DOUBLE)+";");
             break;
         case Constants.DREM:
-            out.print("\t{ int64_t a = ((int64_t)"+s(depth-2)+" << 32) | (uint32_t)"+s(depth-3)+";"+
-                      " int64_t b = ((int64_t)"+s(depth)+" << 32) | (uint32_t)"+s(depth-1)+";"+
-                      " double *c = (double *)&a; double *d = (double *)&b;"+
-                      " *c = remainder(*c, *d);"+
-                      " "+s(depth-3)+" = (int32_t)a;"+
-                      " "+s(depth-2)+" = (int32_t)(a >> 32); }");
+            out.print("\t"+s(depth-3, Type.DOUBLE)+" = remainder("+s(depth-3, Type.DOUBLE)+", "+s(depth-1, Type.DOUBLE)+");");
             break;
         case Constants.DNEG:
-            out.print("\t{ int64_t a = ((int64_t)"+s(depth)+" << 32) | (uint32_t)"+s(depth-1)+";"+
-                      " double *c = (double *)&a; *c = -*c;"+
-                      " "+s(depth-1)+" = (int32_t)a;"+
-                      " "+s(depth)+" = (int32_t)(a >> 32); }");
+            out.print("\t"+s(depth-1, Type.DOUBLE)+" = -"+s(depth-1, Type.DOUBLE)+";");
             break;
         case Constants.DCMPL:
-            out.print("\t{ int64_t a = ((int64_t)"+s(depth-2)+" << 32) | (uint32_t)"+s(depth-3)+";"+
-                      " int64_t b = ((int64_t)"+s(depth)+" << 32) | (uint32_t)"+s(depth-1)+";"+
-                      " double *c = (double *)&a; double *d = (double *)&b;"+
-                      " if (*c != *c || *d != *d) { "+s(depth-3)+" = -1; }"+
-                      " else { "+s(depth-3)+" = *c > *d ? 1 : (*c == *d ? 0 : -1); } }");
+            out.print("\t{ double a = "+s(depth-3, Type.DOUBLE)+"; double b = "+s(depth-1, Type.DOUBLE)+";"+
+                      " if (a != a || b != b) { "+s(depth-3)+" = -1; }"+
+                      " else { "+s(depth-3)+" = a > b ? 1 : (a == b ? 0 : -1); } }");
             break;
         case Constants.DCMPG:
-            out.print("\t{ int64_t a = ((int64_t)"+s(depth-2)+" << 32) | (uint32_t)"+s(depth-3)+";"+
-                      " int64_t b = ((int64_t)"+s(depth)+" << 32) | (uint32_t)"+s(depth-1)+";"+
-                      " double *c = (double *)&a; double *d = (double *)&b;"+
-                      " if (*c != *c || *d != *d) { "+s(depth-3)+" = 1; }"+
-                      " else { "+s(depth-3)+" = *c > *d ? 1 : (*c == *d ? 0 : -1); } }");
+            out.print("\t{ double a = "+s(depth-3, Type.DOUBLE)+"; double b = "+s(depth-1, Type.DOUBLE)+";"+
+                      " if (a != a || b != b) { "+s(depth-3)+" = 1; }"+
+                      " else { "+s(depth-3)+" = a > b ? 1 : (a == b ? 0 : -1); } }");
             break;
 
         case Constants.GETFIELD:
@@ -851,7 +1482,7 @@ public class ClassInfo extends AbstractClassInfo {
             dumpNPE(out, method, code, pos, depth-1);
             dumpABE(out, method, code, pos, depth-1, depth, Lang.getArrayType(app, i));
             
-            out.print("\t"+s(depth-1)+" = ");
+            out.print("\t"+s(depth-1, StackTypes.normalize(((ArrayInstruction)i).getType(constPool)))+" = ");
             if (i.getOpcode() == Constants.AALOAD) {
                 out.print("jvm_arrload_ref(");
             } else {
@@ -863,9 +1494,8 @@ public class ClassInfo extends AbstractClassInfo {
         case Constants.LALOAD: case Constants.DALOAD:
             dumpNPE(out, method, code, pos, depth-1);
             dumpABE(out, method, code, pos, depth-1, depth, Lang.getArrayType(app, i));
-            out.print("\t{ int64_t a = jvm_arrload_long("+Lang.getArrayType(app, i)+", "+s(depth-1)+", "+s(depth)+");"+
-                      " "+s(depth-1)+" = (int32_t)a;"+
-                      " "+s(depth)+" = (int32_t)(a >> 32); }");
+            type = StackTypes.normalize(((ArrayInstruction)i).getType(constPool));
+            out.print("\t"+s(depth-1, type)+" = jvm_arrload_long("+Lang.getArrayType(app, i)+", "+s(depth-1)+", "+s(depth)+");");
             break;
 
         case Constants.AASTORE: case Constants.IASTORE: case Constants.FASTORE:
@@ -877,14 +1507,15 @@ public class ClassInfo extends AbstractClassInfo {
             } else {
                 out.print("\tjvm_arrstore(");
             }
-            out.print(Lang.getArrayType(app, i)+", "+s(depth-2)+", "+s(depth-1)+", "+s(depth)+");");
+            type = StackTypes.normalize(((ArrayInstruction)i).getType(constPool));
+            out.print(Lang.getArrayType(app, i)+", "+s(depth-2)+", "+s(depth-1)+", "+s(depth, type)+");");
             break;
 
         case Constants.LASTORE: case Constants.DASTORE:
             dumpNPE(out, method, code, pos, depth-3);
             dumpABE(out, method, code, pos, depth-3, depth-2, Lang.getArrayType(app, i));
-            out.print("\t{ int64_t a = ((int64_t)"+s(depth)+" << 32) | (uint32_t)"+s(depth-1)+";"+
-                      " jvm_arrstore_long("+Lang.getArrayType(app, i)+", "+s(depth-3)+", "+s(depth-2)+", a); }");
+            type = StackTypes.normalize(((ArrayInstruction)i).getType(constPool));
+            out.print("\tjvm_arrstore_long("+Lang.getArrayType(app, i)+", "+s(depth-3)+", "+s(depth-2)+", "+s(depth-1, type)+");");
             break;
 
         case Constants.ARRAYLENGTH:
@@ -908,7 +1539,12 @@ public class ClassInfo extends AbstractClassInfo {
         case Constants.IFGT: case Constants.IF_ICMPGT:
         case Constants.IFLE: case Constants.IF_ICMPLE:
             BranchInstruction bi = (BranchInstruction)i;
-            out.print("\tif ("+getComparison(i, depth)+") "+
+            String comp = getComparison(i, depth);
+            if ((i instanceof IFNULL || i instanceof IFNONNULL)
+                && nonNullMap.isNonNull(pos, depth)) {
+                comp = i instanceof IFNONNULL ? "1" : "0";
+            }
+            out.print("\tif ("+comp+") "+
                       "goto L"+(pos + bi.getIndex())+";");
             break;
 
@@ -923,17 +1559,14 @@ public class ClassInfo extends AbstractClassInfo {
             break;
 
         case Constants.RETURN:
-            dumpSyncReturn(out, method);
+            dumpLeave(out, method);
             out.print("\treturn;");
             break;
         case Constants.ARETURN: case Constants.IRETURN: case Constants.FRETURN:
-            out.println("\t{ int32_t a = "+s(depth)+";");
-            dumpSyncReturn(out, method);
-            out.print("\treturn "+s(depth)+"; }");
-            break;
         case Constants.LRETURN: case Constants.DRETURN:
-            out.println("\t{ int64_t a = ((int64_t)"+s(depth)+" << 32) | (uint32_t)"+s(depth-1)+";");
-            dumpSyncReturn(out, method);
+            type = method.getReturnType();
+            out.println("\t{ "+Lang.getCallType(type, app.hasTypedCalls())+" a = "+getCallReturn(StackTypes.normalize(type), depth-type.getSize()+1)+";");
+            dumpLeave(out, method);
             out.print("\treturn a; }");
             break;
 
@@ -957,6 +1590,7 @@ public class ClassInfo extends AbstractClassInfo {
             break;
 
         case Constants.ATHROW:
+            dumpNPE(out, method, code, pos, depth);
             if (depth != 0) {
                 out.print("\t"+s(0)+" = "+s(depth)+";");
             } else {
@@ -982,6 +1616,59 @@ public class ClassInfo extends AbstractClassInfo {
         out.println("\t/* "+i.getName()+" */");
     }
 
+    /**
+     * Generate the C code for the DUP family of bytecodes. The
+     * topmost values of the stack are copied to temporaries and then
+     * written back in their new order.
+     * @param out The file to write to
+     * @param types The current types of the stack slots
+     * @param depth The current stack depth
+     * @param dupWords The number of stack slots to be duplicated
+     * @param skipWords The number of stack slots below the duplicated ones
+     */
+    public void dumpDup(PrintWriter out, Type [] types, int depth, int dupWords, int skipWords) {
+        // collect the values involved, topmost first
+        Deque<Integer> values = new LinkedList<Integer>();
+        int dupValues = 0;
+        int slot = depth;
+        while (slot > depth-dupWords-skipWords) {
+            if (types[slot] == Type.UNKNOWN) {
+                slot--;
+            }
+            values.addFirst(slot);
+            if (slot > depth-dupWords) {
+                dupValues++;
+            }
+            slot--;
+        }
+
+        out.print("\t{");
+        int k = 0;
+        for (int src : values) {
+            out.print(" "+Lang.getType(types[src])+" a_"+(k++)+" = "+s(src, types[src])+";");
+        }
+
+        // the duplicated values, followed by all values
+        Deque<Integer> order = new LinkedList<Integer>();
+        for (k = values.size()-dupValues; k < values.size(); k++) {
+            order.add(k);
+        }
+        for (k = 0; k < values.size(); k++) {
+            order.add(k);
+        }
+
+        Integer [] srcs = values.toArray(new Integer[0]);
+        slot = depth-dupWords-skipWords+1;
+        for (int idx : order) {
+            int src = srcs[idx];
+            if (slot != src) {
+                out.print(" "+s(slot, types[src])+" = a_"+idx+";");
+            }
+            slot += types[src].getSize();
+        }
+        out.print(" }");
+    }
+
     /**
      * Generate a message that some item could not be found.
      * @param out The file to write to
@@ -1018,7 +1705,7 @@ public class ClassInfo extends AbstractClassInfo {
             }
         } else if (value instanceof Float) {
             Float floatVal = (Float)value;
-            out.print("\t"+s(depth+1)+" = "+Float.floatToIntBits(floatVal)+"UL;");
+            out.print("\t"+s(depth+1, Type.FLOAT)+" = "+Lang.getFloatConst(floatVal)+";");
         } else {
             out.print("\t"+s(depth+1)+" = "+value+"UL;");
         }
@@ -1033,12 +1720,10 @@ public class ClassInfo extends AbstractClassInfo {
     public void dumpLdc2(PrintWriter out, Object value, int depth) {
         if (value instanceof Double) {
             Double doubleVal = (Double)value;
-            out.print("\t"+s(depth+1)+" = "+(int)Double.doubleToLongBits(doubleVal)+"UL;"+
-                      " "+s(depth+2)+" = "+(int)(Double.doubleToLongBits(doubleVal) >> 32)+"UL;");
+            out.print("\t"+s(depth+1, Type.DOUBLE)+" = "+Lang.getDoubleConst(doubleVal)+";");
         } else {
             Long longVal = (Long)value;
-            out.print("\t"+s(depth+1)+" = "+(int)longVal.longValue()+"UL;"+
-                      " "+s(depth+2)+" = "+(int)(longVal.longValue() >> 32)+"UL;");
+            out.print("\t"+s(depth+1, Type.LONG)+" = "+Lang.getLongConst(longVal)+";");
         }
     }
 
@@ -1060,9 +1745,15 @@ public class ClassInfo extends AbstractClassInfo {
         }
         String fieldName = gf.getFieldName(constPool);
         int fieldIdx = ci.getFieldIndex(fieldName);
+        Type type = StackTypes.normalize(gf.getFieldType(constPool));
+        int site = escapes.getScalarSite(pos, 0);
+        if (site >= 0) {
+            out.print("\t"+s(depth, type)+" = "+getScalarVar(site, fieldIdx)+";");
+            return;
+        }
         dumpNPE(out, method, code, pos, depth);
-        if (gf.getFieldType(constPool).getSize() == 1) {
-            out.print("\t"+s(depth)+" = ");
+        if (type.getSize() == 1) {
+            out.print("\t"+s(depth, type)+" = ");
             if (gf.getFieldType(constPool) instanceof ReferenceType) {
                 out.print("\tjvm_getfield_ref(");
             } else {
@@ -1070,9 +1761,7 @@ public class ClassInfo extends AbstractClassInfo {
             }
             out.print(Lang.getObjType(ci)+", "+s(depth)+", "+fieldIdx+", "+Lang.getField(fieldName)+");");
         } else {
-            out.print("\t{ int64_t a = jvm_getfield_long("+Lang.getObjType(ci)+", "+s(depth)+", "+fieldIdx+", "+Lang.getField(fieldName)+");"+
-                      " "+s(depth)+" = (int32_t)a;"+
-                      " "+s(depth+1)+" = (int32_t)(a >> 32); }");
+            out.print("\t"+s(depth, type)+" = jvm_getfield_long("+Lang.getObjType(ci)+", "+s(depth)+", "+fieldIdx+", "+Lang.getField(fieldName)+");");
         }
     }
 
@@ -1093,19 +1782,30 @@ public class ClassInfo extends AbstractClassInfo {
             return;
         }
         String fieldName = pf.getFieldName(constPool);
+        Type type = StackTypes.normalize(pf.getFieldType(constPool));
+        if (!app.isFieldLive(ci, fieldName)) {
+            // the field is never read, only check the reference
+            dumpNPE(out, method, code, pos, depth-type.getSize());
+            out.print("	;");
+            return;
+        }
         int fieldIdx = ci.getFieldIndex(fieldName);
-        if (pf.getFieldType(constPool).getSize() == 1) {
+        int site = escapes.getScalarSite(pos, type.getSize());
+        if (site >= 0) {
+            out.print("\t"+getScalarVar(site, fieldIdx)+" = "+s(depth-type.getSize()+1, type)+";");
+            return;
+        }
+        if (type.getSize() == 1) {
             dumpNPE(out, method, code, pos, depth-1);
             if (pf.getFieldType(constPool) instanceof ReferenceType) {
                 out.print("\tjvm_putfield_ref(");
             } else {
                 out.print("\tjvm_putfield(");
             }
-            out.print(Lang.getObjType(ci)+", "+s(depth-1)+", "+fieldIdx+", "+Lang.getField(fieldName)+", "+s(depth)+");");
+            out.print(Lang.getObjType(ci)+", "+s(depth-1)+", "+fieldIdx+", "+Lang.getField(fieldName)+", "+s(depth, type)+");");
         } else {
             dumpNPE(out, method, code, pos, depth-2);
-            out.print("\t{ int64_t a = ((int64_t)"+s(depth)+" << 32) | (uint32_t)"+s(depth-1)+";"+
-                      " jvm_putfield_long("+Lang.getObjType(ci)+", "+s(depth-2)+", "+fieldIdx+", "+Lang.getField(fieldName)+", a); }");
+            out.print("\tjvm_putfield_long("+Lang.getObjType(ci)+", "+s(depth-2)+", "+fieldIdx+", "+Lang.getField(fieldName)+", "+s(depth-1, type)+");");
         }
     }
 
@@ -1124,8 +1824,9 @@ public class ClassInfo extends AbstractClassInfo {
             dumpNotFound(out, "Static field", className+"."+fieldName);
             return;
         }
-        if (gs.getFieldType(constPool).getSize() == 1) {
-            out.print("\t"+s(depth+1)+" = ");
+        Type type = StackTypes.normalize(gs.getFieldType(constPool));
+        if (type.getSize() == 1) {
+            out.print("\t"+s(depth+1, type)+" = ");
             if (gs.getFieldType(constPool) instanceof ReferenceType) {
                 out.print("jvm_getstatic_ref(");
             } else {
@@ -1133,9 +1834,7 @@ public class ClassInfo extends AbstractClassInfo {
             }
             out.print(Lang.getName(ci)+"_"+Lang.getField(fieldName)+");");
         } else {
-            out.print("\t{ int64_t a = jvm_getstatic_long("+Lang.getName(ci)+"_"+Lang.getField(fieldName)+");"+
-                      " "+s(depth+1)+" = (int32_t)a;"+
-                      " "+s(depth+2)+" = (int32_t)(a >> 32); }");
+            out.print("\t"+s(depth+1, type)+" = jvm_getstatic_long("+Lang.getName(ci)+"_"+Lang.getField(fieldName)+");");
         }
     }
 
@@ -1149,21 +1848,26 @@ public class ClassInfo extends AbstractClassInfo {
         String className = ps.getReferenceType(constPool).toString();
         AbstractClassInfo ci = app.getClassInfo(className);
         String fieldName = ps.getFieldName(constPool);
+        if (ci != null && !app.isFieldLive(ci, fieldName)) {
+            // the field is never read
+            out.print("\t;");
+            return;
+        }
         ci = findFieldDeclarator(ci, fieldName);
         if (ci == null) {
             dumpNotFound(out, "Static field", className+"."+fieldName);
             return;
         }
-        if (ps.getFieldType(constPool).getSize() == 1) {
+        Type type = StackTypes.normalize(ps.getFieldType(constPool));
+        if (type.getSize() == 1) {
             if (ps.getFieldType(constPool) instanceof ReferenceType) {
                 out.print("\tjvm_putstatic_ref(");
             } else {
                 out.print("\tjvm_putstatic(");
             }
-            out.print(Lang.getName(ci)+"_"+Lang.getField(fieldName)+", "+s(depth)+");");
+            out.print(Lang.getName(ci)+"_"+Lang.getField(fieldName)+", "+s(depth, type)+");");
         } else {
-            out.print("\t{ int64_t a = ((int64_t)"+s(depth)+" << 32) | (uint32_t)"+s(depth-1)+";"+
-                      " jvm_putstatic_long("+Lang.getName(ci)+"_"+Lang.getField(fieldName)+", a); }");
+            out.print("\tjvm_putstatic_long("+Lang.getName(ci)+"_"+Lang.getField(fieldName)+", "+s(depth-1, type)+");");
         }
     }
 
@@ -1181,11 +1885,33 @@ public class ClassInfo extends AbstractClassInfo {
             dumpNotFound(out, "Class", className);
             return;
         }
+        String typeExpr = "(("+Lang.getObjType(objci)+"*)"+s(depth)+")->type";
+        out.print("\t"+s(depth)+" = "+s(depth)+" == 0 ? 0 : "+getSubtypeCheck(typeExpr, ci)+";");
+    }
+
+    /**
+     * Create a C expression that checks whether a class is a subtype
+     * of another class. Interfaces are checked through the interface
+     * bits of the class, other classes through the range of class
+     * numbers of their subtypes.
+     * @param typeExpr A C expression for the class structure to check
+     * @param ci The class to check against
+     * @return The C expression
+     */
+    private String getSubtypeCheck(String typeExpr, AbstractClassInfo ci) {
         if (ci.clazz.isInterface()) {
             int ifaceIdx = app.getInterfaceList().indexOf(ci);
-            out.print("\t"+s(depth)+" = "+s(depth)+" == 0 ? 0 : ((("+Lang.getObjType(objci)+"*)"+s(depth)+")->type->itab["+(ifaceIdx / 32)+"] & "+(1 << (ifaceIdx % 32))+"UL) != 0;");
+            return "(("+typeExpr+")->itab["+(ifaceIdx / 32)+"] & "+(1 << (ifaceIdx % 32))+"UL) != 0";
+        } else if (app.hasClassRange(ci)) {
+            int id = app.getClassId(ci);
+            int range = app.getLastClassId(ci) - id;
+            if (range == 0) {
+                return "("+typeExpr+")->id == "+id;
+            }
+            return "(uint32_t)(("+typeExpr+")->id - "+id+") <= "+range+"U";
         } else {
-            out.print("\t"+s(depth)+" = "+s(depth)+" == 0 ? 0 : jvm_instanceof((("+Lang.getObjType(objci)+"*)"+s(depth)+")->type, ("+Lang.getClassType(objci)+"*)&"+Lang.getName(ci)+");");
+            AbstractClassInfo objci = app.getClassInfo("java.lang.Object");
+            return "jvm_instanceof("+typeExpr+", ("+Lang.getClassType(objci)+"*)&"+Lang.getName(ci)+")";
         }
     }
 
@@ -1206,13 +1932,8 @@ public class ClassInfo extends AbstractClassInfo {
             dumpNotFound(out, "Class", className);
             return;
         }
-        out.print("\tif (unlikely("+s(depth)+" != 0 &&");
-        if (ci.clazz.isInterface()) {
-            int ifaceIdx = app.getInterfaceList().indexOf(ci);
-            out.print(" ((("+Lang.getObjType(objci)+"*)"+s(depth)+")->type->itab["+(ifaceIdx / 32)+"] & "+(1 << (ifaceIdx % 32))+"UL) == 0)");
-        } else {
-            out.print(" !jvm_instanceof((("+Lang.getObjType(objci)+"*)"+s(depth)+")->type, ("+Lang.getClassType(objci)+"*)&"+Lang.getName(ci)+")))");
-        }
+        String typeExpr = "(("+Lang.getObjType(objci)+"*)"+s(depth)+")->type";
+        out.print("\tif (unlikely("+s(depth)+" != 0 && !("+getSubtypeCheck(typeExpr, ci)+")))");
         out.print(" { "+s(0)+" = (int32_t)&ccExc;");
         dumpThrow(out, method, code, pos);
         out.print(" }");
@@ -1250,10 +1971,25 @@ public class ClassInfo extends AbstractClassInfo {
             dumpNotFound(out, "Class", type.toString());
             return;
         }
-        out.println("\t"+s(depth+1)+" = (int32_t)jvm_alloc(&"+Lang.getName(ci)+", sizeof("+Lang.getObjType(ci)+"), &exc);");
-        out.print("\tif (unlikely(exc != 0)) { "+s(0)+" = exc; exc = 0;");
-        dumpThrow(out, method, code, pos);
-        out.print(" }");
+        if (escapes.isScalarReplaced(pos)) {
+            int fieldIdx = 0;
+            for (Field f : ci.getInstanceFields()) {
+                out.println("\t"+getScalarVar(pos, fieldIdx)+" = 0;");
+                fieldIdx += f.getType().getSize();
+            }
+            // the reference is never dereferenced, any non-null value will do
+            out.print("\t"+s(depth+1)+" = 1;");
+            return;
+        }
+        if (escapes.isStackAllocated(pos)) {
+            String obj = getStackObject(pos);
+            out.println("\tmemset(&"+obj+", 0, sizeof("+obj+"));");
+            out.println("\t"+obj+".type = &"+Lang.getName(ci)+";");
+            out.print("\t"+s(depth+1)+" = (int32_t)&"+obj+";");
+            return;
+        }
+        out.print("\t"+s(depth+1)+" = (int32_t)jvm_alloc_inline(&"+Lang.getName(ci)+", sizeof("+Lang.getObjType(ci)+"), &exc);");
+        dumpCallCheck(out, method, code, pos);
     }
 
     /**
@@ -1266,18 +2002,41 @@ public class ClassInfo extends AbstractClassInfo {
      * @param depth The current stack depth
      */
     public void dumpNewArray(PrintWriter out, Method method, Code code, int pos, Instruction i, int depth) {
-        Type type;
-        if (i.getOpcode() == Constants.NEWARRAY) {
-            type = ((NEWARRAY)i).getType();
-        } else {
-            ANEWARRAY an = (ANEWARRAY)i;
-            type = Type.getType("["+an.getType(constPool).getSignature());
+        Type type = getNewArrayType(i);
+        if (escapes.isStackAllocated(pos)) {
+            AbstractClassInfo ci = app.getClassInfo(type.toString());
+            if (ci == null) {
+                dumpNotFound(out, "Class", type.toString());
+                return;
+            }
+            String objType = Lang.getObjType(ci);
+            String obj = getStackObject(pos);
+            out.println("\t{ int32_t z_0 = "+s(depth)+";");
+            out.println("\tmemset("+obj+", 0, sizeof("+obj+"));");
+            out.println("\t"+s(depth)+" = (int32_t)"+obj+";");
+            out.println("\t(("+objType+" *)"+s(depth)+")->type = &"+Lang.getName(ci)+";");
+            out.print("\tjvm_setarrlength("+objType+", "+s(depth)+", z_0); }");
+            return;
         }
         out.println("\t{ int32_t z_0 = "+s(depth)+";");
         dumpNewArrayRaw(out, method, code, pos, type, "z_0", s(depth));
         out.print(" }");
     }
 
+    /**
+     * Get the type of the array allocated by a NEWARRAY or ANEWARRAY bytecode.
+     * @param i The bytecode
+     * @return The type of the allocated array
+     */
+    private Type getNewArrayType(Instruction i) {
+        if (i.getOpcode() == Constants.NEWARRAY) {
+            return ((NEWARRAY)i).getType();
+        } else {
+            ANEWARRAY an = (ANEWARRAY)i;
+            return Type.getType("["+an.getType(constPool).getSignature());
+        }
+    }
+
     /**
      * Generate the C code for the MULTIANEWARRAY bytecode.
      * @param out The file to write to
@@ -1290,13 +2049,19 @@ public class ClassInfo extends AbstractClassInfo {
     public void dumpMultiANewArray(PrintWriter out, Method method, Code code, int pos, MULTIANEWARRAY mn, int depth) {
         int dim = mn.getDimensions();
         String sig = mn.getType(constPool).getSignature();
-        out.println("\t{ int32_t z_0 = "+s(depth-dim+1)+";");
+        out.print("\t{");
+        for (int k = 0; k < dim; k++) {
+            out.print(" int32_t z_"+k+" = "+s(depth-dim+k+1)+";");
+        }
+        out.println();
         dumpNewArrayRaw(out, method, code, pos, Type.getType(sig), "z_0", s(depth-dim+1));
+        if (dim > 1) {
+            out.print(" roots["+rootSlots.get(s(depth-dim+1))+"] = "+s(depth-dim+1)+";");
+        }
         for (int k = 1; k < dim; k++) {
             out.println();
             sig = sig.substring(1);
-            out.println("\tint32_t z_"+k+" = "+s(depth-dim+k+1)+";"+
-                        " int32_t k_"+k+";"+
+            out.println("\tint32_t k_"+k+";"+
                         " for (k_"+k+" = 0; k_"+k+" < z_"+(k-1)+"; k_"+k+"++) {");
             dumpNewArrayRaw(out, method, code, pos, Type.getType(sig), "z_"+k, s(depth-dim+k+1));
             out.print(" jvm_arrstore_ref(_int___obj_t, "+s(depth-dim+k)+", k_"+k+", "+s(depth-dim+k+1)+");");
@@ -1318,20 +2083,7 @@ public class ClassInfo extends AbstractClassInfo {
      */
     public void dumpNewArrayRaw(PrintWriter out, Method method, Code code, int pos, Type type, String sizeVal, String dstVal) {
 
-        int size;
-        switch (type.getSignature()) {
-        case "[Z": case "[B":
-            size = 1;
-            break;
-        case "[C": case "[S":
-            size = 2;
-            break;
-        case "[J": case "[D":
-            size = 8;
-            break;
-        default:
-            size = 4;
-        }
+        int size = Escapes.getElementSize(type);
 
         AbstractClassInfo ci = app.getClassInfo(type.toString());
         if (ci == null) {
@@ -1340,10 +2092,9 @@ public class ClassInfo extends AbstractClassInfo {
         }
         String objType = Lang.getObjType(ci);
 
-        out.println("\t"+dstVal+" = (int32_t)jvm_alloc(&"+Lang.getName(ci)+", sizeof("+objType+")+"+sizeVal+"*"+size+", &exc);");
-        out.print("\tif (unlikely(exc != 0)) { "+s(0)+" = exc; exc = 0;");
-        dumpThrow(out, method, code, pos);
-        out.println(" }");
+        out.print("\t"+dstVal+" = (int32_t)jvm_alloc_inline(&"+Lang.getName(ci)+", sizeof("+objType+")+"+sizeVal+"*"+size+", &exc);");
+        dumpCallCheck(out, method, code, pos);
+        out.println();
         out.print("\tjvm_setarrlength("+objType+", "+dstVal+", "+sizeVal+");");
     }
 
@@ -1366,6 +2117,13 @@ public class ClassInfo extends AbstractClassInfo {
         String className = ii.getReferenceType(constPool).toString();
         AbstractClassInfo ci = app.getClassInfo(className);
         String fqName = ci.getName()+"."+methName+signature;
+
+        String intrinsic = Intrinsics.get(fqName);
+        if (opcode == Constants.INVOKESTATIC && intrinsic != null) {
+            dumpIntrinsic(out, ii, intrinsic, depth);
+            return;
+        }
+
         String typeName;
         if (opcode == Constants.INVOKEVIRTUAL
             && app.getVirtualMethods().contains(fqName)) {
@@ -1384,7 +2142,6 @@ public class ClassInfo extends AbstractClassInfo {
         }
 
         Type retType = ii.getReturnType(constPool);
-        int retSize = retType.getSize();
         int argCount = getArgCount(ii.getArgumentTypes(constPool),
                                    opcode == Constants.INVOKESTATIC);
         
@@ -1394,35 +2151,154 @@ public class ClassInfo extends AbstractClassInfo {
             dumpNPE(out, method, code, pos, depth-argCount+1);
         }
         
-        out.print("\t");
-        if (retSize == 2) {
-            out.print("{ int64_t a = ");
-        } else if (retSize > 0) {
-            out.print(s(depth-argCount+1)+" = ");
+        String args = "";
+        int argDepth = depth-argCount+1;
+        if (opcode != Constants.INVOKESTATIC) {
+            args += s(argDepth)+", ";
+            argDepth++;
+        }
+        for (Type t : ii.getArgumentTypes(constPool)) {
+            args += getCallArg(StackTypes.normalize(t), argDepth)+", ";
+            argDepth += t.getSize();
         }
+        args += "&exc)";
+
+        String call;
+        Map<AbstractClassInfo, AbstractClassInfo> targets = null;
         if (opcode == Constants.INVOKESTATIC
             || opcode == Constants.INVOKESPECIAL
             || (opcode == Constants.INVOKEVIRTUAL
                 && !app.getVirtualMethods().contains(fqName))) {
-            out.print(typeName+"_"+escName+"(");
+            call = typeName+"_"+escName+"(";
         } else if (opcode == Constants.INVOKEINTERFACE) {
-            out.print("(("+Lang.getObjType(ci)+"*)"+s(depth-argCount+1)+")->type->imtab->"+typeName+"_"+escName+"("); 
+            AbstractClassInfo impl = app.getUniqueImplementor(ci);
+            if (impl != null) {
+                call = Lang.getName(impl.findMethodImplementor(methName, signature))+"_"+escName+"(";
+            } else {
+                call = "((const "+typeName+"_itab_t *)(("+Lang.getObjType(ci)+"*)"+s(depth-argCount+1)+")->type->itables["+app.getItableIndex(ci)+"])->"+escName+"(";
+                targets = getCallTargets(ci, methName, signature, pos, argCount-1);
+            }
         } else {
-            out.print("(("+typeName+"*)"+s(depth-argCount+1)+")->type->"+escName+"(");
+            call = "(("+typeName+"*)"+s(depth-argCount+1)+")->type->"+escName+"(";
+            targets = getCallTargets(ci, methName, signature, pos, argCount-1);
         }
-        for (int k = argCount-1; k >= 0; --k) {
-            out.print(s(depth-k)+", ");
+
+        out.print("\t");
+        if (targets != null) {
+            for (Map.Entry<AbstractClassInfo, AbstractClassInfo> e : targets.entrySet()) {
+                out.print("if ((("+Lang.getObjType(ci)+"*)"+s(depth-argCount+1)+")->type == (void *)&"+Lang.getName(e.getKey())+") { ");
+                dumpCallStatement(out, retType, depth-argCount+1, Lang.getName(e.getValue())+"_"+escName+"("+args);
+                out.print(" } else ");
+            }
+            out.print("{ ");
+            dumpCallStatement(out, retType, depth-argCount+1, call+args);
+            out.print(" }");
+        } else {
+            dumpCallStatement(out, retType, depth-argCount+1, call+args);
         }
-        out.print("&exc);");
-        if (retSize == 2) {
-            out.print(" "+s(depth-argCount+1)+" = (int32_t)a;"+
-                      " "+s(depth-argCount+2)+" = (int32_t)(a >> 32); }");
+        dumpCallCheck(out, method, code, pos);
+    }
+
+    /**
+     * Generate the inline C code for an invocation of an intrinsic
+     * method. The arguments are taken directly from the stack slots.
+     * @param out The file to write to
+     * @param ii The bytecode
+     * @param intrinsic The C expression that implements the method
+     * @param depth The current stack depth
+     */
+    private void dumpIntrinsic(PrintWriter out, InvokeInstruction ii, String intrinsic, int depth) {
+        Type [] argTypes = ii.getArgumentTypes(constPool);
+        int retDepth = depth-getArgCount(argTypes, true)+1;
+
+        String expr = intrinsic;
+        int argDepth = retDepth;
+        for (int k = 0; k < argTypes.length; k++) {
+            Type type = StackTypes.normalize(argTypes[k]);
+            expr = expr.replace("%"+k, s(argDepth, type));
+            argDepth += type.getSize();
+        }
+
+        Type retType = ii.getReturnType(constPool);
+        if (retType.getSize() > 0) {
+            out.print("\t"+s(retDepth, StackTypes.normalize(retType))+" = "+expr+";");
+        } else {
+            out.print("\t"+expr+";");
+        }
+    }
+
+    /**
+     * Generate the C code for a call and the assignment of its result.
+     * @param out The file to write to
+     * @param retType The return type of the called method
+     * @param depth The stack slot to receive the result
+     * @param call The call expression
+     */
+    private void dumpCallStatement(PrintWriter out, Type retType, int depth, String call) {
+        if (retType.getSize() > 0) {
+            Type type = StackTypes.normalize(retType);
+            out.print(s(depth, type)+" = "+getCallResult(type, call));
+        } else {
+            out.print(call);
+        }
+        out.print(";");
+    }
+
+    /**
+     * Find the possible targets of a virtual or interface method
+     * invocation. The receiver types are the instantiated subtypes of
+     * the referenced class, or the classes allocated for the receiver
+     * if these are known.
+     * @param ci The referenced class
+     * @param methName The name of the invoked method
+     * @param signature The signature of the invoked method
+     * @param pos The current position in the code
+     * @param slot The stack slot of the receiver, counting from the top of the stack
+     * @return A map from receiver types to the classes implementing the
+     * invoked method, null if there are too many or no receiver types
+     */
+    private Map<AbstractClassInfo, AbstractClassInfo> getCallTargets(AbstractClassInfo ci, String methName, String signature, int pos, int slot) {
+        List<AbstractClassInfo> receivers = app.getReceiverTypes(ci);
+        Set<String> allocated = escapes.getAllocatedTypes(pos, slot);
+        if (allocated != null) {
+            receivers = new LinkedList<AbstractClassInfo>();
+            for (String name : allocated) {
+                receivers.add(app.getClassInfo(name));
+            }
+        }
+        if (receivers == null
+            || receivers.isEmpty()
+            || receivers.size() > MAX_GUARDED_TARGETS) {
+            return null;
+        }
+
+        Map<AbstractClassInfo, AbstractClassInfo> targets = new LinkedHashMap<AbstractClassInfo, AbstractClassInfo>();
+        for (AbstractClassInfo r : receivers) {
+            AbstractClassInfo decl = r == null ? null : r.findMethodImplementor(methName, signature);
+            if (decl == null) {
+                return null;
+            }
+            targets.put(r, decl);
+        }
+        return targets;
+    }
+
+    /**
+     * Generate the C code to check for an exception after a call to
+     * a method or to the runtime. No code is generated if exceptions
+     * are propagated with setjmp/longjmp.
+     * @param out The file to write to
+     * @param method The method the code is generated for
+     * @param code The code of the method
+     * @param pos The current position in the code
+     */
+    public void dumpCallCheck(PrintWriter out, Method method, Code code, int pos) {
+        if (!app.hasSjljExceptions()) {
+            out.println();
+            out.print("\tif (unlikely(exc != 0)) { "+s(0)+" = exc; exc = 0;");
+            dumpThrow(out, method, code, pos);
+            out.print(" }");
         }
-        
-        out.println();
-        out.print("\tif (unlikely(exc != 0)) { "+s(0)+" = exc; exc = 0;");
-        dumpThrow(out, method, code, pos);
-        out.print(" }");
     }
 
     /**
@@ -1434,6 +2310,9 @@ public class ClassInfo extends AbstractClassInfo {
      * @param depth The current stack depth
      */
     public void dumpNPE(PrintWriter out, Method method, Code code, int pos, int depth) {
+        if (nonNullMap != null && nonNullMap.isNonNull(pos, depth)) {
+            return;
+        }
         out.print("\tif (unlikely("+s(depth)+" == 0)) { "+s(0)+" = (int32_t)&npExc;");
         dumpThrow(out, method, code, pos);
         out.println(" }");
@@ -1450,13 +2329,123 @@ public class ClassInfo extends AbstractClassInfo {
      * @param type The type of the array
      */
     public void dumpABE(PrintWriter out, Method method, Code code, int pos, int depth, int idxdepth, String type) {
-        out.print("\tif (unlikely("+s(idxdepth)+" < 0 ||"+
-                  " "+s(idxdepth)+" >= jvm_arrlength("+type+", "+s(depth)+")))"+
+        if (boundsMap != null && boundsMap.isSafe(pos)) {
+            return;
+        }
+        String check = s(idxdepth)+" < 0 ||"+
+            " "+s(idxdepth)+" >= jvm_arrlength("+type+", "+s(depth)+")";
+        ArrayBounds.Loop loop = boundsMap != null ? boundsMap.getLoop(pos) : null;
+        if (loop != null) {
+            ArrayBounds.ArrayRef ref = boundsMap.getArrayRef(pos);
+            String guard = "!"+getBoundsVar(loop);
+            if (ref.getField() != null) {
+                guard = "("+guard+" || "+s(depth)+" != "+getBoundsVar(loop, ref)+")";
+            }
+            check = guard+" && ("+check+")";
+        }
+        out.print("\tif (unlikely("+check+"))"+
                   " { "+s(0)+" = (int32_t)&abExc;");
         dumpThrow(out, method, code, pos);
         out.println(" }");
     }
 
+    /**
+     * Get the name of the C variable that records whether the
+     * hoisted bounds check of a loop succeeded.
+     * @param loop The loop
+     * @return The name of the variable
+     */
+    private String getBoundsVar(ArrayBounds.Loop loop) {
+        return "b_"+loop.getStart();
+    }
+
+    /**
+     * Get the name of the C variable that holds an array loaded from
+     * a field for the hoisted bounds check of a loop.
+     * @param loop The loop
+     * @param ref The reference to the array
+     * @return The name of the variable
+     */
+    private String getBoundsVar(ArrayBounds.Loop loop, ArrayBounds.ArrayRef ref) {
+        int k = 0;
+        for (ArrayBounds.ArrayRef r : loop.getArrays().keySet()) {
+            if (r.equals(ref)) {
+                break;
+            }
+            k++;
+        }
+        return "r_"+loop.getStart()+"_"+k;
+    }
+
+    /**
+     * Get the C expression to load an array for a hoisted bounds check.
+     * @param ref The reference to the array
+     * @return The C expression, which yields 0 if the array cannot be loaded
+     */
+    private String getArrayRef(ArrayBounds.ArrayRef ref) {
+        FieldInstruction fi = ref.getField();
+        if (fi == null) {
+            return v(ref.getLocal());
+        }
+        String className = fi.getReferenceType(constPool).toString();
+        String fieldName = fi.getFieldName(constPool);
+        AbstractClassInfo ci = app.getClassInfo(className);
+        if (fi instanceof GETSTATIC) {
+            ci = findFieldDeclarator(ci, fieldName);
+            return "jvm_getstatic_ref("+Lang.getName(ci)+"_"+Lang.getField(fieldName)+")";
+        }
+        return "("+v(ref.getLocal())+" != 0"+
+            " ? jvm_getfield_ref("+Lang.getObjType(ci)+", "+v(ref.getLocal())+", "+
+            ci.getFieldIndex(fieldName)+", "+Lang.getField(fieldName)+") : 0)";
+    }
+
+    /**
+     * Generate the C code for the hoisted bounds check of a loop,
+     * which tests whether the whole range of the loop index is within
+     * the bounds of the accessed arrays.
+     * @param out The file to write to
+     * @param loop The loop
+     */
+    public void dumpBoundsGuard(PrintWriter out, ArrayBounds.Loop loop) {
+        List<String> conds = new LinkedList<String>();
+        if (!loop.hasSafeStart()) {
+            conds.add(v(loop.getIndex())+" >= 0");
+        }
+
+        String bound;
+        if (loop.getBoundConst() != null) {
+            bound = loop.getBoundConst().toString();
+        } else if (loop.getBoundLocal() >= 0) {
+            bound = v(loop.getBoundLocal());
+        } else {
+            String arr = getArrayRef(loop.getBoundArray());
+            conds.add(arr+" != 0");
+            bound = "jvm_arrlength("+Lang.getObjType(app.getClassInfo("int[]"))+", "+arr+")";
+        }
+        // the index must not overflow when incremented
+        if (loop.getStep() > 1) {
+            conds.add(bound+" <= "+(Integer.MAX_VALUE - loop.getStep()));
+        }
+
+        for (Map.Entry<ArrayBounds.ArrayRef, Instruction> e : loop.getArrays().entrySet()) {
+            ArrayBounds.ArrayRef ref = e.getKey();
+            String arr = getArrayRef(ref);
+            if (ref.getField() != null) {
+                out.println("\t"+getBoundsVar(loop, ref)+" = "+arr+";");
+                arr = getBoundsVar(loop, ref);
+            }
+            conds.add(arr+" != 0");
+            conds.add(bound+(loop.isInclusive() ? " < " : " <= ")+
+                      "jvm_arrlength("+Lang.getArrayType(app, e.getValue())+", "+arr+")");
+        }
+
+        out.print("\t"+getBoundsVar(loop)+" = ");
+        for (int k = 0; k < conds.size(); k++) {
+            out.print((k > 0 ? " && " : "")+conds.get(k));
+        }
+        out.println(";");
+    }
+
     /**
      * Generate the C code to throw an exception
      * @param out The file to write to
@@ -1465,6 +2454,20 @@ public class ClassInfo extends AbstractClassInfo {
      * @param pos The current position in the code
      */
     public void dumpThrow(PrintWriter out, Method method, Code code, int pos) {
+        if (!dumpCatch(out, method, code, pos)) {
+            dumpUncaught(out, method);
+        }
+    }
+
+    /**
+     * Generate the C code to jump to the handlers that may catch an exception.
+     * @param out The file to write to
+     * @param method The method the code is generated for
+     * @param code The code of the method
+     * @param pos The current position in the code
+     * @return true if the exception is always caught
+     */
+    public boolean dumpCatch(PrintWriter out, Method method, Code code, int pos) {
         CodeException [] excTab = code.getExceptionTable();
 
         boolean caught = false;
@@ -1474,7 +2477,7 @@ public class ClassInfo extends AbstractClassInfo {
                 int end = exc.getEndPC();
                 int handler = exc.getHandlerPC();
                 int type = exc.getCatchType();
-                if (start <= pos && pos <= end) {
+                if (start <= pos && pos < end) {
                     if (type == 0) {
                         out.println();
                         out.print("\tgoto L"+handler+";");
@@ -1490,18 +2493,32 @@ public class ClassInfo extends AbstractClassInfo {
                             dumpNotFound(out, "Class", className);
                         } else {
                             out.println();
-                            out.print("\tif (jvm_instanceof((("+Lang.getObjType(objci)+"*)"+s(0)+")->type, ("+Lang.getClassType(objci)+"*)&"+Lang.getName(ci)+"))"+
-                                      " goto L"+handler+";");
+                            String typeExpr = "(("+Lang.getObjType(objci)+"*)"+s(0)+")->type";
+                            out.print("\tif ("+getSubtypeCheck(typeExpr, ci)+") goto L"+handler+";");
                         }
                     }
                 }
             }
         }
-        if (!caught) {
+        return caught;
+    }
+
+    /**
+     * Generate the C code to pass an exception to the caller.
+     * @param out The file to write to
+     * @param method The method the code is generated for
+     */
+    public void dumpUncaught(PrintWriter out, Method method) {
+        out.println();
+        if (app.hasSjljExceptions()) {
+            out.println("\texc = "+s(0)+";");
+            dumpLeave(out, method);
+            out.print("\tjvm_throw(exc);");
+        } else {
             Type retType = method.getReturnType();
-            out.println();
             out.println("\t*retexc = "+s(0)+";");
             dumpSyncReturn(out, method);
+            dumpFramePop(out);
             out.print("\treturn"+(retType != Type.VOID ? " 0" : "")+";");
         }
     }
@@ -1540,10 +2557,35 @@ public class ClassInfo extends AbstractClassInfo {
             } else {
                 out.println("\t"+s(0)+" = "+v(0)+";");
             }
+            dumpSpills(out, -1);
             dumpMonitorEnter(out, 0);
         }
     }
 
+    /**
+     * Generate the C code to remove the landing pad and release a
+     * lock before leaving a method.
+     * @param out The file to write to
+     * @param method The method the code is generated for
+     */
+    public void dumpLeave(PrintWriter out, Method method) {
+        if (landingPad) {
+            out.println("\tjvm_handlers = pad.next;");
+        }
+        dumpSyncReturn(out, method);
+        dumpFramePop(out);
+    }
+
+    /**
+     * Generate the C code to remove the frame of the method.
+     * @param out The file to write to
+     */
+    public void dumpFramePop(PrintWriter out) {
+        if (!rootSlots.isEmpty()) {
+            out.println("\tjvm_frames = frame.prev;");
+        }
+    }
+
     /**
      * Generate the C code to release a lock before returning.
      * @param out The file to write to
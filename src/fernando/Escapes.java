@@ -0,0 +1,746 @@
+/*
+   Copyright 2015 Technical University of Denmark, DTU Compute.
+   All rights reserved.
+
+   This file is part of the ahead-of-time bytecode compiler Fernando.
+
+   Redistribution and use in source and binary forms, with or without
+   modification, are permitted provided that the following conditions are met:
+
+      1. Redistributions of source code must retain the above copyright notice,
+         this list of conditions and the following disclaimer.
+
+      2. Redistributions in binary form must reproduce the above copyright
+         notice, this list of conditions and the following disclaimer in the
+         documentation and/or other materials provided with the distribution.
+
+   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER ``AS IS'' AND ANY EXPRESS
+   OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+   OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+   NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+   DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+   (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+   LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+   (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+   THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+   The views and conclusions contained in the software and documentation are
+   those of the authors and should not be interpreted as representing official
+   policies, either expressed or implied, of the copyright holder.
+*/
+
+
+package fernando;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.classfile.CodeException;
+import org.apache.bcel.classfile.Method;
+import org.apache.bcel.generic.*;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * An escape analysis to find objects and arrays that can be
+ * allocated on the C stack instead of the heap. The analysis tracks
+ * which allocation sites and parameters a reference may originate
+ * from. An allocated object escapes if it is stored to a field, a
+ * static field or an array, if it is returned or thrown, if it is
+ * used for synchronization, or if it is passed to a method that lets
+ * the corresponding parameter escape. An object that does not escape
+ * and is only used to access its fields is replaced by one C variable
+ * per field.
+ *
+ * Objects allocated within a loop share their storage across
+ * iterations, so an allocation site is only considered if the object
+ * of the previous iteration is no longer live when the site is
+ * executed again.
+ */
+public class Escapes {
+
+    /** The maximum size of the data of arrays allocated on the stack, in bytes. */
+    public static final int MAX_STACK_ARRAY = 256;
+
+    /** Source for references that are not tracked by the analysis. */
+    private static final int OTHER = Integer.MIN_VALUE;
+
+    /**
+     * Information about which parameters of a method escape and which
+     * parameters the method may return.
+     */
+    public static class Summary {
+        /** The parameters that escape. */
+        private final BitSet escaping;
+        /** The parameters that may be returned. */
+        private final BitSet returned;
+
+        /**
+         * Create a summary where no parameter escapes or is returned.
+         */
+        public Summary() {
+            this(new BitSet(), new BitSet());
+        }
+
+        Summary(BitSet escaping, BitSet returned) {
+            this.escaping = escaping;
+            this.returned = returned;
+        }
+
+        /**
+         * Check whether a parameter escapes.
+         * @param k The index of the parameter, counting the receiver as parameter 0
+         * @return true if the parameter may escape
+         */
+        public boolean escapes(int k) {
+            return escaping.get(k);
+        }
+
+        /**
+         * Check whether a method may return a parameter.
+         * @param k The index of the parameter, counting the receiver as parameter 0
+         * @return true if the parameter may be returned
+         */
+        public boolean isReturned(int k) {
+            return returned.get(k);
+        }
+
+        /**
+         * Combine this summary with another summary.
+         * @param other The other summary
+         * @return A summary where parameters escape or are returned if
+         * they do so in either of the summaries
+         */
+        Summary merge(Summary other) {
+            BitSet e = (BitSet)escaping.clone();
+            e.or(other.escaping);
+            BitSet r = (BitSet)returned.clone();
+            r.or(other.returned);
+            return new Summary(e, r);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Summary)) {
+                return false;
+            }
+            Summary s = (Summary)o;
+            return escaping.equals(s.escaping) && returned.equals(s.returned);
+        }
+
+        @Override
+        public int hashCode() {
+            return escaping.hashCode() * 31 + returned.hashCode();
+        }
+    }
+
+    /**
+     * The analysis state at a particular position in the code. Each
+     * local variable and stack slot holds the set of sources the
+     * value may originate from: allocation sites are identified by
+     * their position, parameters <code>k</code> by <code>-(k+1)</code>.
+     */
+    private static class State {
+        /** The sources of the local variables. */
+        final List<Set<Integer>> locals;
+        /** The sources of the stack slots, with the topmost slot first. */
+        final LinkedList<Set<Integer>> stack;
+
+        State(List<Set<Integer>> locals, LinkedList<Set<Integer>> stack) {
+            this.locals = locals;
+            this.stack = stack;
+        }
+
+        State copy() {
+            return new State(new ArrayList<Set<Integer>>(locals),
+                             new LinkedList<Set<Integer>>(stack));
+        }
+
+        Set<Integer> getLocal(int index) {
+            return index < locals.size() ? locals.get(index) : other();
+        }
+
+        void setLocal(int index, Set<Integer> value) {
+            while (locals.size() <= index) {
+                locals.add(other());
+            }
+            locals.set(index, value);
+        }
+
+        /**
+         * Merge another state into this state.
+         * @param other The other state
+         * @return true if this state changed, false otherwise
+         */
+        boolean merge(State other) {
+            boolean changed = false;
+            for (int k = 0; k < other.locals.size(); k++) {
+                Set<Integer> l = getLocal(k);
+                if (!l.containsAll(other.locals.get(k))) {
+                    setLocal(k, union(l, other.locals.get(k)));
+                    changed = true;
+                }
+            }
+            for (int k = 0; k < stack.size() && k < other.stack.size(); k++) {
+                if (!stack.get(k).containsAll(other.stack.get(k))) {
+                    stack.set(k, union(stack.get(k), other.stack.get(k)));
+                    changed = true;
+                }
+            }
+            return changed;
+        }
+    }
+
+    /** The application the analyzed code belongs to. */
+    private final AppInfo app;
+    /** The constant pool for the instructions. */
+    private final ConstantPoolGen constPool;
+
+    /** A map between code positions and computed states. */
+    private final Map<Integer, State> stateMap = new HashMap<Integer, State>();
+
+    /** The parameters that escape. */
+    private final BitSet escapingParams = new BitSet();
+    /** The parameters that may be returned. */
+    private final BitSet returnedParams = new BitSet();
+    /** The allocation sites whose objects escape. */
+    private final Set<Integer> escapingSites = new LinkedHashSet<Integer>();
+    /** The allocation sites whose objects are used other than to access their fields. */
+    private final Set<Integer> nonScalarSites = new LinkedHashSet<Integer>();
+    /** The allocation sites whose objects can be allocated on the stack. */
+    private final Set<Integer> stackSites = new LinkedHashSet<Integer>();
+    /** The lengths of arrays allocated on the stack. */
+    private final Map<Integer, Integer> arrayLengths = new HashMap<Integer, Integer>();
+    /** The classes instantiated by NEW instructions. */
+    private final Map<Integer, String> newTypes = new HashMap<Integer, String>();
+
+    /**
+     * Create and run the analysis.
+     * @param app The application the analyzed code belongs to
+     * @param il The list of instructions to be analyzed
+     * @param constPool The constant pool for the instructions
+     * @param method The analyzed method
+     * @param excTab The exception table of the analyzed method
+     */
+    public Escapes(AppInfo app, InstructionList il, ConstantPoolGen constPool,
+                   Method method, CodeException [] excTab) {
+        this.app = app;
+        this.constPool = constPool;
+
+        int paramCount = method.getArgumentTypes().length + (method.isStatic() ? 0 : 1);
+
+        // subroutines are not supported, assume the worst
+        for (Instruction i : il.getInstructions()) {
+            if (i instanceof JsrInstruction || i instanceof RET) {
+                escapingParams.set(0, paramCount);
+                returnedParams.set(0, paramCount);
+                return;
+            }
+        }
+
+        analyze(il, method, excTab);
+
+        for (InstructionHandle ih : il.getInstructionHandles()) {
+            State in = stateMap.get(ih.getPosition());
+            if (in != null) {
+                collect(ih.getPosition(), ih.getInstruction(), in);
+            }
+        }
+
+        LiveLocals liveMap = new LiveLocals(il, excTab);
+        for (InstructionHandle ih : il.getInstructionHandles()) {
+            int pos = ih.getPosition();
+            State in = stateMap.get(pos);
+            if (in == null || escapingSites.contains(pos) || !isAllocation(ih, in)) {
+                continue;
+            }
+            if (!isReused(pos, in, liveMap.get(pos))) {
+                stackSites.add(pos);
+            }
+        }
+    }
+
+    /**
+     * Compute the sources of all values with a forward data flow analysis.
+     * @param il The list of instructions to be analyzed
+     * @param method The analyzed method
+     * @param excTab The exception table of the analyzed method
+     */
+    private void analyze(InstructionList il, Method method, CodeException [] excTab) {
+        Queue<Integer> queue = new LinkedList<Integer>();
+
+        State start = new State(new ArrayList<Set<Integer>>(), new LinkedList<Set<Integer>>());
+        int index = 0;
+        int param = 0;
+        if (!method.isStatic()) {
+            start.setLocal(index++, source(-(param++)-1));
+        }
+        for (Type t : method.getArgumentTypes()) {
+            if (t instanceof ReferenceType) {
+                start.setLocal(index, source(-param-1));
+            }
+            index += t.getSize();
+            param++;
+        }
+        int pos = il.getStart().getPosition();
+        stateMap.put(pos, start);
+        queue.add(pos);
+
+        while (!queue.isEmpty()) {
+            pos = queue.remove();
+            Instruction i = il.findHandle(pos).getInstruction();
+            State in = stateMap.get(pos);
+
+            // an exception handler may be entered from anywhere in its range
+            if (excTab != null) {
+                for (CodeException exc : excTab) {
+                    if (exc.getStartPC() <= pos && pos < exc.getEndPC()) {
+                        LinkedList<Set<Integer>> stack = new LinkedList<Set<Integer>>();
+                        stack.push(other());
+                        update(queue, exc.getHandlerPC(), new State(in.locals, stack));
+                    }
+                }
+            }
+
+            State out = in.copy();
+            updateState(out, pos, i);
+            updateQueue(queue, pos, i, out);
+        }
+    }
+
+    /**
+     * Update the current state according to the semantics of the current instruction.
+     * @param state The current state (before analyzing the instruction)
+     * @param pos The current position in the code
+     * @param i The current instruction
+     */
+    private void updateState(State state, int pos, Instruction i) {
+        LinkedList<Set<Integer>> stack = state.stack;
+
+        if (i instanceof ALOAD) {
+            stack.push(state.getLocal(((ALOAD)i).getIndex()));
+        } else if (i instanceof StoreInstruction) {
+            StoreInstruction si = (StoreInstruction)i;
+            Set<Integer> value = stack.peek();
+            for (int k = 0; k < i.consumeStack(constPool); k++) {
+                stack.pop();
+            }
+            for (int k = 0; k < si.getType(constPool).getSize(); k++) {
+                state.setLocal(si.getIndex()+k, other());
+            }
+            if (i instanceof ASTORE) {
+                state.setLocal(si.getIndex(), value);
+            }
+        } else if (i instanceof CHECKCAST) {
+            // the value remains unchanged
+        } else if (StackTypes.shuffle(stack, i)) {
+            // only stack slots were rearranged
+        } else if (i instanceof NEW || i instanceof NEWARRAY || i instanceof ANEWARRAY) {
+            for (int k = 0; k < i.consumeStack(constPool); k++) {
+                stack.pop();
+            }
+            stack.push(source(pos));
+            if (i instanceof NEW) {
+                newTypes.put(pos, ((NEW)i).getType(constPool).toString());
+            }
+        } else if (i instanceof InvokeInstruction) {
+            InvokeInstruction ii = (InvokeInstruction)i;
+            Summary callee = getCallee(ii);
+            List<Set<Integer>> args = getArgs(stack, ii);
+            for (int k = 0; k < i.consumeStack(constPool); k++) {
+                stack.pop();
+            }
+            Set<Integer> result = other();
+            for (int k = 0; k < args.size(); k++) {
+                if (args.get(k) != null && (callee == null || callee.isReturned(k))) {
+                    result = union(result, args.get(k));
+                }
+            }
+            int size = i.produceStack(constPool);
+            for (int k = 0; k < size; k++) {
+                stack.push(k == 0 ? result : other());
+            }
+        } else {
+            for (int k = 0; k < i.consumeStack(constPool); k++) {
+                stack.pop();
+            }
+            for (int k = 0; k < i.produceStack(constPool); k++) {
+                stack.push(other());
+            }
+        }
+    }
+
+    /**
+     * Record how an instruction uses the values it consumes.
+     * @param pos The current position in the code
+     * @param i The current instruction
+     * @param in The state before the instruction
+     */
+    private void collect(int pos, Instruction i, State in) {
+        LinkedList<Set<Integer>> stack = in.stack;
+
+        if (i instanceof PUTFIELD) {
+            Type type = ((PUTFIELD)i).getFieldType(constPool);
+            if (type instanceof ReferenceType) {
+                escape(stack.get(0));
+            }
+            useField(stack.get(type.getSize()));
+        } else if (i instanceof GETFIELD) {
+            useField(stack.get(0));
+        } else if (i instanceof PUTSTATIC || i instanceof AASTORE
+                   || i instanceof ATHROW
+                   || i instanceof MONITORENTER || i instanceof MONITOREXIT) {
+            escape(stack.get(0));
+            for (int k = 1; k < i.consumeStack(constPool); k++) {
+                use(stack.get(k));
+            }
+        } else if (i instanceof ARETURN) {
+            for (int src : stack.get(0)) {
+                if (src >= 0) {
+                    escapingSites.add(src);
+                } else if (src != OTHER) {
+                    returnedParams.set(-src-1);
+                }
+            }
+        } else if (i instanceof InvokeInstruction) {
+            InvokeInstruction ii = (InvokeInstruction)i;
+            Summary callee = getCallee(ii);
+            List<Set<Integer>> args = getArgs(stack, ii);
+            for (int k = 0; k < args.size(); k++) {
+                if (args.get(k) != null) {
+                    if (callee == null || callee.escapes(k)) {
+                        escape(args.get(k));
+                    } else {
+                        use(args.get(k));
+                    }
+                }
+            }
+        } else if (i instanceof StoreInstruction || i instanceof IFNULL || i instanceof IFNONNULL
+                   || i instanceof POP || i instanceof POP2 || i instanceof StackInstruction) {
+            // the values are neither dereferenced nor stored
+        } else {
+            for (int k = 0; k < i.consumeStack(constPool) && k < stack.size(); k++) {
+                use(stack.get(k));
+            }
+        }
+    }
+
+    /**
+     * Get the sources of the reference arguments of an invocation.
+     * @param stack The stack before the invocation, with the topmost slot first
+     * @param ii The invoke instruction
+     * @return The sources of the arguments, counting the receiver as
+     * argument 0; null for arguments that are not references
+     */
+    private List<Set<Integer>> getArgs(LinkedList<Set<Integer>> stack, InvokeInstruction ii) {
+        Type [] argTypes = ii.getArgumentTypes(constPool);
+        List<Set<Integer>> args = new LinkedList<Set<Integer>>();
+        int slot = 0;
+        for (int k = argTypes.length-1; k >= 0; k--) {
+            slot += argTypes[k].getSize();
+            args.add(0, argTypes[k] instanceof ReferenceType ? stack.get(slot-1) : null);
+        }
+        if (!(ii instanceof INVOKESTATIC)) {
+            args.add(0, stack.get(slot));
+        }
+        return args;
+    }
+
+    /**
+     * Find the summary for the method that is invoked by an instruction.
+     * @param ii The invoke instruction
+     * @return The summary of the invoked method or the combined
+     * summary of the methods that may be invoked, null if the code of
+     * an invoked method is not available
+     */
+    private Summary getCallee(InvokeInstruction ii) {
+        int opcode = ii.getOpcode();
+        if (opcode == Constants.INVOKEINTERFACE) {
+            return null;
+        }
+
+        String methName = ii.getMethodName(constPool);
+        String signature = ii.getSignature(constPool);
+        AbstractClassInfo ci = app.getClassInfo(ii.getReferenceType(constPool).toString());
+        if (ci == null) {
+            return null;
+        }
+        if (opcode == Constants.INVOKEVIRTUAL
+            && app.getVirtualMethods().contains(ci.getName()+"."+methName+signature)) {
+            return app.getVirtualEscapes(ci, methName, signature);
+        }
+
+        ci = ci.findMethodDeclarator(ci, methName, signature);
+        if (ci == null) {
+            return null;
+        }
+        return app.getEscapes(ci.getName()+"."+methName+signature);
+    }
+
+    /**
+     * Check whether an instruction allocates an object or array that
+     * can be allocated on the stack.
+     * @param ih The instruction
+     * @param in The state before the instruction
+     * @return true if the instruction allocates an object or an array
+     * of constant length that is small enough
+     */
+    private boolean isAllocation(InstructionHandle ih, State in) {
+        Instruction i = ih.getInstruction();
+        if (i instanceof NEW) {
+            return true;
+        }
+        if (!(i instanceof NEWARRAY || i instanceof ANEWARRAY)
+            || ih.hasTargeters() || ih.getPrev() == null) {
+            return false;
+        }
+        Instruction prev = ih.getPrev().getInstruction();
+        if (!(prev instanceof ConstantPushInstruction)) {
+            return false;
+        }
+        int length = ((ConstantPushInstruction)prev).getValue().intValue();
+        Type type;
+        if (i instanceof NEWARRAY) {
+            type = ((NEWARRAY)i).getType();
+        } else {
+            type = new ArrayType(((ANEWARRAY)i).getType(constPool), 1);
+        }
+        if (length < 0 || length * getElementSize(type) > MAX_STACK_ARRAY) {
+            return false;
+        }
+        arrayLengths.put(ih.getPosition(), length);
+        return true;
+    }
+
+    /**
+     * Check whether the object allocated at a site may still be live
+     * when the site is executed again.
+     * @param pos The position of the allocation site
+     * @param in The state before the allocation
+     * @param live The local variables that are live before the allocation
+     * @return true if a previously allocated object may still be used
+     */
+    private boolean isReused(int pos, State in, BitSet live) {
+        for (Set<Integer> s : in.stack) {
+            if (s.contains(pos)) {
+                return true;
+            }
+        }
+        for (int k = 0; k < in.locals.size(); k++) {
+            if (in.locals.get(k).contains(pos) && live.get(k)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Record that values escape.
+     * @param sources The sources of the values
+     */
+    private void escape(Set<Integer> sources) {
+        for (int src : sources) {
+            if (src >= 0) {
+                escapingSites.add(src);
+            } else if (src != OTHER) {
+                escapingParams.set(-src-1);
+            }
+        }
+    }
+
+    /**
+     * Record that values are used other than to access their fields.
+     * @param sources The sources of the values
+     */
+    private void use(Set<Integer> sources) {
+        for (int src : sources) {
+            if (src >= 0) {
+                nonScalarSites.add(src);
+            }
+        }
+    }
+
+    /**
+     * Record that values are used to access a field.
+     * @param sources The sources of the values
+     */
+    private void useField(Set<Integer> sources) {
+        if (sources.size() != 1) {
+            use(sources);
+        }
+    }
+
+    /**
+     * Merge a state into the state at a position, and queue the
+     * position for analysis if its state changed.
+     * @param queue The queue of positions to be analyzed
+     * @param target The position to be updated
+     * @param state The state to be merged
+     */
+    private void update(Queue<Integer> queue, int target, State state) {
+        State old = stateMap.get(target);
+        if (old == null) {
+            stateMap.put(target, state.copy());
+            queue.add(target);
+        } else if (old.merge(state) && !queue.contains(target)) {
+            queue.add(target);
+        }
+    }
+
+    /**
+     * Update the states of the successors of an instruction.
+     * @param queue The queue of positions to be analyzed
+     * @param pos The current position in the code
+     * @param i The current instruction
+     * @param out The computed state
+     */
+    private void updateQueue(Queue<Integer> queue, int pos, Instruction i, State out) {
+        if (i instanceof Select) {
+            Select s = (Select)i;
+            for (int idx : s.getIndices()) {
+                update(queue, pos + idx, out);
+            }
+        }
+        if (i instanceof BranchInstruction) {
+            BranchInstruction bi = (BranchInstruction)i;
+            update(queue, pos + bi.getIndex(), out);
+        }
+        if (!(i instanceof ReturnInstruction ||
+              i instanceof Select ||
+              i instanceof UnconditionalBranch)) {
+            update(queue, pos + i.getLength(), out);
+        }
+    }
+
+    private static Set<Integer> other() {
+        return source(OTHER);
+    }
+
+    private static Set<Integer> source(int src) {
+        Set<Integer> s = new LinkedHashSet<Integer>();
+        s.add(src);
+        return s;
+    }
+
+    private static Set<Integer> union(Set<Integer> a, Set<Integer> b) {
+        Set<Integer> s = new LinkedHashSet<Integer>(a);
+        s.addAll(b);
+        return s;
+    }
+
+    /**
+     * Get the size of the elements of an array type.
+     * @param type The array type
+     * @return The size of an element in bytes
+     */
+    public static int getElementSize(Type type) {
+        switch (type.getSignature()) {
+        case "[Z": case "[B":
+            return 1;
+        case "[C": case "[S":
+            return 2;
+        case "[J": case "[D":
+            return 8;
+        default:
+            return 4;
+        }
+    }
+
+    /**
+     * Get the summary of the parameters for the analyzed method.
+     * @return Which parameters escape and which may be returned
+     */
+    public Summary getSummary() {
+        return new Summary((BitSet)escapingParams.clone(), (BitSet)returnedParams.clone());
+    }
+
+    /**
+     * Get the allocation sites whose objects are allocated on the stack.
+     * @return The positions of the allocation sites
+     */
+    public Set<Integer> getStackAllocations() {
+        return stackSites;
+    }
+
+    /**
+     * Check whether the object allocated at a site is allocated on the stack.
+     * @param pos The position of the allocation site
+     * @return true if the object can be allocated on the stack
+     */
+    public boolean isStackAllocated(int pos) {
+        return stackSites.contains(pos);
+    }
+
+    /**
+     * Check whether the object allocated at a site is replaced by
+     * variables for its fields.
+     * @param pos The position of the allocation site
+     * @return true if the fields of the object can be held in variables
+     */
+    public boolean isScalarReplaced(int pos) {
+        return stackSites.contains(pos) && !nonScalarSites.contains(pos)
+            && !arrayLengths.containsKey(pos);
+    }
+
+    /**
+     * Get the length of an array allocated on the stack.
+     * @param pos The position of the allocation site
+     * @return The constant length of the array
+     */
+    public int getArrayLength(int pos) {
+        return arrayLengths.get(pos);
+    }
+
+    /**
+     * Get the scalar replaced object that a field access refers to.
+     * @param pos The position of the GETFIELD or PUTFIELD instruction
+     * @param slot The stack slot of the object, counting from the top of the stack
+     * @return The position of the allocation site, -1 if the object
+     * is not scalar replaced
+     */
+    public int getScalarSite(int pos, int slot) {
+        State state = stateMap.get(pos);
+        if (state == null) {
+            return -1;
+        }
+        Set<Integer> sources = state.stack.get(slot);
+        if (sources.size() == 1) {
+            int src = sources.iterator().next();
+            if (src >= 0 && isScalarReplaced(src)) {
+                return src;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the classes of the objects that a stack slot may refer to,
+     * if the objects are known to come from NEW instructions.
+     * @param pos The position in the code
+     * @param slot The stack slot, counting from the top of the stack
+     * @return The names of the possible classes, null if the slot
+     * may refer to objects from elsewhere
+     */
+    public Set<String> getAllocatedTypes(int pos, int slot) {
+        State state = stateMap.get(pos);
+        if (state == null) {
+            return null;
+        }
+        Set<String> types = new LinkedHashSet<String>();
+        for (int src : state.stack.get(slot)) {
+            String type = newTypes.get(src);
+            if (type == null) {
+                return null;
+            }
+            types.add(type);
+        }
+        return types;
+    }
+}
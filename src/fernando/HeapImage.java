@@ -0,0 +1,1489 @@
+/*
+   Copyright 2015 Technical University of Denmark, DTU Compute.
+   All rights reserved.
+
+   This file is part of the ahead-of-time bytecode compiler Fernando.
+
+   Redistribution and use in source and binary forms, with or without
+   modification, are permitted provided that the following conditions are met:
+
+      1. Redistributions of source code must retain the above copyright notice,
+         this list of conditions and the following disclaimer.
+
+      2. Redistributions in binary form must reproduce the above copyright
+         notice, this list of conditions and the following disclaimer in the
+         documentation and/or other materials provided with the distribution.
+
+   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER ``AS IS'' AND ANY EXPRESS
+   OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+   OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+   NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+   DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+   (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+   LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+   (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+   THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+   The views and conclusions contained in the software and documentation are
+   those of the authors and should not be interpreted as representing official
+   policies, either expressed or implied, of the copyright holder.
+*/
+
+
+package fernando;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.classfile.*;
+import org.apache.bcel.generic.*;
+
+import java.io.PrintWriter;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Evaluation of class initializers at build time. The class
+ * initializers are interpreted in initialization order, until an
+ * initializer uses a feature that is not supported by the interpreter
+ * (e.g., native code other than a few known functions, exceptions or
+ * monitors). Initializers may only modify the static fields of their
+ * own class and the objects they allocate themselves, such that a
+ * failed attempt leaves no trace. The objects that are reachable
+ * from the static fields of the initialized classes form the heap
+ * image, which is emitted as statically initialized C data; objects
+ * that are never written at run time are emitted as constants, such
+ * that they end up in read-only memory.
+ */
+public class HeapImage {
+
+    /** The maximum number of bytecodes to evaluate per class initializer. */
+    private static final int MAX_STEPS = 1000000;
+    /** The maximum length of arrays in the heap image. */
+    private static final int MAX_ARRAY_LENGTH = 65536;
+
+    /** A marker for the second slot of long and double values. */
+    private static final Object TOP = new Object();
+
+    /**
+     * Signals that code cannot be evaluated at build time.
+     */
+    private static class NotEvaluable extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        NotEvaluable(String reason) {
+            super(reason);
+        }
+    }
+
+    /**
+     * A reference to a string in the string pool.
+     */
+    private static class StringRef {
+        /** The index in the string pool. */
+        final int index;
+
+        StringRef(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof StringRef && ((StringRef)o).index == index;
+        }
+
+        @Override
+        public int hashCode() {
+            return index;
+        }
+    }
+
+    /**
+     * An object or array in the heap image.
+     */
+    private static class HeapObject {
+        /** The class of the object. */
+        final AbstractClassInfo type;
+        /** The class whose initializer allocated the object. */
+        final AbstractClassInfo owner;
+        /** The field values of an object, null for arrays. */
+        final Map<String, Object> fields;
+        /** The elements of an array, null for objects. */
+        final Object [] elements;
+        /** The index in the heap image. */
+        int index = -1;
+        /** Whether the object may be written at run time. */
+        boolean mutable;
+
+        HeapObject(AbstractClassInfo type, AbstractClassInfo owner, Map<String, Object> fields, Object [] elements) {
+            this.type = type;
+            this.owner = owner;
+            this.fields = fields;
+            this.elements = elements;
+        }
+    }
+
+    /** The application being compiled. */
+    private final AppInfo app;
+    /** The string pool. */
+    private final Map<String, Integer> stringPool;
+
+    /** The classes that are initialized at build time. */
+    private final Set<AbstractClassInfo> initialized = new LinkedHashSet<AbstractClassInfo>();
+    /** The values of the static fields of initialized classes. */
+    private final Map<String, Object> statics = new LinkedHashMap<String, Object>();
+    /** The objects in the heap image. */
+    private final List<HeapObject> objects = new LinkedList<HeapObject>();
+    /** The parsed code of interpreted methods, by fully qualified name. */
+    private final Map<String, InstructionList> codeMap = new LinkedHashMap<String, InstructionList>();
+
+    /** The class whose initializer is being evaluated. */
+    private AbstractClassInfo current;
+    /** The values of the static fields of the current class. */
+    private Map<String, Object> currentStatics;
+    /** The number of bytecodes evaluated for the current class. */
+    private int steps;
+
+    /**
+     * Constructor.
+     * @param app The application
+     * @param stringPool The string pool, to which string constants are added
+     */
+    public HeapImage(AppInfo app, Map<String, Integer> stringPool) {
+        this.app = app;
+        this.stringPool = stringPool;
+    }
+
+    /**
+     * Evaluate the class initializers and build the heap image. The
+     * evaluation stops at the first initializer that cannot be
+     * evaluated, such that the remaining initializers execute at run
+     * time in the original order.
+     * @param order The classes with initializers, in initialization order
+     */
+    public void initialize(List<AbstractClassInfo> order) {
+        for (AbstractClassInfo ci : order) {
+            current = ci;
+            currentStatics = new LinkedHashMap<String, Object>();
+            steps = 0;
+            for (Field f : Filter.statics(ci.getFields())) {
+                currentStatics.put(getKey(ci, f.getName()), getInitialValue(f));
+            }
+            try {
+                invoke(ci, ci.findClinit(), new Object [0]);
+            } catch (NotEvaluable exc) {
+                Logger.getGlobal().fine("Initializing "+ci.getName()+" at run time: "+exc.getMessage());
+                break;
+            }
+            statics.putAll(currentStatics);
+            initialized.add(ci);
+        }
+        current = null;
+        currentStatics = null;
+        codeMap.clear();
+
+        Queue<Object> queue = new LinkedList<Object>(statics.values());
+        while (!queue.isEmpty()) {
+            Object v = queue.remove();
+            if (v instanceof HeapObject && ((HeapObject)v).index < 0) {
+                HeapObject obj = (HeapObject)v;
+                obj.index = objects.size();
+                objects.add(obj);
+                queue.addAll(obj.fields != null ? obj.fields.values() : Arrays.asList(obj.elements));
+            }
+        }
+    }
+
+    /**
+     * Check whether a class is initialized at build time.
+     * @param ci The class
+     * @return true if the class initializer was evaluated at build time
+     */
+    public boolean isInitialized(AbstractClassInfo ci) {
+        return initialized.contains(ci);
+    }
+
+    /**
+     * Find the objects in the heap image that may be written at run
+     * time. An object may be written if the code writes one of its
+     * non-final fields outside of constructors, if a native method of
+     * its class may write it, or, unless lock words are kept outside
+     * of objects, if objects of its type may be locked. Stores into
+     * arrays are attributed to the fields that the arrays are loaded
+     * from, including the fields whose values are copied there; if
+     * that is not known, the store may write any array of its type.
+     * Native methods may write any array that is passed to them.
+     * Arrays that are only referenced as the values of strings are
+     * never written, like the values in the string pool.
+     * @param classes The classes of the application
+     */
+    public void findMutable(Collection<AbstractClassInfo> classes) {
+        // the fields that are written, the fields whose arrays are
+        // written, the array types that may be written anywhere, and
+        // the types of objects that may be written or locked anywhere
+        Set<String> fields = new LinkedHashSet<String>();
+        Set<String> stored = new LinkedHashSet<String>();
+        Set<String> arrays = new LinkedHashSet<String>();
+        Set<String> types = new LinkedHashSet<String>();
+        // the fields from which arrays are loaded for stores, the
+        // fields whose values are copied to other fields, and the
+        // fields that may hold arrays of unknown origin
+        List<Map.Entry<String, Set<String>>> stores = new LinkedList<Map.Entry<String, Set<String>>>();
+        Map<String, Set<String>> copies = new LinkedHashMap<String, Set<String>>();
+        Set<String> unknown = new LinkedHashSet<String>();
+
+        for (AbstractClassInfo ci : classes) {
+            ConstantPoolGen cp = ci.getConstPool();
+            for (Method m : ci.getMethods()) {
+                if (!app.isLive(ci, m)
+                    || (initialized.contains(ci) && m.getName().equals("<clinit>"))) {
+                    continue;
+                }
+                // native methods only write their receivers and arrays
+                // that are passed to them; the natives of Object only
+                // read or lock their receivers
+                if (m.isNative()) {
+                    if (!m.isStatic() && !ci.getName().equals("java.lang.Object")) {
+                        types.add(ci.getName());
+                    }
+                    for (Type t : m.getArgumentTypes()) {
+                        if (t instanceof ArrayType) {
+                            arrays.add(t.toString());
+                        }
+                    }
+                    continue;
+                }
+                if (m.isSynchronized() && !m.isStatic() && !app.hasCompactHeaders()) {
+                    types.add(ci.getName());
+                }
+                Code code = m.getCode();
+                if (code == null) {
+                    continue;
+                }
+                InstructionList il = new InstructionList(code.getCode());
+                Set<Integer> handlers = new LinkedHashSet<Integer>();
+                for (CodeException exc : code.getExceptionTable()) {
+                    handlers.add(exc.getHandlerPC());
+                }
+                for (InstructionHandle ih : il.getInstructionHandles()) {
+                    Instruction i = ih.getInstruction();
+                    if (i instanceof PUTFIELD || i instanceof PUTSTATIC) {
+                        FieldInstruction fi = (FieldInstruction)i;
+                        String key = getFieldKey(fi, cp);
+                        if (key == null) {
+                            continue;
+                        }
+                        if (i instanceof PUTFIELD
+                            && !(key.equals(getKey(ci, fi.getFieldName(cp)))
+                                 && m.getName().equals("<init>")
+                                 && ci.findField(fi.getFieldName(cp)).isFinal())) {
+                            fields.add(key);
+                        }
+                        if (fi.getFieldType(cp) instanceof ReferenceType) {
+                            Set<String> origin = getOrigin(m, il, ih, 0, cp, handlers, new LinkedHashSet<Integer>());
+                            if (origin == null) {
+                                unknown.add(key);
+                            } else {
+                                if (!copies.containsKey(key)) {
+                                    copies.put(key, new LinkedHashSet<String>());
+                                }
+                                copies.get(key).addAll(origin);
+                            }
+                        }
+                    } else if (i instanceof ArrayInstruction && i instanceof StackConsumer
+                               && !(i instanceof StackProducer)) {
+                        // the array is below the index and the value
+                        int depth = ((ArrayInstruction)i).getType(cp).getSize()+1;
+                        String type = i instanceof AASTORE ? null : ((ArrayInstruction)i).getType(cp)+"[]";
+                        Set<String> origin = getOrigin(m, il, ih, depth, cp, handlers, new LinkedHashSet<Integer>());
+                        stores.add(new AbstractMap.SimpleImmutableEntry<String, Set<String>>(type, origin));
+                    } else if (i instanceof MONITORENTER && !app.hasCompactHeaders()) {
+                        types.add(getLockedType(ci, m, il, ih, cp));
+                    }
+                }
+            }
+        }
+
+        // attribute stores to the fields from which the arrays may
+        // have been copied, or to all arrays of the type
+        boolean refArrays = false;
+        for (Map.Entry<String, Set<String>> store : stores) {
+            Set<String> sources = store.getValue() != null ? getSources(store.getValue(), copies, unknown) : null;
+            if (sources != null) {
+                stored.addAll(sources);
+            } else if (store.getKey() == null) {
+                refArrays = true;
+            } else {
+                arrays.add(store.getKey());
+                if (store.getKey().equals("byte[]")) {
+                    arrays.add("boolean[]");
+                }
+            }
+        }
+
+        // the fields that refer to arrays, and the arrays that are
+        // referenced other than as values of strings
+        Map<HeapObject, Set<String>> referrers = new LinkedHashMap<HeapObject, Set<String>>();
+        Set<HeapObject> shared = new LinkedHashSet<HeapObject>();
+        for (Map.Entry<String, Object> e : statics.entrySet()) {
+            addReferrer(referrers, shared, e.getKey(), e.getValue());
+        }
+        for (HeapObject obj : objects) {
+            if (obj.fields != null) {
+                for (Map.Entry<String, Object> e : obj.fields.entrySet()) {
+                    addReferrer(referrers, shared, e.getKey(), e.getValue());
+                }
+            } else {
+                for (Object v : obj.elements) {
+                    addReferrer(referrers, shared, null, v);
+                }
+            }
+        }
+
+        for (HeapObject obj : objects) {
+            String name = obj.type.getName();
+            for (String t : types) {
+                obj.mutable |= isAssignable(name, t);
+            }
+            if (obj.fields != null) {
+                for (Map.Entry<String, Field> e : getInstanceFields(obj.type)) {
+                    obj.mutable |= fields.contains(e.getKey());
+                }
+            } else if (shared.contains(obj)) {
+                obj.mutable |= arrays.contains(name)
+                    || (refArrays && getElementType(obj.type) instanceof ReferenceType);
+                if (referrers.containsKey(obj)) {
+                    for (String key : referrers.get(obj)) {
+                        obj.mutable |= key != null && stored.contains(key);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the fields whose values may have been copied to some fields.
+     * @param keys The keys of the fields
+     * @param copies The fields whose values are copied to each field
+     * @param unknown The fields that may hold values of unknown origin
+     * @return The keys of the fields and the fields copied there, null
+     * if one of them may hold values of unknown origin
+     */
+    private static Set<String> getSources(Set<String> keys, Map<String, Set<String>> copies, Set<String> unknown) {
+        Set<String> sources = new LinkedHashSet<String>(keys);
+        Queue<String> queue = new LinkedList<String>(keys);
+        while (!queue.isEmpty()) {
+            String key = queue.remove();
+            if (unknown.contains(key)) {
+                return null;
+            }
+            if (copies.containsKey(key)) {
+                for (String k : copies.get(key)) {
+                    if (sources.add(k)) {
+                        queue.add(k);
+                    }
+                }
+            }
+        }
+        return sources;
+    }
+
+    /**
+     * Record a reference to an array in the heap image.
+     * @param referrers The fields that refer to arrays, null for array elements
+     * @param shared The arrays that are referenced other than as values of strings
+     * @param key The key of the field that holds the reference, null for array elements
+     * @param v The referenced value
+     */
+    private static void addReferrer(Map<HeapObject, Set<String>> referrers, Set<HeapObject> shared,
+                                    String key, Object v) {
+        if (!(v instanceof HeapObject) || ((HeapObject)v).elements == null) {
+            return;
+        }
+        HeapObject arr = (HeapObject)v;
+        if (!referrers.containsKey(arr)) {
+            referrers.put(arr, new LinkedHashSet<String>());
+        }
+        referrers.get(arr).add(key);
+        if (!"java.lang.String.value".equals(key)) {
+            shared.add(arr);
+        }
+    }
+
+    /**
+     * Get the key of the field that is accessed by an instruction.
+     * @param fi The instruction
+     * @param cp The constant pool
+     * @return The key of the field, null if the field is not found
+     */
+    private String getFieldKey(FieldInstruction fi, ConstantPoolGen cp) {
+        AbstractClassInfo ci = app.getClassInfo(fi.getReferenceType(cp).toString());
+        String name = fi.getFieldName(cp);
+        AbstractClassInfo decl = ci != null ? ci.findFieldDeclarator(ci, name) : null;
+        return decl != null ? getKey(decl, name) : null;
+    }
+
+    /**
+     * Find the fields from which a reference on the operand stack may
+     * have been loaded.
+     * @param m The method
+     * @param il The instructions of the method
+     * @param ih The instruction that consumes the reference
+     * @param depth The stack slot of the reference before the instruction, 0 for the top
+     * @param cp The constant pool
+     * @param handlers The positions of the exception handlers of the method
+     * @param visited The local variables whose origins are being determined
+     * @return The keys of the fields, which are empty for freshly
+     * allocated objects, null if the origin is not known
+     */
+    private Set<String> getOrigin(Method m, InstructionList il, InstructionHandle ih, int depth,
+                                  ConstantPoolGen cp, Set<Integer> handlers, Set<Integer> visited) {
+        InstructionHandle p = findProducer(ih, depth, cp, handlers);
+        if (p == null) {
+            return null;
+        }
+        Instruction i = p.getInstruction();
+        Set<String> origin = new LinkedHashSet<String>();
+        if (i instanceof GETFIELD || i instanceof GETSTATIC) {
+            String key = getFieldKey((FieldInstruction)i, cp);
+            if (key == null) {
+                return null;
+            }
+            origin.add(key);
+        } else if (i instanceof ALOAD) {
+            // local variables other than parameters hold what is stored there
+            int index = ((ALOAD)i).getIndex();
+            int params = m.isStatic() ? 0 : 1;
+            for (Type t : m.getArgumentTypes()) {
+                params += t.getSize();
+            }
+            if (index < params) {
+                return null;
+            }
+            if (!visited.add(index)) {
+                return origin;
+            }
+            for (InstructionHandle h : il.getInstructionHandles()) {
+                if (h.getInstruction() instanceof ASTORE && ((ASTORE)h.getInstruction()).getIndex() == index) {
+                    Set<String> o = getOrigin(m, il, h, 0, cp, handlers, visited);
+                    if (o == null) {
+                        return null;
+                    }
+                    origin.addAll(o);
+                }
+            }
+        } else if (!(i instanceof AllocationInstruction || i instanceof ACONST_NULL)) {
+            return null;
+        }
+        return origin;
+    }
+
+    /**
+     * Find the instruction that pushes a value onto the operand stack,
+     * looking back through straight-line code.
+     * @param ih The instruction that consumes the value
+     * @param depth The stack slot of the value before the instruction, 0 for the top
+     * @param cp The constant pool
+     * @param handlers The positions of the exception handlers of the method
+     * @return The instruction, null if it cannot be determined
+     */
+    private static InstructionHandle findProducer(InstructionHandle ih, int depth, ConstantPoolGen cp, Set<Integer> handlers) {
+        InstructionHandle h = ih;
+        int d = depth;
+        while (!h.hasTargeters() && !handlers.contains(h.getPosition())) {
+            InstructionHandle prev = h.getPrev();
+            if (prev == null) {
+                return null;
+            }
+            Instruction i = prev.getInstruction();
+            if (i instanceof UnconditionalBranch
+                || i instanceof ReturnInstruction
+                || i instanceof Select) {
+                return null;
+            }
+            int produced = i.produceStack(cp);
+            if (d >= produced) {
+                d += i.consumeStack(cp) - produced;
+            } else if (i instanceof DUP) {
+                d = 0;
+            } else if (i instanceof DUP2) {
+                d %= 2;
+            } else if (i instanceof StackInstruction) {
+                return null;
+            } else {
+                return prev;
+            }
+            h = prev;
+        }
+        return null;
+    }
+
+    /**
+     * Get the type of the object that is locked by a MONITORENTER
+     * bytecode. The type is taken from the instruction that pushes the
+     * object, which javac emits right before duplicating the object
+     * and storing it for the matching MONITOREXIT.
+     * @param ci The class declaring the method
+     * @param m The method
+     * @param il The instructions of the method
+     * @param ih The MONITORENTER bytecode
+     * @param cp The constant pool
+     * @return The name of the type of the locked object, java.lang.Object if unknown
+     */
+    private static String getLockedType(AbstractClassInfo ci, Method m, InstructionList il,
+                                        InstructionHandle ih, ConstantPoolGen cp) {
+        InstructionHandle store = ih.getPrev();
+        InstructionHandle dup = store != null ? store.getPrev() : null;
+        InstructionHandle push = dup != null ? dup.getPrev() : null;
+        if (push == null || ih.hasTargeters() || store.hasTargeters() || dup.hasTargeters()
+            || !(store.getInstruction() instanceof ASTORE) || !(dup.getInstruction() instanceof DUP)) {
+            return "java.lang.Object";
+        }
+        Instruction i = push.getInstruction();
+        if (i instanceof GETFIELD || i instanceof GETSTATIC) {
+            return ((FieldInstruction)i).getFieldType(cp).toString();
+        } else if (i instanceof InvokeInstruction) {
+            return ((InvokeInstruction)i).getReturnType(cp).toString();
+        } else if (i instanceof CHECKCAST) {
+            return ((CHECKCAST)i).getType(cp).toString();
+        } else if (i instanceof NEW) {
+            return ((NEW)i).getType(cp).toString();
+        } else if (i instanceof ALOAD && ((ALOAD)i).getIndex() == 0 && !m.isStatic()) {
+            // the receiver, unless the method overwrites it
+            for (InstructionHandle h : il.getInstructionHandles()) {
+                if (h.getInstruction() instanceof ASTORE && ((ASTORE)h.getInstruction()).getIndex() == 0) {
+                    return "java.lang.Object";
+                }
+            }
+            return ci.getName();
+        }
+        return "java.lang.Object";
+    }
+
+    /**
+     * Get the C initializer for a static field of a class that is
+     * initialized at build time.
+     * @param ci The class
+     * @param f The static field
+     * @return The C expression for the value of the field
+     */
+    public String getStaticValue(AbstractClassInfo ci, Field f) {
+        return getConst(statics.get(getKey(ci, f.getName())));
+    }
+
+    /**
+     * Generate the C declarations for the heap image.
+     * @param out The file to write to
+     */
+    public void dumpDefs(PrintWriter out) {
+        if (objects.isEmpty()) {
+            return;
+        }
+        out.println("/* heap image */");
+        for (HeapObject obj : objects) {
+            if (obj.elements != null) {
+                Type elemType = getElementType(obj.type);
+                out.println("typedef struct {");
+                out.println("\tconst "+Lang.getClassType(obj.type)+" *type;");
+                if (!app.hasCompactHeaders()) {
+                    out.println("\tvolatile lock_t lock;");
+                }
+                out.println("\t"+Lang.getType(Type.INT)+" _0_length;");
+                if (obj.elements.length > 0) {
+                    out.println("\t"+Lang.getType(elemType)+" _1_data["+obj.elements.length+"];");
+                }
+                out.println("} heap_"+obj.index+"_t;");
+                out.println("extern "+getQualifier(obj)+"heap_"+obj.index+"_t heap_"+obj.index+";");
+            } else {
+                out.println("extern "+getQualifier(obj)+Lang.getObjType(obj.type)+" heap_"+obj.index+";");
+            }
+        }
+        out.println();
+    }
+
+    /**
+     * Generate the C code for the heap image.
+     * @param out The file to write to
+     */
+    public void dumpObjects(PrintWriter out) {
+        for (HeapObject obj : objects) {
+            if (obj.elements != null) {
+                boolean isRef = getElementType(obj.type) instanceof ReferenceType;
+                out.println(getQualifier(obj)+"heap_"+obj.index+"_t heap_"+obj.index+" = {");
+                out.println("\t.type = &"+Lang.getName(obj.type)+",");
+                out.println("\t._0_length = "+obj.elements.length+",");
+                if (obj.elements.length > 0) {
+                    out.print("\t._1_data = {");
+                    for (int i = 0; i < obj.elements.length; i++) {
+                        if (isRef || i % 8 == 0) {
+                            out.print("\n\t\t");
+                        } else {
+                            out.print(" ");
+                        }
+                        out.print(getConst(obj.elements[i])+(i < obj.elements.length-1 ? "," : ""));
+                    }
+                    out.println();
+                    out.println("\t}");
+                }
+            } else {
+                out.println(getQualifier(obj)+Lang.getObjType(obj.type)+" heap_"+obj.index+" = {");
+                out.println("\t.type = &"+Lang.getName(obj.type)+",");
+                int fieldIdx = 0;
+                for (Map.Entry<String, Field> e : getInstanceFields(obj.type)) {
+                    Field f = e.getValue();
+                    out.println("\t._"+fieldIdx+"_"+Lang.getField(f.getName())+" = "+getConst(obj.fields.get(e.getKey()))+",");
+                    fieldIdx += f.getType().getSize();
+                }
+            }
+            out.println("};");
+        }
+    }
+
+    /**
+     * Generate the C code for the table of the objects in the heap
+     * image. The objects are not collected, but may refer to objects
+     * that are.
+     * @param out The file to write to
+     */
+    public void dumpObjectTable(PrintWriter out) {
+        out.println("const void * const jvm_image[] = {");
+        for (HeapObject obj : objects) {
+            out.println("\t&heap_"+obj.index+",");
+        }
+        out.println("\t0");
+        out.println("};");
+    }
+
+    /**
+     * Get the C type qualifier for an object in the heap image.
+     * @param obj The object
+     * @return "const " if the object is never written, an empty string otherwise
+     */
+    private static String getQualifier(HeapObject obj) {
+        return obj.mutable ? "" : "const ";
+    }
+
+    /**
+     * Get a C constant for a value.
+     * @param v The value
+     * @return The C constant
+     */
+    private static String getConst(Object v) {
+        if (v == null) {
+            return "0";
+        } else if (v instanceof HeapObject) {
+            return "(int32_t)&heap_"+((HeapObject)v).index;
+        } else if (v instanceof StringRef) {
+            return "(int32_t)&stringPool["+((StringRef)v).index+"]";
+        } else if (v instanceof Float) {
+            return Lang.getFloatConst((Float)v);
+        } else if (v instanceof Double) {
+            return Lang.getDoubleConst((Double)v);
+        } else if (v instanceof Long) {
+            long l = (Long)v;
+            return l == Long.MIN_VALUE ? "(-9223372036854775807LL-1)" : l+"LL";
+        } else {
+            int i = (Integer)v;
+            return i == Integer.MIN_VALUE ? "(-2147483647-1)" : Integer.toString(i);
+        }
+    }
+
+    /**
+     * Get the key under which the value of a field is stored.
+     * @param ci The class declaring the field
+     * @param name The name of the field
+     * @return The key for the field
+     */
+    private static String getKey(AbstractClassInfo ci, String name) {
+        return ci.getName()+"."+name;
+    }
+
+    /**
+     * Get the instance fields of a class along with their keys, in
+     * the order of {@link AbstractClassInfo#getInstanceFields}.
+     * @param ci The class
+     * @return The list of keys and fields
+     */
+    private static List<Map.Entry<String, Field>> getInstanceFields(AbstractClassInfo ci) {
+        List<Map.Entry<String, Field>> fields = new LinkedList<Map.Entry<String, Field>>();
+        AbstractClassInfo superClass = ci.getSuperClass();
+        if (superClass != null) {
+            fields.addAll(getInstanceFields(superClass));
+        }
+        for (Field f : Filter.instances(ci.getFields())) {
+            fields.add(new AbstractMap.SimpleImmutableEntry<String, Field>(getKey(ci, f.getName()), f));
+        }
+        return fields;
+    }
+
+    /**
+     * Get the initial value of a static field, before the class initializer runs.
+     * @param f The field
+     * @return The initial value
+     */
+    private Object getInitialValue(Field f) {
+        ConstantValue cv = f.getConstantValue();
+        if (cv == null) {
+            return getDefaultValue(f.getType());
+        }
+        Constant c = cv.getConstantPool().getConstant(cv.getConstantValueIndex());
+        switch (c.getTag()) {
+        case Constants.CONSTANT_Integer:
+            return ((ConstantInteger)c).getBytes();
+        case Constants.CONSTANT_Long:
+            return ((ConstantLong)c).getBytes();
+        case Constants.CONSTANT_Float:
+            return ((ConstantFloat)c).getBytes();
+        case Constants.CONSTANT_Double:
+            return ((ConstantDouble)c).getBytes();
+        case Constants.CONSTANT_String:
+            int i = ((ConstantString)c).getStringIndex();
+            c = cv.getConstantPool().getConstant(i, Constants.CONSTANT_Utf8);
+            return getString(((ConstantUtf8)c).getBytes());
+        default:
+            throw new IllegalArgumentException("Invalid tag for ConstantValue: "+cv.getTag());
+        }
+    }
+
+    /**
+     * Get the default value for a type.
+     * @param type The type
+     * @return The default value
+     */
+    private static Object getDefaultValue(Type type) {
+        switch (type.getType()) {
+        case Constants.T_LONG:
+            return Long.valueOf(0);
+        case Constants.T_FLOAT:
+            return Float.valueOf(0);
+        case Constants.T_DOUBLE:
+            return Double.valueOf(0);
+        case Constants.T_OBJECT:
+        case Constants.T_ARRAY:
+            return null;
+        default:
+            return Integer.valueOf(0);
+        }
+    }
+
+    /**
+     * Get a reference to a string constant.
+     * @param str The string
+     * @return A reference to the string in the string pool
+     */
+    private StringRef getString(String str) {
+        if (!stringPool.containsKey(str)) {
+            stringPool.put(str, stringPool.size());
+        }
+        return new StringRef(stringPool.get(str));
+    }
+
+    /**
+     * Get the element type of an array class.
+     * @param ci The array class
+     * @return The type of the elements
+     */
+    private static Type getElementType(AbstractClassInfo ci) {
+        String name = ci.getName();
+        return Type.getType(Utility.getSignature(name.substring(0, name.length()-2)));
+    }
+
+    /**
+     * Look up a class.
+     * @param type The type of the class
+     * @return The class
+     * @throws NotEvaluable if the class cannot be found
+     */
+    private AbstractClassInfo getClassInfo(Type type) throws NotEvaluable {
+        AbstractClassInfo ci = app.getClassInfo(type.toString());
+        if (ci == null) {
+            throw new NotEvaluable("class "+type+" not found");
+        }
+        return ci;
+    }
+
+    /**
+     * Check that the static state of a class can be used at build time.
+     * @param ci The class
+     * @throws NotEvaluable if the class is initialized at run time
+     */
+    private void checkInitialized(AbstractClassInfo ci) throws NotEvaluable {
+        if (ci != current && !initialized.contains(ci) && ci.findClinit() != null) {
+            throw new NotEvaluable("class "+ci.getName()+" is initialized at run time");
+        }
+    }
+
+    /**
+     * Check that an object may be modified by the current class initializer.
+     * @param obj The object
+     * @throws NotEvaluable if the object was not allocated by the current class initializer
+     */
+    private void checkOwner(HeapObject obj) throws NotEvaluable {
+        if (obj.owner != current) {
+            throw new NotEvaluable("modification of object from "+obj.owner.getName());
+        }
+    }
+
+    /**
+     * Allocate an object.
+     * @param ci The class of the object
+     * @return The new object
+     */
+    private HeapObject newObject(AbstractClassInfo ci) {
+        Map<String, Object> fields = new LinkedHashMap<String, Object>();
+        for (Map.Entry<String, Field> e : getInstanceFields(ci)) {
+            fields.put(e.getKey(), getDefaultValue(e.getValue().getType()));
+        }
+        return new HeapObject(ci, current, fields, null);
+    }
+
+    /**
+     * Allocate a possibly multi-dimensional array.
+     * @param type The type of the array
+     * @param counts The lengths of the dimensions to allocate
+     * @param dim The current dimension
+     * @return The new array
+     * @throws NotEvaluable if the array cannot be allocated
+     */
+    private HeapObject newArray(ArrayType type, int [] counts, int dim) throws NotEvaluable {
+        int length = counts[dim];
+        if (length < 0 || length > MAX_ARRAY_LENGTH) {
+            throw new NotEvaluable("array of length "+length);
+        }
+        AbstractClassInfo ci = getClassInfo(type);
+        Object [] elements = new Object[length];
+        Type elemType = type.getElementType();
+        for (int i = 0; i < length; i++) {
+            if (dim+1 < counts.length) {
+                elements[i] = newArray((ArrayType)elemType, counts, dim+1);
+            } else {
+                elements[i] = getDefaultValue(elemType);
+            }
+        }
+        return new HeapObject(ci, current, null, elements);
+    }
+
+    /**
+     * Get the name of the class of a value.
+     * @param v The value, which must not be null
+     * @return The name of the class of the value
+     */
+    private static String getClassName(Object v) {
+        if (v instanceof StringRef) {
+            return "java.lang.String";
+        }
+        return ((HeapObject)v).type.getName();
+    }
+
+    /**
+     * Check whether a class is assignable to another class.
+     * @param from The name of the source class
+     * @param to The name of the target class
+     * @return true if values of class from can be assigned to class to
+     */
+    private boolean isAssignable(String from, String to) {
+        if (from.equals(to) || to.equals("java.lang.Object")) {
+            return true;
+        }
+        if (from.endsWith("[]")) {
+            if (to.endsWith("[]")) {
+                String fromElem = from.substring(0, from.length()-2);
+                String toElem = to.substring(0, to.length()-2);
+                if (Type.getType(Utility.getSignature(fromElem)) instanceof BasicType
+                    || Type.getType(Utility.getSignature(toElem)) instanceof BasicType) {
+                    return false;
+                }
+                return isAssignable(fromElem, toElem);
+            }
+            return to.equals("java.lang.Cloneable") || to.equals("java.io.Serializable");
+        }
+        AbstractClassInfo fromCi = app.getClassInfo(from);
+        AbstractClassInfo toCi = app.getClassInfo(to);
+        if (fromCi == null || toCi == null) {
+            return false;
+        }
+        for (AbstractClassInfo c = fromCi; c != null; c = c.getSuperClass()) {
+            if (c == toCi) {
+                return true;
+            }
+        }
+        return fromCi.getInterfaces().contains(toCi);
+    }
+
+    /**
+     * Interpret a method.
+     * @param ci The class declaring the method
+     * @param m The method
+     * @param args The arguments, with the second slots of long and double values
+     * @return The return value, null for void methods
+     * @throws NotEvaluable if the method cannot be evaluated at build time
+     */
+    private Object invoke(AbstractClassInfo ci, Method m, Object [] args) throws NotEvaluable {
+        String fqName = ci.getName()+"."+m.getName()+m.getSignature();
+        if (m.isNative()) {
+            return invokeNative(fqName, args);
+        }
+        Code code = m.getCode();
+        if (code == null) {
+            throw new NotEvaluable("abstract method "+fqName);
+        }
+        InstructionList il = codeMap.get(fqName);
+        if (il == null) {
+            il = new InstructionList(code.getCode());
+            codeMap.put(fqName, il);
+        }
+
+        ConstantPoolGen cp = ci.getConstPool();
+        Object [] locals = new Object[code.getMaxLocals()];
+        System.arraycopy(args, 0, locals, 0, args.length);
+        LinkedList<Object> stack = new LinkedList<Object>();
+
+        InstructionHandle ih = il.getStart();
+        while (true) {
+            if (++steps > MAX_STEPS) {
+                throw new NotEvaluable("too many steps");
+            }
+            Instruction i = ih.getInstruction();
+            InstructionHandle next = ih.getNext();
+            int v1, v2;
+            long l1, l2;
+            float f1, f2;
+            double d1, d2;
+            Object o1, o2, o3, o4;
+
+            switch (i.getOpcode()) {
+            case Constants.NOP:
+                break;
+            case Constants.ACONST_NULL:
+                stack.push(null);
+                break;
+            case Constants.ICONST_M1: case Constants.ICONST_0: case Constants.ICONST_1:
+            case Constants.ICONST_2: case Constants.ICONST_3: case Constants.ICONST_4:
+            case Constants.ICONST_5: case Constants.BIPUSH: case Constants.SIPUSH:
+                stack.push(((ConstantPushInstruction)i).getValue().intValue());
+                break;
+            case Constants.LCONST_0: case Constants.LCONST_1:
+                pushWide(stack, ((ConstantPushInstruction)i).getValue().longValue());
+                break;
+            case Constants.FCONST_0: case Constants.FCONST_1: case Constants.FCONST_2:
+                stack.push(((ConstantPushInstruction)i).getValue().floatValue());
+                break;
+            case Constants.DCONST_0: case Constants.DCONST_1:
+                pushWide(stack, ((ConstantPushInstruction)i).getValue().doubleValue());
+                break;
+            case Constants.LDC: case Constants.LDC_W:
+                o1 = ((LDC)i).getValue(cp);
+                if (o1 instanceof String) {
+                    stack.push(getString((String)o1));
+                } else if (o1 instanceof Integer || o1 instanceof Float) {
+                    stack.push(o1);
+                } else {
+                    throw new NotEvaluable("constant "+o1);
+                }
+                break;
+            case Constants.LDC2_W:
+                pushWide(stack, ((LDC2_W)i).getValue(cp));
+                break;
+
+            case Constants.IINC:
+                locals[((IINC)i).getIndex()] = (Integer)locals[((IINC)i).getIndex()] + ((IINC)i).getIncrement();
+                break;
+
+            case Constants.POP:
+                stack.pop();
+                break;
+            case Constants.POP2:
+                stack.pop(); stack.pop();
+                break;
+            case Constants.DUP:
+                stack.push(stack.peek());
+                break;
+            case Constants.DUP_X1:
+                o1 = stack.pop(); o2 = stack.pop();
+                stack.push(o1); stack.push(o2); stack.push(o1);
+                break;
+            case Constants.DUP_X2:
+                o1 = stack.pop(); o2 = stack.pop(); o3 = stack.pop();
+                stack.push(o1); stack.push(o3); stack.push(o2); stack.push(o1);
+                break;
+            case Constants.DUP2:
+                o1 = stack.pop(); o2 = stack.pop();
+                stack.push(o2); stack.push(o1); stack.push(o2); stack.push(o1);
+                break;
+            case Constants.DUP2_X1:
+                o1 = stack.pop(); o2 = stack.pop(); o3 = stack.pop();
+                stack.push(o2); stack.push(o1); stack.push(o3); stack.push(o2); stack.push(o1);
+                break;
+            case Constants.DUP2_X2:
+                o1 = stack.pop(); o2 = stack.pop(); o3 = stack.pop(); o4 = stack.pop();
+                stack.push(o2); stack.push(o1); stack.push(o4); stack.push(o3); stack.push(o2); stack.push(o1);
+                break;
+            case Constants.SWAP:
+                o1 = stack.pop(); o2 = stack.pop();
+                stack.push(o1); stack.push(o2);
+                break;
+
+            case Constants.IADD: v2 = popInt(stack); v1 = popInt(stack); stack.push(v1 + v2); break;
+            case Constants.ISUB: v2 = popInt(stack); v1 = popInt(stack); stack.push(v1 - v2); break;
+            case Constants.IMUL: v2 = popInt(stack); v1 = popInt(stack); stack.push(v1 * v2); break;
+            case Constants.IDIV: v2 = popInt(stack); v1 = popInt(stack); checkDivisor(v2); stack.push(v1 / v2); break;
+            case Constants.IREM: v2 = popInt(stack); v1 = popInt(stack); checkDivisor(v2); stack.push(v1 % v2); break;
+            case Constants.IAND: v2 = popInt(stack); v1 = popInt(stack); stack.push(v1 & v2); break;
+            case Constants.IOR: v2 = popInt(stack); v1 = popInt(stack); stack.push(v1 | v2); break;
+            case Constants.IXOR: v2 = popInt(stack); v1 = popInt(stack); stack.push(v1 ^ v2); break;
+            case Constants.ISHL: v2 = popInt(stack); v1 = popInt(stack); stack.push(v1 << v2); break;
+            case Constants.ISHR: v2 = popInt(stack); v1 = popInt(stack); stack.push(v1 >> v2); break;
+            case Constants.IUSHR: v2 = popInt(stack); v1 = popInt(stack); stack.push(v1 >>> v2); break;
+            case Constants.INEG: stack.push(-popInt(stack)); break;
+
+            case Constants.LADD: l2 = popLong(stack); l1 = popLong(stack); pushWide(stack, l1 + l2); break;
+            case Constants.LSUB: l2 = popLong(stack); l1 = popLong(stack); pushWide(stack, l1 - l2); break;
+            case Constants.LMUL: l2 = popLong(stack); l1 = popLong(stack); pushWide(stack, l1 * l2); break;
+            case Constants.LDIV: l2 = popLong(stack); l1 = popLong(stack); checkDivisor(l2); pushWide(stack, l1 / l2); break;
+            case Constants.LREM: l2 = popLong(stack); l1 = popLong(stack); checkDivisor(l2); pushWide(stack, l1 % l2); break;
+            case Constants.LAND: l2 = popLong(stack); l1 = popLong(stack); pushWide(stack, l1 & l2); break;
+            case Constants.LOR: l2 = popLong(stack); l1 = popLong(stack); pushWide(stack, l1 | l2); break;
+            case Constants.LXOR: l2 = popLong(stack); l1 = popLong(stack); pushWide(stack, l1 ^ l2); break;
+            case Constants.LSHL: v2 = popInt(stack); l1 = popLong(stack); pushWide(stack, l1 << v2); break;
+            case Constants.LSHR: v2 = popInt(stack); l1 = popLong(stack); pushWide(stack, l1 >> v2); break;
+            case Constants.LUSHR: v2 = popInt(stack); l1 = popLong(stack); pushWide(stack, l1 >>> v2); break;
+            case Constants.LNEG: pushWide(stack, -popLong(stack)); break;
+
+            case Constants.FADD: f2 = popFloat(stack); f1 = popFloat(stack); stack.push(f1 + f2); break;
+            case Constants.FSUB: f2 = popFloat(stack); f1 = popFloat(stack); stack.push(f1 - f2); break;
+            case Constants.FMUL: f2 = popFloat(stack); f1 = popFloat(stack); stack.push(f1 * f2); break;
+            case Constants.FDIV: f2 = popFloat(stack); f1 = popFloat(stack); stack.push(f1 / f2); break;
+            case Constants.FREM: f2 = popFloat(stack); f1 = popFloat(stack); stack.push(f1 % f2); break;
+            case Constants.FNEG: stack.push(-popFloat(stack)); break;
+
+            case Constants.DADD: d2 = popDouble(stack); d1 = popDouble(stack); pushWide(stack, d1 + d2); break;
+            case Constants.DSUB: d2 = popDouble(stack); d1 = popDouble(stack); pushWide(stack, d1 - d2); break;
+            case Constants.DMUL: d2 = popDouble(stack); d1 = popDouble(stack); pushWide(stack, d1 * d2); break;
+            case Constants.DDIV: d2 = popDouble(stack); d1 = popDouble(stack); pushWide(stack, d1 / d2); break;
+            case Constants.DREM: d2 = popDouble(stack); d1 = popDouble(stack); pushWide(stack, d1 % d2); break;
+            case Constants.DNEG: pushWide(stack, -popDouble(stack)); break;
+
+            case Constants.I2L: pushWide(stack, (long)popInt(stack)); break;
+            case Constants.I2F: stack.push((float)popInt(stack)); break;
+            case Constants.I2D: pushWide(stack, (double)popInt(stack)); break;
+            case Constants.L2I: stack.push((int)popLong(stack)); break;
+            case Constants.L2F: stack.push((float)popLong(stack)); break;
+            case Constants.L2D: pushWide(stack, (double)popLong(stack)); break;
+            case Constants.F2I: stack.push((int)popFloat(stack)); break;
+            case Constants.F2L: pushWide(stack, (long)popFloat(stack)); break;
+            case Constants.F2D: pushWide(stack, (double)popFloat(stack)); break;
+            case Constants.D2I: stack.push((int)popDouble(stack)); break;
+            case Constants.D2L: pushWide(stack, (long)popDouble(stack)); break;
+            case Constants.D2F: stack.push((float)popDouble(stack)); break;
+            case Constants.I2B: stack.push((int)(byte)popInt(stack)); break;
+            case Constants.I2C: stack.push((int)(char)popInt(stack)); break;
+            case Constants.I2S: stack.push((int)(short)popInt(stack)); break;
+
+            case Constants.LCMP:
+                l2 = popLong(stack); l1 = popLong(stack);
+                stack.push(l1 < l2 ? -1 : (l1 == l2 ? 0 : 1));
+                break;
+            case Constants.FCMPL: case Constants.FCMPG:
+                f2 = popFloat(stack); f1 = popFloat(stack);
+                stack.push(f1 < f2 ? -1 : (f1 == f2 ? 0 : (f1 > f2 ? 1 : (i.getOpcode() == Constants.FCMPL ? -1 : 1))));
+                break;
+            case Constants.DCMPL: case Constants.DCMPG:
+                d2 = popDouble(stack); d1 = popDouble(stack);
+                stack.push(d1 < d2 ? -1 : (d1 == d2 ? 0 : (d1 > d2 ? 1 : (i.getOpcode() == Constants.DCMPL ? -1 : 1))));
+                break;
+
+            case Constants.IFEQ: if (popInt(stack) == 0) { next = ((BranchInstruction)i).getTarget(); } break;
+            case Constants.IFNE: if (popInt(stack) != 0) { next = ((BranchInstruction)i).getTarget(); } break;
+            case Constants.IFLT: if (popInt(stack) < 0) { next = ((BranchInstruction)i).getTarget(); } break;
+            case Constants.IFGE: if (popInt(stack) >= 0) { next = ((BranchInstruction)i).getTarget(); } break;
+            case Constants.IFGT: if (popInt(stack) > 0) { next = ((BranchInstruction)i).getTarget(); } break;
+            case Constants.IFLE: if (popInt(stack) <= 0) { next = ((BranchInstruction)i).getTarget(); } break;
+            case Constants.IF_ICMPEQ: v2 = popInt(stack); v1 = popInt(stack); if (v1 == v2) { next = ((BranchInstruction)i).getTarget(); } break;
+            case Constants.IF_ICMPNE: v2 = popInt(stack); v1 = popInt(stack); if (v1 != v2) { next = ((BranchInstruction)i).getTarget(); } break;
+            case Constants.IF_ICMPLT: v2 = popInt(stack); v1 = popInt(stack); if (v1 < v2) { next = ((BranchInstruction)i).getTarget(); } break;
+            case Constants.IF_ICMPGE: v2 = popInt(stack); v1 = popInt(stack); if (v1 >= v2) { next = ((BranchInstruction)i).getTarget(); } break;
+            case Constants.IF_ICMPGT: v2 = popInt(stack); v1 = popInt(stack); if (v1 > v2) { next = ((BranchInstruction)i).getTarget(); } break;
+            case Constants.IF_ICMPLE: v2 = popInt(stack); v1 = popInt(stack); if (v1 <= v2) { next = ((BranchInstruction)i).getTarget(); } break;
+            case Constants.IF_ACMPEQ: o2 = stack.pop(); o1 = stack.pop(); if (isSame(o1, o2)) { next = ((BranchInstruction)i).getTarget(); } break;
+            case Constants.IF_ACMPNE: o2 = stack.pop(); o1 = stack.pop(); if (!isSame(o1, o2)) { next = ((BranchInstruction)i).getTarget(); } break;
+            case Constants.IFNULL: if (stack.pop() == null) { next = ((BranchInstruction)i).getTarget(); } break;
+            case Constants.IFNONNULL: if (stack.pop() != null) { next = ((BranchInstruction)i).getTarget(); } break;
+            case Constants.GOTO: case Constants.GOTO_W:
+                next = ((BranchInstruction)i).getTarget();
+                break;
+            case Constants.TABLESWITCH: case Constants.LOOKUPSWITCH:
+                v1 = popInt(stack);
+                next = ((Select)i).getTarget();
+                for (int k = 0; k < ((Select)i).getMatchs().length; k++) {
+                    if (((Select)i).getMatchs()[k] == v1) {
+                        next = ((Select)i).getTargets()[k];
+                    }
+                }
+                break;
+
+            case Constants.IRETURN: case Constants.FRETURN: case Constants.ARETURN:
+                return stack.pop();
+            case Constants.LRETURN: case Constants.DRETURN:
+                return popWide(stack);
+            case Constants.RETURN:
+                return null;
+
+            case Constants.GETSTATIC: case Constants.PUTSTATIC:
+                execStatic((FieldInstruction)i, cp, stack);
+                break;
+            case Constants.GETFIELD: case Constants.PUTFIELD:
+                execField((FieldInstruction)i, cp, stack);
+                break;
+            case Constants.INVOKEVIRTUAL: case Constants.INVOKESPECIAL:
+            case Constants.INVOKESTATIC: case Constants.INVOKEINTERFACE:
+                execInvoke((InvokeInstruction)i, cp, stack);
+                break;
+
+            case Constants.NEW:
+                AbstractClassInfo newCi = getClassInfo(((NEW)i).getType(cp));
+                if (newCi.clazz.isAbstract() || newCi.clazz.isInterface()) {
+                    throw new NotEvaluable("instantiation of "+newCi.getName());
+                }
+                checkInitialized(newCi);
+                stack.push(newObject(newCi));
+                break;
+            case Constants.NEWARRAY:
+                stack.push(newArray((ArrayType)((NEWARRAY)i).getType(), new int [] { popInt(stack) }, 0));
+                break;
+            case Constants.ANEWARRAY:
+                stack.push(newArray(new ArrayType(((ANEWARRAY)i).getType(cp), 1), new int [] { popInt(stack) }, 0));
+                break;
+            case Constants.MULTIANEWARRAY:
+                int [] counts = new int[((MULTIANEWARRAY)i).getDimensions()];
+                for (int k = counts.length-1; k >= 0; k--) {
+                    counts[k] = popInt(stack);
+                }
+                stack.push(newArray((ArrayType)((MULTIANEWARRAY)i).getType(cp), counts, 0));
+                break;
+            case Constants.ARRAYLENGTH:
+                stack.push(getArray(stack.pop()).elements.length);
+                break;
+
+            case Constants.IALOAD: case Constants.FALOAD: case Constants.AALOAD:
+            case Constants.BALOAD: case Constants.CALOAD: case Constants.SALOAD:
+                v1 = popInt(stack);
+                stack.push(getArray(stack.pop(), v1).elements[v1]);
+                break;
+            case Constants.LALOAD: case Constants.DALOAD:
+                v1 = popInt(stack);
+                pushWide(stack, getArray(stack.pop(), v1).elements[v1]);
+                break;
+            case Constants.IASTORE: case Constants.FASTORE: case Constants.AASTORE:
+            case Constants.BASTORE: case Constants.CASTORE: case Constants.SASTORE:
+            case Constants.LASTORE: case Constants.DASTORE:
+                o1 = i.getOpcode() == Constants.LASTORE || i.getOpcode() == Constants.DASTORE
+                    ? popWide(stack) : stack.pop();
+                v1 = popInt(stack);
+                HeapObject arr = getArray(stack.pop(), v1);
+                checkOwner(arr);
+                if (i.getOpcode() == Constants.AASTORE && o1 != null) {
+                    Type elemType = getElementType(arr.type);
+                    if (!isAssignable(getClassName(o1), elemType.toString())) {
+                        throw new NotEvaluable("array store exception");
+                    }
+                } else if (i.getOpcode() == Constants.BASTORE) {
+                    o1 = arr.type.getName().equals("boolean[]") ? (Integer)o1 & 1 : (int)(byte)(int)(Integer)o1;
+                } else if (i.getOpcode() == Constants.CASTORE) {
+                    o1 = (int)(char)(int)(Integer)o1;
+                } else if (i.getOpcode() == Constants.SASTORE) {
+                    o1 = (int)(short)(int)(Integer)o1;
+                }
+                arr.elements[v1] = o1;
+                break;
+
+            case Constants.CHECKCAST:
+                o1 = stack.peek();
+                if (o1 != null && !isAssignable(getClassName(o1), ((CHECKCAST)i).getType(cp).toString())) {
+                    throw new NotEvaluable("class cast exception");
+                }
+                break;
+            case Constants.INSTANCEOF:
+                o1 = stack.pop();
+                stack.push(o1 != null && isAssignable(getClassName(o1), ((INSTANCEOF)i).getType(cp).toString()) ? 1 : 0);
+                break;
+
+            default:
+                if (i instanceof LoadInstruction) {
+                    LoadInstruction li = (LoadInstruction)i;
+                    if (li.getType(cp).getSize() == 2) {
+                        pushWide(stack, locals[li.getIndex()]);
+                    } else {
+                        stack.push(locals[li.getIndex()]);
+                    }
+                } else if (i instanceof StoreInstruction) {
+                    StoreInstruction si = (StoreInstruction)i;
+                    if (si.getType(cp).getSize() == 2) {
+                        locals[si.getIndex()] = popWide(stack);
+                        locals[si.getIndex()+1] = TOP;
+                    } else {
+                        locals[si.getIndex()] = stack.pop();
+                    }
+                } else {
+                    throw new NotEvaluable("unsupported bytecode "+i.getName()+" in "+fqName);
+                }
+            }
+            ih = next;
+        }
+    }
+
+    /**
+     * Interpret a native method, for a few known functions without side effects.
+     * @param fqName The fully qualified name of the method
+     * @param args The arguments
+     * @return The return value
+     * @throws NotEvaluable if the native method is not known
+     */
+    private static Object invokeNative(String fqName, Object [] args) throws NotEvaluable {
+        switch (fqName) {
+        case "java.lang.Float.intBitsToFloat(I)F":
+            return Float.intBitsToFloat((Integer)args[0]);
+        case "java.lang.Float.floatToIntBits(F)I":
+            return Float.floatToRawIntBits((Float)args[0]);
+        case "java.lang.Double.longBitsToDouble(J)D":
+            return Double.longBitsToDouble((Long)args[0]);
+        case "java.lang.Double.doubleToLongBits(D)J":
+            return Double.doubleToRawLongBits((Double)args[0]);
+        case "java.lang.Character.reverseBytes(C)C":
+            return (int)Character.reverseBytes((char)(int)(Integer)args[0]);
+        case "java.lang.Short.reverseBytes(S)S":
+            return (int)Short.reverseBytes((short)(int)(Integer)args[0]);
+        case "java.lang.Integer.reverseBytes(I)I":
+            return Integer.reverseBytes((Integer)args[0]);
+        case "java.lang.Long.reverseBytes(J)J":
+            return Long.reverseBytes((Long)args[0]);
+        default:
+            throw new NotEvaluable("native method "+fqName);
+        }
+    }
+
+    /**
+     * Interpret a GETSTATIC or PUTSTATIC bytecode.
+     * @param fi The bytecode
+     * @param cp The constant pool
+     * @param stack The operand stack
+     * @throws NotEvaluable if the field cannot be accessed at build time
+     */
+    private void execStatic(FieldInstruction fi, ConstantPoolGen cp, LinkedList<Object> stack) throws NotEvaluable {
+        AbstractClassInfo ci = getClassInfo(fi.getReferenceType(cp));
+        String name = fi.getFieldName(cp);
+        boolean wide = fi.getFieldType(cp).getSize() == 2;
+        if (fi instanceof PUTSTATIC) {
+            Object v = wide ? popWide(stack) : stack.pop();
+            if (!app.isFieldLive(ci, name)) {
+                return;
+            }
+            AbstractClassInfo decl = ci.findFieldDeclarator(ci, name);
+            if (decl != current) {
+                throw new NotEvaluable("modification of static field "+ci.getName()+"."+name);
+            }
+            currentStatics.put(getKey(decl, name), v);
+        } else {
+            AbstractClassInfo decl = ci.findFieldDeclarator(ci, name);
+            if (decl == null) {
+                throw new NotEvaluable("static field "+ci.getName()+"."+name+" not found");
+            }
+            checkInitialized(decl);
+            String key = getKey(decl, name);
+            Object v;
+            if (decl == current) {
+                v = currentStatics.get(key);
+            } else if (initialized.contains(decl)) {
+                v = statics.get(key);
+            } else {
+                v = getInitialValue(decl.findField(name));
+            }
+            if (wide) {
+                pushWide(stack, v);
+            } else {
+                stack.push(v);
+            }
+        }
+    }
+
+    /**
+     * Interpret a GETFIELD or PUTFIELD bytecode.
+     * @param fi The bytecode
+     * @param cp The constant pool
+     * @param stack The operand stack
+     * @throws NotEvaluable if the field cannot be accessed at build time
+     */
+    private void execField(FieldInstruction fi, ConstantPoolGen cp, LinkedList<Object> stack) throws NotEvaluable {
+        AbstractClassInfo ci = getClassInfo(fi.getReferenceType(cp));
+        String name = fi.getFieldName(cp);
+        boolean wide = fi.getFieldType(cp).getSize() == 2;
+        if (fi instanceof PUTFIELD) {
+            Object v = wide ? popWide(stack) : stack.pop();
+            HeapObject obj = getObject(stack.pop());
+            if (!app.isFieldLive(ci, name)) {
+                return;
+            }
+            checkOwner(obj);
+            obj.fields.put(getKey(ci.findFieldDeclarator(ci, name), name), v);
+        } else {
+            HeapObject obj = getObject(stack.pop());
+            Object v = obj.fields.get(getKey(ci.findFieldDeclarator(ci, name), name));
+            if (wide) {
+                pushWide(stack, v);
+            } else {
+                stack.push(v);
+            }
+        }
+    }
+
+    /**
+     * Interpret an invoke bytecode.
+     * @param ii The bytecode
+     * @param cp The constant pool
+     * @param stack The operand stack
+     * @throws NotEvaluable if the invoked method cannot be evaluated at build time
+     */
+    private void execInvoke(InvokeInstruction ii, ConstantPoolGen cp, LinkedList<Object> stack) throws NotEvaluable {
+        AbstractClassInfo ci = getClassInfo(ii.getReferenceType(cp));
+        String name = ii.getMethodName(cp);
+        String signature = ii.getSignature(cp);
+
+        int argSize = 0;
+        for (Type t : ii.getArgumentTypes(cp)) {
+            argSize += t.getSize();
+        }
+        boolean isStatic = ii instanceof INVOKESTATIC;
+        Object [] args = new Object[argSize + (isStatic ? 0 : 1)];
+        for (int k = args.length-1; k >= 0; k--) {
+            args[k] = stack.pop();
+        }
+
+        AbstractClassInfo decl = null;
+        Method m = null;
+        if (ii instanceof INVOKEVIRTUAL || ii instanceof INVOKEINTERFACE) {
+            HeapObject receiver = getObject(args[0]);
+            for (AbstractClassInfo c = receiver.type; c != null && m == null; c = c.getSuperClass()) {
+                m = c.findMethod(name, signature);
+                if (m != null && m.isAbstract()) {
+                    m = null;
+                }
+                decl = c;
+            }
+        } else {
+            if (!isStatic) {
+                getObject(args[0]);
+            }
+            decl = ci.findMethodDeclarator(ci, name, signature);
+            if (decl != null) {
+                m = decl.findMethod(name, signature);
+            }
+        }
+        if (m == null) {
+            throw new NotEvaluable("method "+ci.getName()+"."+name+signature+" not found");
+        }
+        if (isStatic) {
+            checkInitialized(decl);
+        }
+
+        Object v = invoke(decl, m, args);
+        Type returnType = ii.getReturnType(cp);
+        if (returnType.getSize() == 2) {
+            pushWide(stack, v);
+        } else if (returnType != Type.VOID) {
+            stack.push(v);
+        }
+    }
+
+    /**
+     * Check whether two references refer to the same object.
+     * @param a The first reference
+     * @param b The second reference
+     * @return true if both references refer to the same object
+     */
+    private static boolean isSame(Object a, Object b) {
+        if (a instanceof StringRef) {
+            return a.equals(b);
+        }
+        return a == b;
+    }
+
+    /**
+     * Check that a reference refers to an object.
+     * @param v The reference
+     * @return The object
+     * @throws NotEvaluable if the reference is null or refers to a string constant
+     */
+    private static HeapObject getObject(Object v) throws NotEvaluable {
+        if (!(v instanceof HeapObject) || ((HeapObject)v).fields == null) {
+            throw new NotEvaluable("access to "+(v == null ? "null" : v instanceof StringRef ? "string constant" : "array"));
+        }
+        return (HeapObject)v;
+    }
+
+    /**
+     * Check that a reference refers to an array.
+     * @param v The reference
+     * @return The array
+     * @throws NotEvaluable if the reference does not refer to an array
+     */
+    private static HeapObject getArray(Object v) throws NotEvaluable {
+        if (!(v instanceof HeapObject) || ((HeapObject)v).elements == null) {
+            throw new NotEvaluable("array access to "+(v == null ? "null" : "object"));
+        }
+        return (HeapObject)v;
+    }
+
+    /**
+     * Check that a reference refers to an array and that an index is within bounds.
+     * @param v The reference
+     * @param index The index
+     * @return The array
+     * @throws NotEvaluable if the reference does not refer to an array or the index is out of bounds
+     */
+    private static HeapObject getArray(Object v, int index) throws NotEvaluable {
+        HeapObject arr = getArray(v);
+        if (index < 0 || index >= arr.elements.length) {
+            throw new NotEvaluable("array index "+index+" out of bounds");
+        }
+        return arr;
+    }
+
+    private static void checkDivisor(long divisor) throws NotEvaluable {
+        if (divisor == 0) {
+            throw new NotEvaluable("division by zero");
+        }
+    }
+
+    private static int popInt(LinkedList<Object> stack) {
+        return (Integer)stack.pop();
+    }
+
+    private static long popLong(LinkedList<Object> stack) {
+        return (Long)popWide(stack);
+    }
+
+    private static float popFloat(LinkedList<Object> stack) {
+        return (Float)stack.pop();
+    }
+
+    private static double popDouble(LinkedList<Object> stack) {
+        return (Double)popWide(stack);
+    }
+
+    private static Object popWide(LinkedList<Object> stack) {
+        stack.pop();
+        return stack.pop();
+    }
+
+    private static void pushWide(LinkedList<Object> stack, Object v) {
+        stack.push(v);
+        stack.push(TOP);
+    }
+}
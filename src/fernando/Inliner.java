@@ -0,0 +1,434 @@
+/*
+   Copyright 2015 Technical University of Denmark, DTU Compute.
+   All rights reserved.
+
+   This file is part of the ahead-of-time bytecode compiler Fernando.
+
+   Redistribution and use in source and binary forms, with or without
+   modification, are permitted provided that the following conditions are met:
+
+      1. Redistributions of source code must retain the above copyright notice,
+         this list of conditions and the following disclaimer.
+
+      2. Redistributions in binary form must reproduce the above copyright
+         notice, this list of conditions and the following disclaimer in the
+         documentation and/or other materials provided with the distribution.
+
+   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER ``AS IS'' AND ANY EXPRESS
+   OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+   OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+   NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+   DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+   (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+   LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+   (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+   THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+   The views and conclusions contained in the software and documentation are
+   those of the authors and should not be interpreted as representing official
+   policies, either expressed or implied, of the copyright holder.
+*/
+
+
+package fernando;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.classfile.*;
+import org.apache.bcel.generic.*;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A simple bytecode-level inliner. Calls to small methods that are
+ * bound statically are replaced by the code of the callee before the
+ * code is translated to C.
+ */
+public class Inliner {
+
+    /** The maximum size of a method to be inlined, in bytes. */
+    public static final int MAX_CALLEE_SIZE = 35;
+
+    /** The maximum nesting depth of inlined methods. */
+    public static final int MAX_DEPTH = 3;
+
+    /** The application being compiled. */
+    private final AppInfo app;
+
+    /** The class containing the methods to be processed. */
+    private final AbstractClassInfo classInfo;
+
+    /** The constant pool of the class. */
+    private final ConstantPoolGen constPool;
+
+    /**
+     * Constructor.
+     * @param app The application being compiled
+     * @param classInfo The class containing the methods to be processed
+     */
+    public Inliner(AppInfo app, AbstractClassInfo classInfo) {
+        this.app = app;
+        this.classInfo = classInfo;
+        this.constPool = classInfo.getConstPool();
+    }
+
+    /**
+     * Inline calls to small methods.
+     * @param method The method to process
+     * @return The method with inlined calls, or the original method
+     * if no calls were inlined
+     */
+    public Method inline(Method method) {
+        int budget = app.getInlineBudget();
+        if (method.getCode() == null || budget <= 0) {
+            return method;
+        }
+
+        MethodGen mg = new MethodGen(method, classInfo.getName(), constPool);
+        mg.removeLineNumbers();
+        mg.removeLocalVariables();
+        mg.removeCodeAttributes();
+        InstructionList il = mg.getInstructionList();
+
+        List<CodeExceptionGen> handlers =
+            new LinkedList<CodeExceptionGen>(Arrays.asList(mg.getExceptionHandlers()));
+        int maxLocals = mg.getMaxLocals();
+        boolean changed = false;
+
+        for (int round = 0; round < MAX_DEPTH && budget > 0; round++) {
+            // the analysis needs up-to-date positions and branch offsets
+            il.setPositions();
+            il.getByteCode();
+            StackDepths depthMap = new StackDepths(il, constPool);
+
+            int base = mg.getMaxLocals();
+            boolean inlined = false;
+            for (InstructionHandle ih : il.getInstructionHandles()) {
+                if (!(ih.getInstruction() instanceof InvokeInstruction)) {
+                    continue;
+                }
+                InvokeInstruction ii = (InvokeInstruction)ih.getInstruction();
+                Map.Entry<Method, AbstractClassInfo> target = resolve(ii);
+                if (target == null) {
+                    continue;
+                }
+                Method callee = target.getKey();
+                AbstractClassInfo calleeClass = target.getValue();
+
+                int below = depthMap.get(ih.getPosition()) - getArgSize(ii);
+                if (canInline(method, callee, calleeClass, below)
+                    && callee.getCode().getCode().length <= budget) {
+                    int size = callee.getCode().getCode().length;
+                    int locals = inlineCall(il, ih, callee, calleeClass, base, handlers);
+                    maxLocals = Math.max(maxLocals, locals);
+                    budget -= size;
+                    inlined = true;
+                }
+            }
+            if (!inlined) {
+                break;
+            }
+            mg.setMaxLocals(maxLocals);
+            changed = true;
+        }
+
+        if (!changed) {
+            return method;
+        }
+
+        mg.removeExceptionHandlers();
+        for (CodeExceptionGen h : handlers) {
+            mg.addExceptionHandler(h.getStartPC(), h.getEndPC(), h.getHandlerPC(), h.getCatchType());
+        }
+        il.setPositions();
+        mg.setMaxStack();
+        return mg.getMethod();
+    }
+
+    /**
+     * Find the method that is invoked by an instruction, if it is bound statically.
+     * @param ii The invoke instruction
+     * @return The invoked method and the class declaring it, null if
+     * the invoked method is not bound statically or cannot be found
+     */
+    private Map.Entry<Method, AbstractClassInfo> resolve(InvokeInstruction ii) {
+        int opcode = ii.getOpcode();
+        if (opcode == Constants.INVOKEINTERFACE) {
+            return null;
+        }
+
+        String methName = ii.getMethodName(constPool);
+        String signature = ii.getSignature(constPool);
+        AbstractClassInfo ci = app.getClassInfo(ii.getReferenceType(constPool).toString());
+        if (ci == null) {
+            return null;
+        }
+        if (opcode == Constants.INVOKEVIRTUAL
+            && app.getVirtualMethods().contains(ci.getName()+"."+methName+signature)) {
+            return null;
+        }
+
+        ci = classInfo.findMethodDeclarator(ci, methName, signature);
+        if (ci == null) {
+            return null;
+        }
+        Method m = ci.findMethod(methName, signature);
+        if (m == null) {
+            return null;
+        }
+        return new AbstractMap.SimpleEntry<Method, AbstractClassInfo>(m, ci);
+    }
+
+    /**
+     * Get the number of stack slots an invocation consumes.
+     * @param ii The invoke instruction
+     * @return The number of stack slots for the arguments, including the receiver
+     */
+    private int getArgSize(InvokeInstruction ii) {
+        int size = ii.getOpcode() == Constants.INVOKESTATIC ? 0 : 1;
+        for (Type t : ii.getArgumentTypes(constPool)) {
+            size += t.getSize();
+        }
+        return size;
+    }
+
+    /**
+     * Check whether a method can be inlined.
+     * @param caller The method that contains the call
+     * @param callee The method to be inlined
+     * @param calleeClass The class declaring the method to be inlined
+     * @param below The depth of the stack below the arguments of the call
+     * @return true if the method can be inlined, false otherwise
+     */
+    private boolean canInline(Method caller, Method callee, AbstractClassInfo calleeClass, int below) {
+        Code code = callee.getCode();
+        if (code == null
+            || callee.isNative() || callee.isAbstract() || callee.isSynchronized()
+            || code.getCode().length > MAX_CALLEE_SIZE) {
+            return false;
+        }
+        if (calleeClass == classInfo && AbstractClassInfo.methodsEqual(caller, callee)) {
+            return false;
+        }
+        // handlers expect an empty stack, which would lose the values of the caller
+        CodeException [] excTab = code.getExceptionTable();
+        if (excTab != null && excTab.length > 0 && below >= 0) {
+            return false;
+        }
+
+        ConstantPoolGen calleePool = calleeClass.getConstPool();
+        InstructionList il = new InstructionList(code.getCode());
+        StackDepths depthMap = new StackDepths(il, calleePool);
+        int retSize = callee.getReturnType().getSize();
+
+        for (InstructionHandle ih : il.getInstructionHandles()) {
+            Instruction i = ih.getInstruction();
+            if (i instanceof JsrInstruction || i instanceof RET) {
+                return false;
+            }
+            // the returned value must be the only value on the stack
+            if (i instanceof ReturnInstruction
+                && depthMap.get(ih.getPosition()) != retSize-1) {
+                return false;
+            }
+            // private static fields and methods are not visible outside their class
+            if (calleeClass != classInfo && !isVisible(i, calleePool)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check whether the field or method an instruction refers to is
+     * visible outside of its class.
+     * @param i The instruction
+     * @param cp The constant pool of the instruction
+     * @return true if the code for the instruction can be generated
+     * in any class, false otherwise
+     */
+    private boolean isVisible(Instruction i, ConstantPoolGen cp) {
+        if (i instanceof GETSTATIC || i instanceof PUTSTATIC) {
+            FieldInstruction fi = (FieldInstruction)i;
+            String fieldName = fi.getFieldName(cp);
+            AbstractClassInfo ci = app.getClassInfo(fi.getReferenceType(cp).toString());
+            if (ci == null) {
+                return false;
+            }
+            ci = classInfo.findFieldDeclarator(ci, fieldName);
+            Field f = ci != null ? ci.findField(fieldName) : null;
+            return f != null && !f.isPrivate();
+        }
+        if (i instanceof InvokeInstruction) {
+            InvokeInstruction ii = (InvokeInstruction)i;
+            String methName = ii.getMethodName(cp);
+            String signature = ii.getSignature(cp);
+            AbstractClassInfo ci = app.getClassInfo(ii.getReferenceType(cp).toString());
+            if (ci == null) {
+                return false;
+            }
+            ci = classInfo.findMethodDeclarator(ci, methName, signature);
+            Method m = ci != null ? ci.findMethod(methName, signature) : null;
+            return m != null && (!m.isPrivate() || m.isNative());
+        }
+        return true;
+    }
+
+    /**
+     * Replace a call by the code of the invoked method.
+     * @param il The instructions of the caller
+     * @param ih The invoke instruction
+     * @param callee The method to be inlined
+     * @param calleeClass The class declaring the method to be inlined
+     * @param base The first local variable to be used for the callee
+     * @param handlers The exception handlers of the caller
+     * @return The number of local variables needed after inlining
+     */
+    private int inlineCall(InstructionList il, InstructionHandle ih,
+                           Method callee, AbstractClassInfo calleeClass,
+                           int base, List<CodeExceptionGen> handlers) {
+        Code code = callee.getCode();
+        ConstantPoolGen calleePool = calleeClass.getConstPool();
+        InstructionHandle next = ih.getNext();
+
+        InstructionList body = new InstructionList(code.getCode());
+
+        // exception handlers of the callee take precedence over those of the caller
+        List<CodeExceptionGen> calleeHandlers = new LinkedList<CodeExceptionGen>();
+        CodeException [] excTab = code.getExceptionTable();
+        if (excTab != null) {
+            for (CodeException exc : excTab) {
+                ObjectType catchType = null;
+                if (exc.getCatchType() != 0) {
+                    ConstantClass cc = (ConstantClass)calleePool.getConstant(exc.getCatchType());
+                    String className = (String)cc.getConstantValue(calleePool.getConstantPool());
+                    catchType = new ObjectType(className.replace('/', '.'));
+                }
+                calleeHandlers.add(new CodeExceptionGen(body.findHandle(exc.getStartPC()),
+                                                        findEnd(body, exc.getEndPC()),
+                                                        body.findHandle(exc.getHandlerPC()),
+                                                        catchType));
+            }
+        }
+        handlers.addAll(0, calleeHandlers);
+
+        for (InstructionHandle h : body.getInstructionHandles()) {
+            Instruction i = h.getInstruction();
+            if (i instanceof ReturnInstruction) {
+                if (h == body.getEnd() && !h.hasTargeters()) {
+                    deleteHandle(body, h);
+                } else {
+                    replaceHandle(body, h, new GOTO(next));
+                }
+            } else if (i instanceof IINC) {
+                IINC inc = (IINC)i;
+                h.setInstruction(new IINC(base+inc.getIndex(), inc.getIncrement()));
+            } else if (i instanceof LoadInstruction) {
+                LoadInstruction li = (LoadInstruction)i;
+                h.setInstruction(InstructionFactory.createLoad(li.getType(calleePool), base+li.getIndex()));
+            } else if (i instanceof StoreInstruction) {
+                StoreInstruction si = (StoreInstruction)i;
+                h.setInstruction(InstructionFactory.createStore(si.getType(calleePool), base+si.getIndex()));
+            } else if (i instanceof CPInstruction) {
+                CPInstruction ci = (CPInstruction)i.copy();
+                ci.setIndex(constPool.addConstant(calleePool.getConstant(ci.getIndex()), calleePool));
+                h.setInstruction(ci);
+            }
+        }
+
+        if (body.isEmpty()) {
+            body.append(new NOP());
+        }
+
+        // store the arguments to the local variables of the callee
+        InstructionList prologue = new InstructionList();
+        Type [] argTypes = callee.getArgumentTypes();
+        int index = base + (callee.isStatic() ? 0 : 1);
+        for (Type t : argTypes) {
+            index += t.getSize();
+        }
+        for (int k = argTypes.length-1; k >= 0; k--) {
+            index -= argTypes[k].getSize();
+            prologue.append(InstructionFactory.createStore(argTypes[k], index));
+        }
+        if (!callee.isStatic()) {
+            prologue.append(new ASTORE(base));
+            prologue.append(new ALOAD(base));
+            // a null receiver throws a NullPointerException, see ATHROW
+            prologue.append(new IFNONNULL(body.getStart()));
+            prologue.append(new ACONST_NULL());
+            prologue.append(new ATHROW());
+        }
+        body.insert(prologue);
+
+        InstructionHandle first = body.getStart();
+        InstructionHandle last = body.getEnd();
+        il.append(ih, body);
+
+        for (InstructionTargeter t : ih.getTargeters()) {
+            if (t instanceof CodeExceptionGen) {
+                CodeExceptionGen h = (CodeExceptionGen)t;
+                if (h.getStartPC() == ih) {
+                    h.setStartPC(first);
+                }
+                if (h.getEndPC() == ih) {
+                    h.setEndPC(last);
+                }
+                if (h.getHandlerPC() == ih) {
+                    h.setHandlerPC(first);
+                }
+            } else {
+                t.updateTarget(ih, first);
+            }
+        }
+        deleteHandle(il, ih);
+
+        return base + code.getMaxLocals();
+    }
+
+    /**
+     * Find the last instruction covered by an exception handler.
+     * @param il The list of instructions
+     * @param endPos The end position of the exception handler, exclusive
+     * @return The last instruction before the end position
+     */
+    private static InstructionHandle findEnd(InstructionList il, int endPos) {
+        for (InstructionHandle ih : il.getInstructionHandles()) {
+            if (ih.getPosition() + ih.getInstruction().getLength() >= endPos) {
+                return ih;
+            }
+        }
+        return il.getEnd();
+    }
+
+    /**
+     * Replace an instruction by a branch instruction.
+     * @param il The list of instructions
+     * @param ih The instruction to be replaced
+     * @param bi The new branch instruction
+     */
+    private static void replaceHandle(InstructionList il, InstructionHandle ih, BranchInstruction bi) {
+        InstructionHandle nh = il.insert(ih, bi);
+        for (InstructionTargeter t : ih.getTargeters()) {
+            t.updateTarget(ih, nh);
+        }
+        deleteHandle(il, ih);
+    }
+
+    /**
+     * Delete an instruction that is not targeted anymore.
+     * @param il The list of instructions
+     * @param ih The instruction to be deleted
+     */
+    private static void deleteHandle(InstructionList il, InstructionHandle ih) {
+        try {
+            il.delete(ih);
+        } catch (TargetLostException exc) {
+            throw new IllegalStateException("Lost branch target while inlining: "+exc);
+        }
+    }
+}
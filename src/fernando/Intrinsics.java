@@ -0,0 +1,109 @@
+/*
+   Copyright 2015 Technical University of Denmark, DTU Compute.
+   All rights reserved.
+
+   This file is part of the ahead-of-time bytecode compiler Fernando.
+
+   Redistribution and use in source and binary forms, with or without
+   modification, are permitted provided that the following conditions are met:
+
+      1. Redistributions of source code must retain the above copyright notice,
+         this list of conditions and the following disclaimer.
+
+      2. Redistributions in binary form must reproduce the above copyright
+         notice, this list of conditions and the following disclaimer in the
+         documentation and/or other materials provided with the distribution.
+
+   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER ``AS IS'' AND ANY EXPRESS
+   OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+   OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+   NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+   DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+   (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+   LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+   (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+   THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+   The views and conclusions contained in the software and documentation are
+   those of the authors and should not be interpreted as representing official
+   policies, either expressed or implied, of the copyright holder.
+*/
+
+package fernando;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Native methods that are compiled to inline C code instead of calls.
+ * The code for an intrinsic is a C expression in which %0, %1, ...
+ * stand for the arguments of the method.
+ */
+public class Intrinsics {
+    // hide default constructor
+    private Intrinsics() {
+    }
+
+    /** A map from fully qualified method names to C expressions. */
+    private static final Map<String, String> intrinsics = new LinkedHashMap<String, String>();
+
+    static {
+        intrinsics.put("java.lang.Float.floatToIntBits(F)I", "jvm_float2bits(%0)");
+        intrinsics.put("java.lang.Float.intBitsToFloat(I)F", "jvm_bits2float(%0)");
+        intrinsics.put("java.lang.Double.doubleToLongBits(D)J", "jvm_double2bits(%0)");
+        intrinsics.put("java.lang.Double.longBitsToDouble(J)D", "jvm_bits2double(%0)");
+        intrinsics.put("java.lang.Character.reverseBytes(C)C", "(uint16_t)jvm_bswap16(%0)");
+        intrinsics.put("java.lang.Short.reverseBytes(S)S", "(int16_t)jvm_bswap16(%0)");
+        intrinsics.put("java.lang.Integer.reverseBytes(I)I", "(int32_t)jvm_bswap32(%0)");
+        intrinsics.put("java.lang.Long.reverseBytes(J)J", "(int64_t)jvm_bswap64(%0)");
+        intrinsics.put("java.nio.ByteOrder.isBigEndian()Z", "JVM_BIG_ENDIAN");
+
+        String [][] values = {
+            { "Byte", "B", "byte" }, { "Char", "C", "char" },
+            { "Short", "S", "short" }, { "Int", "I", "int" },
+            { "Long", "J", "long" }, { "Float", "F", "float" },
+            { "Double", "D", "double" }
+        };
+        for (String [] v : values) {
+            intrinsics.put("ferdl.unsafe.OffHeap.get"+v[0]+"(J)"+v[1], "jvm_load_"+v[2]+"(%0)");
+            intrinsics.put("ferdl.unsafe.OffHeap.put"+v[0]+"(J"+v[1]+")V", "jvm_store_"+v[2]+"(%0, %1)");
+        }
+        intrinsics.put("ferdl.unsafe.OffHeap.copy(JJJ)V",
+                       "memmove((void *)(uintptr_t)%1, (const void *)(uintptr_t)%0, (size_t)%2)");
+        intrinsics.put("ferdl.unsafe.OffHeap.fill(JJB)V",
+                       "memset((void *)(uintptr_t)%0, %2, (size_t)%1)");
+
+        String [][] arrays = {
+            { "B", "_byte___obj_t", "int8_t" }, { "I", "_int___obj_t", "int32_t" },
+            { "J", "_long___obj_t", "int64_t" }, { "D", "_double___obj_t", "double" }
+        };
+        for (String [] a : arrays) {
+            intrinsics.put("ferdl.unsafe.OffHeap.load(J["+a[0]+"II)V",
+                           "memcpy(&(("+a[1]+" *)%1)->_1_data[%2], (const void *)(uintptr_t)%0, (size_t)%3*sizeof("+a[2]+"))");
+            intrinsics.put("ferdl.unsafe.OffHeap.store(["+a[0]+"IJI)V",
+                           "memcpy((void *)(uintptr_t)%2, &(("+a[1]+" *)%0)->_1_data[%1], (size_t)%3*sizeof("+a[2]+"))");
+        }
+
+        for (String [] v : values) {
+            if ("CSIJ".indexOf(v[1]) >= 0) {
+                intrinsics.put("java.nio.ByteBuffer.load"+v[0]+"([BI)"+v[1],
+                               "jvm_load_"+v[2]+"((uintptr_t)&((_byte___obj_t *)%0)->_1_data[%1])");
+                intrinsics.put("java.nio.ByteBuffer.store"+v[0]+"([BI"+v[1]+")V",
+                               "jvm_store_"+v[2]+"((uintptr_t)&((_byte___obj_t *)%0)->_1_data[%1], %2)");
+            }
+        }
+        intrinsics.put("java.nio.ByteBuffer.copy([BI[BII)V",
+                       "memmove(&((_byte___obj_t *)%2)->_1_data[%3], &((_byte___obj_t *)%0)->_1_data[%1], (size_t)%4)");
+    }
+
+    /**
+     * Get the C code for an intrinsic method.
+     * @param fqName The fully qualified name of the method
+     * @return The C expression that implements the method, null if
+     * the method is not an intrinsic
+     */
+    public static String get(String fqName) {
+        return intrinsics.get(fqName);
+    }
+}
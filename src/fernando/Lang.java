@@ -131,11 +131,15 @@ public class Lang {
             cType = "int16_t";
             break;
         case Constants.T_LONG:
-        case Constants.T_DOUBLE:
             cType = "int64_t";
             break;
-        case Constants.T_INT:
         case Constants.T_FLOAT:
+            cType = "float";
+            break;
+        case Constants.T_DOUBLE:
+            cType = "double";
+            break;
+        case Constants.T_INT:
         case Constants.T_OBJECT:
         default:
             cType = "int32_t";
@@ -143,6 +147,68 @@ public class Lang {
         return cType;
     }
 
+    /**
+     * Get the name of the C type that is used to pass a Java type
+     * to or return it from a method. Unless typed calls are used,
+     * floating-point values are passed as their bit patterns.
+     * @param type The Java type
+     * @param typedCalls Whether values are passed with their native C types
+     * @return The C type
+     */
+    public static String getCallType(Type type, boolean typedCalls) {
+        if (typedCalls) {
+            return getType(type);
+        }
+        switch (type.getType()) {
+        case Constants.T_FLOAT:
+            return "int32_t";
+        case Constants.T_DOUBLE:
+            return "int64_t";
+        default:
+            return getType(type);
+        }
+    }
+
+    /**
+     * Get a C literal for a long constant.
+     * @param value The constant
+     * @return The C literal
+     */
+    public static String getLongConst(long value) {
+        if (value == Long.MIN_VALUE) {
+            return "(-"+Long.MAX_VALUE+"LL-1)";
+        }
+        return value+"LL";
+    }
+
+    /**
+     * Get a C literal for a float constant.
+     * @param value The constant
+     * @return The C literal
+     */
+    public static String getFloatConst(float value) {
+        if (Float.isNaN(value)) {
+            return "NAN";
+        } else if (Float.isInfinite(value)) {
+            return value > 0 ? "INFINITY" : "-INFINITY";
+        }
+        return Float.toHexString(value)+"f";
+    }
+
+    /**
+     * Get a C literal for a double constant.
+     * @param value The constant
+     * @return The C literal
+     */
+    public static String getDoubleConst(double value) {
+        if (Double.isNaN(value)) {
+            return "(double)NAN";
+        } else if (Double.isInfinite(value)) {
+            return value > 0 ? "(double)INFINITY" : "(double)-INFINITY";
+        }
+        return Double.toHexString(value);
+    }
+
     /**
      * Get the C operator for an arithmetic bytecode.
      * @param i The bytecode
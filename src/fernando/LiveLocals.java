@@ -0,0 +1,145 @@
+/*
+   Copyright 2015 Technical University of Denmark, DTU Compute.
+   All rights reserved.
+
+   This file is part of the ahead-of-time bytecode compiler Fernando.
+
+   Redistribution and use in source and binary forms, with or without
+   modification, are permitted provided that the following conditions are met:
+
+      1. Redistributions of source code must retain the above copyright notice,
+         this list of conditions and the following disclaimer.
+
+      2. Redistributions in binary form must reproduce the above copyright
+         notice, this list of conditions and the following disclaimer in the
+         documentation and/or other materials provided with the distribution.
+
+   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER ``AS IS'' AND ANY EXPRESS
+   OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+   OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+   NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+   DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+   (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+   LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+   (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+   THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+   The views and conclusions contained in the software and documentation are
+   those of the authors and should not be interpreted as representing official
+   policies, either expressed or implied, of the copyright holder.
+*/
+
+
+package fernando;
+
+import org.apache.bcel.classfile.CodeException;
+import org.apache.bcel.generic.*;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A backward data flow analysis to determine which local variables
+ * may be read before they are overwritten.
+ */
+public class LiveLocals {
+
+    /** A map between code positions and the local variables live before them. */
+    private final Map<Integer, BitSet> liveMap = new HashMap<Integer, BitSet>();
+
+    /**
+     * Create and run the analysis.
+     * @param il The list of instructions to be analyzed
+     * @param excTab The exception table of the analyzed method
+     */
+    public LiveLocals(InstructionList il, CodeException [] excTab) {
+        this(il, excTab, false);
+    }
+
+    /**
+     * Create and run the analysis, optionally restricted to local
+     * variables that hold references. The restricted analysis only
+     * counts ALOAD as use, such that a live variable holds a reference
+     * on all paths to its use.
+     * @param il The list of instructions to be analyzed
+     * @param excTab The exception table of the analyzed method
+     * @param refsOnly Whether to consider only variables that hold references
+     */
+    public LiveLocals(InstructionList il, CodeException [] excTab, boolean refsOnly) {
+        InstructionHandle [] handles = il.getInstructionHandles();
+        for (InstructionHandle ih : handles) {
+            liveMap.put(ih.getPosition(), new BitSet());
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int k = handles.length-1; k >= 0; k--) {
+                int pos = handles[k].getPosition();
+                Instruction i = handles[k].getInstruction();
+
+                BitSet live = getLiveOut(pos, i, excTab);
+                if (i instanceof StoreInstruction) {
+                    live.clear(((StoreInstruction)i).getIndex());
+                }
+                if (refsOnly ? i instanceof ALOAD
+                    : i instanceof LoadInstruction || i instanceof IINC || i instanceof RET) {
+                    live.set(((IndexedInstruction)i).getIndex());
+                }
+
+                if (!live.equals(liveMap.get(pos))) {
+                    liveMap.put(pos, live);
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Compute the local variables that are live after an instruction.
+     * @param pos The position of the instruction
+     * @param i The instruction
+     * @param excTab The exception table of the analyzed method
+     * @return The live local variables
+     */
+    private BitSet getLiveOut(int pos, Instruction i, CodeException [] excTab) {
+        BitSet live = new BitSet();
+        if (i instanceof Select) {
+            Select s = (Select)i;
+            for (int idx : s.getIndices()) {
+                live.or(get(pos + idx));
+            }
+        }
+        if (i instanceof BranchInstruction) {
+            BranchInstruction bi = (BranchInstruction)i;
+            live.or(get(pos + bi.getIndex()));
+        }
+        if (!(i instanceof ReturnInstruction ||
+              i instanceof Select ||
+              i instanceof UnconditionalBranch ||
+              i instanceof RET)) {
+            live.or(get(pos + i.getLength()));
+        }
+        // an exception handler may be entered from anywhere in its range
+        if (excTab != null) {
+            for (CodeException exc : excTab) {
+                if (exc.getStartPC() <= pos && pos < exc.getEndPC()) {
+                    live.or(get(exc.getHandlerPC()));
+                }
+            }
+        }
+        return live;
+    }
+
+    /**
+     * Get the local variables that are live before a position in the code.
+     * @param pos The position in the code
+     * @return The live local variables
+     */
+    public BitSet get(int pos) {
+        BitSet live = liveMap.get(pos);
+        return live != null ? live : new BitSet();
+    }
+}
@@ -67,22 +67,63 @@ public class Main {
     private Main() {
     }
 
+    /**
+     * Print usage information and exit.
+     */
+    private static void usage() {
+        System.err.println("Usage: java fernando.Main [options] <classpath> <mainclass> <directory>");
+        System.err.println("Options:");
+        System.err.println("  -typedcalls   pass values to methods with their native C types");
+        System.err.println("  -sjlj         propagate exceptions with setjmp/longjmp instead of checking after each call");
+        System.err.println("  -compact      keep lock words in a table to shrink object headers by one word");
+        System.err.println("  -inline=<n>   inline up to <n> bytes of code per method (default: "+
+                           AppInfo.DEFAULT_INLINE_BUDGET+", 0 disables inlining)");
+        System.exit(-1);
+    }
+
     /**
      * The usual main method.
-     * @param args The command line arguments. The first argument is
-     * the class path, the second argument the name of the main class,
-     * and the third argument the directory where to generate files.
+     * @param args The command line arguments. Options come first,
+     * followed by the class path, the name of the main class, and the
+     * directory where to generate files.
      */
     public static void main(String [] args) throws ClassNotFoundException, IOException {
-        if (args.length != 3) {
-            System.err.println("Usage: java fernando.Main <classpath> <mainclass> <directory>");
-            System.exit(-1);
+        boolean typedCalls = false;
+        boolean sjljExceptions = false;
+        boolean compactHeaders = false;
+        int inlineBudget = AppInfo.DEFAULT_INLINE_BUDGET;
+
+        int argIdx = 0;
+        while (argIdx < args.length && args[argIdx].startsWith("-")) {
+            String opt = args[argIdx++];
+            if ("-typedcalls".equals(opt)) {
+                typedCalls = true;
+            } else if ("-sjlj".equals(opt)) {
+                sjljExceptions = true;
+            } else if ("-compact".equals(opt)) {
+                compactHeaders = true;
+            } else if (opt.startsWith("-inline=")) {
+                try {
+                    inlineBudget = Integer.parseInt(opt.substring("-inline=".length()));
+                } catch (NumberFormatException exc) {
+                    usage();
+                }
+            } else {
+                usage();
+            }
+        }
+        if (args.length - argIdx != 3) {
+            usage();
         }
 
-        ClassPath cp = new ClassPath(args[0]);
+        ClassPath cp = new ClassPath(args[argIdx]);
         Repository.setRepository(SyntheticRepository.getInstance(cp));
 
-        AppInfo app = new AppInfo(args[1]);
-        app.dumpAll(args[2]);
+        AppInfo app = new AppInfo(args[argIdx+1]);
+        app.setTypedCalls(typedCalls);
+        app.setSjljExceptions(sjljExceptions);
+        app.setCompactHeaders(compactHeaders);
+        app.setInlineBudget(inlineBudget);
+        app.dumpAll(args[argIdx+2]);
     }
 }
\ No newline at end of file
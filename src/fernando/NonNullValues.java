@@ -0,0 +1,351 @@
+/*
+   Copyright 2015 Technical University of Denmark, DTU Compute.
+   All rights reserved.
+
+   This file is part of the ahead-of-time bytecode compiler Fernando.
+
+   Redistribution and use in source and binary forms, with or without
+   modification, are permitted provided that the following conditions are met:
+
+      1. Redistributions of source code must retain the above copyright notice,
+         this list of conditions and the following disclaimer.
+
+      2. Redistributions in binary form must reproduce the above copyright
+         notice, this list of conditions and the following disclaimer in the
+         documentation and/or other materials provided with the distribution.
+
+   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER ``AS IS'' AND ANY EXPRESS
+   OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+   OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+   NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+   DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+   (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+   LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+   (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+   THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+   The views and conclusions contained in the software and documentation are
+   those of the authors and should not be interpreted as representing official
+   policies, either expressed or implied, of the copyright holder.
+*/
+
+
+package fernando;
+
+import org.apache.bcel.classfile.CodeException;
+import org.apache.bcel.generic.*;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * A forward data flow analysis to determine which local variables and
+ * stack slots definitely hold non-null references. The analysis keeps
+ * track of which local variable a value on the stack was loaded from,
+ * such that a null check on the value also applies to the variable.
+ */
+public class NonNullValues {
+
+    /** Stack entry for a value that is definitely not null. */
+    private static final int NON_NULL = -1;
+    /** Stack entry for a value that may be null. */
+    private static final int MAYBE_NULL = -2;
+
+    /**
+     * The analysis state at a particular position in the code.
+     */
+    private static class State {
+        /** The local variables that definitely hold non-null references. */
+        final BitSet locals;
+        /**
+         * The stack, with the topmost slot first. Entries are either
+         * {@link #NON_NULL}, {@link #MAYBE_NULL}, or the index of the
+         * local variable the (possibly null) value was loaded from.
+         */
+        final LinkedList<Integer> stack;
+
+        State(BitSet locals, LinkedList<Integer> stack) {
+            this.locals = locals;
+            this.stack = stack;
+        }
+
+        State copy() {
+            return new State((BitSet)locals.clone(), new LinkedList<Integer>(stack));
+        }
+
+        /**
+         * Merge another state into this state.
+         * @param other The other state
+         * @return true if this state changed, false otherwise
+         */
+        boolean merge(State other) {
+            boolean changed = false;
+            BitSet l = (BitSet)locals.clone();
+            l.and(other.locals);
+            if (!l.equals(locals)) {
+                locals.and(other.locals);
+                changed = true;
+            }
+            for (int k = 0; k < stack.size() && k < other.stack.size(); k++) {
+                if (!stack.get(k).equals(other.stack.get(k))
+                    && stack.get(k) != MAYBE_NULL) {
+                    stack.set(k, MAYBE_NULL);
+                    changed = true;
+                }
+            }
+            return changed;
+        }
+
+        /**
+         * Record that a stack slot holds a non-null reference, and
+         * propagate this information to the local variable it was
+         * loaded from.
+         * @param idx The index of the slot, counting from the top of the stack
+         */
+        void setNonNull(int idx) {
+            int entry = stack.get(idx);
+            if (entry >= 0) {
+                locals.set(entry);
+                for (int k = 0; k < stack.size(); k++) {
+                    if (stack.get(k) == entry) {
+                        stack.set(k, NON_NULL);
+                    }
+                }
+            }
+            stack.set(idx, NON_NULL);
+        }
+
+        /**
+         * Record that a local variable is overwritten.
+         * @param index The index of the local variable
+         */
+        void kill(int index) {
+            locals.clear(index);
+            for (int k = 0; k < stack.size(); k++) {
+                if (stack.get(k) == index) {
+                    stack.set(k, MAYBE_NULL);
+                }
+            }
+        }
+    }
+
+    /** A map between code positions and computed states. */
+    private final Map<Integer, State> stateMap = new HashMap<Integer, State>();
+
+    /**
+     * Create and run the analysis.
+     * @param il The list of instructions to be analyzed
+     * @param constPool The constant pool for the instructions
+     * @param isStatic Whether the analyzed method is static
+     * @param excTab The exception table of the analyzed method
+     */
+    public NonNullValues(InstructionList il, ConstantPoolGen constPool,
+                         boolean isStatic, CodeException [] excTab) {
+
+        Queue<Integer> queue = new LinkedList<Integer>();
+
+        BitSet locals = new BitSet();
+        if (!isStatic) {
+            locals.set(0);
+        }
+        int pos = il.getStart().getPosition();
+        stateMap.put(pos, new State(locals, new LinkedList<Integer>()));
+        queue.add(pos);
+
+        while (!queue.isEmpty()) {
+            pos = queue.remove();
+            Instruction i = il.findHandle(pos).getInstruction();
+            State in = stateMap.get(pos);
+
+            // an exception handler may be entered from anywhere in its range
+            if (excTab != null) {
+                for (CodeException exc : excTab) {
+                    if (exc.getStartPC() <= pos && pos < exc.getEndPC()) {
+                        LinkedList<Integer> stack = new LinkedList<Integer>();
+                        stack.push(NON_NULL);
+                        update(queue, exc.getHandlerPC(), new State(in.locals, stack));
+                    }
+                }
+            }
+
+            State out = in.copy();
+            int checked = getCheckedSlot(i, constPool);
+            if (checked >= 0) {
+                out.setNonNull(checked);
+            }
+            Integer tested = out.stack.isEmpty() ? MAYBE_NULL : out.stack.peek();
+            updateState(out, i, constPool);
+
+            // the value tested by IFNULL or IFNONNULL is not null on one of the paths
+            State taken = out;
+            State notTaken = out;
+            if (i instanceof IFNULL || i instanceof IFNONNULL) {
+                State nonNull = out.copy();
+                if (tested >= 0) {
+                    nonNull.locals.set(tested);
+                    for (int k = 0; k < nonNull.stack.size(); k++) {
+                        if (nonNull.stack.get(k).equals(tested)) {
+                            nonNull.stack.set(k, NON_NULL);
+                        }
+                    }
+                }
+                if (i instanceof IFNULL) {
+                    notTaken = nonNull;
+                } else {
+                    taken = nonNull;
+                }
+            }
+
+            updateQueue(queue, pos, i, taken, notTaken);
+        }
+    }
+
+    /**
+     * Get the stack slot that an instruction checks for null.
+     * @param i The instruction
+     * @param constPool The constant pool for the instruction
+     * @return The index of the slot, counting from the top of the
+     * stack, -1 if the instruction does not check for null
+     */
+    private static int getCheckedSlot(Instruction i, ConstantPoolGen constPool) {
+        if (i instanceof GETFIELD || i instanceof ARRAYLENGTH
+            || i instanceof MONITORENTER || i instanceof MONITOREXIT
+            || i instanceof ATHROW) {
+            return 0;
+        } else if (i instanceof PUTFIELD) {
+            return ((PUTFIELD)i).getFieldType(constPool).getSize();
+        } else if (i instanceof ArrayInstruction && i instanceof StackProducer) {
+            return 1;
+        } else if (i instanceof ArrayInstruction) {
+            return 1 + ((ArrayInstruction)i).getType(constPool).getSize();
+        } else if (i instanceof InvokeInstruction && !(i instanceof INVOKESTATIC)) {
+            int size = 0;
+            for (Type t : ((InvokeInstruction)i).getArgumentTypes(constPool)) {
+                size += t.getSize();
+            }
+            return size;
+        }
+        return -1;
+    }
+
+    /**
+     * Update the current state according to the semantics of the current instruction.
+     * @param state The current state (before analyzing the instruction)
+     * @param i The current instruction
+     * @param constPool The constant pool for the instruction
+     */
+    private static void updateState(State state, Instruction i, ConstantPoolGen constPool) {
+        LinkedList<Integer> stack = state.stack;
+
+        if (i instanceof ALOAD) {
+            int index = ((ALOAD)i).getIndex();
+            stack.push(state.locals.get(index) ? NON_NULL : index);
+        } else if (i instanceof StoreInstruction) {
+            StoreInstruction si = (StoreInstruction)i;
+            int index = si.getIndex();
+            int value = stack.peek();
+            for (int k = 0; k < i.consumeStack(constPool); k++) {
+                stack.pop();
+            }
+            for (int k = 0; k < si.getType(constPool).getSize(); k++) {
+                state.kill(index+k);
+            }
+            if (i instanceof ASTORE && value == NON_NULL) {
+                state.locals.set(index);
+            }
+        } else if (i instanceof CHECKCAST) {
+            // the value remains unchanged
+        } else if (StackTypes.shuffle(stack, i)) {
+            // only stack slots were rearranged
+        } else {
+            for (int k = 0; k < i.consumeStack(constPool); k++) {
+                stack.pop();
+            }
+            int size = i.produceStack(constPool);
+            for (int k = 0; k < size; k++) {
+                stack.push(k == 0 && producesNonNull(i, constPool) ? NON_NULL : MAYBE_NULL);
+            }
+        }
+    }
+
+    /**
+     * Check whether an instruction always produces a non-null reference.
+     * @param i The instruction
+     * @param constPool The constant pool for the instruction
+     * @return true if the produced value is never null, false otherwise
+     */
+    private static boolean producesNonNull(Instruction i, ConstantPoolGen constPool) {
+        if (i instanceof NEW || i instanceof NEWARRAY
+            || i instanceof ANEWARRAY || i instanceof MULTIANEWARRAY) {
+            return true;
+        } else if (i instanceof LDC) {
+            Object value = ((LDC)i).getValue(constPool);
+            return value instanceof String || value instanceof Type;
+        }
+        return false;
+    }
+
+    /**
+     * Merge a state into the state at a position, and queue the
+     * position for analysis if its state changed.
+     * @param queue The queue of positions to be analyzed
+     * @param target The position to be updated
+     * @param state The state to be merged
+     */
+    private void update(Queue<Integer> queue, int target, State state) {
+        State old = stateMap.get(target);
+        if (old == null) {
+            stateMap.put(target, state.copy());
+            queue.add(target);
+        } else if (old.merge(state) && !queue.contains(target)) {
+            queue.add(target);
+        }
+    }
+
+    /**
+     * Update the states of the successors of an instruction.
+     * @param queue The queue of positions to be analyzed
+     * @param pos The current position in the code
+     * @param i The current instruction
+     * @param taken The computed state if a branch is taken
+     * @param notTaken The computed state if no branch is taken
+     */
+    private void updateQueue(Queue<Integer> queue, int pos, Instruction i, State taken, State notTaken) {
+        if (i instanceof Select) {
+            Select s = (Select)i;
+            for (int idx : s.getIndices()) {
+                update(queue, pos + idx, taken);
+            }
+        }
+        if (i instanceof BranchInstruction) {
+            BranchInstruction bi = (BranchInstruction)i;
+            update(queue, pos + bi.getIndex(), taken);
+        }
+        if (!(i instanceof ReturnInstruction ||
+              i instanceof Select ||
+              i instanceof UnconditionalBranch ||
+              i instanceof RET)) {
+            update(queue, pos + i.getLength(), notTaken);
+        }
+    }
+
+    /**
+     * Check whether a stack slot definitely holds a non-null reference.
+     * @param pos The position in the code
+     * @param depth The stack slot
+     * @return true if the slot holds a reference that is not null,
+     * false if it may be null or the position is not reachable
+     */
+    public boolean isNonNull(int pos, int depth) {
+        State state = stateMap.get(pos);
+        if (state == null) {
+            return false;
+        }
+        int idx = state.stack.size()-1-depth;
+        return idx >= 0 && idx < state.stack.size() && state.stack.get(idx) == NON_NULL;
+    }
+}
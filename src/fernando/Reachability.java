@@ -0,0 +1,468 @@
+/*
+   Copyright 2015 Technical University of Denmark, DTU Compute.
+   All rights reserved.
+
+   This file is part of the ahead-of-time bytecode compiler Fernando.
+
+   Redistribution and use in source and binary forms, with or without
+   modification, are permitted provided that the following conditions are met:
+
+      1. Redistributions of source code must retain the above copyright notice,
+         this list of conditions and the following disclaimer.
+
+      2. Redistributions in binary form must reproduce the above copyright
+         notice, this list of conditions and the following disclaimer in the
+         documentation and/or other materials provided with the distribution.
+
+   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER ``AS IS'' AND ANY EXPRESS
+   OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+   OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+   NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+   DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+   (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+   LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+   (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+   THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+   The views and conclusions contained in the software and documentation are
+   those of the authors and should not be interpreted as representing official
+   policies, either expressed or implied, of the copyright holder.
+*/
+
+
+package fernando;
+
+import org.apache.bcel.classfile.Code;
+import org.apache.bcel.classfile.CodeException;
+import org.apache.bcel.classfile.ConstantClass;
+import org.apache.bcel.classfile.Field;
+import org.apache.bcel.classfile.Method;
+import org.apache.bcel.generic.*;
+
+import java.util.AbstractMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * A rapid type analysis (RTA) to find the classes, methods and fields
+ * that are actually used by an application. Starting from a set of
+ * roots, the analysis visits all reachable methods and records which
+ * classes are instantiated. A virtual or interface invocation reaches
+ * the implementations of the invoked method in all instantiated
+ * subtypes of the receiver type; when another class is instantiated
+ * later, the invocations seen so far are revisited.
+ *
+ * A class is live if it is instantiated, if code or fields of it are
+ * used, if it is referenced as a type by reachable code, or if it is
+ * a supertype or element type of a live class. A field is live if it
+ * is read by reachable code.
+ */
+public class Reachability {
+
+    /**
+     * An invocation that is dispatched at run time.
+     */
+    private static class VirtualCall {
+        /** The static type of the receiver. */
+        final AbstractClassInfo base;
+        /** The name of the invoked method. */
+        final String name;
+        /** The signature of the invoked method. */
+        final String signature;
+
+        VirtualCall(AbstractClassInfo base, String name, String signature) {
+            this.base = base;
+            this.name = name;
+            this.signature = signature;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof VirtualCall)) {
+                return false;
+            }
+            VirtualCall v = (VirtualCall)o;
+            return base == v.base && name.equals(v.name) && signature.equals(v.signature);
+        }
+
+        @Override
+        public int hashCode() {
+            return (base.hashCode() * 31 + name.hashCode()) * 31 + signature.hashCode();
+        }
+    }
+
+    /** A map between class names and classes. */
+    private final Map<String, AbstractClassInfo> classInfoMap;
+
+    /** The live classes. */
+    private final Set<AbstractClassInfo> liveClasses = new LinkedHashSet<AbstractClassInfo>();
+    /** The classes that are instantiated. */
+    private final Set<AbstractClassInfo> instantiated = new LinkedHashSet<AbstractClassInfo>();
+    /** The reachable methods, as fully qualified names including the signature. */
+    private final Set<String> reachable = new LinkedHashSet<String>();
+    /** The fields that are read, as fully qualified names. */
+    private final Set<String> readFields = new LinkedHashSet<String>();
+    /** The invocations that are dispatched at run time. */
+    private final Set<VirtualCall> virtualCalls = new LinkedHashSet<VirtualCall>();
+
+    /** The queue of methods to be visited. */
+    private final Queue<Map.Entry<AbstractClassInfo, Method>> queue =
+        new LinkedList<Map.Entry<AbstractClassInfo, Method>>();
+
+    /**
+     * Constructor.
+     * @param classInfoMap A map between class names and classes for
+     * all classes in the application.
+     */
+    public Reachability(Map<String, AbstractClassInfo> classInfoMap) {
+        this.classInfoMap = classInfoMap;
+    }
+
+    /**
+     * Add a root class that is used by the runtime system.
+     * @param className The name of the class
+     */
+    public void addClass(String className) {
+        markClass(classInfoMap.get(className));
+    }
+
+    /**
+     * Add a root class that is instantiated by the runtime system.
+     * @param className The name of the class
+     */
+    public void addInstance(String className) {
+        markInstance(classInfoMap.get(className));
+    }
+
+    /**
+     * Add a root method that is invoked by the runtime system.
+     * @param className The name of the class declaring the method
+     * @param name The name of the method
+     * @param signature The signature of the method
+     */
+    public void addMethod(String className, String name, String signature) {
+        AbstractClassInfo ci = classInfoMap.get(className);
+        if (ci != null) {
+            Method m = ci.findMethod(name, signature);
+            if (m != null) {
+                markMethod(ci, m);
+            }
+        }
+    }
+
+    /**
+     * Add a root method that is invoked virtually by the runtime system.
+     * @param className The static type of the receiver
+     * @param name The name of the method
+     * @param signature The signature of the method
+     */
+    public void addVirtualCall(String className, String name, String signature) {
+        AbstractClassInfo ci = classInfoMap.get(className);
+        if (ci != null) {
+            markVirtualCall(new VirtualCall(ci, name, signature));
+        }
+    }
+
+    /**
+     * Add a root field that is read by the runtime system.
+     * @param className The name of the class declaring the field
+     * @param name The name of the field
+     */
+    public void addField(String className, String name) {
+        readFields.add(className+"."+name);
+    }
+
+    /**
+     * Visit all methods that are reachable from the roots.
+     */
+    public void resolve() {
+        while (!queue.isEmpty()) {
+            Map.Entry<AbstractClassInfo, Method> e = queue.remove();
+            visitMethod(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Mark a class and the classes it depends on as live.
+     * @param ci The class
+     */
+    private void markClass(AbstractClassInfo ci) {
+        if (ci == null || !liveClasses.add(ci)) {
+            return;
+        }
+        markClass(ci.getSuperClass());
+        for (AbstractClassInfo i : ci.getInterfaces()) {
+            markClass(i);
+        }
+        if (ci.getName().endsWith("[]")) {
+            String typeName = ci.getName().substring(0, ci.getName().length()-2);
+            markClass(classInfoMap.get(typeName));
+        }
+        Method clinit = ci.findClinit();
+        if (clinit != null) {
+            markMethod(ci, clinit);
+        }
+    }
+
+    /**
+     * Mark a class as instantiated.
+     * @param ci The class
+     */
+    private void markInstance(AbstractClassInfo ci) {
+        if (ci == null) {
+            return;
+        }
+        markClass(ci);
+        if (instantiated.add(ci)) {
+            for (VirtualCall v : new LinkedList<VirtualCall>(virtualCalls)) {
+                if (isSubtype(ci, v.base)) {
+                    markImplementation(ci, v);
+                }
+            }
+        }
+    }
+
+    /**
+     * Mark a method as reachable.
+     * @param ci The class declaring the method
+     * @param m The method
+     */
+    private void markMethod(AbstractClassInfo ci, Method m) {
+        markClass(ci);
+        if (reachable.add(ci.getName()+"."+m.getName()+m.getSignature())
+            && m.getCode() != null) {
+            queue.add(new AbstractMap.SimpleImmutableEntry<AbstractClassInfo, Method>(ci, m));
+        }
+    }
+
+    /**
+     * Record an invocation that is dispatched at run time and mark
+     * the implementations in the instantiated classes as reachable.
+     * @param v The invocation
+     */
+    private void markVirtualCall(VirtualCall v) {
+        if (virtualCalls.add(v)) {
+            for (AbstractClassInfo ci : new LinkedList<AbstractClassInfo>(instantiated)) {
+                if (isSubtype(ci, v.base)) {
+                    markImplementation(ci, v);
+                }
+            }
+        }
+    }
+
+    /**
+     * Mark the implementation of a method that is invoked on
+     * instances of a class as reachable.
+     * @param ci The class of the receiver
+     * @param v The invocation
+     */
+    private void markImplementation(AbstractClassInfo ci, VirtualCall v) {
+        for (AbstractClassInfo c = ci; c != null; c = c.getSuperClass()) {
+            Method m = c.findMethod(v.name, v.signature);
+            if (m != null && !m.isAbstract()) {
+                markMethod(c, m);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Check whether a class is a subtype of another class or interface.
+     * @param ci The class to check
+     * @param base The potential supertype
+     * @return true if instances of ci are also instances of base
+     */
+    private static boolean isSubtype(AbstractClassInfo ci, AbstractClassInfo base) {
+        for (AbstractClassInfo c = ci; c != null; c = c.getSuperClass()) {
+            if (c == base) {
+                return true;
+            }
+        }
+        return ci.getInterfaces().contains(base);
+    }
+
+    /**
+     * Visit the code of a reachable method.
+     * @param ci The class declaring the method
+     * @param m The method
+     */
+    private void visitMethod(AbstractClassInfo ci, Method m) {
+        Code code = m.getCode();
+        ConstantPoolGen constPool = ci.getConstPool();
+        InstructionList il = new InstructionList(code.getCode());
+
+        for (Instruction i : il.getInstructions()) {
+            if (i instanceof NEW) {
+                markInstance(getClassInfo(((NEW)i).getType(constPool)));
+            } else if (i instanceof NEWARRAY) {
+                markInstance(getClassInfo(((NEWARRAY)i).getType()));
+            } else if (i instanceof ANEWARRAY) {
+                markInstance(getClassInfo(new ArrayType(((ANEWARRAY)i).getType(constPool), 1)));
+            } else if (i instanceof MULTIANEWARRAY) {
+                Type type = ((MULTIANEWARRAY)i).getType(constPool);
+                while (type instanceof ArrayType) {
+                    markInstance(getClassInfo(type));
+                    ArrayType at = (ArrayType)type;
+                    type = at.getDimensions() > 1
+                        ? new ArrayType(at.getBasicType(), at.getDimensions()-1)
+                        : at.getBasicType();
+                }
+            } else if (i instanceof LDC) {
+                Object value = ((LDC)i).getValue(constPool);
+                if (value instanceof String) {
+                    markInstance(classInfoMap.get("java.lang.String"));
+                }
+            } else if (i instanceof CHECKCAST || i instanceof INSTANCEOF) {
+                markClass(getClassInfo(((CPInstruction)i).getType(constPool)));
+            } else if (i instanceof FieldInstruction) {
+                visitField((FieldInstruction)i, constPool);
+            } else if (i instanceof InvokeInstruction) {
+                visitInvoke((InvokeInstruction)i, constPool);
+            }
+        }
+
+        for (CodeException exc : code.getExceptionTable()) {
+            if (exc.getCatchType() != 0) {
+                ConstantClass cc = (ConstantClass)constPool.getConstant(exc.getCatchType());
+                String className = (String)cc.getConstantValue(constPool.getConstantPool());
+                markClass(classInfoMap.get(className.replace('/', '.')));
+            }
+        }
+    }
+
+    /**
+     * Visit a field access in a reachable method.
+     * @param fi The field instruction
+     * @param constPool The constant pool for the instruction
+     */
+    private void visitField(FieldInstruction fi, ConstantPoolGen constPool) {
+        AbstractClassInfo ci = getClassInfo(fi.getReferenceType(constPool));
+        if (ci == null) {
+            return;
+        }
+        markClass(ci);
+        String name = fi.getFieldName(constPool);
+        AbstractClassInfo decl = ci.findFieldDeclarator(ci, name);
+        if (decl != null) {
+            markClass(decl);
+            if (fi instanceof GETFIELD || fi instanceof GETSTATIC) {
+                readFields.add(decl.getName()+"."+name);
+            }
+        }
+    }
+
+    /**
+     * Visit a method invocation in a reachable method.
+     * @param ii The invoke instruction
+     * @param constPool The constant pool for the instruction
+     */
+    private void visitInvoke(InvokeInstruction ii, ConstantPoolGen constPool) {
+        AbstractClassInfo ci = getClassInfo(ii.getReferenceType(constPool));
+        if (ci == null) {
+            return;
+        }
+        markClass(ci);
+        String name = ii.getMethodName(constPool);
+        String signature = ii.getSignature(constPool);
+        AbstractClassInfo decl = ci.findMethodDeclarator(ci, name, signature);
+        if (decl != null) {
+            markMethod(decl, decl.findMethod(name, signature));
+        }
+        if (ii instanceof INVOKEVIRTUAL || ii instanceof INVOKEINTERFACE) {
+            markVirtualCall(new VirtualCall(ci, name, signature));
+        }
+    }
+
+    /**
+     * Find the class for a type.
+     * @param type The type
+     * @return The class for the type, null if there is no such class
+     */
+    private AbstractClassInfo getClassInfo(Type type) {
+        return classInfoMap.get(type.toString());
+    }
+
+    /**
+     * Find the class that declares a field, considering all fields
+     * regardless of whether they are live.
+     * @param base The class to start the search
+     * @param name The name of the field
+     * @return The class that declares the field, null if it cannot be found
+     */
+    private static AbstractClassInfo findFieldDeclarator(AbstractClassInfo base, String name) {
+        for (AbstractClassInfo b = base; b != null; b = b.getSuperClass()) {
+            if (declaresField(b, name)) {
+                return b;
+            }
+            for (AbstractClassInfo c : b.getInterfaces()) {
+                if (declaresField(c, name)) {
+                    return c;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean declaresField(AbstractClassInfo ci, String name) {
+        for (Field f : ci.clazz.getFields()) {
+            if (f.getName().equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check whether a class is live.
+     * @param ci The class
+     * @return true if the class is used by the application
+     */
+    public boolean isLive(AbstractClassInfo ci) {
+        return liveClasses.contains(ci);
+    }
+
+    /**
+     * Check whether a class is instantiated.
+     * @param ci The class
+     * @return true if objects of the class may be created
+     */
+    public boolean isInstantiated(AbstractClassInfo ci) {
+        return instantiated.contains(ci);
+    }
+
+    /**
+     * Check whether a method is reachable.
+     * @param ci The class declaring the method
+     * @param m The method
+     * @return true if the method may be invoked
+     */
+    public boolean isLive(AbstractClassInfo ci, Method m) {
+        return reachable.contains(ci.getName()+"."+m.getName()+m.getSignature());
+    }
+
+    /**
+     * Check whether a field is live. The fields of array classes are always live.
+     * @param ci The class declaring the field
+     * @param f The field
+     * @return true if the field may be read
+     */
+    public boolean isLive(AbstractClassInfo ci, Field f) {
+        return ci.getName().endsWith("[]") || readFields.contains(ci.getName()+"."+f.getName());
+    }
+
+    /**
+     * Check whether a field that is accessed by an instruction is live.
+     * @param base The class referenced by the instruction
+     * @param name The name of the field
+     * @return true if the field may be read
+     */
+    public boolean isFieldLive(AbstractClassInfo base, String name) {
+        AbstractClassInfo decl = findFieldDeclarator(base, name);
+        return decl == null || readFields.contains(decl.getName()+"."+name);
+    }
+}
@@ -106,6 +106,7 @@ public class StackDepths {
             }
         }
         if (!(i instanceof ReturnInstruction ||
+              i instanceof Select ||
               i instanceof UnconditionalBranch)) {
             Integer next = pos + i.getLength();
             depthMap.put(next, depth);
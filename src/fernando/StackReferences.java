@@ -110,7 +110,9 @@ public class StackReferences {
             if (i instanceof GETFIELD) { 
                 stack.pop();
             }
-            stack.push(fi.getFieldType(constPool) instanceof ReferenceType);
+            for (int k = 0; k < i.produceStack(constPool); k++) {
+                stack.push(fi.getFieldType(constPool) instanceof ReferenceType);
+            }
         } else if (i instanceof AALOAD) {
             stack.pop();
             stack.pop();
@@ -220,6 +222,7 @@ public class StackReferences {
             }
         }
         if (!(i instanceof ReturnInstruction ||
+              i instanceof Select ||
               i instanceof UnconditionalBranch)) {
             Integer next = pos + i.getLength();
             if (!refMap.containsKey(next)) {
@@ -0,0 +1,300 @@
+/*
+   Copyright 2015 Technical University of Denmark, DTU Compute.
+   All rights reserved.
+
+   This file is part of the ahead-of-time bytecode compiler Fernando.
+
+   Redistribution and use in source and binary forms, with or without
+   modification, are permitted provided that the following conditions are met:
+
+      1. Redistributions of source code must retain the above copyright notice,
+         this list of conditions and the following disclaimer.
+
+      2. Redistributions in binary form must reproduce the above copyright
+         notice, this list of conditions and the following disclaimer in the
+         documentation and/or other materials provided with the distribution.
+
+   THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDER ``AS IS'' AND ANY EXPRESS
+   OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+   OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+   NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY
+   DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+   (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+   LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+   ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+   (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+   THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+   The views and conclusions contained in the software and documentation are
+   those of the authors and should not be interpreted as representing official
+   policies, either expressed or implied, of the copyright holder.
+*/
+
+package fernando;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.generic.*;
+
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * A simple data flow analysis to determine the types of the values on
+ * the operand stack. The stack state holds one entry per stack slot;
+ * the upper slot of a long or double value is marked with {@link
+ * Type#UNKNOWN}.
+ */
+public class StackTypes {
+
+    /** A map between code positions and computed stack states. */
+    private final Map<Integer, Deque<Type>> typeMap = new HashMap<Integer, Deque<Type>>();
+
+    /**
+     * Create and run the analysis.
+     * @param il The list of instructions to be analyzed
+     * @param constPool The constant pool for the instructions
+     */
+    public StackTypes(InstructionList il, ConstantPoolGen constPool) {
+
+        boolean initial = true;
+        Queue<Integer> queue = new LinkedList<Integer>();
+        int pos = findUndefinedMapPos(il);
+
+        while (pos >= 0) {
+            typeMap.put(pos, new LinkedList<Type>());
+            if (!initial) {
+                typeMap.get(pos).push(Type.OBJECT);
+            } else {
+                initial = false;
+            }
+            queue.add(pos);
+
+            while (!queue.isEmpty()) {
+                pos = queue.remove();
+                Instruction i = il.findHandle(pos).getInstruction();
+
+                Deque<Type> stack = new LinkedList<Type>(typeMap.get(pos));
+                updateStack(stack, i, constPool);
+
+                updateQueue(queue, pos, i, stack);
+            }
+
+            pos = findUndefinedMapPos(il);
+        }
+    }
+
+    /**
+     * Map a Java type to the type of the stack slot that holds it.
+     * @param type The Java type
+     * @return One of {@link Type#INT}, {@link Type#LONG}, {@link
+     * Type#FLOAT}, {@link Type#DOUBLE} or {@link Type#OBJECT}
+     */
+    public static Type normalize(Type type) {
+        switch (type.getType()) {
+        case Constants.T_LONG:
+            return Type.LONG;
+        case Constants.T_FLOAT:
+            return Type.FLOAT;
+        case Constants.T_DOUBLE:
+            return Type.DOUBLE;
+        case Constants.T_BOOLEAN:
+        case Constants.T_BYTE:
+        case Constants.T_CHAR:
+        case Constants.T_SHORT:
+        case Constants.T_INT:
+            return Type.INT;
+        default:
+            return type instanceof ReferenceType ? Type.OBJECT : Type.INT;
+        }
+    }
+
+    /**
+     * Update the current stack state according to the semantics of the current instruction.
+     * @param stack The current stack state (before analyzing the instruction)
+     * @param i The current instruction
+     * @param constPool The constant pool for the instruction
+     */
+    private void updateStack(Deque<Type> stack, Instruction i, ConstantPoolGen constPool) {
+
+        if (!shuffle(stack, i)) {
+            for (int k = 0; k < i.consumeStack(constPool); k++) {
+                stack.pop();
+            }
+            int size = i.produceStack(constPool);
+            if (size > 0) {
+                stack.push(getProducedType(i, constPool));
+                if (size > 1) {
+                    stack.push(Type.UNKNOWN);
+                }
+            }
+        }
+    }
+
+    /**
+     * Update a stack state for the instructions that only rearrange
+     * stack slots, i.e., the DUP instructions and SWAP.
+     * @param stack The current stack state, with the topmost slot first
+     * @param i The current instruction
+     * @return true if the stack state was updated, false if the
+     * instruction does not only rearrange stack slots
+     */
+    public static <T> boolean shuffle(Deque<T> stack, Instruction i) {
+
+        if (i instanceof DUP) {
+            T t1 = stack.pop();
+            stack.push(t1);
+            stack.push(t1);
+        } else if (i instanceof DUP_X1) {
+            T t1 = stack.pop();
+            T t2 = stack.pop();
+            stack.push(t1);
+            stack.push(t2);
+            stack.push(t1);
+        } else if (i instanceof DUP_X2) {
+            T t1 = stack.pop();
+            T t2 = stack.pop();
+            T t3 = stack.pop();
+            stack.push(t1);
+            stack.push(t3);
+            stack.push(t2);
+            stack.push(t1);
+        } else if (i instanceof DUP2) {
+            T t1 = stack.pop();
+            T t2 = stack.pop();
+            stack.push(t2);
+            stack.push(t1);
+            stack.push(t2);
+            stack.push(t1);
+        } else if (i instanceof DUP2_X1) {
+            T t1 = stack.pop();
+            T t2 = stack.pop();
+            T t3 = stack.pop();
+            stack.push(t2);
+            stack.push(t1);
+            stack.push(t3);
+            stack.push(t2);
+            stack.push(t1);
+        } else if (i instanceof DUP2_X2) {
+            T t1 = stack.pop();
+            T t2 = stack.pop();
+            T t3 = stack.pop();
+            T t4 = stack.pop();
+            stack.push(t2);
+            stack.push(t1);
+            stack.push(t4);
+            stack.push(t3);
+            stack.push(t2);
+            stack.push(t1);
+        } else if (i instanceof SWAP) {
+            T t1 = stack.pop();
+            T t2 = stack.pop();
+            stack.push(t1);
+            stack.push(t2);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Get the type of the value an instruction pushes onto the stack.
+     * @param i The instruction
+     * @param constPool The constant pool for the instruction
+     * @return The normalized type of the value
+     */
+    private Type getProducedType(Instruction i, ConstantPoolGen constPool) {
+        if (i instanceof LCMP || i instanceof FCMPL || i instanceof FCMPG
+            || i instanceof DCMPL || i instanceof DCMPG
+            || i instanceof ARRAYLENGTH || i instanceof INSTANCEOF) {
+            return Type.INT;
+        } else if (i instanceof NEW || i instanceof NEWARRAY
+                   || i instanceof ANEWARRAY || i instanceof MULTIANEWARRAY
+                   || i instanceof CHECKCAST || i instanceof ACONST_NULL) {
+            return Type.OBJECT;
+        } else if (i instanceof InvokeInstruction) {
+            return normalize(((InvokeInstruction)i).getReturnType(constPool));
+        } else if (i instanceof FieldInstruction) {
+            return normalize(((FieldInstruction)i).getFieldType(constPool));
+        } else if (i instanceof TypedInstruction) {
+            return normalize(((TypedInstruction)i).getType(constPool));
+        }
+        return Type.INT;
+    }
+
+    /**
+     * Store current analysis information and update the queue of positions to be analyzed.
+     * @param queue The queue of positions to be analyzed
+     * @param pos The current position in the code
+     * @param i The current instruction
+     * @param stack The computed stack state
+     */
+    private void updateQueue(Queue<Integer> queue, int pos, Instruction i, Deque<Type> stack) {
+        if (i instanceof Select) {
+            Select s = (Select)i;
+            for (int idx : s.getIndices()) {
+                Integer target = pos + idx;
+                if (!typeMap.containsKey(target)) {
+                    typeMap.put(target, stack);
+                    queue.add(target);
+                }
+            }
+        }
+        if (i instanceof BranchInstruction) {
+            BranchInstruction bi = (BranchInstruction)i;
+            Integer target = pos + bi.getIndex();
+            if (!typeMap.containsKey(target)) {
+                typeMap.put(target, stack);
+                queue.add(target);
+            }
+        }
+        if (!(i instanceof ReturnInstruction ||
+              i instanceof Select ||
+              i instanceof UnconditionalBranch)) {
+            Integer next = pos + i.getLength();
+            if (!typeMap.containsKey(next)) {
+                typeMap.put(next, stack);
+                queue.add(next);
+            }
+        }
+    }
+
+    /**
+     * Find a position that has not been analyzed yet.
+     * @return A position that has not yet been analyzed, -1 if all positions have been analyzed.
+     */
+    private int findUndefinedMapPos(InstructionList il) {
+        for (int pos : il.getInstructionPositions()) {
+            if (!typeMap.containsKey(pos)) {
+                return pos;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the state of the stack at a particular position in the code.
+     * @param pos The position in the code
+     * @return The state of the stack, with the topmost slot first
+     */
+    public Deque<Type> get(int pos) {
+        return typeMap.get(pos);
+    }
+
+    /**
+     * Get the state of the stack at a particular position in the code.
+     * @param pos The position in the code
+     * @return The types of the stack slots, indexed by stack depth
+     */
+    public Type [] getSlots(int pos) {
+        Deque<Type> stack = typeMap.get(pos);
+        Type [] slots = new Type[stack.size()];
+        int k = stack.size()-1;
+        for (Type t : stack) {
+            slots[k--] = t;
+        }
+        return slots;
+    }
+}